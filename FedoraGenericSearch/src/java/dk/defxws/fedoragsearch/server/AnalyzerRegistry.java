@@ -0,0 +1,193 @@
+/*
+ * <p><b>License and Copyright: </b>The contents of this file is subject to the
+ * same open source license as the Fedora Repository System at www.fedora-commons.org
+ * Copyright &copy; 2006, 2007, 2008, 2009, 2010, 2011, 2012, 2013 by The Technical University of Denmark.
+ * All rights reserved.</p>
+ */
+package dk.defxws.fedoragsearch.server;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.util.Version;
+
+import dk.defxws.fedoragsearch.server.errors.ConfigException;
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+
+/**
+ * holds the analyzers of the Lucene based indexes of one Config instance.
+ * The default analyzer and the fgsindex.fieldAnalyzers of an index are instantiated once,
+ * and shared by all threads, as Lucene analyzers are.
+ * When untokenized fields are added, the per field wrapper is rebuilt around the same analyzers,
+ * requests in progress keep the wrapper they got.
+ *
+ * @author  gsp@dtv.dk
+ * @version
+ */
+public class AnalyzerRegistry {
+
+    private static final Logger logger = Logger.getLogger(AnalyzerRegistry.class);
+
+    private Config config;
+
+    private Hashtable<String, IndexAnalyzers> indexNameToAnalyzers = new Hashtable<String, IndexAnalyzers>();
+
+    public AnalyzerRegistry(Config config) {
+    	this.config = config;
+    }
+
+    /**
+     * the per field analyzer used to index and query the index
+     */
+    public Analyzer getQueryAnalyzer(String indexName)
+    throws GenericSearchException {
+    	return getIndexAnalyzers(indexName).getQueryAnalyzer();
+    }
+
+    /**
+     * called by Config, when untokenized fields are found in the index
+     */
+    public void untokenizedFieldsChanged(String indexName) {
+    	IndexAnalyzers indexAnalyzers = indexNameToAnalyzers.get(config.getIndexName(indexName));
+    	if (indexAnalyzers != null) {
+    		indexAnalyzers.setUntokenizedFields(config.getUntokenizedFields(indexName));
+    	}
+    }
+
+    /**
+     * instantiates a new analyzer of analyzerClassName,
+     * or of fgsindex.analyzer if analyzerClassName is empty
+     */
+    public Analyzer newAnalyzer(String indexName, String analyzerClassName)
+    throws GenericSearchException {
+    	if (analyzerClassName.length()==0) {
+        	analyzerClassName= config.getAnalyzer(indexName);
+    	}
+		String stopwordsLocation = config.getStopwordsLocation(indexName);
+        if (logger.isDebugEnabled())
+            logger.debug("newAnalyzer analyzerClassName=" + analyzerClassName+ " stopwordsLocation="+stopwordsLocation);
+        Analyzer analyzer = null;
+        if ("org.apache.lucene.analysis.KeywordAnalyzer".equals(analyzerClassName)) {
+        	analyzer = new KeywordAnalyzer();
+        } else {
+    		try {
+    			Version version = Version.LUCENE_42;
+    			Class analyzerClass = Class.forName(analyzerClassName);
+                if (logger.isDebugEnabled())
+                    logger.debug("newAnalyzer analyzerClass=" + analyzerClass.toString());
+    			if (stopwordsLocation == null || stopwordsLocation.equals("")) {
+    				analyzer = (Analyzer) analyzerClass.getConstructor(new Class[] { Version.class})
+    				.newInstance(new Object[] { version });
+    			} else {
+    				analyzer = (Analyzer) analyzerClass.getConstructor(new Class[] { Version.class, File.class})
+    				.newInstance(new Object[] { version, new File(stopwordsLocation) });
+    			}
+            } catch (Exception e) {
+                throw new GenericSearchException(analyzerClassName
+                        + ": instantiation error.\n", e);
+            }
+        }
+        if (logger.isDebugEnabled())
+            logger.debug("newAnalyzer analyzer=" + analyzer.toString());
+        return analyzer;
+    }
+
+    private IndexAnalyzers getIndexAnalyzers(String indexName)
+    throws GenericSearchException {
+    	String usingIndexName = config.getIndexName(indexName);
+    	IndexAnalyzers indexAnalyzers = indexNameToAnalyzers.get(usingIndexName);
+    	if (indexAnalyzers == null) {
+    		synchronized (this) {
+    			indexAnalyzers = indexNameToAnalyzers.get(usingIndexName);
+    			if (indexAnalyzers == null) {
+    				indexAnalyzers = newIndexAnalyzers(usingIndexName);
+    				indexNameToAnalyzers.put(usingIndexName, indexAnalyzers);
+    			}
+    		}
+    	}
+    	return indexAnalyzers;
+    }
+
+    private IndexAnalyzers newIndexAnalyzers(String indexName)
+    throws GenericSearchException {
+        if (logger.isDebugEnabled())
+            logger.debug("newIndexAnalyzers indexName=" + indexName);
+        Analyzer analyzer = newAnalyzer(indexName, "");
+        Map<String,Analyzer> fieldAnalyzers = new HashMap<String, Analyzer>();
+        String configFieldAnalyzers = "";
+        try {
+			configFieldAnalyzers = config.getFieldAnalyzers(indexName);
+		} catch (Exception e) {
+            throw new ConfigException("newIndexAnalyzers config.getFieldAnalyzers "+" :\n", e);
+		}
+        if (logger.isDebugEnabled())
+            logger.debug("newIndexAnalyzers configFieldAnalyzers=" + configFieldAnalyzers);
+        if (configFieldAnalyzers != null && configFieldAnalyzers.length()>0) {
+            StringTokenizer stConfigFieldAnalyzers = new StringTokenizer(configFieldAnalyzers);
+        	while (stConfigFieldAnalyzers.hasMoreElements()) {
+        		String fieldAnalyzer = stConfigFieldAnalyzers.nextToken();
+        		int i = fieldAnalyzer.indexOf("::");
+        		if (i<0) {
+                    throw new ConfigException("newIndexAnalyzers fgsindex.fieldAnalyzer="+fieldAnalyzer+ " missing '::'");
+        		}
+    			String fieldName = "-";
+    			String analyzerClassName = "-";
+        		try {
+    				fieldName = fieldAnalyzer.substring(0, i);
+    				analyzerClassName = fieldAnalyzer.substring(i+2);
+    				fieldAnalyzers.put(fieldName, newAnalyzer(indexName, analyzerClassName));
+    			} catch (Exception e) {
+    	            throw new ConfigException("newIndexAnalyzers newAnalyzer fieldName="+fieldName+" analyzerClassName="+analyzerClassName+" :\n", e);
+    			}
+        	}
+        }
+        IndexAnalyzers indexAnalyzers = new IndexAnalyzers(analyzer, fieldAnalyzers);
+        indexAnalyzers.setUntokenizedFields(config.getUntokenizedFields(indexName));
+        return indexAnalyzers;
+    }
+
+    private static class IndexAnalyzers {
+
+    	private Analyzer defaultAnalyzer;
+
+    	private Map<String,Analyzer> fieldAnalyzers;
+
+    	private KeywordAnalyzer keywordAnalyzer = new KeywordAnalyzer();
+
+    	private String untokenizedFields = null;
+
+    	private volatile PerFieldAnalyzerWrapper queryAnalyzer;
+
+    	IndexAnalyzers(Analyzer defaultAnalyzer, Map<String,Analyzer> fieldAnalyzers) {
+    		this.defaultAnalyzer = defaultAnalyzer;
+    		this.fieldAnalyzers = fieldAnalyzers;
+    	}
+
+    	Analyzer getQueryAnalyzer() {
+    		return queryAnalyzer;
+    	}
+
+    	synchronized void setUntokenizedFields(String untokenizedFields) {
+    		if (untokenizedFields.equals(this.untokenizedFields)) return;
+    		Map<String,Analyzer> analyzers = new HashMap<String, Analyzer>(fieldAnalyzers);
+    		StringTokenizer st = new StringTokenizer(untokenizedFields);
+    		while (st.hasMoreElements()) {
+    			String fieldName = st.nextToken();
+    			if (!analyzers.containsKey(fieldName)) {
+    				analyzers.put(fieldName, keywordAnalyzer);
+    			}
+    		}
+    		queryAnalyzer = new PerFieldAnalyzerWrapper(defaultAnalyzer, analyzers);
+    		this.untokenizedFields = untokenizedFields;
+            if (logger.isDebugEnabled())
+                logger.debug("setUntokenizedFields untokenizedFields="+untokenizedFields);
+    	}
+    }
+}
@@ -21,6 +21,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.net.URL;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Properties;
@@ -43,10 +44,10 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.SimpleFSDirectory;
 import org.apache.lucene.util.Version;
 
 import dk.defxws.fedoragsearch.server.errors.ConfigException;
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
 
 import org.fcrepo.client.FedoraClient;
 import org.fcrepo.client.Uploader;
@@ -104,6 +105,10 @@ public class Config {
     
     private Hashtable<String, URIResolverImpl> indexNameToUriResolvers = null;
     
+    private AnalyzerRegistry analyzerRegistry = new AnalyzerRegistry(this);
+    
+    private SortRegistry sortRegistry = new SortRegistry(this);
+    
     private String defaultIndexName = null;
     
     private Hashtable<String, Properties> updaterNameToProps = null;
@@ -139,8 +144,12 @@ public class Config {
     	String configName = configNameIn;
     	if (configName==null || configName.equals(""))
     		configName = finalConfigName;
+    	Config previousConfig = currentConfig;
         currentConfig = new Config(configName);
         configs.put(configName, currentConfig);
+        GTransformer.clearTemplatesCache();
+        if (previousConfig != null)
+        	previousConfig.closeIndexes();
     }
 
     /**
@@ -163,8 +172,12 @@ public class Config {
     	} else {
     		throw new ConfigException("*** configureAction='"+configureAction+"' is invalid.");
     	}
+    	Config previousConfig = currentConfig;
         currentConfig = new Config(finalConfigName);
         configs.put(finalConfigName, currentConfig);
+        GTransformer.clearTemplatesCache();
+        if (previousConfig != null)
+        	previousConfig.closeIndexes();
     }
 
     /**
@@ -187,6 +200,40 @@ public class Config {
 	    	config.setProperty(propertyName, beforeValue);
     		throw new ConfigException(config.errors.toString());
 		}
+        GTransformer.clearTemplatesCache();
+        config.closeIndexes();
+    }
+    
+    /**
+     * closes what the plugins hold open for the indexes of all configs,
+     * when the webapp is stopped
+     */
+    public static void closeAllIndexes() {
+    	if (currentConfig != null)
+    		currentConfig.closeIndexes();
+    	Iterator<Config> it = configs.values().iterator();
+    	while (it.hasNext()) {
+    		Config config = it.next();
+    		if (config != currentConfig)
+    			config.closeIndexes();
+    	}
+    }
+    
+    /**
+     * closes what the plugins hold open for the indexes of the config, such as index writers,
+     * they are opened again when needed, with the settings of the current config
+     */
+    public void closeIndexes() {
+    	if (indexNameToProps == null) return;
+    	Enumeration<String> indexNames = indexNameToProps.keys();
+    	while (indexNames.hasMoreElements()) {
+    		String indexName = indexNames.nextElement();
+    		try {
+    			getOperationsImpl(indexName).closeIndex(indexName);
+    		} catch (Exception e) {
+    			logger.warn("closeIndexes indexName="+indexName+" :\n"+e.toString());
+    		}
+    	}
     }
     
     public static Config getCurrentConfig() throws ConfigException {
@@ -451,10 +498,12 @@ public class Config {
     				"fgsindex.defaultBrowseIndexResultXslt",
     				"fgsindex.defaultGetIndexInfoResultXslt",
     				"fgsindex.indexDir",
+    				"fgsindex.directoryImpl",
     				"fgsindex.analyzer",
     				"fgsindex.fieldAnalyzers",
     				"fgsindex.stopwordsLocation",
     				"fgsindex.untokenizedFields",
+    				"fgsindex.numericFields",
     				"fgsindex.defaultQueryFields",
     				"fgsindex.allowLeadingWildcard",
     				"fgsindex.lowercaseExpandedTerms",
@@ -463,6 +512,16 @@ public class Config {
     				"fgsindex.maxBufferedDocs",
     				"fgsindex.mergeFactor",
     				"fgsindex.defaultWriteLockTimeout",
+    				"fgsindex.commitMaxDocs",
+    				"fgsindex.commitMaxTime",
+    				"fgsindex.fromFoxmlFilesWorkers",
+    				"fgsindex.fromFoxmlFilesQueueSize",
+    				"fgsindex.resultPageCacheSize",
+    				"fgsindex.resultPageCacheMaxChars",
+    				"fgsindex.updateBatchSize",
+    				"fgsindex.updateBatchMaxChars",
+    				"fgsindex.commitWithin",
+    				"fgsindex.updateAccounting",
     				"fgsindex.defaultSortFields",
     				"fgsindex.uriResolver"
     		};
@@ -553,6 +612,27 @@ public class Config {
                 	}
                 }
     		}
+
+//  		Check directoryImpl for the indexes opened by Lucene
+    		if (operationsImpl.indexOf("fgslucene")>-1 || operationsImpl.indexOf("fgssolr.")>-1) {
+    			try {
+    				DirectoryFactory.check(getProperty(props, "fgsindex.directoryImpl"));
+    			} catch (ConfigException e) {
+    				errors.append("\n*** "+configName+"/index/"+indexName+" "+e.getMessage());
+    			}
+    		}
+
+//  		Parse defaultSortFields for the indexes searched by Lucene
+    		if (operationsImpl.indexOf("fgslucene")>-1 || operationsImpl.indexOf("fgssolr.")>-1) {
+    			String defaultSortFields = getProperty(props, "fgsindex.defaultSortFields");
+    			if (defaultSortFields != null && defaultSortFields.length()>0) {
+    				try {
+    					sortRegistry.getSort(indexName, defaultSortFields);
+    				} catch (GenericSearchException e) {
+    					errors.append("\n*** "+configName+"/index/"+indexName+" fgsindex.defaultSortFields="+defaultSortFields+ " :\n"+e.getMessage());
+    				}
+    			}
+    		}
     		
 //  		Add untokenizedFields property for lucene
     		if (operationsImpl.indexOf("fgslucene")>-1) {
@@ -562,10 +642,9 @@ public class Config {
     			if (indexDirFile != null) {
     				StringBuffer untokenizedFields = new StringBuffer(getProperty(props, "fgsindex.untokenizedFields"));
     				DirectoryReader ir = null;
+    				Directory dir = null;
     				try {
-    					Directory dir = new SimpleFSDirectory(indexDirFile);
-//    					ir = IndexReader.open(dir);
-//    					Directory dir = new SimpleFSDirectory(new File(config.getIndexDir(indexName)));
+    					dir = DirectoryFactory.newDirectory(indexDirFile, getProperty(props, "fgsindex.directoryImpl"));
     					ir = DirectoryReader.open(dir);
     					int max = ir.numDocs();
     					if (max > 10) max = 10;
@@ -579,6 +658,12 @@ public class Config {
     						}
     					}
     				} catch (Exception e) {
+    				} finally {
+    					try {
+    						if (ir != null) ir.close();
+    						if (dir != null) dir.close();
+    					} catch (Exception e) {
+    					}
     				}
     				props.setProperty("fgsindex.untokenizedFields", untokenizedFields.toString());
     				if (logger.isDebugEnabled())
@@ -586,6 +671,30 @@ public class Config {
     			}
     		}
 
+//  		Check numericFields
+    		if (operationsImpl.indexOf("fgslucene")>-1) {
+    			String numericFields = getProperty(props, "fgsindex.numericFields");
+    			if (numericFields == null)
+    				props.setProperty("fgsindex.numericFields", "");
+    			else {
+    				StringTokenizer st = new StringTokenizer(numericFields);
+    				while (st.hasMoreTokens()) {
+    					String fieldType = st.nextToken();
+    					int i = fieldType.indexOf("::");
+    					String type = (i > 0 ? fieldType.substring(i+2) : "");
+    					if (!("int".equals(type) || "long".equals(type) || "double".equals(type) || "date".equals(type)))
+    						errors.append("\n*** "+configName+"/index/"+indexName+" fgsindex.numericFields="+fieldType
+    								+ ": must be fieldName::int, fieldName::long, fieldName::double or fieldName::date");
+    				}
+    			}
+    		}
+
+//  		Check updateAccounting
+    		String updateAccounting = getProperty(props, "fgsindex.updateAccounting");
+    		if (!(updateAccounting==null || updateAccounting.equals("") || updateAccounting.equals("exact") || updateAccounting.equals("fast"))) {
+    			errors.append("\n*** "+configName+"/index/"+indexName+" fgsindex.updateAccounting="+updateAccounting+", must be exact or fast");
+    		}
+
 //  		Check defaultQueryFields - how can we check this?
     		String defaultQueryFields = getProperty(props, "fgsindex.defaultQueryFields");
 
@@ -1046,6 +1155,13 @@ public class Config {
         return indexNameToUriResolvers.get(getIndexName(indexName));
     }
     
+    public String getDirectoryImpl(String indexName) {
+        String directoryImpl = getIndexProps(indexName).getProperty("fgsindex.directoryImpl");
+        if (directoryImpl == null)
+        	directoryImpl = "";
+        return directoryImpl.trim();
+    }
+    
     public String getUntokenizedFields(String indexName) {
         String untokenizedFields = getIndexProps(indexName).getProperty("fgsindex.untokenizedFields");
         if (untokenizedFields == null)
@@ -1055,6 +1171,26 @@ public class Config {
     
     public void setUntokenizedFields(String indexName, String untokenizedFields) {
         getIndexProps(indexName).setProperty("fgsindex.untokenizedFields", untokenizedFields);
+        analyzerRegistry.untokenizedFieldsChanged(indexName);
+    }
+    
+    public String getNumericFields(String indexName) {
+        String numericFields = getIndexProps(indexName).getProperty("fgsindex.numericFields");
+        if (numericFields == null)
+        	numericFields = "";
+        return numericFields;
+    }
+    
+    public void setNumericFields(String indexName, String numericFields) {
+        getIndexProps(indexName).setProperty("fgsindex.numericFields", numericFields);
+    }
+    
+    public AnalyzerRegistry getAnalyzerRegistry() {
+        return analyzerRegistry;
+    }
+    
+    public SortRegistry getSortRegistry() {
+        return sortRegistry;
     }
     
     public String getDefaultQueryFields(String indexName) {
@@ -1116,6 +1252,94 @@ public class Config {
     	return defaultWriteLockTimeout;
     }
     
+    public int getCommitMaxDocs(String indexName) {
+    	int commitMaxDocs = 0;
+		try {
+			commitMaxDocs = Integer.parseInt(getIndexProps(indexName).getProperty("fgsindex.commitMaxDocs"));
+		} catch (NumberFormatException e) {
+		}
+    	return commitMaxDocs;
+    }
+    
+    public long getCommitMaxTime(String indexName) {
+    	long commitMaxTime = 0;
+		try {
+			commitMaxTime = Long.parseLong(getIndexProps(indexName).getProperty("fgsindex.commitMaxTime"));
+		} catch (NumberFormatException e) {
+		}
+    	return commitMaxTime;
+    }
+    
+    public int getFromFoxmlFilesWorkers(String indexName) {
+    	int fromFoxmlFilesWorkers = 1;
+		try {
+			fromFoxmlFilesWorkers = Integer.parseInt(getIndexProps(indexName).getProperty("fgsindex.fromFoxmlFilesWorkers"));
+		} catch (NumberFormatException e) {
+		}
+    	return fromFoxmlFilesWorkers;
+    }
+    
+    public int getFromFoxmlFilesQueueSize(String indexName) {
+    	int fromFoxmlFilesQueueSize = 100;
+		try {
+			fromFoxmlFilesQueueSize = Integer.parseInt(getIndexProps(indexName).getProperty("fgsindex.fromFoxmlFilesQueueSize"));
+		} catch (NumberFormatException e) {
+		}
+    	return fromFoxmlFilesQueueSize;
+    }
+    
+    public int getUpdateBatchSize(String indexName) {
+    	int updateBatchSize = 0;
+		try {
+			updateBatchSize = Integer.parseInt(getIndexProps(indexName).getProperty("fgsindex.updateBatchSize"));
+		} catch (NumberFormatException e) {
+		}
+    	return updateBatchSize;
+    }
+    
+    public long getUpdateBatchMaxChars(String indexName) {
+    	long updateBatchMaxChars = 1000000;
+		try {
+			updateBatchMaxChars = Long.parseLong(getIndexProps(indexName).getProperty("fgsindex.updateBatchMaxChars"));
+		} catch (NumberFormatException e) {
+		}
+    	return updateBatchMaxChars;
+    }
+    
+    public long getCommitWithin(String indexName) {
+    	long commitWithin = 0;
+		try {
+			commitWithin = Long.parseLong(getIndexProps(indexName).getProperty("fgsindex.commitWithin"));
+		} catch (NumberFormatException e) {
+		}
+    	return commitWithin;
+    }
+    
+    /**
+     * true if updateIndex does not find out whether a document is inserted or updated
+     */
+    public boolean isFastUpdateAccounting(String indexName) {
+    	return "fast".equals(getIndexProps(indexName).getProperty("fgsindex.updateAccounting", "").trim());
+    }
+    
+    public int getResultPageCacheSize(String indexName) {
+    	int resultPageCacheSize = 0;
+		try {
+			resultPageCacheSize = Integer.parseInt(getIndexProps(indexName).getProperty("fgsindex.resultPageCacheSize"));
+		} catch (NumberFormatException e) {
+		}
+    	return resultPageCacheSize;
+    }
+    
+    public long getResultPageCacheMaxChars(String indexName) {
+    	long resultPageCacheMaxChars = 0;
+		try {
+			resultPageCacheMaxChars = Long.parseLong(getIndexProps(indexName).getProperty("fgsindex.resultPageCacheMaxChars"));
+		} catch (NumberFormatException e) {
+		}
+    	return resultPageCacheMaxChars;
+    }
+    
     public SearchResultFiltering getSearchResultFiltering() throws ConfigException {
     	SearchResultFiltering srfInstance = null;
         if(searchResultFilteringModuleProperty != null && searchResultFilteringModuleProperty.length()>0) {
@@ -0,0 +1,115 @@
+/*
+ * <p><b>License and Copyright: </b>The contents of this file is subject to the
+ * same open source license as the Fedora Repository System at www.fedora-commons.org
+ * Copyright &copy; 2006, 2007, 2008, 2009, 2010, 2011, 2012, 2013 by The Technical University of Denmark.
+ * All rights reserved.</p>
+ */
+package dk.defxws.fedoragsearch.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.StringTokenizer;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.NRTCachingDirectory;
+import org.apache.lucene.store.SimpleFSDirectory;
+
+import dk.defxws.fedoragsearch.server.errors.ConfigException;
+
+/**
+ * opens the Lucene directory of an index as given by fgsindex.directoryImpl:
+ *
+ *    directoryImpl  ::= ['simple' | 'nio' | 'mmap' | 'fs'] [',' 'nrtcaching' [',' maxMergeSizeMB ',' maxCachedMB]]
+ *
+ * simple is default, it serializes reads of a file, nio and mmap read concurrently,
+ * mmap is preferred on 64-bit JVMs, fs lets Lucene choose.
+ * nrtcaching keeps newly flushed small segments in memory, for near real-time searchers,
+ * by default segments up to 5 MB are cached, at most 60 MB in total.
+ *
+ * @author  gsp@dtv.dk
+ * @version
+ */
+public class DirectoryFactory {
+
+    public static final String SIMPLE = "simple";
+
+    public static final String NIO = "nio";
+
+    public static final String MMAP = "mmap";
+
+    public static final String FS = "fs";
+
+    public static final String NRTCACHING = "nrtcaching";
+
+    private static final double DEFAULT_MAX_MERGE_SIZE_MB = 5.0;
+
+    private static final double DEFAULT_MAX_CACHED_MB = 60.0;
+
+    /**
+     * throws ConfigException if directoryImpl is not valid
+     */
+    public static void check(String directoryImpl)
+    throws ConfigException {
+    	parse(directoryImpl);
+    }
+
+    public static Directory newDirectory(File indexDir, String directoryImpl)
+    throws IOException, ConfigException {
+    	Object[] spec = parse(directoryImpl);
+    	String impl = (String) spec[0];
+    	Directory dir = null;
+    	if (MMAP.equals(impl)) {
+    		dir = new MMapDirectory(indexDir);
+    	} else if (NIO.equals(impl)) {
+    		dir = new NIOFSDirectory(indexDir);
+    	} else if (FS.equals(impl)) {
+    		dir = FSDirectory.open(indexDir);
+    	} else {
+    		dir = new SimpleFSDirectory(indexDir);
+    	}
+    	if (spec[1] != null) {
+    		dir = new NRTCachingDirectory(dir, ((Double) spec[1]).doubleValue(), ((Double) spec[2]).doubleValue());
+    	}
+    	return dir;
+    }
+
+    /**
+     * the implementation name, and the cache sizes, which are null without nrtcaching
+     */
+    private static Object[] parse(String directoryImpl)
+    throws ConfigException {
+    	Object[] spec = new Object[] { SIMPLE, null, null };
+    	if (directoryImpl == null || directoryImpl.trim().length() == 0) return spec;
+    	StringTokenizer st = new StringTokenizer(directoryImpl, ",");
+    	String impl = st.nextToken().trim().toLowerCase();
+    	if (NRTCACHING.equals(impl)) {
+    		impl = SIMPLE;
+    	} else {
+    		if (!(SIMPLE.equals(impl) || NIO.equals(impl) || MMAP.equals(impl) || FS.equals(impl)))
+    			throw new ConfigException("fgsindex.directoryImpl="+directoryImpl+": unknown directory "+impl);
+    		if (!st.hasMoreTokens()) {
+    			spec[0] = impl;
+    			return spec;
+    		}
+    		if (!NRTCACHING.equals(st.nextToken().trim().toLowerCase()))
+    			throw new ConfigException("fgsindex.directoryImpl="+directoryImpl+": only nrtcaching may follow "+impl);
+    	}
+    	spec[0] = impl;
+    	spec[1] = Double.valueOf(DEFAULT_MAX_MERGE_SIZE_MB);
+    	spec[2] = Double.valueOf(DEFAULT_MAX_CACHED_MB);
+    	if (st.hasMoreTokens()) {
+    		try {
+    			spec[1] = Double.valueOf(st.nextToken().trim());
+    			spec[2] = Double.valueOf(st.nextToken().trim());
+    		} catch (Exception e) {
+    			throw new ConfigException("fgsindex.directoryImpl="+directoryImpl+": nrtcaching needs maxMergeSizeMB,maxCachedMB");
+    		}
+    		if (st.hasMoreTokens())
+    			throw new ConfigException("fgsindex.directoryImpl="+directoryImpl+": too many values");
+    	}
+    	return spec;
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * <p><b>License and Copyright: </b>The contents of this file is subject to the
+ * same open source license as the Fedora Repository System at www.fedora-commons.org
+ * Copyright &copy; 2006, 2007, 2008, 2009, 2010, 2011, 2012, 2013 by The Technical University of Denmark.
+ * All rights reserved.</p>
+ */
+package dk.defxws.fedoragsearch.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * performs updateIndex fromFoxmlFiles as a staged pipeline:
+ * directory scan -> FOXML read -> XSLT -> document build -> index write.
+ * The stages are connected by bounded queues,
+ * the read, XSLT and build stages run with the configured number of workers,
+ * the scan stage runs in one thread, and the write stage in the calling thread.
+ * Exceptions for single files are reported as warnings, as before.
+ *
+ * @author  gsp@dtv.dk
+ * @version
+ */
+public class FoxmlFilesPipeline {
+
+    private static final Logger logger = Logger.getLogger(FoxmlFilesPipeline.class);
+
+    /**
+     * the plugin specific stages,
+     * transformFoxml and buildIndexDocument are called by several threads at a time,
+     * writeIndexDocument by the thread calling run.
+     */
+    public interface Stages {
+
+    	public StringBuffer transformFoxml(File file, InputStream foxmlStream)
+    	throws java.rmi.RemoteException;
+
+    	public Object buildIndexDocument(File file, StringBuffer indexDoc)
+    	throws java.rmi.RemoteException;
+
+    	public void writeIndexDocument(File file, Object indexDocument)
+    	throws java.rmi.RemoteException;
+    }
+
+    private static final Item END = new Item(null);
+
+    private static final String[] stageNames = {"scan", "read", "xslt", "build", "write"};
+
+    private Stages stages;
+    private int workers;
+    private int queueSize;
+    private StringBuffer resultXml;
+    private int warnCount;
+    private long[] stageCount = new long[stageNames.length];
+    private long[] stageNanos = new long[stageNames.length];
+    private int[] stageWorkersLeft = new int[stageNames.length];
+    private List<Thread> threads = new ArrayList<Thread>();
+
+    public FoxmlFilesPipeline(Stages stages, int workers, int queueSize, StringBuffer resultXml, int warnCount) {
+    	this.stages = stages;
+    	this.workers = (workers < 1) ? 1 : workers;
+    	this.queueSize = (queueSize < 1) ? 1 : queueSize;
+    	this.resultXml = resultXml;
+    	this.warnCount = warnCount;
+    }
+
+    public synchronized int getWarnCount() {
+    	return warnCount;
+    }
+
+    /**
+     * indexes the files in objectDir, and appends the throughput of each stage to resultXml
+     */
+    public void run(final File objectDir) {
+    	long startTime = System.currentTimeMillis();
+    	final BlockingQueue<Item> readQueue = new ArrayBlockingQueue<Item>(queueSize);
+    	BlockingQueue<Item> xsltQueue = new ArrayBlockingQueue<Item>(queueSize);
+    	BlockingQueue<Item> buildQueue = new ArrayBlockingQueue<Item>(queueSize);
+    	BlockingQueue<Item> writeQueue = new ArrayBlockingQueue<Item>(queueSize);
+    	startStage(0, 1, null, readQueue, new Runnable() {
+    		public void run() {
+    			try {
+    				scan(objectDir, readQueue);
+    			} catch (InterruptedException e) {
+    			}
+    		}
+    	});
+    	startStage(1, workers, readQueue, xsltQueue, null);
+    	startStage(2, workers, xsltQueue, buildQueue, null);
+    	startStage(3, workers, buildQueue, writeQueue, null);
+    	try {
+    		Item item;
+    		while ((item = writeQueue.take()) != END) {
+    			long start = System.nanoTime();
+    			try {
+    				stages.writeIndexDocument(item.file, item.indexDocument);
+    			} catch (Exception e) {
+    				warning(item.file, e);
+    			}
+    			stageDone(4, start);
+    		}
+    	} catch (InterruptedException e) {
+    		warning(objectDir, e);
+    	} finally {
+    		for (Thread thread : threads) {
+    			thread.interrupt();
+    		}
+    	}
+    	long timeusedms = System.currentTimeMillis() - startTime;
+    	StringBuffer pipelineXml = new StringBuffer();
+    	pipelineXml.append("<pipeline");
+    	pipelineXml.append(" workers=\""+workers+"\"");
+    	pipelineXml.append(" queueSize=\""+queueSize+"\"");
+    	pipelineXml.append(" timeusedms=\""+timeusedms+"\"");
+    	pipelineXml.append(">\n");
+    	for (int i=0; i<stageNames.length; i++) {
+    		long count;
+    		long busyms;
+    		synchronized (this) {
+    			count = stageCount[i];
+    			busyms = stageNanos[i] / 1000000;
+    		}
+    		pipelineXml.append("<stage");
+    		pipelineXml.append(" name=\""+stageNames[i]+"\"");
+    		pipelineXml.append(" count=\""+count+"\"");
+    		pipelineXml.append(" busyms=\""+busyms+"\"");
+    		pipelineXml.append(" perSecond=\""+(timeusedms > 0 ? count * 1000 / timeusedms : count)+"\"");
+    		pipelineXml.append("/>\n");
+    	}
+    	pipelineXml.append("</pipeline>\n");
+    	resultXml.append(pipelineXml);
+    	logger.info("fromFoxmlFiles objectDir="+objectDir.getAbsolutePath()+"\n"+pipelineXml);
+    }
+
+    private void startStage(
+    		final int stage,
+    		int stageWorkers,
+    		final BlockingQueue<Item> in,
+    		final BlockingQueue<Item> out,
+    		Runnable runnable) {
+    	stageWorkersLeft[stage] = stageWorkers;
+    	for (int i=1; i<=stageWorkers; i++) {
+    		Runnable worker = runnable;
+    		if (worker == null) {
+    			worker = new Runnable() {
+    				public void run() {
+    					try {
+    						Item item;
+    						while ((item = in.take()) != END) {
+    							long start = System.nanoTime();
+    							boolean ok = process(stage, item);
+    							stageDone(stage, start);
+    							if (ok)
+    								out.put(item);
+    						}
+    						in.put(END);
+    					} catch (InterruptedException e) {
+    					}
+    				}
+    			};
+    		}
+    		final Runnable work = worker;
+    		Thread thread = new Thread(new Runnable() {
+    			public void run() {
+    				try {
+    					work.run();
+    				} finally {
+    					try {
+    						stageWorkerDone(stage, out);
+    					} catch (InterruptedException e) {
+    					}
+    				}
+    			}
+    		}, "fromFoxmlFiles-"+stageNames[stage]+"-"+i);
+    		thread.setDaemon(true);
+    		threads.add(thread);
+    		thread.start();
+    	}
+    }
+
+    /**
+     * the last worker of a stage tells the next stage that there are no more items
+     */
+    private void stageWorkerDone(int stage, BlockingQueue<Item> out)
+    throws InterruptedException {
+    	boolean last;
+    	synchronized (this) {
+    		last = --stageWorkersLeft[stage] == 0;
+    	}
+    	if (last)
+    		out.put(END);
+    }
+
+    private synchronized long getStageCount(int stage) {
+    	return stageCount[stage];
+    }
+
+    private synchronized void stageDone(int stage, long start) {
+    	stageCount[stage]++;
+    	stageNanos[stage] += System.nanoTime() - start;
+    }
+
+    private void scan(File file, BlockingQueue<Item> out)
+    throws InterruptedException {
+		if (file.isHidden()) return;
+        if (file.isDirectory())
+        {
+            String[] files = file.list();
+            for (int i = 0; i < files.length; i++) {
+                if (i % 100 == 0)
+                    logger.info("updateIndex fromFoxmlFiles "+file.getAbsolutePath()
+                    		+" scanned="+getStageCount(0));
+                scan(new File(file, files[i]), out);
+            }
+        }
+        else
+        {
+        	long start = System.nanoTime();
+        	out.put(new Item(file));
+        	stageDone(0, start);
+        }
+    }
+
+    private boolean process(int stage, Item item) {
+    	try {
+    		if (stage == 1) {
+    			item.foxml = readFile(item.file);
+    		} else if (stage == 2) {
+    			item.indexDoc = stages.transformFoxml(item.file, new ByteArrayInputStream(item.foxml));
+    			item.foxml = null;
+    		} else if (stage == 3) {
+    			item.indexDocument = stages.buildIndexDocument(item.file, item.indexDoc);
+    			item.indexDoc = null;
+    		}
+    		return true;
+    	} catch (Exception e) {
+    		warning(item.file, e);
+    		return false;
+    	}
+    }
+
+    private byte[] readFile(File file)
+    throws IOException {
+    	InputStream in = new FileInputStream(file);
+    	try {
+    		ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+    		byte[] buf = new byte[8192];
+    		int read;
+    		while ((read = in.read(buf)) >= 0) {
+    			out.write(buf, 0, read);
+    		}
+    		return out.toByteArray();
+    	} finally {
+    		in.close();
+    	}
+    }
+
+    private synchronized void warning(File file, Exception e) {
+        resultXml.append("<warning no=\""+(++warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>\n");
+        logger.warn("<warning no=\""+(warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>");
+    }
+
+    private static class Item {
+    	File file;
+    	byte[] foxml;
+    	StringBuffer indexDoc;
+    	Object indexDocument;
+
+    	Item(File file) {
+    		this.file = file;
+    	}
+    }
+}
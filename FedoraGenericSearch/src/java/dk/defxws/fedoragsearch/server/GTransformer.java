@@ -14,14 +14,19 @@ import java.io.StringWriter;
 import java.net.URL;
 
 import java.util.Date;
+import java.util.Hashtable;
 
+import javax.xml.transform.Result;
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.TransformerFactoryConfigurationError;
 import javax.xml.transform.URIResolver;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
@@ -54,9 +59,22 @@ public class GTransformer {
         Logger.getLogger(GTransformer.class);
     int debuglength = 500;
     
+    /**
+     * compiled stylesheets, shared by all GTransformer instances,
+     * keyed by stylesheet path, xslt processor and URIResolver class
+     */
+    private static Hashtable<String, CompiledStylesheet> templatesCache = new Hashtable<String, CompiledStylesheet>();
+    
     public GTransformer() {
     }
     
+    /**
+     * called when a new config is loaded, the stylesheets may have changed
+     */
+    public static void clearTemplatesCache() {
+        templatesCache.clear();
+    }
+    
     public Transformer getTransformer(String xsltPath)
     throws ConfigException {
         return getTransformer(xsltPath, null);
@@ -66,41 +84,167 @@ public class GTransformer {
     throws ConfigException {
         Transformer transformer = null;
         String xsltPathName = "/"+xsltPath+".xslt";
+        String xsltProcessor = Config.getCurrentConfig().getXsltProcessor();
+        if (!"saxon".equals(xsltProcessor))
+        	xsltProcessor = "xalan";
+        try {
+            transformer = getTemplates(xsltPathName, xsltProcessor, uriResolver).newTransformer();
+            if (uriResolver!=null)
+             transformer.setURIResolver(uriResolver);
+        } catch (TransformerConfigurationException e) {
+            throw new ConfigException("getTransformer "+xsltPathName+":\n", e);
+        }
+        if (logger.isDebugEnabled())
+            logger.debug("getTransformer transformer="+transformer+" uriResolver="+uriResolver);
+        return transformer;
+    }
+    
+    private Templates getTemplates(String xsltPathName, String xsltProcessor, URIResolver uriResolver)
+    throws ConfigException {
+        return getCompiledStylesheet(xsltPathName, xsltProcessor, uriResolver).templates;
+    }
+    
+    /**
+     * xsltProcessor is 'saxon', 'xalan', or 'default' for the JAXP default processor,
+     * the latter is given the stylesheet URL as systemId
+     */
+    private CompiledStylesheet getCompiledStylesheet(String xsltPathName, String xsltProcessor, URIResolver uriResolver)
+    throws ConfigException {
+        String key = getTemplatesKey(xsltPathName, xsltProcessor, uriResolver);
+        CompiledStylesheet compiled = templatesCache.get(key);
+        if (compiled!=null)
+        	return compiled;
+        compiled = new CompiledStylesheet();
+        InputStream stylesheetStream = null;
         try {
-            InputStream stylesheet = Config.class.getResourceAsStream(xsltPathName);
-            if (stylesheet==null) {
-                throw new ConfigException(xsltPathName+" not found");
-            }
 			TransformerFactory tfactory;
-			if ("saxon".equals(Config.getCurrentConfig().getXsltProcessor())) {
-				tfactory = new net.sf.saxon.TransformerFactoryImpl();
+			StreamSource xslt;
+			if ("default".equals(xsltProcessor)) {
+				tfactory = TransformerFactory.newInstance();
+		        URL stylesheet = GTransformer.class.getResource(xsltPathName);
+		        if (stylesheet==null) {
+		            throw new ConfigException("transform "+xsltPathName+" not found");
+		        }
+		        try {
+		        	stylesheetStream = stylesheet.openStream();
+		        } catch (IOException e) {
+		        	throw new ConfigException("transform "+xsltPathName+":\n", e);
+		        }
+		        xslt = new StreamSource(stylesheetStream, stylesheet.toString());
+			} else {
+	            stylesheetStream = Config.class.getResourceAsStream(xsltPathName);
+	            if (stylesheetStream==null) {
+	                throw new ConfigException(xsltPathName+" not found");
+	            }
+				if ("saxon".equals(xsltProcessor)) {
+					tfactory = new net.sf.saxon.TransformerFactoryImpl();
 
-				if(tfactory instanceof net.sf.saxon.TransformerFactoryImpl) {
-					Configuration conf = ((net.sf.saxon.TransformerFactoryImpl)tfactory).getConfiguration();
-					try {
-						conf.registerExtensionFunction(new GenericOperationsImplDefinition());
-					} catch (XPathException e) {
-			            throw new ConfigException("getTransformer registerExtensionFunction "+xsltPathName+":\n", e);
+					if(tfactory instanceof net.sf.saxon.TransformerFactoryImpl) {
+						Configuration conf = ((net.sf.saxon.TransformerFactoryImpl)tfactory).getConfiguration();
+						try {
+							conf.registerExtensionFunction(new GenericOperationsImplDefinition());
+						} catch (XPathException e) {
+				            throw new ConfigException("getTransformer registerExtensionFunction "+xsltPathName+":\n", e);
+						}
+						((net.sf.saxon.TransformerFactoryImpl)tfactory).setConfiguration(conf);
 					}
-					((net.sf.saxon.TransformerFactoryImpl)tfactory).setConfiguration(conf);
+				} else {
+					tfactory = new org.apache.xalan.processor.TransformerFactoryImpl();
 				}
-			} else {
-				tfactory = new org.apache.xalan.processor.TransformerFactoryImpl();
+	            xslt = new StreamSource(stylesheetStream);
 			}
-            StreamSource xslt = new StreamSource(stylesheet);
-            transformer = tfactory.newTransformer(xslt);
-            if (uriResolver!=null)
-             transformer.setURIResolver(uriResolver);
+            compiled.templates = tfactory.newTemplates(xslt);
+            if (tfactory.getFeature(SAXTransformerFactory.FEATURE))
+            	compiled.factory = (SAXTransformerFactory) tfactory;
         } catch (TransformerConfigurationException e) {
-            throw new ConfigException("getTransformer "+xsltPathName+":\n", e);
+            throw new ConfigException("getTemplates "+xsltPathName+":\n", e);
         } catch (TransformerFactoryConfigurationError e) {
             throw new ConfigException("getTransformerFactory "+xsltPathName+":\n", e);
+        } finally {
+        	if (stylesheetStream!=null) {
+        		try {
+        			stylesheetStream.close();
+        		} catch (IOException e) {
+        		}
+        	}
         }
+        templatesCache.put(key, compiled);
         if (logger.isDebugEnabled())
-            logger.debug("getTransformer transformer="+transformer+" uriResolver="+uriResolver);
-        return transformer;
+            logger.debug("getTemplates compiled "+key);
+        return compiled;
     }
 
+    private String getTemplatesKey(String xsltPathName, String xsltProcessor, URIResolver uriResolver) {
+        String key = xsltPathName+" "+xsltProcessor;
+        if (uriResolver!=null)
+        	key += " "+uriResolver.getClass().getName();
+        return key;
+    }
+    
+    /**
+     * returns a handler, which transforms the SAX events it is given with xsltPath into result,
+     * the xslt processor is the configured one, as for getTransformer
+     */
+    public TransformerHandler getTransformerHandler(String xsltPath, Object[] params, Result result)
+    throws ConfigException {
+        String xsltProcessor = Config.getCurrentConfig().getXsltProcessor();
+        if (!"saxon".equals(xsltProcessor))
+        	xsltProcessor = "xalan";
+        return getTransformerHandler(xsltPath, xsltProcessor, params, result, null);
+    }
+    
+    /**
+     * as transform(xsltPath, sb, params, systemId), but for SAX events
+     */
+    public TransformerHandler getTransformerHandler(String xsltPath, Object[] params, Result result, String systemId)
+    throws ConfigException {
+        return getTransformerHandler(xsltPath, "default", params, result, systemId);
+    }
+    
+    private TransformerHandler getTransformerHandler(String xsltPath, String xsltProcessor, Object[] params, Result result, String systemId)
+    throws ConfigException {
+        String xsltPathName = "/"+xsltPath+".xslt";
+        // the factory and the templates are taken from one entry, which a config reload does not change
+        CompiledStylesheet compiled = getCompiledStylesheet(xsltPathName, xsltProcessor, null);
+        Templates templates = compiled.templates;
+        SAXTransformerFactory tfactory = compiled.factory;
+        if (tfactory==null) {
+        	throw new ConfigException("getTransformerHandler "+xsltPathName+": "+xsltProcessor+" does not support SAX");
+        }
+        TransformerHandler handler = null;
+        try {
+        	handler = tfactory.newTransformerHandler(templates);
+        } catch (TransformerConfigurationException e) {
+        	throw new ConfigException("getTransformerHandler "+xsltPathName+":\n", e);
+        }
+        Transformer transformer = handler.getTransformer();
+        for (int i=0; i<params.length; i=i+2) {
+            Object value = params[i+1];
+            if (value==null) value = "";
+            transformer.setParameter((String)params[i], value);
+        }
+        transformer.setParameter("DATETIME", new Date());
+        if (systemId!=null)
+        	handler.setSystemId(systemId);
+        handler.setResult(result);
+        if (logger.isDebugEnabled())
+            logger.debug("getTransformerHandler xsltPathName="+xsltPathName+" xsltProcessor="+xsltProcessor);
+        return handler;
+    }
+    
+    /**
+     * parses sb into result, e.g. a TransformerHandler given as SAXResult
+     */
+    public void copy(StringBuffer sb, Result result)
+    throws GenericSearchException {
+        try {
+        	TransformerFactory.newInstance().newTransformer().transform(
+        			new StreamSource(new StringReader(sb.toString())), result);
+        } catch (TransformerException e) {
+            throw new GenericSearchException("copy:\n", e);
+        }
+    }
+    
     public StringBuffer transform(String xsltPath, StringBuffer sb, String[] params, String systemId)
     throws GenericSearchException {
     	if (logger.isDebugEnabled())
@@ -108,25 +252,9 @@ public class GTransformer {
         StringReader sr = new StringReader(sb.toString());
         StreamSource sourceStream = new StreamSource(sr, systemId);
         String xsltPathName = "/"+xsltPath+".xslt";
-        URL stylesheet = GTransformer.class.getResource(xsltPathName);
-        if (stylesheet==null) {
-            throw new ConfigException("transform "+xsltPathName+" not found");
-        }
-        TransformerFactory tfactory = null;
-        try {
-        	tfactory = TransformerFactory.newInstance();
-        } catch (TransformerFactoryConfigurationError e) {
-        	throw new ConfigException("transform "+xsltPathName+":\n", e);
-        }
-        StreamSource xslt = null;
-        try {
-        	xslt = new StreamSource(stylesheet.openStream(), stylesheet.toString());
-        } catch (IOException e) {
-        	throw new ConfigException("transform "+xsltPathName+":\n", e);
-        }
         Transformer transformer = null;
         try {
-        	transformer = tfactory.newTransformer(xslt);
+        	transformer = getTemplates(xsltPathName, "default", null).newTransformer();
         } catch (TransformerConfigurationException e) {
         	throw new ConfigException("transform "+xsltPathName+":\n", e);
         }
@@ -229,6 +357,15 @@ public class GTransformer {
      return result;
     }
 
+    /**
+     * a compiled stylesheet, with the factory which compiled it, if that supports SAX,
+     * for creating TransformerHandlers
+     */
+    private static class CompiledStylesheet {
+        Templates templates;
+        SAXTransformerFactory factory;
+    }
+
 	public class GenericOperationsImplDefinition extends ExtensionFunctionDefinition {
 
 		private static final long serialVersionUID = -4369478473099836359L;
@@ -20,12 +20,15 @@ import java.rmi.RemoteException;
 
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Result;
 import javax.xml.transform.stream.StreamSource;
 
 import dk.defxws.fedoragsearch.server.errors.ConfigException;
@@ -66,6 +69,12 @@ public class GenericOperationsImpl implements Operations {
 
     private static final Map<String, FedoraClient> fedoraClients = new HashMap<String, FedoraClient>();
     
+    /** gfindObjects resultMode giving the hit total only */
+    public static final String RESULTMODE_COUNT = "count";
+    
+    /** gfindObjects resultMode giving the PIDs of the hit page only */
+    public static final String RESULTMODE_PIDS = "pids";
+    
     protected Map<String, Set<String>> fgsUserAttributes;
 
     protected String fgsUserName;
@@ -78,6 +87,7 @@ public class GenericOperationsImpl implements Operations {
     protected int emptyTotal = 0;
     protected int docCount = 0;
     protected int warnCount = 0;
+    protected Set<String> failedPids = new HashSet<String>();
 
     protected String usingQuery;
     protected StringBuffer embeddedResult;
@@ -242,6 +252,87 @@ public class GenericOperationsImpl implements Operations {
         return "";
     }
 
+    /**
+     * plugins that can continue from a cursor override this,
+     * the others search from hitPageStart
+     */
+    public String gfindObjects(
+            String query,
+            int hitPageStart,
+            int hitPageSize,
+            int snippetsMax,
+            int fieldMaxLength,
+            String indexName,
+            String sortFields,
+            String cursor,
+            String resultPageXslt)
+    throws java.rmi.RemoteException {
+        return gfindObjects(query, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, indexName, sortFields, resultPageXslt);
+    }
+
+    /**
+     * plugins that can load the stored fields named in fields only override this,
+     * the others give all fields
+     */
+    public String gfindObjects(
+            String query,
+            int hitPageStart,
+            int hitPageSize,
+            int snippetsMax,
+            int fieldMaxLength,
+            String indexName,
+            String sortFields,
+            String cursor,
+            String fields,
+            String resultPageXslt)
+    throws java.rmi.RemoteException {
+        return gfindObjects(query, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, indexName, sortFields, cursor, resultPageXslt);
+    }
+
+    /**
+     * with resultMode count or pids, a compact page is returned, which is not transformed,
+     * plugins that can search without building the result page override this
+     */
+    public String gfindObjects(
+            String query,
+            int hitPageStart,
+            int hitPageSize,
+            int snippetsMax,
+            int fieldMaxLength,
+            String indexName,
+            String sortFields,
+            String cursor,
+            String fields,
+            String resultMode,
+            String resultPageXslt)
+    throws java.rmi.RemoteException {
+        if (resultMode == null || resultMode.length() == 0) {
+            return gfindObjects(query, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, indexName, sortFields, cursor, fields, resultPageXslt);
+        }
+        throw new GenericSearchException("gfindObjects resultMode="+resultMode+" is not supported by "+getClass().getName());
+    }
+
+    /**
+     * writes the gfindObjects result page to result, e.g. the rest stylesheet given as SAXResult,
+     * plugins which produce the result page as SAX events override this
+     */
+    public void gfindObjects(
+            String query,
+            int hitPageStart,
+            int hitPageSize,
+            int snippetsMax,
+            int fieldMaxLength,
+            String indexName,
+            String sortFields,
+            String cursor,
+            String fields,
+            String resultPageXslt,
+            Result result)
+    throws java.rmi.RemoteException {
+        String resultPage = gfindObjects(query, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, indexName, sortFields, cursor, fields, resultPageXslt);
+        (new GTransformer()).copy(new StringBuffer(resultPage), result);
+    }
+
     private String handleEmbeddedQueries(String embedType, String query) 
     throws GenericSearchException {
     	String newQuery = query;
@@ -482,6 +573,21 @@ public class GenericOperationsImpl implements Operations {
         return "";
     }
     
+    /**
+     * plugins that can continue from a cursor override this,
+     * the others browse from startTerm
+     */
+    public String browseIndex(
+            String startTerm,
+            int termPageSize,
+            String fieldName,
+            String indexName,
+            String cursor,
+            String resultPageXslt)
+    throws java.rmi.RemoteException {
+        return browseIndex(startTerm, termPageSize, fieldName, indexName, resultPageXslt);
+    }
+    
     public String getRepositoryInfo(
             String repositoryName,
             String resultPageXslt) throws java.rmi.RemoteException {
@@ -561,6 +667,138 @@ public class GenericOperationsImpl implements Operations {
         return resultXml.toString();
     }
     
+    /**
+     * updates the indexes for a batch of PIDs of one repository,
+     * the deletePids are deleted and the fromPids are indexed from the repository,
+     * a PID must not be in both lists.
+     * Each index is updated by updateIndexPids of its plugin.
+     */
+    public String updateIndexBatch(
+            List<String> fromPids,
+            List<String> deletePids,
+            String repositoryNameParam,
+            String indexNames,
+            String indexDocXslt,
+            String resultPageXslt)
+    throws java.rmi.RemoteException {
+        if (logger.isDebugEnabled())
+            logger.debug("updateIndexBatch" +
+                    " fromPids="+fromPids.size()+
+                    " deletePids="+deletePids.size()+
+                    " repositoryName="+repositoryNameParam+
+                    " indexNames="+indexNames);
+        StringBuffer resultXml = new StringBuffer(); 
+        String repositoryName = repositoryNameParam;
+        if (repositoryNameParam==null || repositoryNameParam.equals(""))
+        	repositoryName = config.getRepositoryName(repositoryName);
+        resultXml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        resultXml.append("<resultPage");
+        resultXml.append(" operation=\"updateIndex\"");
+        resultXml.append(" action=\"batch\"");
+        resultXml.append(" value=\"fromPids="+fromPids.size()+" deletePids="+deletePids.size()+"\"");
+        resultXml.append(" repositoryName=\""+repositoryName+"\"");
+        resultXml.append(" indexNames=\""+indexNames+"\"");
+        resultXml.append(" resultPageXslt=\""+resultPageXslt+"\"");
+        resultXml.append(" dateTime=\""+new Date()+"\"");
+        resultXml.append(">\n");
+        StringTokenizer st = new StringTokenizer(config.getIndexNames(indexNames));
+        while (st.hasMoreTokens()) {
+            String indexName = st.nextToken();
+            GenericOperationsImpl ops = config.getOperationsImpl(fgsUserName, indexName);
+            resultXml.append(ops.updateIndexPids(fromPids, deletePids, repositoryName, indexName, indexDocXslt, resultPageXslt));
+            failedPids.addAll(ops.getFailedPids());
+        }
+        resultXml.append("</resultPage>\n");
+        if (logger.isDebugEnabled())
+            logger.debug("resultXml="+resultXml);
+        return resultXml.toString();
+    }
+    
+    /**
+     * updates one index for a batch of PIDs,
+     * by default each PID by its own updateIndex call,
+     * plugins may override it to update the index once for the whole batch.
+     * A PID, which cannot be indexed, is logged and skipped.
+     */
+    public String updateIndexPids(
+            List<String> fromPids,
+            List<String> deletePids,
+            String repositoryName,
+            String indexName,
+            String indexDocXslt,
+            String resultPageXslt)
+    throws java.rmi.RemoteException {
+        StringBuffer resultXml = new StringBuffer(); 
+        for (String pid : deletePids) {
+        	try {
+        		resultXml.append(updateIndex("deletePid", pid, repositoryName, indexName, indexDocXslt, resultPageXslt));
+        	} catch (RemoteException e) {
+        		failedPids.add(pid);
+        		logger.error("updateIndexPids deletePid="+pid+" indexName="+indexName+" :\n"+e.getMessage());
+        	}
+        }
+        for (String pid : fromPids) {
+        	try {
+        		resultXml.append(updateIndex("fromPid", pid, repositoryName, indexName, indexDocXslt, resultPageXslt));
+        	} catch (RemoteException e) {
+        		failedPids.add(pid);
+        		logger.error("updateIndexPids fromPid="+pid+" indexName="+indexName+" :\n"+e.getMessage());
+        	}
+        }
+        return resultXml.toString();
+    }
+    
+    /**
+     * the PIDs, which could not be indexed by updateIndexBatch or updateIndexPids
+     */
+    public Set<String> getFailedPids() {
+        return failedPids;
+    }
+    
+    /**
+     * the highest sequence number of the update journal journalName, up to which
+     * all updates are committed to all indexes, 0 if an index has none,
+     * -1 if the indexes commit their changes when made, so the applied updates are committed
+     */
+    public long getJournalCheckpoint(String journalName)
+    throws java.rmi.RemoteException {
+        long checkpoint = -1;
+        StringTokenizer st = new StringTokenizer(config.getIndexNames(""));
+        while (st.hasMoreTokens()) {
+            String indexName = st.nextToken();
+            Map<String, String> commitData = config.getOperationsImpl(fgsUserName, indexName).getCommitData(indexName);
+            if (commitData == null) continue;
+            long indexCheckpoint = 0;
+            String value = commitData.get(UpdateJournal.COMMIT_DATA_PREFIX+journalName);
+            if (value != null) {
+                try {
+                    indexCheckpoint = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    logger.warn("getJournalCheckpoint indexName="+indexName+" invalid commit data "+value);
+                }
+            }
+            checkpoint = (checkpoint < 0 ? indexCheckpoint : Math.min(checkpoint, indexCheckpoint));
+        }
+        return checkpoint;
+    }
+    
+    /**
+     * releases what the plugin holds open for the index, such as index writers and searchers,
+     * when the config is replaced or the webapp is stopped
+     */
+    public void closeIndex(String indexName)
+    throws java.rmi.RemoteException {
+    }
+    
+    /**
+     * the user data of the last commit of the index,
+     * null if the plugin commits the changes when made
+     */
+    public Map<String, String> getCommitData(String indexName)
+    throws java.rmi.RemoteException {
+        return null;
+    }
+    
     public void getFoxmlFromPid(
             String pid,
             String repositoryName)
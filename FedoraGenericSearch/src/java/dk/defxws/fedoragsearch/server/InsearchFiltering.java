@@ -0,0 +1,36 @@
+/*
+ * <p><b>License and Copyright: </b>The contents of this file is subject to the
+ * same open source license as the Fedora Repository System at www.fedora-commons.org
+ * Copyright &copy; 2006, 2007, 2008, 2009, 2010, 2011, 2012, 2013 by The Technical University of Denmark.
+ * All rights reserved.</p>
+ */
+package dk.defxws.fedoragsearch.server;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * a SearchResultFiltering, which gives the insearch access restriction of a user
+ * as a filter query of its own, instead of rewriting the query.
+ * The Lucene plugin parses each filter query once, and applies it as a non-scoring filter,
+ * cached per index segment, so users with the same roles share the cached filter.
+ * Other plugins rewrite the query by rewriteQueryForInsearch.
+ *
+ * @author  gsp@dtic.dtu.dk
+ * @version
+ */
+public interface InsearchFiltering extends SearchResultFiltering {
+
+	    /**
+	     * the query, which the hits of the user must match, in the query syntax of the index,
+	     * null if the user may see all hits.
+	     * It should depend on the roles of the user only, not on the user name.
+	     */
+	    public String getInsearchFilter(
+	    		String fgsUserName,
+	    		String indexName,
+	    		Map<String, Set<String>> fgsUserAttributes,
+	    		Config config)
+	    throws java.rmi.RemoteException;
+
+}
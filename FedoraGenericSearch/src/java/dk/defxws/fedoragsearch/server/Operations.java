@@ -32,11 +32,55 @@ public interface Operations {
             String sortFields,
             String resultPageXslt) throws java.rmi.RemoteException;
     
+    public String gfindObjects(
+            String query,
+            int hitPageStart,
+            int hitPageSize,
+            int snippetsMax,
+            int fieldMaxLength,
+            String indexName,
+            String sortFields,
+            String cursor,
+            String resultPageXslt) throws java.rmi.RemoteException;
+    
+    public String gfindObjects(
+            String query,
+            int hitPageStart,
+            int hitPageSize,
+            int snippetsMax,
+            int fieldMaxLength,
+            String indexName,
+            String sortFields,
+            String cursor,
+            String fields,
+            String resultPageXslt) throws java.rmi.RemoteException;
+    
+    public String gfindObjects(
+            String query,
+            int hitPageStart,
+            int hitPageSize,
+            int snippetsMax,
+            int fieldMaxLength,
+            String indexName,
+            String sortFields,
+            String cursor,
+            String fields,
+            String resultMode,
+            String resultPageXslt) throws java.rmi.RemoteException;
+    
+    public String browseIndex(
+            String startTerm,
+            int termPageSize,
+            String fieldName,
+            String indexName,
+            String resultPageXslt) throws java.rmi.RemoteException;
+    
     public String browseIndex(
             String startTerm,
             int termPageSize,
             String fieldName,
             String indexName,
+            String cursor,
             String resultPageXslt) throws java.rmi.RemoteException;
     
     public String getRepositoryInfo(
@@ -9,6 +9,7 @@ package dk.defxws.fedoragsearch.server;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Iterator;
@@ -20,6 +21,10 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.ServletException;
+import javax.xml.transform.Result;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
 
 import org.apache.log4j.Appender;
 import org.apache.log4j.Logger;
@@ -69,6 +74,9 @@ public class RESTImpl extends HttpServlet {
     private static final String PARAM_SORTFIELDS = "sortFields";
     private static final String PARAM_STARTTERM = "startTerm";
     private static final String PARAM_TERMPAGESIZE = "termPageSize";
+    private static final String PARAM_CURSOR = "cursor";
+    private static final String PARAM_FIELDS = "fields";
+    private static final String PARAM_RESULTMODE = "resultMode";
     private static final String PARAM_REPOSITORYNAME = "repositoryName";
     private static final String PARAM_INDEXNAME = "indexName";
     private static final String PARAM_FIELDNAME = "fieldName";
@@ -129,9 +137,39 @@ public class RESTImpl extends HttpServlet {
         params[1] = "";
         params[2] = "TIMEUSEDMS";
         params[3] = "";
+        boolean streamed = false;
         try {
-            if (OP_GFINDOBJECTS.equals(operation)) {
-                resultXml = new StringBuffer(gfindObjects(request, response));
+            String resultMode = request.getParameter(PARAM_RESULTMODE);
+            if (OP_GFINDOBJECTS.equals(operation) && resultMode != null && resultMode.length() > 0) {
+            	// the compact count or pids page is written as it is, without stylesheets
+                String resultPage = gfindObjects(request, response, resultMode, null);
+                response.setContentType("text/xml; charset=UTF-8");
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"));
+                out.print(resultPage);
+                out.close();
+                if (logger.isInfoEnabled())
+                    logger.info("request="+request.getQueryString()+" timeusedms="+((new Date()).getTime() - startTime.getTime()));
+                return;
+            } else if (OP_GFINDOBJECTS.equals(operation)) {
+            	// the result page is given as SAX events to the rest stylesheet, which writes the response
+                if (restXslt==null || restXslt.equals("")) {
+                    restXslt = config.getDefaultGfindObjectsRestXslt();
+                }
+                setRestParams(params, remoteUser, request, startTime);
+                setContentType(response);
+                Writer out = new OutputStreamWriter(response.getOutputStream(), "UTF-8");
+                TransformerHandler restHandler = (new GTransformer()).getTransformerHandler(
+                		config.getConfigName()+"/rest/"+restXslt,
+                		params, new StreamResult(out),
+                		getServletContext().getRealPath("/WEB-INF/classes"));
+                SAXResult restResult = new SAXResult(restHandler);
+                restResult.setLexicalHandler(restHandler);
+                streamed = true;
+                gfindObjects(request, response, "", restResult);
+                out.close();
+                if (logger.isInfoEnabled())
+                    logger.info("request="+request.getQueryString()+" timeusedms="+((new Date()).getTime() - startTime.getTime()));
+                return;
             } else if (OP_GETREPOSITORYINFO.equals(operation)) {
                 resultXml = new StringBuffer(getRepositoryInfo(request, response));
             } else if (OP_GETINDEXINFO.equals(operation)) {
@@ -156,6 +194,10 @@ public class RESTImpl extends HttpServlet {
                 resultXml = new StringBuffer(configure(request, response));
             } else if ("getIndexConfigInfo".equals(operation)) {
                 resultXml = new StringBuffer(getIndexConfigInfo(request, response));
+            } else if ("getUpdaterInfo".equals(operation)) {
+                if (restXslt==null || restXslt.equals("")) 
+                    restXslt = "copyXml";
+                resultXml = new StringBuffer("<resultPage>"+UpdateListener.getUpdaterInfo()+"</resultPage>");
             } else {
                 resultXml = new StringBuffer("<resultPage/>");
                 if (restXslt==null || restXslt.equals("")) 
@@ -165,6 +207,15 @@ public class RESTImpl extends HttpServlet {
                 }
             }
         } catch (Exception e) {
+            if (streamed && response.isCommitted()) {
+                // part of the result page is sent, an error page after it would not be well-formed,
+                // the response is aborted by the servlet container instead
+                logger.error("request="+request.getQueryString()+" aborted, the result page is sent in part :\n"+e.toString());
+                throw new ServletException("result page aborted", e);
+            }
+            if (streamed) {
+                response.resetBuffer();
+            }
             resultXml = new StringBuffer("<resultPage>");
             resultXml.append("<error><message><![CDATA["+e.getMessage()+"]]></message></error>");
             resultXml.append("</resultPage>");
@@ -172,14 +223,7 @@ public class RESTImpl extends HttpServlet {
             logger.error(e);
             e.printStackTrace();
         }
-        String timeusedms = Long.toString((new Date()).getTime() - startTime.getTime());
-        params[3] = timeusedms;
-        params[4] = "FGSUSERNAME";
-        params[5] = remoteUser;
-        params[6] = "SRFTYPE";
-        params[7] = config.getSearchResultFilteringType();
-        params[8] = "sortFields";
-        params[9] = request.getParameter(PARAM_SORTFIELDS);
+        String timeusedms = setRestParams(params, remoteUser, request, startTime);
         try {
 			resultXml = (new GTransformer()).transform(
 							config.getConfigName()+"/rest/"+restXslt, 
@@ -200,10 +244,7 @@ public class RESTImpl extends HttpServlet {
 //        if (logger.isDebugEnabled())
 //            logger.debug("after "+restXslt+" result=\n"+resultXml);
         
-        if (restXslt.indexOf(CONTENTTYPEHTML)>=0)
-            response.setContentType("text/html; charset=UTF-8");
-        else
-            response.setContentType("text/xml; charset=UTF-8");
+        setContentType(response);
         PrintWriter out=new PrintWriter(
                 new OutputStreamWriter(
                         response.getOutputStream(), "UTF-8"));
@@ -213,14 +254,45 @@ public class RESTImpl extends HttpServlet {
             logger.info("request="+request.getQueryString()+" timeusedms="+timeusedms);
     }
     
-    private String gfindObjects(HttpServletRequest request, HttpServletResponse response)
+    /**
+     * the params of the rest stylesheet, returns timeusedms,
+     * which is the time until the result page is begun, when it is streamed
+     */
+    private String setRestParams(String[] params, String remoteUser, HttpServletRequest request, Date startTime) {
+        String timeusedms = Long.toString((new Date()).getTime() - startTime.getTime());
+        params[3] = timeusedms;
+        params[4] = "FGSUSERNAME";
+        params[5] = remoteUser;
+        params[6] = "SRFTYPE";
+        params[7] = config.getSearchResultFilteringType();
+        params[8] = "sortFields";
+        params[9] = request.getParameter(PARAM_SORTFIELDS);
+        return timeusedms;
+    }
+    
+    private void setContentType(HttpServletResponse response) {
+        if (restXslt.indexOf(CONTENTTYPEHTML)>=0)
+            response.setContentType("text/html; charset=UTF-8");
+        else
+            response.setContentType("text/xml; charset=UTF-8");
+    }
+    
+    /**
+     * with a resultMode, the compact page is returned,
+     * otherwise the result page is written to result, and null returned
+     */
+    private String gfindObjects(HttpServletRequest request, HttpServletResponse response, String resultMode, Result result)
     throws java.rmi.RemoteException {
         if (restXslt==null || restXslt.equals("")) {
             restXslt = config.getDefaultGfindObjectsRestXslt();
         }
         String query = request.getParameter(PARAM_QUERY);
         if (query==null || query.equals("")) {
-            return "<resultPage/>";
+            if (resultMode.length() > 0) {
+                return "<resultPage/>";
+            }
+            (new GTransformer()).copy(new StringBuffer("<resultPage/>"), result);
+            return null;
         }
         int hitPageStart = config.getDefaultGfindObjectsHitPageStart();
         try {
@@ -248,9 +320,20 @@ public class RESTImpl extends HttpServlet {
         	sortFields = "";
         }
 //        Operations ops = config.getOperationsImpl(request.getRemoteUser(), indexName);
+        String cursor = request.getParameter(PARAM_CURSOR);
+        if (cursor==null) cursor="";
+        String fields = request.getParameter(PARAM_FIELDS);
+        if (fields==null) fields="";
         Operations ops = config.getOperationsImpl(request.getRemoteUser(), indexName, fgsUserAttributes);
-        String result = ops.gfindObjects(query, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, indexName, sortFields,resultPageXslt);
-        return result;
+        if (resultMode.length() > 0) {
+        	return ops.gfindObjects(query, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, indexName, sortFields, cursor, fields, resultMode, resultPageXslt);
+        } else if (ops instanceof GenericOperationsImpl) {
+        	((GenericOperationsImpl) ops).gfindObjects(query, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, indexName, sortFields, cursor, fields, resultPageXslt, result);
+        } else {
+        	String resultPage = ops.gfindObjects(query, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, indexName, sortFields, cursor, fields, resultPageXslt);
+        	(new GTransformer()).copy(new StringBuffer(resultPage), result);
+        }
+        return null;
     }
     
     private String browseIndex(HttpServletRequest request, HttpServletResponse response)
@@ -272,8 +355,11 @@ public class RESTImpl extends HttpServlet {
             }
         }
         if (termPageSize > config.getMaxPageSize()) termPageSize = config.getMaxPageSize();
+        
+        String cursor = request.getParameter(PARAM_CURSOR);
+        if (cursor==null) cursor="";
         Operations ops = config.getOperationsImpl(indexName);
-        String result = ops.browseIndex(startTerm, termPageSize, fieldName, indexName, resultPageXslt);
+        String result = ops.browseIndex(startTerm, termPageSize, fieldName, indexName, cursor, resultPageXslt);
         return result;
     }
     
@@ -370,4 +456,12 @@ public class RESTImpl extends HttpServlet {
             logger.debug("Servlet init");
     }
     
+    /**
+     * Closes the index writers and searchers held by the plugins.
+     */
+    public void destroy() {
+        Config.closeAllIndexes();
+        super.destroy();
+    }
+    
 }
\ No newline at end of file
@@ -66,6 +66,120 @@ public class SOAPImpl implements Operations {
         return result;
     }
     
+    public String gfindObjects(
+            String query,
+            int hitPageStart,
+            int hitPageSize,
+            int snippetsMax,
+            int fieldMaxLength,
+            String indexName,
+            String sortFields,
+            String cursor,
+            String resultPageXslt)
+    throws java.rmi.RemoteException {
+    	Date startTime = new Date();
+        if (logger.isInfoEnabled())
+            logger.info("gfindObjects" +
+                    " query="+query+
+                    " hitPageStart="+hitPageStart+
+                    " hitPageSize="+hitPageSize+
+                    " indexName="+indexName+
+                    " cursor="+cursor+
+                    " resultPageXslt="+resultPageXslt);
+        Operations ops = getConfig().getOperationsImpl(indexName);
+        String result = ops.gfindObjects(query, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, indexName, sortFields, cursor, resultPageXslt);
+        String timeusedms = Long.toString((new Date()).getTime() - startTime.getTime());
+        if (logger.isInfoEnabled())
+            logger.info("gfindObjects" +
+                    " query="+query+
+                    " hitPageStart="+hitPageStart+
+                    " hitPageSize="+hitPageSize+
+                    " indexName="+indexName+
+                    " cursor="+cursor+
+                    " resultPageXslt="+resultPageXslt+
+                    " timeusedms="+timeusedms);
+        return result;
+    }
+    
+    public String gfindObjects(
+            String query,
+            int hitPageStart,
+            int hitPageSize,
+            int snippetsMax,
+            int fieldMaxLength,
+            String indexName,
+            String sortFields,
+            String cursor,
+            String fields,
+            String resultPageXslt)
+    throws java.rmi.RemoteException {
+    	Date startTime = new Date();
+        if (logger.isInfoEnabled())
+            logger.info("gfindObjects" +
+                    " query="+query+
+                    " hitPageStart="+hitPageStart+
+                    " hitPageSize="+hitPageSize+
+                    " indexName="+indexName+
+                    " cursor="+cursor+
+                    " fields="+fields+
+                    " resultPageXslt="+resultPageXslt);
+        Operations ops = getConfig().getOperationsImpl(indexName);
+        String result = ops.gfindObjects(query, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, indexName, sortFields, cursor, fields, resultPageXslt);
+        String timeusedms = Long.toString((new Date()).getTime() - startTime.getTime());
+        if (logger.isInfoEnabled())
+            logger.info("gfindObjects" +
+                    " query="+query+
+                    " hitPageStart="+hitPageStart+
+                    " hitPageSize="+hitPageSize+
+                    " indexName="+indexName+
+                    " cursor="+cursor+
+                    " fields="+fields+
+                    " resultPageXslt="+resultPageXslt+
+                    " timeusedms="+timeusedms);
+        return result;
+    }
+    
+    public String gfindObjects(
+            String query,
+            int hitPageStart,
+            int hitPageSize,
+            int snippetsMax,
+            int fieldMaxLength,
+            String indexName,
+            String sortFields,
+            String cursor,
+            String fields,
+            String resultMode,
+            String resultPageXslt)
+    throws java.rmi.RemoteException {
+    	Date startTime = new Date();
+        if (logger.isInfoEnabled())
+            logger.info("gfindObjects" +
+                    " query="+query+
+                    " hitPageStart="+hitPageStart+
+                    " hitPageSize="+hitPageSize+
+                    " indexName="+indexName+
+                    " cursor="+cursor+
+                    " fields="+fields+
+                    " resultMode="+resultMode+
+                    " resultPageXslt="+resultPageXslt);
+        Operations ops = getConfig().getOperationsImpl(indexName);
+        String result = ops.gfindObjects(query, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, indexName, sortFields, cursor, fields, resultMode, resultPageXslt);
+        String timeusedms = Long.toString((new Date()).getTime() - startTime.getTime());
+        if (logger.isInfoEnabled())
+            logger.info("gfindObjects" +
+                    " query="+query+
+                    " hitPageStart="+hitPageStart+
+                    " hitPageSize="+hitPageSize+
+                    " indexName="+indexName+
+                    " cursor="+cursor+
+                    " fields="+fields+
+                    " resultMode="+resultMode+
+                    " resultPageXslt="+resultPageXslt+
+                    " timeusedms="+timeusedms);
+        return result;
+    }
+    
     public String browseIndex(
             String startTerm,
             int termPageSize,
@@ -95,6 +209,38 @@ public class SOAPImpl implements Operations {
         return result;
     }
     
+    public String browseIndex(
+            String startTerm,
+            int termPageSize,
+            String fieldName,
+            String indexName,
+            String cursor,
+            String resultPageXslt)
+    throws java.rmi.RemoteException {
+    	Date startTime = new Date();
+        if (logger.isInfoEnabled())
+            logger.info("browseIndex" +
+                    " startTerm="+startTerm+
+                    " termPageSize="+termPageSize+
+                    " fieldName="+fieldName+
+                    " indexName="+indexName+
+                    " cursor="+cursor+
+                    " resultPageXslt="+resultPageXslt);
+        Operations ops = getConfig().getOperationsImpl(indexName);
+        String result = ops.browseIndex(startTerm, termPageSize, fieldName, indexName, cursor, resultPageXslt);
+        String timeusedms = Long.toString((new Date()).getTime() - startTime.getTime());
+        if (logger.isInfoEnabled())
+            logger.info("browseIndex" +
+                    " startTerm="+startTerm+
+                    " termPageSize="+termPageSize+
+                    " fieldName="+fieldName+
+                    " indexName="+indexName+
+                    " cursor="+cursor+
+                    " resultPageXslt="+resultPageXslt+
+                    " timeusedms="+timeusedms);
+        return result;
+    }
+    
     public String getRepositoryInfo(
             String repositoryName,
             String resultPageXslt)
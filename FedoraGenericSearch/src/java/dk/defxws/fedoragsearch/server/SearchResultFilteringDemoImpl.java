@@ -8,42 +8,83 @@ package dk.defxws.fedoragsearch.server;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.dom.DOMSource;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
 
 import org.apache.log4j.Logger;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.XMLFilterImpl;
 
 import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
 import org.fcrepo.client.FedoraClient;
-import org.fcrepo.common.Constants;
 import org.fcrepo.server.access.FedoraAPIA;
-import org.fcrepo.server.management.FedoraAPIM;
+import org.fcrepo.server.types.gen.ObjectProfile;
 
 /**
  * This demo implementation of SearchResultFiltering shall reflect the XACML policies
- * for the two demo smiley roles SmileyAdmin and SmileyUser
+ * for the two demo smiley roles SmileyAdmin and SmileyUser.
+ * The insearch filter of a role is given by getInsearchFilter,
+ * rewriteQueryForInsearch adds the same filter to the query.
  * 
  * @author  gsp@dtic.dtu.dk
  * @version
  */
-public class SearchResultFilteringDemoImpl implements SearchResultFiltering {
+public class SearchResultFilteringDemoImpl implements InsearchFiltering {
     
     private static final Logger logger =
         Logger.getLogger(SearchResultFilteringDemoImpl.class);
 
     private static final Map<String, FedoraClient> fedoraClients = new HashMap<String, FedoraClient>();
     
+    // postsearch checks of all requests share this many threads
+    private static final int CHECK_THREADS = 8;
+    
+    // the checks of one result page must be done within this many milliseconds
+    private static final long CHECK_TIMEOUT = 30000;
+    
+    private static final long DECISION_TTL = 60000;
+    
+    private static final int MAX_DECISIONS = 10000;
+    
+    private static final ExecutorService checkPool = Executors.newFixedThreadPool(CHECK_THREADS, new ThreadFactory() {
+    	public Thread newThread(Runnable r) {
+    		Thread t = new Thread(r, "postsearch check");
+    		t.setDaemon(true);
+    		return t;
+    	}
+    });
+    
+    private static final Map<String, Decision> decisions = new LinkedHashMap<String, Decision>(16, 0.75f, true) {
+    	protected boolean removeEldestEntry(Map.Entry<String, Decision> eldest) {
+    		return size() > MAX_DECISIONS;
+    	}
+    };
+    
     public String selectIndexNameForPresearch(
     		String fgsUserName, 
     		String indexNameParam,
@@ -66,115 +107,301 @@ public class SearchResultFilteringDemoImpl implements SearchResultFiltering {
     	return indexName;
     }
 
-    public String rewriteQueryForInsearch(
+    public String getInsearchFilter(
     		String fgsUserName, 
     		String indexName, 
-    		String query,
     		Map<String, Set<String>> fgsUserAttributes,
     		Config config) 
     throws java.rmi.RemoteException {
-    	// query rewriting shall correspond to the additional index field(s) in the xslt indexing stylesheet.
-    	String rewrittenQuery = query;
+    	// the filter shall correspond to the additional index field(s) in the xslt indexing stylesheet.
+    	String filter = null;
         if (null != fgsUserAttributes) {
         	Set<String> roles = fgsUserAttributes.get("smileyRole");
         	if (null != roles && 0 < roles.size()) {
         		if (roles.contains("SmileyAdministrator")) {
-            		rewrittenQuery = "( " + query + " ) AND smiley AND PID:demo*";
+        			filter = "smiley AND PID:demo*";
                 } else if (roles.contains("SmileyUser")) {
-            		rewrittenQuery = "( " + query + " ) AND smiley AND PID:demo* NOT PID:\"demo:SmileyStuff\"";
+                	filter = "smiley AND PID:demo* NOT PID:\"demo:SmileyStuff\"";
                 }
         	}
         }
+    	return filter;
+    }
+
+    public String rewriteQueryForInsearch(
+    		String fgsUserName, 
+    		String indexName, 
+    		String query,
+    		Map<String, Set<String>> fgsUserAttributes,
+    		Config config) 
+    throws java.rmi.RemoteException {
+    	String rewrittenQuery = query;
+    	String filter = getInsearchFilter(fgsUserName, indexName, fgsUserAttributes, config);
+    	if (filter != null) {
+    		rewrittenQuery = "( " + query + " ) AND " + filter;
+    	}
     	return rewrittenQuery;
     }
     
+    /**
+     * the hits of the page are checked concurrently, at most CHECK_THREADS at a time,
+     * by getObjectProfile as the user, a hit is denied if the check fails or times out.
+     * The decisions of Fedora are cached per user and PID for DECISION_TTL milliseconds,
+     * a check which fails as Fedora cannot be reached is not, so it is made again for the next page.
+     * The page is read twice by a SAX parser, first to find the PIDs,
+     * then to copy it with the denied hits marked.
+     */
     public StringBuffer filterResultsetForPostsearch(
     		String fgsUserName, 
     		StringBuffer resultSetXml,
     		Map<String, Set<String>> fgsUserAttributes,
     		Config config) 
     throws java.rmi.RemoteException {
-    	StringBuffer result = resultSetXml;
-    	//foreach hit in resultset, evaluate XACML policies, if not deny (~permit) then include in result
-    	DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-    	DocumentBuilder builder = null;
-		try {
-			builder = factory.newDocumentBuilder();
-		} catch (ParserConfigurationException e) {
+    	HitCollector hitCollector = new HitCollector(config.getRepositoryName(null));
+    	parse(resultSetXml, hitCollector);
+    	List<Boolean> permits = checkHits(fgsUserName, hitCollector.pids, hitCollector.repositoryNames, config);
+    	int hitsDenied = 0;
+    	for (int i=0; i<permits.size(); i++) {
+    		if (!permits.get(i).booleanValue()) hitsDenied++;
+    	}
+        if (logger.isDebugEnabled())
+            logger.debug("filterResultsetForPostsearch hits="+permits.size()+" hitsDenied="+hitsDenied);
+    	StringWriter sw = new StringWriter();
+    	try {
+    		TransformerHandler serializer = ((SAXTransformerFactory) TransformerFactory.newInstance()).newTransformerHandler();
+    		serializer.setResult(new StreamResult(sw));
+    		DeniedHitsMarker marker = new DeniedHitsMarker(permits, hitsDenied);
+    		marker.setContentHandler(serializer);
+    		parse(resultSetXml, marker);
+    	} catch (TransformerConfigurationException e) {
             throw new GenericSearchException("filterResultsetForPostsearch:\n" + e.toString());
-		}
-        StringReader sr = new StringReader(resultSetXml.toString());
-		Document document = null;
+    	}
+    	return sw.getBuffer();
+    }
+
+    private static void parse(StringBuffer xml, ContentHandler handler)
+    throws GenericSearchException {
+    	SAXParserFactory factory = SAXParserFactory.newInstance();
+    	factory.setNamespaceAware(true);
     	try {
-			document = builder.parse(new InputSource(sr));
+    		XMLReader reader = factory.newSAXParser().getXMLReader();
+    		reader.setContentHandler(handler);
+    		reader.parse(new InputSource(new StringReader(xml.toString())));
+		} catch (ParserConfigurationException e) {
+            throw new GenericSearchException("filterResultsetForPostsearch:\n" + e.toString());
 		} catch (SAXException e) {
             throw new GenericSearchException("filterResultsetForPostsearch:\n" + e.toString());
 		} catch (IOException e) {
             throw new GenericSearchException("filterResultsetForPostsearch:\n" + e.toString());
 		}
-		Element gfindObjectsElement = (Element) document.getElementsByTagName("gfindObjects").item(0);
-		NodeList objects = document.getElementsByTagName("object");
-		int hitsDenied = 0;
-		for (int i=0; i<objects.getLength(); i++) {
-			Element objectElement = (Element) objects.item(i);
-			NodeList fieldNodes = objectElement.getElementsByTagName("field"); 
-			Element fieldElement = null;
-			String pid = null;
-			String repositoryName = config.getRepositoryName(null);
-			for (int j=0; j<fieldNodes.getLength(); j++) {
-				fieldElement = (Element) fieldNodes.item(j);
-				if ("PID".equals(fieldElement.getAttribute("name"))) {
-					pid = fieldElement.getTextContent();
-				}
-				if ("repositoryName".equals(fieldElement.getAttribute("name"))) {
-					repositoryName = fieldElement.getTextContent();
-				}
-			}
-			if (pid!=null) {
-//	            FedoraAPIA apia = getAPIA(repositoryName, 
-//	            		config.getFedoraSoap(repositoryName), 
-//	            		fgsUserName, 
-//	            		fgsUserName, 
-//	            		config.getTrustStorePath(repositoryName), 
-//	            		config.getTrustStorePass(repositoryName) );
-//	        	try {
-//					ObjectProfile profile = apia.getObjectProfile(pid, null);
-//			        if (logger.isDebugEnabled())
-//			            logger.debug("filterResultsetForPostsearch pid="+pid+" profile.label="+profile.getObjLabel());
-		            FedoraAPIM apim = getAPIM(repositoryName, 
-		            		config.getFedoraSoap(repositoryName), 
-		            		fgsUserName, 
-		            		fgsUserName, 
-		            		config.getTrustStorePath(repositoryName), 
-		            		config.getTrustStorePass(repositoryName) );
-		            String fedoraVersion = config.getFedoraVersion(repositoryName);
-		            String format = Constants.FOXML1_0.uri;
-		            if(fedoraVersion != null && fedoraVersion.startsWith("2.")) {
-		                format = "foxml1.0";
-		            }
-		            try {
-		            	byte[] foxmlRecord = apim.export(pid, format, "public");
-				        if (logger.isDebugEnabled())
-				            logger.debug("filterResultsetForPostsearch pid="+pid+" foxmlRecord="+foxmlRecord);
-				} catch (java.rmi.RemoteException e) {
-					hitsDenied++;
-			        if (logger.isDebugEnabled())
-		            logger.debug("filterResultsetForPostsearch hitsDenied="+hitsDenied+" pid="+pid+"\nexception="+e.getMessage());
-			        objectElement.setAttribute("hitDeniedNo", Integer.toString(hitsDenied));
-				}
-			} else {
-				hitsDenied++;
-		        if (logger.isDebugEnabled())
-		            logger.debug("filterResultsetForPostsearch hitsDenied="+hitsDenied+" pid="+pid);
-			}
+    }
+
+    /**
+     * the decision of each hit, true if permitted, a hit without PID is denied
+     */
+    private static List<Boolean> checkHits(
+    		final String fgsUserName,
+    		List<String> pids,
+    		List<String> repositoryNames,
+    		final Config config) {
+    	List<Boolean> permits = new ArrayList<Boolean>(pids.size());
+    	List<Callable<Boolean>> checks = new ArrayList<Callable<Boolean>>();
+    	List<Integer> checkedHits = new ArrayList<Integer>();
+    	for (int i=0; i<pids.size(); i++) {
+    		final String pid = pids.get(i);
+    		final String repositoryName = repositoryNames.get(i);
+    		Boolean permit = Boolean.FALSE;
+    		if (pid != null) {
+    			permit = getCachedDecision(fgsUserName, repositoryName, pid);
+    			if (permit == null) {
+    				checks.add(new Callable<Boolean>() {
+    					public Boolean call() throws Exception {
+    						return Boolean.valueOf(checkHit(fgsUserName, repositoryName, pid, config));
+    					}
+    				});
+    				checkedHits.add(Integer.valueOf(i));
+    			}
+    		}
+    		permits.add(permit);
+    	}
+    	if (checks.isEmpty()) return permits;
+    	List<Future<Boolean>> futures = null;
+    	try {
+    		futures = checkPool.invokeAll(checks, CHECK_TIMEOUT, TimeUnit.MILLISECONDS);
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		futures = new ArrayList<Future<Boolean>>();
+    	}
+    	for (int j=0; j<checkedHits.size(); j++) {
+    		int i = checkedHits.get(j).intValue();
+    		Boolean permit = Boolean.FALSE;
+    		if (j < futures.size() && !futures.get(j).isCancelled()) {
+    			try {
+    				permit = futures.get(j).get();
+    				putCachedDecision(fgsUserName, repositoryNames.get(i), pids.get(i), permit);
+    			} catch (Exception e) {
+    				logger.warn("filterResultsetForPostsearch check error pid="+pids.get(i)+" :\n"+e.toString());
+    			}
+    		} else {
+				logger.warn("filterResultsetForPostsearch check timed out pid="+pids.get(i));
+    		}
+    		permits.set(i, permit);
+    	}
+    	return permits;
+    }
+
+    /**
+     * the user is permitted to see the hit if the object profile may be read,
+     * throws if Fedora cannot be reached or does not answer, as that is no decision
+     */
+    private static boolean checkHit(
+    		String fgsUserName,
+    		String repositoryName,
+    		String pid,
+    		Config config)
+    throws GenericSearchException {
+        FedoraAPIA apia = getAPIA(repositoryName, 
+        		config.getFedoraSoap(repositoryName), 
+        		fgsUserName, 
+        		fgsUserName, 
+        		config.getTrustStorePath(repositoryName), 
+        		config.getTrustStorePass(repositoryName) );
+    	try {
+			ObjectProfile profile = apia.getObjectProfile(pid, null);
+	        if (logger.isDebugEnabled())
+	            logger.debug("filterResultsetForPostsearch permitted pid="+pid+" profile.label="+profile.getObjLabel());
+	        return true;
+		} catch (java.rmi.RemoteException e) {
+			if (isTransient(e))
+				throw new GenericSearchException("filterResultsetForPostsearch check error pid="+pid, e);
+	        if (logger.isDebugEnabled())
+	            logger.debug("filterResultsetForPostsearch denied pid="+pid+"\nexception="+e.getMessage());
+	        return false;
 		}
-		gfindObjectsElement.setAttribute("hitsDenied", Integer.toString(hitsDenied));
-        String xsltPath = config.getConfigName()+"/index/"+config.getIndexName(null)+"/copyXml";
-        result = (new GTransformer()).transform(
-        		xsltPath,
-        		new DOMSource(document),
-        		new String[0]);
-    	return result;
+    }
+
+    /**
+     * true if the fault is raised by the connection to Fedora, or by a HTTP 5xx answer without SOAP fault,
+     * rather than by Fedora denying or not finding the object
+     */
+    private static boolean isTransient(java.rmi.RemoteException e) {
+    	String message = e.getMessage();
+    	if (message != null && message.matches("(?s)\\(5\\d\\d\\).*"))
+    		return true;
+    	// a RemoteException is an IOException itself, so only the exceptions it wraps are looked at
+    	for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+    		if (cause instanceof IOException && !(cause instanceof java.rmi.RemoteException))
+    			return true;
+    	}
+    	return false;
+    }
+
+    private static Boolean getCachedDecision(String fgsUserName, String repositoryName, String pid) {
+    	String key = fgsUserName+"\u0000"+repositoryName+"\u0000"+pid;
+    	synchronized (decisions) {
+    		Decision decision = decisions.get(key);
+    		if (decision == null) return null;
+    		if (decision.expires < System.currentTimeMillis()) {
+    			decisions.remove(key);
+    			return null;
+    		}
+    		return decision.permit;
+    	}
+    }
+
+    private static void putCachedDecision(String fgsUserName, String repositoryName, String pid, Boolean permit) {
+    	String key = fgsUserName+"\u0000"+repositoryName+"\u0000"+pid;
+    	synchronized (decisions) {
+    		decisions.put(key, new Decision(permit, System.currentTimeMillis() + DECISION_TTL));
+    	}
+    }
+
+    private static class Decision {
+    	Boolean permit;
+    	long expires;
+
+    	Decision(Boolean permit, long expires) {
+    		this.permit = permit;
+    		this.expires = expires;
+    	}
+    }
+
+    /**
+     * finds the PID and repositoryName fields of each object of the result page
+     */
+    private static class HitCollector extends DefaultHandler {
+    	List<String> pids = new ArrayList<String>();
+    	List<String> repositoryNames = new ArrayList<String>();
+    	private String defaultRepositoryName;
+    	private String fieldName = null;
+    	private StringBuffer fieldValue = new StringBuffer();
+
+    	HitCollector(String defaultRepositoryName) {
+    		this.defaultRepositoryName = defaultRepositoryName;
+    	}
+
+    	public void startElement(String uri, String localName, String qName, Attributes atts) {
+    		if ("object".equals(localName)) {
+    			pids.add(null);
+    			repositoryNames.add(defaultRepositoryName);
+    		} else if ("field".equals(localName) && !pids.isEmpty()) {
+    			fieldName = atts.getValue("name");
+    			fieldValue.setLength(0);
+    		}
+    	}
+
+    	public void characters(char[] ch, int start, int length) {
+    		if (fieldName != null) fieldValue.append(ch, start, length);
+    	}
+
+    	public void endElement(String uri, String localName, String qName) {
+    		if ("field".equals(localName) && fieldName != null) {
+    			int last = pids.size() - 1;
+    			if ("PID".equals(fieldName)) pids.set(last, fieldValue.toString());
+    			if ("repositoryName".equals(fieldName)) repositoryNames.set(last, fieldValue.toString());
+    			fieldName = null;
+    		}
+    	}
+    }
+
+    /**
+     * copies the result page, with hitsDenied on gfindObjects and hitDeniedNo on each denied object
+     */
+    private static class DeniedHitsMarker extends XMLFilterImpl {
+    	private List<Boolean> permits;
+    	private int hitsDenied;
+    	private boolean gfindObjectsSeen = false;
+    	private int hitNo = 0;
+    	private int deniedNo = 0;
+
+    	DeniedHitsMarker(List<Boolean> permits, int hitsDenied) {
+    		this.permits = permits;
+    		this.hitsDenied = hitsDenied;
+    	}
+
+    	public void startElement(String uri, String localName, String qName, Attributes atts)
+    	throws SAXException {
+    		if ("gfindObjects".equals(localName) && !gfindObjectsSeen) {
+    			gfindObjectsSeen = true;
+    			atts = setAttribute(atts, "hitsDenied", Integer.toString(hitsDenied));
+    		} else if ("object".equals(localName)) {
+    			if (!permits.get(hitNo++).booleanValue()) {
+    				atts = setAttribute(atts, "hitDeniedNo", Integer.toString(++deniedNo));
+    			}
+    		}
+    		super.startElement(uri, localName, qName, atts);
+    	}
+
+    	private static Attributes setAttribute(Attributes atts, String name, String value) {
+    		AttributesImpl newAtts = new AttributesImpl(atts);
+    		int i = newAtts.getIndex("", name);
+    		if (i < 0) {
+    			newAtts.addAttribute("", name, name, "CDATA", value);
+    		} else {
+    			newAtts.setValue(i, value);
+    		}
+    		return newAtts;
+    	}
     }
 
     private static FedoraClient getFedoraClient(
@@ -237,26 +464,5 @@ public class SearchResultFilteringDemoImpl implements SearchResultFiltering {
     				+ " for repository: " + repositoryName, e);
     	}
     }
-    
-    private static FedoraAPIM getAPIM(
-    		String repositoryName,
-    		String fedoraSoap,
-    		String fedoraUser,
-    		String fedoraPass,
-    		String trustStorePath,
-    		String trustStorePass)
-    throws GenericSearchException {
-    	if (trustStorePath!=null)
-    		System.setProperty("javax.net.ssl.trustStore", trustStorePath);
-    	if (trustStorePass!=null)
-    		System.setProperty("javax.net.ssl.trustStorePassword", trustStorePass);
-    	FedoraClient client = getFedoraClient(repositoryName, fedoraSoap, fedoraUser, fedoraPass);
-    	try {
-    		return client.getAPIM();
-    	} catch (Exception e) {
-    		throw new GenericSearchException("Error getting API-M stub"
-    				+ " for repository: " + repositoryName, e);
-    	}
-    }
 
 }
@@ -0,0 +1,250 @@
+/*
+ * <p><b>License and Copyright: </b>The contents of this file is subject to the
+ * same open source license as the Fedora Repository System at www.fedora-commons.org
+ * Copyright &copy; 2006, 2007, 2008, 2009, 2010, 2011, 2012, 2013 by The Technical University of Denmark.
+ * All rights reserved.</p>
+ */
+package dk.defxws.fedoragsearch.server;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.search.FieldComparatorSource;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.SortField.Type;
+
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+
+/**
+ * holds the parsed sortFields of the Lucene based indexes of one Config instance.
+ * Each distinct sortFields string of an index is parsed once,
+ * and its comparatorClass instances are made once, and shared by all searches.
+ * The fgsindex.defaultSortFields are parsed when the configuration is loaded.
+ *
+ * @author  gsp@dtv.dk
+ * @version
+ */
+public class SortRegistry {
+
+    private static final Logger logger = Logger.getLogger(SortRegistry.class);
+
+    private static final int SORT_CACHE_SIZE = 1000;
+
+    private static final Sort NO_SORT = new Sort();
+
+    private Config config;
+
+    private Map<String, Sort> sortCache = Collections.synchronizedMap(
+    		new LinkedHashMap<String, Sort>(16, 0.75f, true) {
+    			private static final long serialVersionUID = 1L;
+    			protected boolean removeEldestEntry(Map.Entry<String, Sort> eldest) {
+    				return size() > SORT_CACHE_SIZE;
+    			}
+    		});
+
+    public SortRegistry(Config config) {
+    	this.config = config;
+    }
+
+    /**
+     * returns the Sort of sortFields, or null if sortFields is empty,
+     * the hits are then ordered by relevance
+     */
+    public Sort getSort(String indexName, String sortFields)
+    throws GenericSearchException {
+    	if (sortFields == null || sortFields.trim().length() == 0) {
+    		return null;
+    	}
+    	String key = config.getIndexName(indexName)+"\u0000"+sortFields;
+    	Sort sort = sortCache.get(key);
+    	if (sort == null) {
+    		sort = newSort(sortFields);
+    		sortCache.put(key, sort);
+    		if (logger.isDebugEnabled())
+    			logger.debug("getSort indexName="+indexName+" sortFields="+sortFields+" sort="+sort);
+    	}
+    	return sort == NO_SORT ? null : sort;
+    }
+
+//  sortFields      ::= [sortField[';'sortField]*]
+//  sortField       ::= sortFieldName[','(sortType | locale | comparatorClass)[','reverse]]]]
+//  sortFieldName   ::= #the name of an index field, which is UN_TOKENIZED and contains a single term per document
+//  sortType		::= 'BYTE' | 'DOC' | 'DOUBLE' | 'FLOAT' | 'INT' | 'LONG' | 'SCORE' | 'SHORT' | 'STRING' | 'STRING_VAL'
+//  locale          ::= language['-'country['-'variant]]
+//  comparatorClass ::= package-path'.'className['('param['-'param]*')']
+//  reverse         ::= 'false' (default) | 'true' | 'reverse'
+    private Sort newSort(String sortFields)
+    throws GenericSearchException {
+    	String sortFieldsString = sortFields;
+    	if (sortFields == null) sortFieldsString = "";
+    	StringTokenizer st = new StringTokenizer(sortFieldsString, ";");
+    	SortField[] sortFieldArray = new SortField[st.countTokens()];
+    	int i = 0;
+    	while (st.hasMoreTokens()) {
+    		SortField sortField = null;
+			Type sortType = null;
+    		String sortFieldString = st.nextToken().trim();
+    		if (sortFieldString.length()==0)
+    			throw new GenericSearchException("getSort sortFields='"+sortFields+"' : empty sortField string");
+    		StringTokenizer stf = new StringTokenizer(sortFieldString, ",");
+    		if (!stf.hasMoreTokens())
+    			throw new GenericSearchException("getSort sortFields='"+sortFields+"' : empty sortFieldName string in '" + sortFieldString + "'");
+    		String sortFieldName = stf.nextToken().trim();
+    		if (sortFieldName.length()==0)
+    			throw new GenericSearchException("getSort sortFields='"+sortFields+"' : empty sortFieldName string in '" + sortFieldString + "'");
+    		if (!stf.hasMoreTokens()) {
+    			sortType = SortField.Type.SCORE;
+				sortField = new SortField(sortFieldName, sortType);
+    		} else {
+    			String sortTypeOrLocaleOrCompString = stf.nextToken().trim();
+    			if (sortTypeOrLocaleOrCompString.length()==0)
+    				throw new GenericSearchException("getSort sortFields='"+sortFields+"' : empty sortType or locale or comparatorClass string in '" + sortFieldString + "'");
+    			if (sortTypeOrLocaleOrCompString.indexOf(".")>=0) {
+    				String compString = sortTypeOrLocaleOrCompString;
+    				String paramString = "";
+    				Object[] params = new Object[] {};
+    				if (sortTypeOrLocaleOrCompString.indexOf("(")>=0) {
+    					int p = compString.indexOf("(");
+    					int q = compString.indexOf(")");
+    					if (p<3 || q<p+1)
+    						throw new GenericSearchException("getSort sortFields='"+sortFields+"' : comparatorClass parameters malformed in '" + compString + "'.");
+    					paramString = compString.substring(p+1, q);
+    					compString = compString.substring(0, p);
+    					StringTokenizer stp = new StringTokenizer(paramString, "-");
+    					params = new Object[stp.countTokens()];
+    					int ip = 0;
+    					while (stp.hasMoreTokens()) {
+    						params[ip++] = stp.nextToken().trim();
+    					}
+    				}
+    				FieldComparatorSource scs = null;
+    				Class comparatorClass = null;
+    				try {
+    					comparatorClass = Class.forName(compString);
+    				} catch (ClassNotFoundException e) {
+    					throw new GenericSearchException("getSort sortFields='"+sortFields+"' : comparatorClass '" + compString + "'"
+    							+ ": class not found:\n"+e.toString());
+    				}
+    				Constructor[] constructors = comparatorClass.getConstructors();
+    				StringBuffer errorMessage = new StringBuffer();
+    				for (int j=0; j<constructors.length; j++) {
+    					Constructor cj = constructors[j];
+    					try {
+    						scs = (FieldComparatorSource) cj.newInstance(params);
+    						if (logger.isDebugEnabled())
+    							logger.debug("getSort sortFields='"+sortFields+"' : comparatorClass '" 
+    									+ compString + "'"
+    									+ ": constructor["+j+"]='"+cj.toGenericString()+"'");
+    						break;
+    					} catch (IllegalArgumentException e) {
+    						errorMessage.append("\nconstructor["+j+"]='"+cj.toGenericString()+"'"+"\n"+e.toString()+" ");
+    					} catch (InstantiationException e) {
+    						errorMessage.append("\nconstructor["+j+"]='"+cj.toGenericString()+"'"+"\n"+e.toString()+" ");
+    					} catch (IllegalAccessException e) {
+    						errorMessage.append("\nconstructor["+j+"]='"+cj.toGenericString()+"'"+"\n"+e.toString()+" ");
+    					} catch (InvocationTargetException e) {
+    						errorMessage.append("\nconstructor["+j+"]='"+cj.toGenericString()+"'"+"\n"+e.toString()+" ");
+    					}
+    				}
+    				if (scs==null) {
+    					throw new GenericSearchException("getSort sortFields='"+sortFields+"' : comparatorClass '" + compString + "'"
+    							+ ": no constructor applied:\n"+errorMessage.toString());
+    				}
+    				if (!stf.hasMoreTokens()) {
+    					sortField = new SortField(sortFieldName, scs);
+    				} else {
+    					String reverseString = stf.nextToken().trim();
+    					if (reverseString.length()==0)
+    						throw new GenericSearchException("getSort sortFields='"+sortFields+"' : empty reverse string in '" + sortFieldString + "'");
+    					boolean reverse = false;
+    					if ("true".equalsIgnoreCase(reverseString)) reverse = true;
+    					else if ("reverse".equalsIgnoreCase(reverseString)) reverse = true;
+    					else if ("false".equalsIgnoreCase(reverseString)) reverse = false;
+    					else
+    						throw new GenericSearchException("getSort sortFields='"+sortFields+"' : unknown reverse string '" + reverseString + "' in '" + sortFieldString + "'");
+    					sortField = new SortField(sortFieldName, scs, reverse);
+    				}
+    			} else {
+    				String sortTypeOrLocaleString = sortTypeOrLocaleOrCompString;
+    				Locale locale = null;
+    				if ("BYTE".equals(sortTypeOrLocaleString)) sortType = SortField.Type.BYTE;
+    				else if ("DOC".equals(sortTypeOrLocaleString)) sortType = SortField.Type.DOC;
+    				else if ("DOUBLE".equals(sortTypeOrLocaleString)) sortType = SortField.Type.DOUBLE;
+    				else if ("FLOAT".equals(sortTypeOrLocaleString)) sortType = SortField.Type.FLOAT;
+    				else if ("INT".equals(sortTypeOrLocaleString)) sortType = SortField.Type.INT;
+    				else if ("LONG".equals(sortTypeOrLocaleString)) sortType = SortField.Type.LONG;
+    				else if ("SCORE".equals(sortTypeOrLocaleString)) {
+    					sortType = SortField.Type.SCORE;
+//    					searcher.setDefaultFieldSortScoring(true, true); not in 4.0.0
+    				}
+    				else if ("SHORT".equals(sortTypeOrLocaleString)) sortType = SortField.Type.SHORT;
+    				else if ("STRING".equals(sortTypeOrLocaleString)) sortType = SortField.Type.STRING;
+    				else if ("STRING_VAL".equals(sortTypeOrLocaleString)) sortType = SortField.Type.STRING_VAL;
+    				else if (((sortTypeOrLocaleString.substring(0, 1)).compareTo("A") >= 0) && ((sortTypeOrLocaleString.substring(0, 1)).compareTo("Z") <= 0)) {
+    					throw new GenericSearchException("getSort sortFields='"+sortFields+"' : unknown sortType string '" + sortTypeOrLocaleString + "' in '" + sortFieldString + "'");
+    				}
+    				else {
+    					StringTokenizer stfl = new StringTokenizer(sortTypeOrLocaleString, "-");
+    					if (stfl.countTokens()>3)
+    						throw new GenericSearchException("getSort sortFields='"+sortFields+"' : unknown locale string '" + sortTypeOrLocaleString + "' in '" + sortFieldString + "'");
+    					String language = stfl.nextToken().trim();
+    					if (language.length()==0)
+    						throw new GenericSearchException("getSort sortFields='"+sortFields+"' : empty language string in '" + sortFieldString + "'");
+    					if (language.length()>2)
+    						throw new GenericSearchException("getSort sortFields='"+sortFields+"' : unknown language string '" + language + "' in '" + sortFieldString + "'");
+    					if (!stfl.hasMoreTokens()) {
+    						locale = new Locale(language);
+    					} else {
+    						String country = stfl.nextToken().trim();
+    						if (country.length()==0)
+    							throw new GenericSearchException("getSort sortFields='"+sortFields+"' : empty country string in '" + sortFieldString + "'");
+    						if (country.length()>3)
+    							throw new GenericSearchException("getSort sortFields='"+sortFields+"' : unknown country string '" + country + "' in '" + sortFieldString + "'");
+    						if (!stfl.hasMoreTokens()) {
+    							locale = new Locale(language, country);
+    						} else {
+    							String variant = stfl.nextToken().trim();
+    							if (variant.length()==0)
+    								throw new GenericSearchException("getSort sortFields='"+sortFields+"' : empty variant string in '" + sortFieldString + "'");
+    							locale = new Locale(language, country, variant);
+    						}
+    					}
+    				}
+    				if (!stf.hasMoreTokens()) {
+    					if (sortType != null)
+    						sortField = new SortField(sortFieldName, sortType);
+//    					else
+//    						sortField = new SortField(sortFieldName, locale);
+    				} else {
+    					String reverseString = stf.nextToken().trim();
+    					if (reverseString.length()==0)
+    						throw new GenericSearchException("getSort sortFields='"+sortFields+"' : empty reverse string in '" + sortFieldString + "'");
+    					boolean reverse = false;
+    					if ("true".equalsIgnoreCase(reverseString)) reverse = true;
+    					else if ("reverse".equalsIgnoreCase(reverseString)) reverse = true;
+    					else if ("false".equalsIgnoreCase(reverseString)) reverse = false;
+    					else
+    						throw new GenericSearchException("getSort sortFields='"+sortFields+"' : unknown reverse string '" + reverseString + "' in '" + sortFieldString + "'");
+    					if (sortType == SortField.Type.SCORE) reverse = !reverse;
+    					if (sortType != null)
+    						sortField = new SortField(sortFieldName, sortType, reverse);
+//    					else
+//    						sortField = new SortField(sortFieldName, locale, reverse);
+    				}
+    			}
+    		}
+    		sortFieldArray[i++] = sortField;
+    	}
+    	if (sortFieldArray.length == 0) {
+    		return NO_SORT;
+    	}
+    	return new Sort(sortFieldArray);
+    }
+}
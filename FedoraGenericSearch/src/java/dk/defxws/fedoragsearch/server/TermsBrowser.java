@@ -0,0 +1,206 @@
+/*
+ * <p><b>License and Copyright: </b>The contents of this file is subject to the
+ * same open source license as the Fedora Repository System at www.fedora-commons.org
+ * Copyright &copy; 2006, 2007, 2008, 2009, 2010, 2011, 2012, 2013 by The Technical University of Denmark.
+ * All rights reserved.</p>
+ */
+package dk.defxws.fedoragsearch.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+
+/**
+ * browses the terms of an index field one page at a time,
+ * seeking directly to the start term, or to the term given by a continuation cursor.
+ * The term total of the field, and every SAMPLE_INTERVAL'th term for numbering the terms,
+ * are found in one pass over the field and cached per index reader generation,
+ * only the samples of the latest reader version are kept per index and field.
+ *
+ * @author  gsp@dtv.dk
+ * @version
+ */
+public class TermsBrowser {
+
+    private static final Logger logger = Logger.getLogger(TermsBrowser.class);
+
+    private static final int SAMPLE_INTERVAL = 128;
+
+    private static final int FIELD_TERMS_CACHE_SIZE = 100;
+
+    private static Map<String, FieldTerms> fieldTermsCache = Collections.synchronizedMap(
+    		new LinkedHashMap<String, FieldTerms>(16, 0.75f, true) {
+    			private static final long serialVersionUID = 1L;
+    			protected boolean removeEldestEntry(Map.Entry<String, FieldTerms> eldest) {
+    				return size() > FIELD_TERMS_CACHE_SIZE;
+    			}
+    		});
+
+    private int termTotal = 0;
+
+    private String nextCursor = "";
+
+    /**
+     * appends the term elements of one page to resultXml,
+     * indexDir identifies the index in the cache
+     */
+    public void browse(
+    		DirectoryReader ir,
+    		String indexDir,
+    		String fieldName,
+    		String startTerm,
+    		String cursor,
+    		int termPageSize,
+    		StringBuffer resultXml)
+    throws GenericSearchException {
+    	try {
+    		Terms terms = MultiFields.getTerms(ir, fieldName);
+    		if (terms == null) return;
+    		FieldTerms fieldTerms = getFieldTerms(ir, indexDir, fieldName, terms);
+    		termTotal = fieldTerms.termTotal;
+    		TermsEnum termsEnum = terms.iterator(null);
+    		int termNo = 0;
+    		BytesRef text = null;
+    		if (cursor != null && cursor.length() > 0) {
+    			String decoded = decodeCursor(cursor);
+    			int i = decoded.indexOf(":");
+    			termNo = Integer.parseInt(decoded.substring(0, i));
+    			BytesRef cursorTerm = new BytesRef(decoded.substring(i+1));
+    			if (termsEnum.seekCeil(cursorTerm) == TermsEnum.SeekStatus.END) {
+    				text = null;
+    			} else if (termsEnum.term().equals(cursorTerm)) {
+    				text = termsEnum.term();
+    			} else {
+    				// the term was deleted since the cursor was given, count the position again
+    				termNo = seekTermNo(termsEnum, fieldTerms, cursorTerm);
+    				text = termsEnum.term();
+    			}
+    		} else {
+    			termNo = seekTermNo(termsEnum, fieldTerms, new BytesRef(startTerm));
+    			text = termNo > 0 ? termsEnum.term() : null;
+    		}
+    		int pageSize = 0;
+    		while (text != null && pageSize < termPageSize) {
+    			pageSize++;
+    			resultXml.append("<term no=\""+termNo+"\""
+    					+" fieldtermhittotal=\""+termsEnum.docFreq()
+    					+"\">"+GenericOperationsImpl.encode(text.utf8ToString())+"</term>");
+    			text = termsEnum.next();
+    			termNo++;
+    		}
+    		if (text != null) {
+    			nextCursor = encodeCursor(termNo+":"+text.utf8ToString());
+    		}
+    	} catch (GenericSearchException e) {
+    		throw e;
+    	} catch (Exception e) {
+    		throw new GenericSearchException("browse fieldName="+fieldName+" error:\n" + e.toString());
+    	}
+    }
+
+    public int getTermTotal() {
+    	return termTotal;
+    }
+
+    /**
+     * the cursor to give for the next page, empty if there are no more terms
+     */
+    public String getNextCursor() {
+    	return nextCursor;
+    }
+
+    /**
+     * positions termsEnum at the first term >= target,
+     * and returns its number, counted from 1, or 0 if there is no such term
+     */
+    private int seekTermNo(TermsEnum termsEnum, FieldTerms fieldTerms, BytesRef target)
+    throws java.io.IOException {
+    	int low = 0;
+    	int high = fieldTerms.samples.size() - 1;
+    	int sample = -1;
+    	while (low <= high) {
+    		int mid = (low + high) >>> 1;
+    		if (fieldTerms.samples.get(mid).compareTo(target) < 0) {
+    			sample = mid;
+    			low = mid + 1;
+    		} else {
+    			high = mid - 1;
+    		}
+    	}
+    	BytesRef text;
+    	int termNo;
+    	if (sample < 0) {
+    		text = termsEnum.next();
+    		termNo = 1;
+    	} else {
+    		termsEnum.seekExact(fieldTerms.samples.get(sample));
+    		text = termsEnum.term();
+    		termNo = sample * SAMPLE_INTERVAL + 1;
+    	}
+    	while (text != null && text.compareTo(target) < 0) {
+    		text = termsEnum.next();
+    		termNo++;
+    	}
+    	return text == null ? 0 : termNo;
+    }
+
+    private static FieldTerms getFieldTerms(DirectoryReader ir, String indexDir, String fieldName, Terms terms)
+    throws java.io.IOException {
+    	String key = indexDir+" "+fieldName;
+    	FieldTerms fieldTerms = fieldTermsCache.get(key);
+    	if (fieldTerms == null || fieldTerms.version != ir.getVersion()) {
+    		fieldTerms = new FieldTerms();
+    		fieldTerms.version = ir.getVersion();
+    		TermsEnum termsEnum = terms.iterator(null);
+    		BytesRef text;
+    		while ((text = termsEnum.next()) != null) {
+    			if (fieldTerms.termTotal % SAMPLE_INTERVAL == 0) {
+    				fieldTerms.samples.add(BytesRef.deepCopyOf(text));
+    			}
+    			fieldTerms.termTotal++;
+    		}
+    		fieldTermsCache.put(key, fieldTerms);
+    		if (logger.isDebugEnabled())
+    			logger.debug("getFieldTerms "+key+" version="+fieldTerms.version+" termTotal="+fieldTerms.termTotal);
+    	}
+    	return fieldTerms;
+    }
+
+    public static String encodeCursor(String cursor)
+    throws java.io.UnsupportedEncodingException {
+    	return new String(Hex.encodeHex(cursor.getBytes("UTF-8")));
+    }
+
+    public static String decodeCursor(String cursor)
+    throws GenericSearchException {
+    	try {
+    		String decoded = new String(Hex.decodeHex(cursor.toCharArray()), "UTF-8");
+    		if (decoded.indexOf(":") < 1)
+    			throw new GenericSearchException("invalid cursor="+cursor);
+    		return decoded;
+    	} catch (DecoderException e) {
+    		throw new GenericSearchException("invalid cursor="+cursor, e);
+    	} catch (java.io.UnsupportedEncodingException e) {
+    		throw new GenericSearchException("invalid cursor="+cursor, e);
+    	}
+    }
+
+    private static class FieldTerms {
+    	long version;
+    	int termTotal = 0;
+    	List<BytesRef> samples = new ArrayList<BytesRef>();
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * <p><b>License and Copyright: </b>The contents of this file is subject to the
+ * same open source license as the Fedora Repository System at www.fedora-commons.org
+ * Copyright &copy; 2006, 2007, 2008, 2009, 2010, 2011, 2012, 2013 by The Technical University of Denmark.
+ * All rights reserved.</p>
+ */
+package dk.defxws.fedoragsearch.server;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+
+/**
+ * collects the updates of the UpdateListener for batch.window milliseconds,
+ * or until batch.maxSize PIDs are pending, and then updates the indexes once per repository.
+ * The updates of a PID are coalesced, the last action wins.
+ * The batches are run one at a time by the timer thread of the batcher,
+ * updates received meanwhile go into the next batch.
+ * With a window of 0, a batch is started as soon as an update is received,
+ * so batches grow only while the previous batch is running.
+ * When batch.maxSize PIDs are pending, add waits until the next batch is taken,
+ * so a slow index holds back the notifications instead of filling the memory.
+ * The UpdateListener may run several batchers per client, each one for its share of the PIDs.
+ * An update, which fails, is run again in a later batch, at most MAX_ATTEMPTS times,
+ * and then dropped, with a journal it is written to its dead letter file.
+ * With a journal, the journaled updates are marked applied, when their batch is done,
+ * and the journal is told the checkpoint committed by the indexes.
+ *
+ * @author  gsp@dtv.dk
+ * @version
+ */
+public class UpdateBatcher {
+
+    private static final Logger logger = Logger.getLogger(UpdateBatcher.class);
+
+    public static final String FROM_PID = "fromPid";
+
+    public static final String DELETE_PID = "deletePid";
+
+    public static final int MAX_ATTEMPTS = 3;
+
+    // the least delay of a batch of failed updates
+    private static final long RETRY_DELAY = 10000;
+
+    private String clientId;
+
+    private int worker;
+
+    private long window;
+
+    private int maxSize;
+
+    private UpdateJournal journal;
+
+    private Timer timer;
+
+    private TimerTask flushTask = null;
+
+    // held while a batch is taken and run, so close never runs a batch beside the timer
+    private final Object flushLock = new Object();
+
+    private boolean closed = false;
+
+    private int inFlight = 0;
+
+    private long inFlightReceived = 0;
+
+    private long processed = 0;
+
+    // repositoryName + \u0000 + pid to the pending update
+    private LinkedHashMap<String, PendingUpdate> pending = new LinkedHashMap<String, PendingUpdate>();
+
+    public UpdateBatcher(String clientId, int worker, long window, int maxSize) {
+    	this(clientId, worker, window, maxSize, null);
+    }
+
+    public UpdateBatcher(String clientId, int worker, long window, int maxSize, UpdateJournal journal) {
+    	this.clientId = clientId;
+    	this.journal = journal;
+    	this.worker = worker;
+    	this.window = window;
+    	this.maxSize = maxSize;
+    	timer = new Timer("UpdateBatcher "+clientId+" "+worker, true);
+    }
+
+    public String getClientId() {
+    	return clientId;
+    }
+
+    public int getWorker() {
+    	return worker;
+    }
+
+    /**
+     * action is fromPid or deletePid
+     */
+    public void add(String repositoryName, String pid, String action) {
+    	add(repositoryName, pid, action, 0, System.currentTimeMillis());
+    }
+
+    /**
+     * seq is the sequence number of the update in the journal, 0 if not journaled
+     */
+    public synchronized void add(String repositoryName, String pid, String action, long seq, long received) {
+    	String key = repositoryName+"\u0000"+pid;
+    	// a flush is scheduled, when maxSize is reached
+    	while (!closed && maxSize > 0 && pending.size() >= maxSize && !pending.containsKey(key)) {
+    		try {
+    			wait();
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    			break;
+    		}
+    	}
+    	// removed first, so the PID is ordered by its last update
+    	PendingUpdate previous = pending.remove(key);
+    	PendingUpdate update = new PendingUpdate(repositoryName, pid, action, received);
+    	if (previous != null) {
+    		// the lag is counted from the first update, which is not yet indexed
+    		update.received = Math.min(received, previous.received);
+    		update.seqs.addAll(previous.seqs);
+    		if (logger.isDebugEnabled())
+    			logger.debug("add coalesced pid="+pid+" "+previous.action+" by "+action);
+    	}
+    	if (seq > 0) update.seqs.add(Long.valueOf(seq));
+    	pending.put(key, update);
+    	if (pending.size() >= maxSize) {
+    		scheduleFlush(0);
+    	} else if (flushTask == null) {
+    		scheduleFlush(window);
+    	}
+    }
+
+    /**
+     * the number of PIDs pending or being indexed
+     */
+    public synchronized int getQueueDepth() {
+    	return pending.size() + inFlight;
+    }
+
+    /**
+     * milliseconds since the oldest update, which is not yet indexed, was received, 0 if none
+     */
+    public synchronized long getLag() {
+    	long oldest = (inFlight > 0 ? inFlightReceived : Long.MAX_VALUE);
+    	for (Iterator<PendingUpdate> it = pending.values().iterator(); it.hasNext(); ) {
+    		oldest = Math.min(oldest, it.next().received);
+    	}
+    	return (oldest == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - oldest);
+    }
+
+    /**
+     * the number of PIDs indexed since start
+     */
+    public synchronized long getProcessed() {
+    	return processed;
+    }
+
+    /**
+     * stops the timer, and runs the pending updates after a batch being run by the timer
+     */
+    public void close() {
+    	synchronized (this) {
+    		closed = true;
+    		if (flushTask != null) {
+    			flushTask.cancel();
+    			flushTask = null;
+    		}
+    		timer.cancel();
+    		notifyAll();
+    	}
+    	flush();
+    }
+
+    private void scheduleFlush(long delay) {
+    	if (flushTask != null) {
+    		if (delay > 0) return;
+    		flushTask.cancel();
+    	}
+    	flushTask = new TimerTask() {
+    		public void run() {
+    			flush();
+    		}
+    	};
+    	try {
+    		timer.schedule(flushTask, delay);
+    	} catch (IllegalStateException e) {
+    		// the timer is closed, close flushes
+    		flushTask = null;
+    	}
+    }
+
+    private void flush() {
+    	synchronized (flushLock) {
+    		Map<String, PendingUpdate> batch = null;
+    		synchronized (this) {
+    			flushTask = null;
+    			if (pending.isEmpty()) return;
+    			batch = pending;
+    			pending = new LinkedHashMap<String, PendingUpdate>();
+    			inFlight = batch.size();
+    			inFlightReceived = Long.MAX_VALUE;
+    			for (Iterator<PendingUpdate> it = batch.values().iterator(); it.hasNext(); ) {
+    				inFlightReceived = Math.min(inFlightReceived, it.next().received);
+    			}
+    			notifyAll();
+    		}
+    		try {
+    			runBatch(batch);
+    		} finally {
+    			synchronized (this) {
+    				processed += inFlight;
+    				inFlight = 0;
+    			}
+    		}
+    	}
+    }
+
+    private void runBatch(Map<String, PendingUpdate> batch) {
+    	Map<String, List<String>> fromPids = new HashMap<String, List<String>>();
+    	Map<String, List<String>> deletePids = new HashMap<String, List<String>>();
+    	for (Iterator<PendingUpdate> it = batch.values().iterator(); it.hasNext(); ) {
+    		PendingUpdate update = it.next();
+    		if (!fromPids.containsKey(update.repositoryName)) {
+    			fromPids.put(update.repositoryName, new ArrayList<String>());
+    			deletePids.put(update.repositoryName, new ArrayList<String>());
+    		}
+    		if (DELETE_PID.equals(update.action))
+    			deletePids.get(update.repositoryName).add(update.pid);
+    		else
+    			fromPids.get(update.repositoryName).add(update.pid);
+    	}
+    	for (Iterator<String> it = fromPids.keySet().iterator(); it.hasNext(); ) {
+    		String repositoryName = it.next();
+    		try {
+    			Set<String> failedPids = updateIndexBatch(repositoryName, fromPids.get(repositoryName), deletePids.get(repositoryName));
+    			journalBatch(batch, repositoryName, failedPids);
+    		} catch (RemoteException re) {
+    			logger.error("Unable to perform index update batch of repositoryName="+repositoryName
+    					+" due to Exception: " + re.getMessage(), re);
+    			journalBatch(batch, repositoryName, null);
+    		}
+    	}
+    	if (journal != null) {
+    		try {
+    			journal.committed(getJournalCheckpoint());
+    		} catch (RemoteException re) {
+    			logger.warn("Unable to get the committed checkpoint of journal "+journal.getName()+": " + re.getMessage());
+    		}
+    	}
+    }
+
+    /**
+     * updates the indexes of the repository, returns the PIDs, which could not be indexed
+     */
+    protected Set<String> updateIndexBatch(String repositoryName, List<String> fromPids, List<String> deletePids)
+    throws RemoteException {
+    	long startTime = System.currentTimeMillis();
+    	Config config = Config.getCurrentConfig();
+    	GenericOperationsImpl ops = new GenericOperationsImpl();
+    	ops.init("", config);
+    	String updateStatus = ops.updateIndexBatch(fromPids, deletePids, repositoryName, "", "", "");
+    	logger.info("Index updated by "+clientId+" "+worker+" notification batch of repositoryName="+repositoryName
+    			+" fromPids="+fromPids.size()
+    			+" deletePids="+deletePids.size()
+    			+" in "+(System.currentTimeMillis()-startTime)+" ms");
+    	if (logger.isDebugEnabled())
+    		logger.debug("updateIndexBatch returning:\n" + updateStatus);
+    	return ops.getFailedPids();
+    }
+
+    /**
+     * the checkpoint of the journal committed by the indexes, -1 if they commit their changes when made
+     */
+    protected long getJournalCheckpoint()
+    throws RemoteException {
+    	GenericOperationsImpl ops = new GenericOperationsImpl();
+    	ops.init("", Config.getCurrentConfig());
+    	return ops.getJournalCheckpoint(journal.getName());
+    }
+
+    /**
+     * marks the journaled updates of the repository applied, except the failedPids,
+     * all of them are failed, if failedPids is null.
+     * The failed updates are run again, or after MAX_ATTEMPTS dropped and marked failed
+     */
+    private void journalBatch(Map<String, PendingUpdate> batch, String repositoryName, Set<String> failedPids) {
+    	List<Long> applied = new ArrayList<Long>();
+    	List<Long> failed = new ArrayList<Long>();
+    	for (Iterator<PendingUpdate> it = batch.values().iterator(); it.hasNext(); ) {
+    		PendingUpdate update = it.next();
+    		if (!update.repositoryName.equals(repositoryName)) continue;
+    		if (failedPids == null || failedPids.contains(update.pid)) {
+    			if (update.attempts < MAX_ATTEMPTS) {
+    				retry(update);
+    			} else {
+    				logger.error("Update of pid="+update.pid+" repositoryName="+repositoryName
+    						+" failed "+update.attempts+" times, it is dropped");
+    				failed.addAll(update.seqs);
+    			}
+    		} else {
+    			applied.addAll(update.seqs);
+    		}
+    	}
+    	if (journal == null) return;
+    	if (!applied.isEmpty()) journal.applied(applied);
+    	if (!failed.isEmpty()) journal.failed(failed);
+    }
+
+    /**
+     * the delay of a batch started by a failed update
+     */
+    protected long getRetryDelay() {
+    	return Math.max(window, RETRY_DELAY);
+    }
+
+    /**
+     * puts the failed update back into the pending updates, without waiting for maxSize,
+     * a later update of the PID is run instead, as the failed one is outdated by it
+     */
+    private synchronized void retry(PendingUpdate update) {
+    	String key = update.repositoryName+"\u0000"+update.pid;
+    	PendingUpdate later = pending.get(key);
+    	if (later != null) {
+    		later.received = Math.min(later.received, update.received);
+    		later.seqs.addAll(update.seqs);
+    		return;
+    	}
+    	update.attempts++;
+    	pending.put(key, update);
+    	if (flushTask == null) {
+    		scheduleFlush(getRetryDelay());
+    	}
+    }
+
+    private static class PendingUpdate {
+    	String repositoryName;
+    	String pid;
+    	String action;
+    	long received;
+    	int attempts = 1;
+    	List<Long> seqs = new ArrayList<Long>();
+
+    	PendingUpdate(String repositoryName, String pid, String action, long received) {
+    		this.repositoryName = repositoryName;
+    		this.pid = pid;
+    		this.action = action;
+    		this.received = received;
+    	}
+    }
+}
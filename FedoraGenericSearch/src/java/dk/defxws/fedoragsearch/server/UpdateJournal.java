@@ -0,0 +1,347 @@
+/*
+ * <p><b>License and Copyright: </b>The contents of this file is subject to the
+ * same open source license as the Fedora Repository System at www.fedora-commons.org
+ * Copyright &copy; 2006, 2007, 2008, 2009, 2010, 2011, 2012, 2013 by The Technical University of Denmark.
+ * All rights reserved.</p>
+ */
+package dk.defxws.fedoragsearch.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+
+/**
+ * the append-only journal of the index updates received by an UpdateListener client,
+ * given by journal.file in the updater properties.
+ * Each update is written and synced with a sequence number, before the message is acknowledged,
+ * and marked applied, when the indexes have been updated.
+ * The checkpoint is the sequence number, up to which all updates are applied.
+ * Indexes, which defer their commits, keep the checkpoint in their commit user data,
+ * taken just before the commit, so at restart the updates after the lowest committed checkpoint
+ * are run again, coalesced per PID.
+ * The journal is compacted to the updates after the committed checkpoint, whenever it moves.
+ * An update, which fails after its retries, is written to the dead letter file journal.file.failed,
+ * in the same line format, and marked applied, so it does not hold back the checkpoint.
+ *
+ *    line ::= seq TAB action TAB repositoryName TAB pid TAB received | 'applied' TAB seq
+ *
+ * @author  gsp@dtv.dk
+ * @version
+ */
+public class UpdateJournal {
+
+    private static final Logger logger = Logger.getLogger(UpdateJournal.class);
+
+    public static final String COMMIT_DATA_PREFIX = "fgs.journal.";
+
+    public static final String FAILED_SUFFIX = ".failed";
+
+    private static final String APPLIED = "applied";
+
+    // journal name to journal, for the commit user data of the indexes
+    private static Hashtable<String, UpdateJournal> journals = new Hashtable<String, UpdateJournal>();
+
+    private String name;
+
+    private File file;
+
+    private FileOutputStream out = null;
+
+    private Writer writer = null;
+
+    // an append failed, the file is compacted before the next append
+    private boolean broken = false;
+
+    private long lastSeq = 0;
+
+    private long checkpoint = 0;
+
+    private long committedCheckpoint = 0;
+
+    private TreeSet<Long> outstanding = new TreeSet<Long>();
+
+    // the updates after the committed checkpoint, which are kept in the file
+    private TreeMap<Long, Entry> entries = new TreeMap<Long, Entry>();
+
+    private List<Entry> recovered = new ArrayList<Entry>();
+
+    /**
+     * reads the journal file, keeps the updates after the checkpoint for replay,
+     * compacts the file to those, and opens it for appending.
+     * committedCheckpoint is the lowest checkpoint committed by the indexes,
+     * or -1 if the indexes commit their changes when made
+     */
+    public UpdateJournal(String name, File file, long committedCheckpoint)
+    throws GenericSearchException {
+    	this.name = name;
+    	this.file = file;
+    	Map<String, Entry> lastEntries = new LinkedHashMap<String, Entry>();
+    	long applied = 0;
+    	if (file.exists()) {
+    		try {
+    			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    			try {
+    				String line;
+    				while ((line = br.readLine()) != null) {
+    					String[] fields = line.split("\t");
+    					try {
+    						if (fields.length == 2 && APPLIED.equals(fields[0])) {
+    							applied = Math.max(applied, Long.parseLong(fields[1]));
+    						} else if (fields.length == 5) {
+    							Entry entry = new Entry(Long.parseLong(fields[0]), fields[1], fields[2], fields[3], Long.parseLong(fields[4]));
+    							lastSeq = Math.max(lastSeq, entry.seq);
+    							String key = entry.repositoryName+"\u0000"+entry.pid;
+    							// removed first, so the PID is ordered by its last update
+    							lastEntries.remove(key);
+    							lastEntries.put(key, entry);
+    						} else {
+    							logger.warn("journal "+name+" skipped line: "+line);
+    						}
+    					} catch (NumberFormatException e) {
+    						// a line cut short by a crash
+    						logger.warn("journal "+name+" skipped line: "+line);
+    					}
+    				}
+    			} finally {
+    				br.close();
+    			}
+    		} catch (IOException e) {
+    			throw new GenericSearchException("UpdateJournal read error file="+file+" :\n", e);
+    		}
+    	}
+    	lastSeq = Math.max(lastSeq, applied);
+    	this.committedCheckpoint = (committedCheckpoint < 0 ? applied : Math.min(applied, committedCheckpoint));
+    	for (Iterator<Entry> it = lastEntries.values().iterator(); it.hasNext(); ) {
+    		Entry entry = it.next();
+    		if (entry.seq > this.committedCheckpoint) {
+    			recovered.add(entry);
+    			outstanding.add(Long.valueOf(entry.seq));
+    			entries.put(Long.valueOf(entry.seq), entry);
+    		}
+    	}
+    	checkpoint = (outstanding.isEmpty() ? lastSeq : outstanding.first().longValue() - 1);
+    	this.committedCheckpoint = checkpoint;
+    	compact();
+    	journals.put(name, this);
+    	logger.info("journal "+name+" file="+file+" lastSeq="+lastSeq+" recovered="+recovered.size());
+    }
+
+    /**
+     * the commit user data of all journals, to be committed with the changes of an index
+     */
+    public static Map<String, String> getCommitData() {
+    	Map<String, String> commitData = new HashMap<String, String>();
+    	Iterator<UpdateJournal> it = journals.values().iterator();
+    	while (it.hasNext()) {
+    		UpdateJournal journal = it.next();
+    		commitData.put(COMMIT_DATA_PREFIX+journal.name, Long.toString(journal.getCheckpoint()));
+    	}
+    	return commitData;
+    }
+
+    public String getName() {
+    	return name;
+    }
+
+    /**
+     * the updates to replay, ordered by their last update, to be marked applied as the others
+     */
+    public synchronized List<Entry> getRecovered() {
+    	return recovered;
+    }
+
+    /**
+     * writes and syncs the update, returns its sequence number,
+     * the message of the update must not be acknowledged, if it throws
+     */
+    public synchronized long append(String repositoryName, String pid, String action)
+    throws GenericSearchException {
+    	if (broken) {
+    		// drops the line, which may be cut short by the failed append
+    		compact();
+    		broken = false;
+    	}
+    	if (writer == null) {
+    		broken = true;
+    		throw new GenericSearchException("UpdateJournal is not open file="+file);
+    	}
+    	Entry entry = new Entry(lastSeq + 1, action, repositoryName, pid, System.currentTimeMillis());
+    	try {
+    		writer.write(entry.toLine());
+    		writer.flush();
+    		out.getFD().sync();
+    	} catch (IOException e) {
+    		broken = true;
+    		throw new GenericSearchException("UpdateJournal append error file="+file+" :\n", e);
+    	}
+    	lastSeq = entry.seq;
+    	outstanding.add(Long.valueOf(entry.seq));
+    	entries.put(Long.valueOf(entry.seq), entry);
+    	return entry.seq;
+    }
+
+    /**
+     * marks the updates applied to the indexes,
+     * the checkpoint is written unsynced, the commit user data of the indexes keeps it durable
+     */
+    public synchronized void applied(List<Long> seqs) {
+    	outstanding.removeAll(seqs);
+    	long newCheckpoint = (outstanding.isEmpty() ? lastSeq : outstanding.first().longValue() - 1);
+    	if (newCheckpoint <= checkpoint) return;
+    	checkpoint = newCheckpoint;
+    	if (writer == null) return;
+    	try {
+    		writer.write(APPLIED+"\t"+checkpoint+"\n");
+    		writer.flush();
+    	} catch (IOException e) {
+    		logger.warn("journal "+name+" checkpoint write error: "+e.toString());
+    	}
+    }
+
+    /**
+     * writes the updates, which could not be indexed, to the dead letter file,
+     * and marks them applied
+     */
+    public synchronized void failed(List<Long> seqs) {
+    	File failedFile = new File(file.getPath()+FAILED_SUFFIX);
+    	try {
+    		FileOutputStream failedOut = new FileOutputStream(failedFile, true);
+    		Writer failedWriter = new OutputStreamWriter(failedOut, "UTF-8");
+    		try {
+    			for (Iterator<Long> it = seqs.iterator(); it.hasNext(); ) {
+    				Entry entry = entries.get(it.next());
+    				if (entry == null) continue;
+    				failedWriter.write(entry.toLine());
+    				logger.error("journal "+name+" update seq="+entry.seq+" pid="+entry.pid+" failed, it is written to "+failedFile);
+    			}
+    			failedWriter.flush();
+    			failedOut.getFD().sync();
+    		} finally {
+    			failedWriter.close();
+    		}
+    	} catch (IOException e) {
+    		// kept in the journal, so it is run again at restart
+    		logger.error("journal "+name+" dead letter write error file="+failedFile+", the updates stay outstanding: "+e.toString());
+    		return;
+    	}
+    	applied(seqs);
+    }
+
+    /**
+     * the indexes have committed the updates up to committedCheckpoint,
+     * -1 if the indexes commit their changes when made,
+     * the journal is compacted to the updates after it, when it moves
+     */
+    public synchronized void committed(long committedCheckpoint) {
+    	long newCommitted = (committedCheckpoint < 0 ? checkpoint : Math.min(committedCheckpoint, checkpoint));
+    	if (newCommitted <= this.committedCheckpoint) return;
+    	this.committedCheckpoint = newCommitted;
+    	entries.headMap(Long.valueOf(newCommitted), true).clear();
+    	try {
+    		compact();
+    	} catch (GenericSearchException e) {
+    		logger.warn("journal "+name+" "+e.getMessage());
+    	}
+    }
+
+    public synchronized long getCheckpoint() {
+    	return checkpoint;
+    }
+
+    public synchronized long getCommittedCheckpoint() {
+    	return committedCheckpoint;
+    }
+
+    public synchronized void close() {
+    	journals.remove(name);
+    	if (writer == null) return;
+    	try {
+    		writer.close();
+    	} catch (IOException e) {
+    		logger.warn("journal "+name+" close error: "+e.toString());
+    	}
+    }
+
+    /**
+     * rewrites the file with the committed checkpoint, the updates after it, and the checkpoint,
+     * the file is appended to, until the rewritten file replaces it
+     */
+    private void compact()
+    throws GenericSearchException {
+    	File tmp = new File(file.getPath()+".tmp");
+    	try {
+    		FileOutputStream tmpOut = new FileOutputStream(tmp);
+    		Writer tmpWriter = new OutputStreamWriter(tmpOut, "UTF-8");
+    		try {
+    			tmpWriter.write(APPLIED+"\t"+committedCheckpoint+"\n");
+    			for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+    				tmpWriter.write(it.next().toLine());
+    			}
+    			if (checkpoint > committedCheckpoint)
+    				tmpWriter.write(APPLIED+"\t"+checkpoint+"\n");
+    			tmpWriter.flush();
+    			tmpOut.getFD().sync();
+    		} finally {
+    			tmpWriter.close();
+    		}
+    		if (writer != null) {
+    			writer.close();
+    			writer = null;
+    		}
+    		// renameTo replaces the file on most platforms, otherwise it is deleted first
+    		if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file)))
+    			throw new IOException("could not rename "+tmp+" to "+file);
+    	} catch (IOException e) {
+    		throw new GenericSearchException("UpdateJournal compact error file="+file+" :\n", e);
+    	} finally {
+    		if (writer == null) {
+    			try {
+    				out = new FileOutputStream(file, true);
+    				writer = new OutputStreamWriter(out, "UTF-8");
+    			} catch (IOException e) {
+    				// the next append fails
+    				broken = true;
+    				logger.error("journal "+name+" open error file="+file+": "+e.toString());
+    			}
+    		}
+    	}
+    }
+
+    public static class Entry {
+    	public final long seq;
+    	public final String action;
+    	public final String repositoryName;
+    	public final String pid;
+    	public final long received;
+
+    	Entry(long seq, String action, String repositoryName, String pid, long received) {
+    		this.seq = seq;
+    		this.action = action;
+    		this.repositoryName = repositoryName;
+    		this.pid = pid;
+    		this.received = received;
+    	}
+
+    	private String toLine() {
+    		return seq+"\t"+action+"\t"+repositoryName+"\t"+pid+"\t"+received+"\n";
+    	}
+    }
+}
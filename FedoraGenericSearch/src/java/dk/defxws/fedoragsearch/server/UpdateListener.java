@@ -6,14 +6,19 @@
  */
 package dk.defxws.fedoragsearch.server;
 
+import java.io.File;
 import java.net.URL;
 
 import java.rmi.RemoteException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -45,6 +50,15 @@ import com.yourmediashelf.fedora.client.messaging.ApimMessage;
  * listens for updates to Fedora objects from the Fedora 
  * messaging system and performs index updates as 
  * needed to keep the index in sync with the repository.
+ * 
+ * With batch.window or workers set in the updater properties, the updates of a client
+ * are coalesced per PID and run in batches by workers UpdateBatchers.
+ * The PIDs are shared among the workers by hash, so the updates of an object
+ * are indexed in order, while different objects are indexed in parallel.
+ * Messages of methods, which do not change the objects, are skipped.
+ * With journal.file set, the updates are written to an UpdateJournal before the message
+ * is acknowledged, a message, which cannot be journaled, is not acknowledged,
+ * and the updates not committed to the indexes are replayed at startup.
  *
  * @author Bill Branan
  */
@@ -54,6 +68,18 @@ public class UpdateListener extends HttpServlet implements MessagingListener {
     private final Logger logger = Logger.getLogger(UpdateListener.class);
     private ArrayList<MessagingClient> messagingClientList =
             new ArrayList<MessagingClient>();
+    // static, so that the queues may be monitored by getUpdaterInfo
+    private static Hashtable<String, UpdateBatcher[]> clientIdToBatchers =
+            new Hashtable<String, UpdateBatcher[]>();
+    private Hashtable<String, UpdateJournal> clientIdToJournal =
+            new Hashtable<String, UpdateJournal>();
+    
+    private static final int DEFAULT_BATCH_MAX_SIZE = 1000;
+    
+    // API-M methods, which do not change indexed content
+    private static final Set<String> SKIPPED_METHODS = new HashSet<String>(Arrays.asList(new String[] {
+            "getDatastream", "getDatastreams", "getDatastreamHistory", "getObjectXML", "export",
+            "getNextPID", "getRelationships", "validate", "compareDatastreamChecksum"}));
     
     /**
      * Initializes the update listener in order to start 
@@ -96,6 +122,56 @@ public class UpdateListener extends HttpServlet implements MessagingListener {
                 clientId = "fedoragsearch" + updaterIndex;
             }
             
+            long batchWindow = 0;
+            int batchMaxSize = DEFAULT_BATCH_MAX_SIZE;
+            int workers = 0;
+            try {
+                batchWindow = Long.parseLong(properties.getProperty("batch.window", "0").trim());
+                batchMaxSize = Integer.parseInt(properties.getProperty("batch.maxSize", Integer.toString(DEFAULT_BATCH_MAX_SIZE)).trim());
+                workers = Integer.parseInt(properties.getProperty("workers", "0").trim());
+            } catch (NumberFormatException e) {
+                logger.error("Invalid batch.window, batch.maxSize or workers for client id " + clientId 
+                        + ", updates are indexed as received: " + e.getMessage());
+                batchWindow = 0;
+                workers = 0;
+            }
+            UpdateJournal journal = null;
+            String journalFile = properties.getProperty("journal.file", "").trim();
+            if (journalFile.length() > 0 && batchMaxSize <= 0) {
+                // the journal is only appended to and replayed by the batchers
+                logger.error("journal.file " + journalFile + " of client id " + clientId
+                        + " is not used, as batch.maxSize=" + batchMaxSize + " turns batching off"
+                        + ", updates are not journaled and the journaled updates are not replayed");
+            } else if (journalFile.length() > 0) {
+                try {
+                    GenericOperationsImpl ops = new GenericOperationsImpl();
+                    ops.init("", config);
+                    journal = new UpdateJournal(clientId, new File(journalFile), ops.getJournalCheckpoint(clientId));
+                    clientIdToJournal.put(clientId, journal);
+                } catch (RemoteException re) {
+                    logger.error("Unable to open the journal " + journalFile + " of client id " + clientId
+                            + ", updates are not journaled: " + re.getMessage(), re);
+                }
+            }
+            if ((batchWindow > 0 || workers > 0 || journal != null) && batchMaxSize > 0) {
+                UpdateBatcher[] batchers = new UpdateBatcher[Math.max(workers, 1)];
+                for (int i = 0; i < batchers.length; i++) {
+                    batchers[i] = new UpdateBatcher(clientId, i, Math.max(batchWindow, 0), batchMaxSize, journal);
+                }
+                clientIdToBatchers.put(clientId, batchers);
+                logger.info("Updates of client id " + clientId + " are batched, workers=" + batchers.length
+                        + " batch.window=" + batchWindow + " batch.maxSize=" + batchMaxSize);
+                if (journal != null) {
+                    List<UpdateJournal.Entry> recovered = journal.getRecovered();
+                    if (recovered.size() > 0)
+                        logger.info("Replaying " + recovered.size() + " journaled updates of client id " + clientId);
+                    for (UpdateJournal.Entry entry : recovered) {
+                        batchers[(entry.pid.hashCode() & 0x7fffffff) % batchers.length].add(
+                                entry.repositoryName, entry.pid, entry.action, entry.seq, entry.received);
+                    }
+                }
+            }
+            
             try {
 //                JmsMessagingClient messagingClient =
 //                    new JmsMessagingClient(clientId, this, properties, true);
@@ -113,7 +189,8 @@ public class UpdateListener extends HttpServlet implements MessagingListener {
     }
     
     /**
-     * Closes down the messaging clients. 
+     * Closes down the messaging clients, runs the pending batches,
+     * and closes the indexes and the journals. 
      * 
      * {@inheritDoc}
      */
@@ -133,6 +210,21 @@ public class UpdateListener extends HttpServlet implements MessagingListener {
                 }
             }
         }
+        Iterator<UpdateBatcher[]> batchers = clientIdToBatchers.values().iterator();
+        while (batchers.hasNext()) {
+            UpdateBatcher[] clientBatchers = batchers.next();
+            for (int i = 0; i < clientBatchers.length; i++) {
+                clientBatchers[i].close();
+            }
+        }
+        clientIdToBatchers.clear();
+        // committed before the journals are closed, so the commits keep their last checkpoints
+        Config.closeAllIndexes();
+        Iterator<UpdateJournal> journals = clientIdToJournal.values().iterator();
+        while (journals.hasNext()) {
+            journals.next().close();
+        }
+        clientIdToJournal.clear();
         super.destroy();
     }
 
@@ -174,6 +266,11 @@ public class UpdateListener extends HttpServlet implements MessagingListener {
             return;
         }
         
+        if(methodName != null && SKIPPED_METHODS.contains(methodName)) {
+            logger.debug("Skipped update message of method " + methodName + " pid=" + pid);
+            return;
+        }
+        
         URL repositoryUrl = null;
         try {
             repositoryUrl = new URL(baseUrl);
@@ -202,6 +299,24 @@ public class UpdateListener extends HttpServlet implements MessagingListener {
             if(repositoryUrl != null) {
                 repositoryName = config.getRepositoryNameFromUrl(repositoryUrl);
             }
+            UpdateBatcher[] batchers = clientIdToBatchers.get(clientId);
+            if(batchers != null) {
+                long seq = 0;
+                UpdateJournal journal = clientIdToJournal.get(clientId);
+                if(journal != null) {
+                    try {
+                        seq = journal.append(repositoryName, pid, action);
+                    } catch (RemoteException re) {
+                        // thrown to the messaging client, so the message is not acknowledged and is redelivered
+                        logger.error("Unable to journal the update of pid=" + pid 
+                                + ", the message is not acknowledged: " + re.getMessage(), re);
+                        throw new IllegalStateException("Unable to journal the update of pid=" + pid, re);
+                    }
+                }
+                batchers[(pid.hashCode() & 0x7fffffff) % batchers.length].add(
+                        repositoryName, pid, action, seq, System.currentTimeMillis());
+                return;
+            }
             ops.init(indexName, config);
             String updateStaus =
                     ops.updateIndex(action,
@@ -218,4 +333,30 @@ public class UpdateListener extends HttpServlet implements MessagingListener {
         }
     }    
     
+    /**
+     * the queue depth, lag in milliseconds and number of indexed PIDs
+     * of each worker of the batched clients
+     */
+    public static String getUpdaterInfo() {
+        StringBuffer sb = new StringBuffer();
+        Iterator<UpdateBatcher[]> batchers = clientIdToBatchers.values().iterator();
+        while (batchers.hasNext()) {
+            UpdateBatcher[] clientBatchers = batchers.next();
+            int queueDepth = 0;
+            long lag = 0;
+            sb.append("<updater clientId=\"" + GenericOperationsImpl.encode(clientBatchers[0].getClientId()) + "\">");
+            for (int i = 0; i < clientBatchers.length; i++) {
+                int workerQueueDepth = clientBatchers[i].getQueueDepth();
+                long workerLag = clientBatchers[i].getLag();
+                queueDepth += workerQueueDepth;
+                lag = Math.max(lag, workerLag);
+                sb.append("<worker no=\"" + i + "\" queueDepth=\"" + workerQueueDepth 
+                        + "\" lagMs=\"" + workerLag + "\" processed=\"" + clientBatchers[i].getProcessed() + "\"/>");
+            }
+            sb.append("<total queueDepth=\"" + queueDepth + "\" lagMs=\"" + lag + "\"/>");
+            sb.append("</updater>");
+        }
+        return sb.toString();
+    }
+    
 }
@@ -0,0 +1,40 @@
+//$Id:  $
+package gsearch.test.unit;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+/**
+ * Unit tests of classes, which need no running Fedora or gsearch
+ * 
+ * assuming 
+ * - the plugins are built into the plugin classes directory
+ */
+
+@RunWith(Suite.class)
+@Suite.SuiteClasses( {
+	gsearch.test.unit.TestHitCursor.class,
+	gsearch.test.unit.TestNumericFields.class,
+	gsearch.test.unit.TestResponseParser.class,
+	gsearch.test.unit.TestResultPageCache.class,
+	gsearch.test.unit.TestTermsBrowser.class,
+	gsearch.test.unit.TestUpdateBatcher.class,
+	gsearch.test.unit.TestUpdateJournal.class,
+	gsearch.test.unit.TestZebraIndexModifier.class
+	} )
+public class AllTests {
+
+    // Supports legacy tests runners
+    public static junit.framework.Test suite() throws Exception {
+        junit.framework.TestSuite suite =
+                new junit.framework.TestSuite(AllTests.class.getName());
+        suite.addTest(gsearch.test.unit.TestHitCursor.suite());
+        suite.addTest(gsearch.test.unit.TestNumericFields.suite());
+        suite.addTest(gsearch.test.unit.TestResponseParser.suite());
+        suite.addTest(gsearch.test.unit.TestResultPageCache.suite());
+        suite.addTest(gsearch.test.unit.TestTermsBrowser.suite());
+        suite.addTest(gsearch.test.unit.TestUpdateBatcher.suite());
+        suite.addTest(gsearch.test.unit.TestUpdateJournal.suite());
+        suite.addTest(gsearch.test.unit.TestZebraIndexModifier.suite());
+        return suite;
+    }
+}
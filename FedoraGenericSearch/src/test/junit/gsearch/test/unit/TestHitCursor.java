@@ -0,0 +1,72 @@
+//$Id:  $
+package gsearch.test.unit;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+import dk.defxws.fgslucene.HitCursor;
+
+/**
+ * Tests of the encoding and decoding of the gfindObjects cursors of the lucene plugin.
+ */
+public class TestHitCursor
+        extends TestCase {
+
+    // Supports legacy test runners
+    public static junit.framework.Test suite() {
+        return new TestSuite(TestHitCursor.class);
+    }
+
+    @Test
+    public void testScoreDoc() throws Exception {
+    	String cursor = new HitCursor(10, new ScoreDoc(42, 1.5f)).encode();
+    	assertTrue(cursor.matches("[0-9a-f]+"));
+    	HitCursor decoded = HitCursor.decode(cursor);
+    	assertEquals(10, decoded.getHitNo());
+    	assertFalse(decoded.getAfter() instanceof FieldDoc);
+    	assertEquals(42, decoded.getAfter().doc);
+    	assertEquals(1.5f, decoded.getAfter().score, 0f);
+    }
+
+    @Test
+    public void testFieldDoc() throws Exception {
+    	Object[] fields = new Object[] {
+    			Integer.valueOf(-1), Long.valueOf(Long.MAX_VALUE), Float.valueOf(0.25f), Double.valueOf(-2.5),
+    			Short.valueOf((short) 7), Byte.valueOf((byte) 3), null,
+    			new BytesRef("demo:1 : \u00e6\u00f8\u00e5"), new BytesRef("") };
+    	String cursor = new HitCursor(20, new FieldDoc(7, Float.NaN, fields)).encode();
+    	HitCursor decoded = HitCursor.decode(cursor);
+    	assertEquals(20, decoded.getHitNo());
+    	FieldDoc after = (FieldDoc) decoded.getAfter();
+    	assertEquals(7, after.doc);
+    	assertTrue(Float.isNaN(after.score));
+    	assertEquals(fields.length, after.fields.length);
+    	for (int i = 0; i < fields.length; i++) {
+    		assertEquals("field "+i, fields[i], after.fields[i]);
+    	}
+    }
+
+    @Test
+    public void testUnsupportedSortValue() throws Exception {
+    	FieldDoc after = new FieldDoc(1, 1f, new Object[] { new Object() });
+    	assertNull(new HitCursor(1, after).encode());
+    }
+
+    @Test
+    public void testInvalidCursor() throws Exception {
+    	String[] invalid = { "xyz", "", "3a", new String(org.apache.commons.codec.binary.Hex.encodeHex("1:2:1.0:t:i1".getBytes("UTF-8"))) };
+    	for (int i = 0; i < invalid.length; i++) {
+    		try {
+    			HitCursor.decode(invalid[i]);
+    			fail("invalid cursor is decoded: "+invalid[i]);
+    		} catch (GenericSearchException e) {
+    		}
+    	}
+    }
+}
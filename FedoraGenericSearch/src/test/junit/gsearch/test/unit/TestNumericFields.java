@@ -0,0 +1,90 @@
+//$Id:  $
+package gsearch.test.unit;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.lucene.search.NumericRangeQuery;
+import org.junit.Test;
+
+import dk.defxws.fgslucene.NumericFields;
+
+/**
+ * Tests of the parsing of typed field values and ranges in the lucene plugin.
+ */
+public class TestNumericFields
+        extends TestCase {
+
+    // Supports legacy test runners
+    public static junit.framework.Test suite() {
+        return new TestSuite(TestNumericFields.class);
+    }
+
+    @Test
+    public void testParseNumbers() throws Exception {
+    	assertEquals(Integer.valueOf(42), NumericFields.parse(NumericFields.INT, " 42 "));
+    	assertEquals(Long.valueOf(42), NumericFields.parse(NumericFields.LONG, "42"));
+    	assertEquals(Double.valueOf(4.2), NumericFields.parse(NumericFields.DOUBLE, "4.2"));
+    	assertNull(NumericFields.parse(NumericFields.INT, "4.2"));
+    	assertNull(NumericFields.parse(NumericFields.LONG, "abc"));
+    	assertNull(NumericFields.parse("text", "42"));
+    }
+
+    @Test
+    public void testParseDates() throws Exception {
+    	assertEquals(Long.valueOf(0), NumericFields.parse(NumericFields.DATE, "1970"));
+    	assertEquals(Long.valueOf(31L*24*3600*1000), NumericFields.parse(NumericFields.DATE, "1970-02"));
+    	assertEquals(Long.valueOf(24L*3600*1000), NumericFields.parse(NumericFields.DATE, "1970-01-02"));
+    	assertEquals(Long.valueOf(42000), NumericFields.parse(NumericFields.DATE, "1970-01-01T00:00:42Z"));
+    	assertEquals(Long.valueOf(42123), NumericFields.parse(NumericFields.DATE, "1970-01-01T00:00:42.123Z"));
+    }
+
+    @Test
+    public void testParseDateFractions() throws Exception {
+    	assertEquals(Long.valueOf(42500), NumericFields.parse(NumericFields.DATE, "1970-01-01T00:00:42.5Z"));
+    	assertEquals(Long.valueOf(42520), NumericFields.parse(NumericFields.DATE, "1970-01-01T00:00:42.52Z"));
+    	assertEquals(Long.valueOf(42520), NumericFields.parse(NumericFields.DATE, "1970-01-01T00:00:42.52"));
+    	assertNull(NumericFields.parse(NumericFields.DATE, "1970-01-01T00:00:42.Z"));
+    	assertNull(NumericFields.parse(NumericFields.DATE, "1970-01-01T00:00:42.5234Z"));
+    }
+
+    @Test
+    public void testParseInvalidDates() throws Exception {
+    	assertNull(NumericFields.parse(NumericFields.DATE, "1970-13"));
+    	assertNull(NumericFields.parse(NumericFields.DATE, "1970-01-01T25:00:00Z"));
+    	assertNull(NumericFields.parse(NumericFields.DATE, "yesterday"));
+    }
+
+    @Test
+    public void testTypes() throws Exception {
+    	NumericFields numericFields = new NumericFields("size::int date::date title::text");
+    	assertEquals(NumericFields.INT, numericFields.getType("size"));
+    	assertEquals(NumericFields.DATE, numericFields.getType("date"));
+    	assertNull(numericFields.getType("title"));
+    	assertTrue(new NumericFields(null).isEmpty());
+    }
+
+    @Test
+    public void testRangeQuery() throws Exception {
+    	NumericFields numericFields = new NumericFields("size::int");
+    	NumericRangeQuery<?> q = (NumericRangeQuery<?>) numericFields.newRangeQuery("size", "1", "*", true, true);
+    	assertEquals(Integer.valueOf(1), q.getMin());
+    	assertNull(q.getMax());
+    	assertNull(numericFields.newRangeQuery("title", "a", "b", true, true));
+    	try {
+    		numericFields.newRangeQuery("size", "a", "b", true, true);
+    		fail("invalid range is accepted");
+    	} catch (NumberFormatException e) {
+    	}
+    }
+
+    @Test
+    public void testDateRangeQueryIncludesWholePeriod() throws Exception {
+    	NumericFields numericFields = new NumericFields("date::date");
+    	NumericRangeQuery<?> q = (NumericRangeQuery<?>) numericFields.newRangeQuery("date", "1970", "1970", true, true);
+    	assertEquals(Long.valueOf(0), q.getMin());
+    	assertTrue(q.includesMin());
+    	assertEquals(Long.valueOf(365L*24*3600*1000), q.getMax());
+    	assertFalse(q.includesMax());
+    }
+}
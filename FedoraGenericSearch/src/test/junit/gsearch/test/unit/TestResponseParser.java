@@ -0,0 +1,125 @@
+//$Id:  $
+package gsearch.test.unit;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.junit.Test;
+
+import dk.defxws.fgssolrremote.ResponseParser;
+
+/**
+ * Tests of the incremental parsing of the remote Solr responses into the result xml of the SolrRemote plugin.
+ */
+public class TestResponseParser
+        extends TestCase {
+
+    // Supports legacy test runners
+    public static junit.framework.Test suite() {
+        return new TestSuite(TestResponseParser.class);
+    }
+
+    private static final String SELECT =
+    	"<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+    	+"<response>"
+    	+"<lst name=\"responseHeader\"><int name=\"status\">0</int></lst>"
+    	+"<result name=\"response\" numFound=\"25\" start=\"10\">"
+    	+"<doc><str name=\"PID\">demo:1</str>"
+    	+"<arr name=\"dc.title\"><str>first &amp; title</str><str>second title</str></arr>"
+    	+"<float name=\"score\">1.5</float></doc>"
+    	+"<doc><str name=\"PID\">demo:2</str>"
+    	+"<str name=\"dc.description\">a long description</str>"
+    	+"<float name=\"score\">0.5</float></doc>"
+    	+"</result>"
+    	+"<lst name=\"highlighting\">"
+    	+"<lst name=\"demo:1\"><arr name=\"dc.title\">"
+    	+"<str>!!!SNIPPETBEGINfirst!!!SNIPPETEND &amp; title</str></arr></lst>"
+    	+"<lst name=\"demo:2\"/>"
+    	+"</lst>"
+    	+"</response>";
+
+    @Test
+    public void testSelect() throws Exception {
+    	ResponseParser parser = new ResponseParser();
+    	StringBuffer resultXml = new StringBuffer();
+    	parser.parseSelect(stream(SELECT), 11, 6, "PID", "<b>", "</b>", resultXml);
+    	assertEquals(25, parser.getHitTotal());
+    	assertEquals(
+    			"<hit no=\"11\" score=\"1.5\">"
+    			+"<field name=\"PID\">demo:1</field>"
+    			+"<field name=\"dc.title\" snippet=\"yes\"><b>first</b> &amp; title</field>"
+    			+"<field name=\"dc.title\">second ... </field>"
+    			+"</hit>"
+    			+"<hit no=\"12\" score=\"0.5\">"
+    			+"<field name=\"PID\">demo:2</field>"
+    			+"<field name=\"dc.description\">a long ... </field>"
+    			+"</hit>",
+    			resultXml.toString());
+    }
+
+    @Test
+    public void testSelectWithoutHits() throws Exception {
+    	ResponseParser parser = new ResponseParser();
+    	StringBuffer resultXml = new StringBuffer("<prefix/>");
+    	parser.parseSelect(stream(
+    			"<response><result name=\"response\" numFound=\"0\" start=\"0\"/></response>"),
+    			1, 0, "PID", "<b>", "</b>", resultXml);
+    	assertEquals(0, parser.getHitTotal());
+    	assertEquals("<prefix/>", resultXml.toString());
+    }
+
+    private static final String TERMS =
+    	"<response>"
+    	+"<lst name=\"responseHeader\"><int name=\"status\">0</int></lst>"
+    	+"<lst name=\"terms\"><lst name=\"dc.title\">"
+    	+"<int name=\"alpha\">3</int><int name=\"b&lt;c\">2</int><int name=\"gamma\">1</int>"
+    	+"</lst></lst>"
+    	+"</response>";
+
+    @Test
+    public void testTermsPage() throws Exception {
+    	ResponseParser parser = new ResponseParser();
+    	StringBuffer resultXml = new StringBuffer();
+    	parser.parseTerms(stream(TERMS), 5, 2, resultXml);
+    	assertEquals(2, parser.getTermCount());
+    	assertEquals("gamma", parser.getLastTerm());
+    	assertEquals(
+    			"<term no=\"5\" fieldtermhittotal=\"3\">alpha</term>"
+    			+"<term no=\"6\" fieldtermhittotal=\"2\">b&lt;c</term>",
+    			resultXml.toString());
+    }
+
+    @Test
+    public void testLastTermsPage() throws Exception {
+    	ResponseParser parser = new ResponseParser();
+    	StringBuffer resultXml = new StringBuffer();
+    	parser.parseTerms(stream(TERMS), 1, 10, resultXml);
+    	assertEquals(3, parser.getTermCount());
+    	assertNull(parser.getLastTerm());
+    }
+
+    @Test
+    public void testSchemaFields() throws Exception {
+    	ResponseParser parser = new ResponseParser();
+    	StringBuffer resultXml = new StringBuffer();
+    	parser.parseSchemaFields(stream(
+    			"<response>"
+    			+"<lst name=\"index\"><lst name=\"fields\"><lst name=\"notschema\"/></lst></lst>"
+    			+"<lst name=\"schema\">"
+    			+"<lst name=\"fields\">"
+    			+"<lst name=\"PID\"><str name=\"type\">string</str></lst>"
+    			+"<lst name=\"dc.title\"><str name=\"type\">text</str></lst>"
+    			+"</lst>"
+    			+"<lst name=\"dynamicFields\"><lst name=\"*_s\"/></lst>"
+    			+"</lst>"
+    			+"</response>"), resultXml);
+    	assertEquals("<field>PID</field><field>dc.title</field>", resultXml.toString());
+    }
+
+    private static InputStream stream(String xml) throws Exception {
+    	return new ByteArrayInputStream(xml.getBytes("UTF-8"));
+    }
+}
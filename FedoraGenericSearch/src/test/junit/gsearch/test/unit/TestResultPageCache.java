@@ -0,0 +1,97 @@
+//$Id:  $
+package gsearch.test.unit;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.junit.Test;
+
+import dk.defxws.fgslucene.ResultPageCache;
+
+/**
+ * Tests of the eviction and invalidation of the gfindObjects result pages cached by the lucene plugin.
+ */
+public class TestResultPageCache
+        extends TestCase {
+
+    // Supports legacy test runners
+    public static junit.framework.Test suite() {
+        return new TestSuite(TestResultPageCache.class);
+    }
+
+    @Test
+    public void testHitsAndMisses() throws Exception {
+    	ResultPageCache cache = new ResultPageCache(10, 0);
+    	assertNull(cache.get(1, "q1"));
+    	cache.put(1, "q1", "page1");
+    	assertEquals("page1", cache.get(1, "q1"));
+    	assertEquals(1, cache.getHits());
+    	assertEquals(1, cache.getMisses());
+    	assertEquals(1, cache.getSize());
+    	assertEquals(5, cache.getChars());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedPageIsEvicted() throws Exception {
+    	ResultPageCache cache = new ResultPageCache(2, 0);
+    	cache.put(1, "q1", "page1");
+    	cache.put(1, "q2", "page2");
+    	assertNotNull(cache.get(1, "q1"));
+    	cache.put(1, "q3", "page3");
+    	assertEquals(2, cache.getSize());
+    	assertNotNull(cache.get(1, "q1"));
+    	assertNull(cache.get(1, "q2"));
+    	assertNotNull(cache.get(1, "q3"));
+    }
+
+    @Test
+    public void testCharsLimit() throws Exception {
+    	ResultPageCache cache = new ResultPageCache(10, 10);
+    	cache.put(1, "q1", "12345");
+    	cache.put(1, "q2", "12345");
+    	assertEquals(10, cache.getChars());
+    	cache.put(1, "q3", "123");
+    	assertEquals(2, cache.getSize());
+    	assertEquals(8, cache.getChars());
+    	assertNull(cache.get(1, "q1"));
+    	// a page larger than the limit is not cached
+    	cache.put(1, "q4", "12345678901");
+    	assertNull(cache.get(1, "q4"));
+    	assertEquals(8, cache.getChars());
+    }
+
+    @Test
+    public void testReplacedPage() throws Exception {
+    	ResultPageCache cache = new ResultPageCache(10, 0);
+    	cache.put(1, "q1", "12345");
+    	cache.put(1, "q1", "123");
+    	assertEquals(1, cache.getSize());
+    	assertEquals(3, cache.getChars());
+    }
+
+    @Test
+    public void testNewVersionDropsPages() throws Exception {
+    	ResultPageCache cache = new ResultPageCache(10, 0);
+    	cache.put(1, "q1", "page1");
+    	assertNull(cache.get(2, "q1"));
+    	assertEquals(0, cache.getSize());
+    	assertEquals(0, cache.getChars());
+    	// a page of a searcher on the older version is not cached
+    	cache.put(1, "q1", "page1");
+    	assertEquals(0, cache.getSize());
+    	assertNull(cache.get(1, "q1"));
+    	cache.put(2, "q1", "page1");
+    	assertEquals("page1", cache.get(2, "q1"));
+    }
+
+    @Test
+    public void testSmallerLimits() throws Exception {
+    	ResultPageCache cache = new ResultPageCache(10, 0);
+    	cache.put(1, "q1", "page1");
+    	cache.put(1, "q2", "page2");
+    	cache.put(1, "q3", "page3");
+    	cache.setLimits(1, 0);
+    	assertEquals(1, cache.getSize());
+    	assertEquals("page3", cache.get(1, "q3"));
+    }
+}
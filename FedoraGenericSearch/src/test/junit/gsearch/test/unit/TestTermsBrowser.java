@@ -0,0 +1,166 @@
+//$Id:  $
+package gsearch.test.unit;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+
+import dk.defxws.fedoragsearch.server.TermsBrowser;
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+
+/**
+ * Tests of the term pages and continuation cursors of browseIndex, over more terms than one sample interval.
+ */
+public class TestTermsBrowser
+        extends TestCase {
+
+    // Supports legacy test runners
+    public static junit.framework.Test suite() {
+        return new TestSuite(TestTermsBrowser.class);
+    }
+
+    private static final int TERM_TOTAL = 300;
+
+    private static final Pattern TERM = Pattern.compile("<term no=\"(\\d+)\" fieldtermhittotal=\"1\">(t\\d+)</term>");
+
+    @Test
+    public void testCursorPagesThroughAllTerms() throws Exception {
+    	RAMDirectory dir = new RAMDirectory();
+    	IndexWriter writer = newIndex(dir);
+    	writer.close();
+    	DirectoryReader ir = DirectoryReader.open(dir);
+    	String cursor = "";
+    	int termNo = 1;
+    	int pages = 0;
+    	do {
+    		TermsBrowser browser = new TermsBrowser();
+    		StringBuffer resultXml = new StringBuffer();
+    		browser.browse(ir, "testCursorPagesThroughAllTerms", "f", "", cursor, 70, resultXml);
+    		assertEquals(TERM_TOTAL, browser.getTermTotal());
+    		Matcher m = TERM.matcher(resultXml);
+    		while (m.find()) {
+    			assertEquals(termNo, Integer.parseInt(m.group(1)));
+    			assertEquals(term(termNo-1), m.group(2));
+    			termNo++;
+    		}
+    		cursor = browser.getNextCursor();
+    		pages++;
+    	} while (cursor.length() > 0);
+    	assertEquals(TERM_TOTAL+1, termNo);
+    	assertEquals(5, pages);
+    	ir.close();
+    }
+
+    @Test
+    public void testStartTermIsNumbered() throws Exception {
+    	RAMDirectory dir = new RAMDirectory();
+    	IndexWriter writer = newIndex(dir);
+    	writer.close();
+    	DirectoryReader ir = DirectoryReader.open(dir);
+    	TermsBrowser browser = new TermsBrowser();
+    	StringBuffer resultXml = new StringBuffer();
+    	// between t299 and t300, past the second sample
+    	browser.browse(ir, "testStartTermIsNumbered", "f", "t2995", "", 2, resultXml);
+    	assertEquals(
+    			"<term no=\"201\" fieldtermhittotal=\"1\">t300</term>"
+    			+"<term no=\"202\" fieldtermhittotal=\"1\">t301</term>",
+    			resultXml.toString());
+    	resultXml = new StringBuffer();
+    	browser = new TermsBrowser();
+    	browser.browse(ir, "testStartTermIsNumbered", "f", "u", "", 2, resultXml);
+    	assertEquals("", resultXml.toString());
+    	assertEquals("", browser.getNextCursor());
+    	ir.close();
+    }
+
+    @Test
+    public void testCursorTermDeleted() throws Exception {
+    	RAMDirectory dir = new RAMDirectory();
+    	IndexWriter writer = newIndex(dir);
+    	writer.commit();
+    	DirectoryReader ir = DirectoryReader.open(dir);
+    	TermsBrowser browser = new TermsBrowser();
+    	browser.browse(ir, "testCursorTermDeleted", "f", "", "", 150, new StringBuffer());
+    	String cursor = browser.getNextCursor();
+    	assertEquals("151:"+term(150), TermsBrowser.decodeCursor(cursor));
+    	ir.close();
+    	writer.deleteDocuments(new Term("f", term(150)));
+    	// merged, so the term is gone from the terms of the field
+    	writer.forceMerge(1);
+    	writer.close();
+    	ir = DirectoryReader.open(dir);
+    	browser = new TermsBrowser();
+    	StringBuffer resultXml = new StringBuffer();
+    	browser.browse(ir, "testCursorTermDeleted", "f", "", cursor, 1, resultXml);
+    	assertEquals("<term no=\"151\" fieldtermhittotal=\"1\">"+term(151)+"</term>", resultXml.toString());
+    	ir.close();
+    }
+
+    @Test
+    public void testTermTotalFollowsReaderVersion() throws Exception {
+    	RAMDirectory dir = new RAMDirectory();
+    	IndexWriter writer = newIndex(dir);
+    	writer.commit();
+    	DirectoryReader ir = DirectoryReader.open(dir);
+    	TermsBrowser browser = new TermsBrowser();
+    	browser.browse(ir, "testTermTotalFollowsReaderVersion", "f", "", "", 1, new StringBuffer());
+    	assertEquals(TERM_TOTAL, browser.getTermTotal());
+    	Document doc = new Document();
+    	doc.add(new StringField("f", "s", Field.Store.NO));
+    	writer.addDocument(doc);
+    	writer.close();
+    	DirectoryReader newIr = DirectoryReader.openIfChanged(ir);
+    	ir.close();
+    	browser = new TermsBrowser();
+    	StringBuffer resultXml = new StringBuffer();
+    	browser.browse(newIr, "testTermTotalFollowsReaderVersion", "f", "t100", "", 1, resultXml);
+    	assertEquals(TERM_TOTAL+1, browser.getTermTotal());
+    	assertEquals("<term no=\"2\" fieldtermhittotal=\"1\">t100</term>", resultXml.toString());
+    	newIr.close();
+    }
+
+    @Test
+    public void testInvalidCursor() throws Exception {
+    	assertEquals("12:t1", TermsBrowser.decodeCursor(TermsBrowser.encodeCursor("12:t1")));
+    	try {
+    		TermsBrowser.decodeCursor("xyz");
+    		fail("invalid hex accepted");
+    	} catch (GenericSearchException e) {
+    	}
+    	try {
+    		TermsBrowser.decodeCursor(TermsBrowser.encodeCursor("t1"));
+    		fail("cursor without term number accepted");
+    	} catch (GenericSearchException e) {
+    	}
+    }
+
+    private static IndexWriter newIndex(RAMDirectory dir) throws Exception {
+    	IndexWriter writer = new IndexWriter(dir,
+    			new IndexWriterConfig(Version.LUCENE_46, new KeywordAnalyzer()));
+    	for (int i = 0; i < TERM_TOTAL; i++) {
+    		Document doc = new Document();
+    		doc.add(new StringField("f", term(i), Field.Store.NO));
+    		writer.addDocument(doc);
+    	}
+    	return writer;
+    }
+
+    // t100 .. t399, so the terms sort as they are numbered
+    private static String term(int i) {
+    	return "t"+(100+i);
+    }
+}
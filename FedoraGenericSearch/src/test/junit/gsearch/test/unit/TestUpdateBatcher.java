@@ -0,0 +1,224 @@
+//$Id:  $
+package gsearch.test.unit;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.junit.Test;
+
+import dk.defxws.fedoragsearch.server.UpdateBatcher;
+import dk.defxws.fedoragsearch.server.UpdateJournal;
+
+/**
+ * Tests of the coalescing and batching of updates by UpdateBatcher,
+ * the batches are recorded instead of updating the indexes.
+ */
+public class TestUpdateBatcher
+        extends TestCase {
+
+    // Supports legacy test runners
+    public static junit.framework.Test suite() {
+        return new TestSuite(TestUpdateBatcher.class);
+    }
+
+    private static class RecordingBatcher extends UpdateBatcher {
+
+    	List<String> batches = new ArrayList<String>();
+
+    	// while closed, the batches wait before they are recorded
+    	boolean gateClosed = false;
+
+    	int started = 0;
+
+    	// the PIDs, which cannot be indexed
+    	Set<String> failing = new HashSet<String>();
+
+    	RecordingBatcher(long window, int maxSize) {
+    		super("test", 0, window, maxSize);
+    	}
+
+    	RecordingBatcher(long window, int maxSize, UpdateJournal journal) {
+    		super("test", 0, window, maxSize, journal);
+    	}
+
+    	protected long getJournalCheckpoint() {
+    		return -1;
+    	}
+
+    	protected long getRetryDelay() {
+    		return 10;
+    	}
+
+    	protected Set<String> updateIndexBatch(String repositoryName, List<String> fromPids, List<String> deletePids) {
+    		synchronized (batches) {
+    			started++;
+    			batches.notifyAll();
+    			while (gateClosed) {
+    				try {
+    					batches.wait();
+    				} catch (InterruptedException e) {
+    					break;
+    				}
+    			}
+    			Set<String> failedPids = new HashSet<String>(fromPids);
+    			failedPids.addAll(deletePids);
+    			failedPids.retainAll(failing);
+    			batches.add(repositoryName+" fromPids="+fromPids+" deletePids="+deletePids);
+    			batches.notifyAll();
+    			return failedPids;
+    		}
+    	}
+
+    	void setFailing(String pid, boolean fails) {
+    		synchronized (batches) {
+    			if (fails)
+    				failing.add(pid);
+    			else
+    				failing.remove(pid);
+    		}
+    	}
+
+    	void openGate() {
+    		synchronized (batches) {
+    			gateClosed = false;
+    			batches.notifyAll();
+    		}
+    	}
+
+    	void waitForStarted(int count) throws InterruptedException {
+    		long end = System.currentTimeMillis() + 5000;
+    		synchronized (batches) {
+    			while (started < count && System.currentTimeMillis() < end)
+    				batches.wait(100);
+    		}
+    	}
+
+    	void waitForBatches(int count) throws InterruptedException {
+    		long end = System.currentTimeMillis() + 5000;
+    		synchronized (batches) {
+    			while (batches.size() < count && System.currentTimeMillis() < end)
+    				batches.wait(100);
+    		}
+    	}
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+    	RecordingBatcher batcher = new RecordingBatcher(60000, 100);
+    	batcher.add("FgsRepos", "demo:1", UpdateBatcher.FROM_PID);
+    	batcher.add("FgsRepos", "demo:2", UpdateBatcher.FROM_PID);
+    	batcher.add("FgsRepos", "demo:1", UpdateBatcher.DELETE_PID);
+    	batcher.add("FgsRepos", "demo:2", UpdateBatcher.FROM_PID);
+    	assertEquals(2, batcher.getQueueDepth());
+    	assertTrue(batcher.batches.isEmpty());
+    	batcher.close();
+    	assertEquals(1, batcher.batches.size());
+    	assertEquals("FgsRepos fromPids=[demo:2] deletePids=[demo:1]", batcher.batches.get(0));
+    	assertEquals(2, batcher.getProcessed());
+    	assertEquals(0, batcher.getQueueDepth());
+    }
+
+    @Test
+    public void testBatchPerRepository() throws Exception {
+    	RecordingBatcher batcher = new RecordingBatcher(60000, 100);
+    	batcher.add("FgsRepos", "demo:1", UpdateBatcher.FROM_PID);
+    	batcher.add("OtherRepos", "demo:1", UpdateBatcher.FROM_PID);
+    	batcher.close();
+    	assertEquals(2, batcher.batches.size());
+    	assertTrue(batcher.batches.contains("FgsRepos fromPids=[demo:1] deletePids=[]"));
+    	assertTrue(batcher.batches.contains("OtherRepos fromPids=[demo:1] deletePids=[]"));
+    }
+
+    @Test
+    public void testMaxSizeStartsBatch() throws Exception {
+    	RecordingBatcher batcher = new RecordingBatcher(60000, 2);
+    	batcher.add("FgsRepos", "demo:1", UpdateBatcher.FROM_PID);
+    	batcher.add("FgsRepos", "demo:2", UpdateBatcher.FROM_PID);
+    	batcher.waitForBatches(1);
+    	assertEquals(1, batcher.batches.size());
+    	assertEquals("FgsRepos fromPids=[demo:1, demo:2] deletePids=[]", batcher.batches.get(0));
+    	batcher.close();
+    	assertEquals(1, batcher.batches.size());
+    }
+
+    @Test
+    public void testWindowStartsBatch() throws Exception {
+    	RecordingBatcher batcher = new RecordingBatcher(50, 100);
+    	batcher.add("FgsRepos", "demo:1", UpdateBatcher.FROM_PID);
+    	batcher.waitForBatches(1);
+    	assertEquals(1, batcher.batches.size());
+    	batcher.close();
+    }
+
+    @Test
+    public void testAddWaitsWhenMaxSizeIsPending() throws Exception {
+    	final RecordingBatcher batcher = new RecordingBatcher(60000, 1);
+    	batcher.gateClosed = true;
+    	// the first batch is started and held, the second PID fills the pending updates
+    	batcher.add("FgsRepos", "demo:1", UpdateBatcher.FROM_PID);
+    	batcher.waitForStarted(1);
+    	batcher.add("FgsRepos", "demo:2", UpdateBatcher.FROM_PID);
+    	Thread adder = new Thread() {
+    		public void run() {
+    			batcher.add("FgsRepos", "demo:3", UpdateBatcher.FROM_PID);
+    		}
+    	};
+    	adder.start();
+    	adder.join(200);
+    	assertTrue("add does not wait", adder.isAlive());
+    	// an update of a pending PID is coalesced without waiting
+    	batcher.add("FgsRepos", "demo:2", UpdateBatcher.DELETE_PID);
+    	batcher.openGate();
+    	adder.join(5000);
+    	assertFalse("add is not released", adder.isAlive());
+    	batcher.close();
+    	assertEquals(3, batcher.getProcessed());
+    	assertTrue(batcher.batches.contains("FgsRepos fromPids=[] deletePids=[demo:2]"));
+    }
+
+    @Test
+    public void testFailedUpdateIsRetried() throws Exception {
+    	RecordingBatcher batcher = new RecordingBatcher(0, 100);
+    	batcher.setFailing("demo:1", true);
+    	batcher.add("FgsRepos", "demo:1", UpdateBatcher.FROM_PID);
+    	batcher.waitForBatches(2);
+    	batcher.setFailing("demo:1", false);
+    	batcher.waitForBatches(3);
+    	batcher.close();
+    	assertEquals(3, batcher.batches.size());
+    	assertEquals("FgsRepos fromPids=[demo:1] deletePids=[]", batcher.batches.get(2));
+    }
+
+    @Test
+    public void testFailingUpdateIsDeadLettered() throws Exception {
+    	File file = File.createTempFile("TestUpdateBatcher", ".journal");
+    	File failedFile = new File(file.getPath()+UpdateJournal.FAILED_SUFFIX);
+    	file.delete();
+    	try {
+    		UpdateJournal journal = new UpdateJournal("TestUpdateBatcher", file, -1);
+    		RecordingBatcher batcher = new RecordingBatcher(0, 100, journal);
+    		batcher.setFailing("demo:1", true);
+    		batcher.add("FgsRepos", "demo:1", UpdateBatcher.FROM_PID, journal.append("FgsRepos", "demo:1", UpdateBatcher.FROM_PID), System.currentTimeMillis());
+    		batcher.add("FgsRepos", "demo:2", UpdateBatcher.FROM_PID, journal.append("FgsRepos", "demo:2", UpdateBatcher.FROM_PID), System.currentTimeMillis());
+    		batcher.waitForBatches(UpdateBatcher.MAX_ATTEMPTS);
+    		batcher.close();
+    		// the checkpoint is not held back by the failing update
+    		assertEquals(2, journal.getCheckpoint());
+    		assertEquals(2, journal.getCommittedCheckpoint());
+    		assertTrue(failedFile.exists());
+    		journal.close();
+    		journal = new UpdateJournal("TestUpdateBatcher", file, -1);
+    		assertTrue(journal.getRecovered().isEmpty());
+    		journal.close();
+    	} finally {
+    		file.delete();
+    		failedFile.delete();
+    	}
+    }
+}
@@ -0,0 +1,187 @@
+//$Id:  $
+package gsearch.test.unit;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.junit.Test;
+
+import dk.defxws.fedoragsearch.server.UpdateJournal;
+
+/**
+ * Tests of the checkpoints, replay, compaction and dead letters of UpdateJournal.
+ */
+public class TestUpdateJournal
+        extends TestCase {
+
+    // Supports legacy test runners
+    public static junit.framework.Test suite() {
+        return new TestSuite(TestUpdateJournal.class);
+    }
+
+    private File file;
+
+    protected void setUp() throws Exception {
+    	file = File.createTempFile("TestUpdateJournal", ".journal");
+    	file.delete();
+    }
+
+    protected void tearDown() throws Exception {
+    	file.delete();
+    	new File(file.getPath()+UpdateJournal.FAILED_SUFFIX).delete();
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+    	UpdateJournal journal = new UpdateJournal("test", file, -1);
+    	assertEquals(1, journal.append("FgsRepos", "demo:1", "fromPid"));
+    	assertEquals(2, journal.append("FgsRepos", "demo:2", "fromPid"));
+    	assertEquals(3, journal.append("FgsRepos", "demo:3", "fromPid"));
+    	journal.applied(seqs(1, 3));
+    	assertEquals(1, journal.getCheckpoint());
+    	journal.applied(seqs(2));
+    	assertEquals(3, journal.getCheckpoint());
+    	journal.close();
+    }
+
+    @Test
+    public void testReplayOfOutstandingUpdates() throws Exception {
+    	UpdateJournal journal = new UpdateJournal("test", file, -1);
+    	journal.append("FgsRepos", "demo:1", "fromPid");
+    	journal.append("FgsRepos", "demo:2", "fromPid");
+    	journal.append("FgsRepos", "demo:1", "deletePid");
+    	journal.applied(seqs(2));
+    	journal.close();
+    	// the indexes commit their changes when made
+    	// the updates after the checkpoint are run again, ordered by their last update
+    	journal = new UpdateJournal("test", file, -1);
+    	List<UpdateJournal.Entry> recovered = journal.getRecovered();
+    	assertEquals(2, recovered.size());
+    	assertEquals("demo:2", recovered.get(0).pid);
+    	assertEquals("demo:1", recovered.get(1).pid);
+    	assertEquals("deletePid", recovered.get(1).action);
+    	assertEquals(3, recovered.get(1).seq);
+    	// the first update of demo:1 is outdated by its last one
+    	assertEquals(1, journal.getCheckpoint());
+    	assertEquals(4, journal.append("FgsRepos", "demo:4", "fromPid"));
+    	journal.close();
+    }
+
+    @Test
+    public void testReplayAfterCommittedCheckpoint() throws Exception {
+    	UpdateJournal journal = new UpdateJournal("test", file, 0);
+    	journal.append("FgsRepos", "demo:1", "fromPid");
+    	journal.append("FgsRepos", "demo:2", "fromPid");
+    	journal.append("FgsRepos", "demo:3", "fromPid");
+    	journal.applied(seqs(1, 2, 3));
+    	// the indexes have committed the first update only
+    	journal.committed(1);
+    	assertEquals(1, journal.getCommittedCheckpoint());
+    	journal.close();
+    	journal = new UpdateJournal("test", file, 1);
+    	List<UpdateJournal.Entry> recovered = journal.getRecovered();
+    	assertEquals(2, recovered.size());
+    	assertEquals("demo:2", recovered.get(0).pid);
+    	assertEquals("demo:3", recovered.get(1).pid);
+    	assertEquals(1, journal.getCheckpoint());
+    	journal.close();
+    }
+
+    @Test
+    public void testCompactionWhenCommitted() throws Exception {
+    	UpdateJournal journal = new UpdateJournal("test", file, -1);
+    	for (int i = 1; i <= 100; i++) {
+    		journal.append("FgsRepos", "demo:"+i, "fromPid");
+    	}
+    	List<Long> all = new ArrayList<Long>();
+    	for (long i = 1; i <= 99; i++) {
+    		all.add(Long.valueOf(i));
+    	}
+    	journal.applied(all);
+    	journal.committed(-1);
+    	assertEquals(99, journal.getCommittedCheckpoint());
+    	List<String> lines = lines();
+    	assertEquals(2, lines.size());
+    	assertEquals("applied\t99", lines.get(0));
+    	assertTrue(lines.get(1).startsWith("100\tfromPid\tFgsRepos\tdemo:100\t"));
+    	journal.append("FgsRepos", "demo:101", "fromPid");
+    	assertEquals(3, lines().size());
+    	journal.close();
+    }
+
+    @Test
+    public void testCommittedIsNotAfterCheckpoint() throws Exception {
+    	UpdateJournal journal = new UpdateJournal("test", file, 0);
+    	journal.append("FgsRepos", "demo:1", "fromPid");
+    	journal.append("FgsRepos", "demo:2", "fromPid");
+    	journal.applied(seqs(2));
+    	journal.committed(2);
+    	assertEquals(0, journal.getCommittedCheckpoint());
+    	assertEquals(3, lines().size());
+    	journal.close();
+    }
+
+    @Test
+    public void testFailedUpdateIsDeadLettered() throws Exception {
+    	UpdateJournal journal = new UpdateJournal("test", file, -1);
+    	journal.append("FgsRepos", "demo:1", "fromPid");
+    	journal.append("FgsRepos", "demo:2", "fromPid");
+    	journal.failed(seqs(1));
+    	assertEquals(1, journal.getCheckpoint());
+    	journal.applied(seqs(2));
+    	assertEquals(2, journal.getCheckpoint());
+    	journal.close();
+    	BufferedReader br = new BufferedReader(new FileReader(file.getPath()+UpdateJournal.FAILED_SUFFIX));
+    	try {
+    		assertTrue(br.readLine().startsWith("1\tfromPid\tFgsRepos\tdemo:1\t"));
+    		assertNull(br.readLine());
+    	} finally {
+    		br.close();
+    	}
+    	journal = new UpdateJournal("test", file, -1);
+    	assertTrue(journal.getRecovered().isEmpty());
+    	journal.close();
+    }
+
+    @Test
+    public void testLineCutShortIsSkipped() throws Exception {
+    	UpdateJournal journal = new UpdateJournal("test", file, -1);
+    	journal.append("FgsRepos", "demo:1", "fromPid");
+    	journal.close();
+    	java.io.FileWriter w = new java.io.FileWriter(file, true);
+    	w.write("2\tfromPid\tFgs");
+    	w.close();
+    	journal = new UpdateJournal("test", file, -1);
+    	assertEquals(1, journal.getRecovered().size());
+    	assertEquals(2, journal.append("FgsRepos", "demo:2", "fromPid"));
+    	journal.close();
+    }
+
+    private static List<Long> seqs(long... seqs) {
+    	List<Long> list = new ArrayList<Long>();
+    	for (int i = 0; i < seqs.length; i++) {
+    		list.add(Long.valueOf(seqs[i]));
+    	}
+    	return list;
+    }
+
+    private List<String> lines() throws Exception {
+    	List<String> lines = new ArrayList<String>();
+    	BufferedReader br = new BufferedReader(new FileReader(file));
+    	try {
+    		String line;
+    		while ((line = br.readLine()) != null) {
+    			lines.add(line);
+    		}
+    	} finally {
+    		br.close();
+    	}
+    	return lines;
+    }
+}
@@ -0,0 +1,168 @@
+//$Id:  $
+package gsearch.test.unit;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.junit.Test;
+
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+import dk.defxws.fgszebra.IndexModifier;
+
+/**
+ * Tests of the staging of update batches by the IndexModifier of the zebra plugin,
+ * zebraidx is not run, runupdate.sh is replaced by a script, which only logs to indexer.log.
+ */
+public class TestZebraIndexModifier
+        extends TestCase {
+
+    // Supports legacy test runners
+    public static junit.framework.Test suite() {
+        return new TestSuite(TestZebraIndexModifier.class);
+    }
+
+    private File indexDir;
+
+    protected void setUp() throws Exception {
+    	indexDir = File.createTempFile("TestZebraIndexModifier", "");
+    	indexDir.delete();
+    	indexDir.mkdirs();
+    }
+
+    protected void tearDown() throws Exception {
+    	delete(indexDir);
+    }
+
+    private static void delete(File file) {
+    	File[] files = file.listFiles();
+    	for (int i = 0; files != null && i < files.length; i++) {
+    		delete(files[i]);
+    	}
+    	file.delete();
+    }
+
+    @Test
+    public void testRecordPaths() throws Exception {
+    	IndexModifier modifier = new IndexModifier(indexDir.getPath(), false);
+    	assertEquals(indexDir.getPath()+"/temp_records/rec0", modifier.nextRecordPath());
+    	assertEquals(indexDir.getPath()+"/temp_records/rec1", modifier.nextRecordPath());
+    	assertEquals(2, modifier.getStagedRecords());
+    	assertEquals(0, modifier.getStagedDeletes());
+    }
+
+    @Test
+    public void testStageDelete() throws Exception {
+    	IndexModifier modifier = new IndexModifier(indexDir.getPath(), false);
+    	modifier.stageDelete("demo:1");
+    	assertEquals(1, modifier.getStagedDeletes());
+    	BufferedReader br = new BufferedReader(new FileReader(new File(indexDir, "delete_records/del0")));
+    	StringBuffer record = new StringBuffer();
+    	try {
+    		String line;
+    		while ((line = br.readLine()) != null) {
+    			record.append(line).append("\n");
+    		}
+    	} finally {
+    		br.close();
+    	}
+    	assertTrue(record.toString().indexOf("<IndexDocument PID=\"demo:1\">") > -1);
+    	assertTrue(record.toString().indexOf("<IndexField IFname=\"PID\">\ndemo:1\n</IndexField>") > -1);
+    }
+
+    @Test
+    public void testBatchUpdate() throws Exception {
+    	IndexModifier modifier = stageRecords("Records: 2 i/u/d 1/1/0");
+    	int[] opcounts = modifier.runBatchUpdate();
+    	assertEquals(1, opcounts[0]);
+    	assertEquals(1, opcounts[1]);
+    	assertEquals(0, modifier.getStagedRecords());
+    }
+
+    @Test
+    public void testBatchUpdateFatal() throws Exception {
+    	IndexModifier modifier = stageRecords("Records: 2 i/u/d 2/0/0\n[fatal] commit failed");
+    	try {
+    		modifier.runBatchUpdate();
+    		fail("fatal error not reported");
+    	} catch (GenericSearchException e) {
+    		assertTrue(e.getMessage().indexOf("commit failed") > -1);
+    	}
+    	assertEquals(0, modifier.getStagedRecords());
+    	assertEquals(0, new File(indexDir, "temp_records").list().length);
+    }
+
+    @Test
+    public void testBatchUpdateRecordsMissing() throws Exception {
+    	IndexModifier modifier = stageRecords("Records: 1 i/u/d 1/0/0");
+    	try {
+    		modifier.runBatchUpdate();
+    		fail("missing record not reported");
+    	} catch (GenericSearchException e) {
+    	}
+    }
+
+    @Test
+    public void testBatchDeleteFatal() throws Exception {
+    	writeRunupdate("[fatal] delete failed");
+    	IndexModifier modifier = new IndexModifier(indexDir.getPath(), false);
+    	modifier.stageDelete("demo:1");
+    	try {
+    		modifier.runBatchDelete();
+    		fail("fatal error not reported");
+    	} catch (GenericSearchException e) {
+    	}
+    	assertEquals(0, modifier.getStagedDeletes());
+    	assertEquals(0, new File(indexDir, "delete_records").list().length);
+    }
+
+    /**
+     * stages two records for a runupdate.sh, which logs the lines and leaves the records
+     */
+    private IndexModifier stageRecords(String logLines) throws Exception {
+    	writeRunupdate(logLines);
+    	new File(indexDir, "temp_records").mkdirs();
+    	IndexModifier modifier = new IndexModifier(indexDir.getPath(), false);
+    	for (int i = 0; i < 2; i++) {
+    		FileWriter fw = new FileWriter(modifier.nextRecordPath());
+    		fw.write("<IndexDocument PID=\"demo:"+i+"\"/>\n");
+    		fw.close();
+    	}
+    	return modifier;
+    }
+
+    private void writeRunupdate(String logLines) throws Exception {
+    	FileWriter fw = new FileWriter(new File(indexDir, "runupdate.sh"));
+    	fw.write("printf '"+logLines+"\\n' >> "+indexDir.getPath()+"/indexer.log\n");
+    	fw.close();
+    }
+
+    @Test
+    public void testRecordPathsOfThreadsDiffer() throws Exception {
+    	final IndexModifier modifier = new IndexModifier(indexDir.getPath(), false);
+    	final Set<String> paths = Collections.synchronizedSet(new HashSet<String>());
+    	Thread[] threads = new Thread[4];
+    	for (int i = 0; i < threads.length; i++) {
+    		threads[i] = new Thread() {
+    			public void run() {
+    				for (int j = 0; j < 1000; j++) {
+    					paths.add(modifier.nextRecordPath());
+    				}
+    			}
+    		};
+    		threads[i].start();
+    	}
+    	for (int i = 0; i < threads.length; i++) {
+    		threads[i].join();
+    	}
+    	assertEquals(4000, paths.size());
+    	assertEquals(4000, modifier.getStagedRecords());
+    }
+}
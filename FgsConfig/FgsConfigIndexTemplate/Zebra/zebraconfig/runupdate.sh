@@ -12,6 +12,7 @@ usage(){
     echo "    runupdate updatePid <pid>"
     echo "    runupdate update"
     echo "    runupdate deletePid <pid>"
+    echo "    runupdate delete"
 }
 
 kill_process(){
@@ -85,6 +86,16 @@ case "$1" in
   
     ;;
 
+  delete)
+  
+    echo "<`get_timestamp`> zebraidx-2.0 -c db/zebra.cfg delete delete_records"
+    zebraidx-2.0 -l indexer.log -c db/zebra.cfg delete delete_records
+    echo "<`get_timestamp`> zebraidx-2.0 -c db/zebra.cfg commit"
+    zebraidx-2.0 -l indexer.log -c db/zebra.cfg commit
+    rm delete_records/*
+  
+    ;;
+
   stop)
 
 #    kill_process "runupdate"
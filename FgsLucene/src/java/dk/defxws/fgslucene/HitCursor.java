@@ -0,0 +1,135 @@
+/*
+ * <p><b>License and Copyright: </b>The contents of this file is subject to the
+ * same open source license as the Fedora Repository System at www.fedora-commons.org
+ * Copyright &copy; 2006, 2007, 2008, 2009, 2010, 2011, 2012, 2013 by The Technical University of Denmark.
+ * All rights reserved.</p>
+ */
+package dk.defxws.fgslucene;
+
+import java.util.StringTokenizer;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.BytesRef;
+
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+
+/**
+ * the opaque cursor of a gfindObjects hit page, from which the next page is found by searchAfter.
+ * It holds the number of the last hit of the page, its document id and score,
+ * and its sort values, if sorted.
+ * The document id only breaks ties between equal sort values,
+ * so a cursor may be given after the index has changed,
+ * hits added or deleted before the cursor position are then not seen.
+ *
+ * @author  gsp@dtv.dk
+ * @version
+ */
+public class HitCursor {
+
+    private int hitNo;
+
+    private ScoreDoc after;
+
+    public HitCursor(int hitNo, ScoreDoc after) {
+    	this.hitNo = hitNo;
+    	this.after = after;
+    }
+
+    /**
+     * the number of the last hit of the previous page, counted from 1
+     */
+    public int getHitNo() {
+    	return hitNo;
+    }
+
+    public ScoreDoc getAfter() {
+    	return after;
+    }
+
+    /**
+     * returns null if the hit is sorted by values that cannot be given in a cursor,
+     * as those of a comparatorClass
+     */
+    public String encode() {
+    	StringBuffer sb = new StringBuffer();
+    	sb.append(hitNo).append(':').append(after.doc).append(':').append(Float.toString(after.score));
+    	if (after instanceof FieldDoc) {
+    		Object[] fields = ((FieldDoc) after).fields;
+    		sb.append(":s");
+    		for (int i=0; fields!=null && i<fields.length; i++) {
+    			String value = encodeValue(fields[i]);
+    			if (value == null) return null;
+    			sb.append(':').append(value);
+    		}
+    	}
+    	try {
+    		return new String(Hex.encodeHex(sb.toString().getBytes("UTF-8")));
+    	} catch (java.io.UnsupportedEncodingException e) {
+    		return null;
+    	}
+    }
+
+    public static HitCursor decode(String cursor)
+    throws GenericSearchException {
+    	try {
+    		String decoded = new String(Hex.decodeHex(cursor.toCharArray()), "UTF-8");
+    		StringTokenizer st = new StringTokenizer(decoded, ":");
+    		int hitNo = Integer.parseInt(st.nextToken());
+    		int doc = Integer.parseInt(st.nextToken());
+    		float score = Float.parseFloat(st.nextToken());
+    		if (!st.hasMoreTokens()) {
+    			return new HitCursor(hitNo, new ScoreDoc(doc, score));
+    		}
+    		if (!"s".equals(st.nextToken()))
+    			throw new GenericSearchException("invalid cursor="+cursor);
+    		Object[] fields = new Object[st.countTokens()];
+    		for (int i=0; i<fields.length; i++) {
+    			fields[i] = decodeValue(st.nextToken());
+    		}
+    		return new HitCursor(hitNo, new FieldDoc(doc, score, fields));
+    	} catch (GenericSearchException e) {
+    		throw e;
+    	} catch (DecoderException e) {
+    		throw new GenericSearchException("invalid cursor="+cursor, e);
+    	} catch (Exception e) {
+    		throw new GenericSearchException("invalid cursor="+cursor+"\n"+e.toString());
+    	}
+    }
+
+    private static String encodeValue(Object value) {
+    	if (value == null) return "n";
+    	if (value instanceof Integer) return "i"+value;
+    	if (value instanceof Long) return "l"+value;
+    	if (value instanceof Float) return "f"+value;
+    	if (value instanceof Double) return "d"+value;
+    	if (value instanceof Short) return "h"+value;
+    	if (value instanceof Byte) return "y"+value;
+    	if (value instanceof BytesRef) {
+    		BytesRef bytes = (BytesRef) value;
+    		byte[] b = new byte[bytes.length];
+    		System.arraycopy(bytes.bytes, bytes.offset, b, 0, bytes.length);
+    		return "b"+new String(Hex.encodeHex(b));
+    	}
+    	return null;
+    }
+
+    private static Object decodeValue(String value)
+    throws DecoderException, GenericSearchException {
+    	char type = value.charAt(0);
+    	String s = value.substring(1);
+    	switch (type) {
+    	case 'n': return null;
+    	case 'i': return Integer.valueOf(s);
+    	case 'l': return Long.valueOf(s);
+    	case 'f': return Float.valueOf(s);
+    	case 'd': return Double.valueOf(s);
+    	case 'h': return Short.valueOf(s);
+    	case 'y': return Byte.valueOf(s);
+    	case 'b': return new BytesRef(Hex.decodeHex(s.toCharArray()));
+    	default: throw new GenericSearchException("invalid cursor value="+value);
+    	}
+    }
+}
@@ -10,9 +10,17 @@ import org.apache.log4j.Logger;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.util.BytesRef;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
@@ -28,6 +36,15 @@ import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
 /**
  * parses the IndexDocument and generates the Lucene document 
  * 
+ * An IndexField with docValues="SORTED" or docValues="NUMERIC" also gets
+ * a column-stored doc values field of the same name, which sorting on the field uses
+ * instead of un-inverting it into the field cache.
+ * A document has one doc value per field, the first value is used.
+ * 
+ * An IndexField with type="int", "long", "double" or "date" is indexed as a trie encoded number,
+ * see NumericFields, its stored value is the text given.
+ * A value, which is not of the type, is only stored, it is never indexed as text in the typed field.
+ * 
  * @author  gsp@dtv.dk
  * @version 
  */
@@ -48,6 +65,10 @@ public class IndexDocumentHandler extends DefaultHandler {
 //    you must now pre-multiply the document boost into each Field.setBoost
 //    private float docboost;
     private float boost;
+    private String docValues;
+    private String type;
+    private Map<String, String> numericFieldTypes = new HashMap<String, String>();
+    private Set<String> docValuesFields;
     private String dsId;
     private String dsMimetypes;
     private String bDefPid;
@@ -89,6 +110,7 @@ public class IndexDocumentHandler extends DefaultHandler {
     
     public void startDocument() throws SAXException {
         indexDocument = new Document();
+        docValuesFields = new HashSet<String>();
     }
     
     public void startElement(String namespaceURI, String localName,
@@ -106,6 +128,8 @@ public class IndexDocumentHandler extends DefaultHandler {
         fType.setStoreTermVectors(false);
         fType.setTokenized(true);
         boost = 1;
+        docValues = null;
+        type = null;
 //        docboost = 1;
         if ("IndexDocument".equals(localName) && attrs != null) {
             for (int i = 0; i < attrs.getLength(); i++) {
@@ -158,12 +182,26 @@ public class IndexDocumentHandler extends DefaultHandler {
                 if (aName=="termVector") 
                     if ("NO".equals(val)) fType.setStoreTermVectors(false);
                     else if ("YES".equals(val)) fType.setStoreTermVectors(true);
-                    else if ("WITH_OFFSETS".equals(val)) fType.setStoreTermVectorOffsets(true);
-                    else if ("WITH_POSITIONS".equals(val)) fType.setStoreTermVectorPositions(true);
+                    else if ("WITH_OFFSETS".equals(val)) {
+                    	fType.setStoreTermVectors(true);
+                    	fType.setStoreTermVectorOffsets(true);
+                    }
+                    else if ("WITH_POSITIONS".equals(val)) {
+                    	fType.setStoreTermVectors(true);
+                    	fType.setStoreTermVectorPositions(true);
+                    }
                     else if ("WITH_POSITIONS_OFFSETS".equals(val)) {
+                    	fType.setStoreTermVectors(true);
                     	fType.setStoreTermVectorOffsets(true);
                     	fType.setStoreTermVectorPositions(true);
                     }
+                if (aName=="docValues") 
+                    if ("SORTED".equalsIgnoreCase(val) || "NUMERIC".equalsIgnoreCase(val)) docValues = val.toUpperCase();
+                    else if (!"NO".equalsIgnoreCase(val)) 
+                    	logger.warn("IndexField "+fieldName+" unknown docValues="+val);
+                if (aName=="type") 
+                    if (NumericFields.isType(val.toLowerCase())) type = val.toLowerCase();
+                    else logger.warn("IndexField "+fieldName+" unknown type="+val);
                 if (aName=="boost")
                     try {
                         boost = Float.parseFloat(val);
@@ -210,18 +248,63 @@ public class IndexDocumentHandler extends DefaultHandler {
 			if (ebs.length() > 0) {
 				if (logger.isDebugEnabled())
 					logger.debug(fieldName + "=" + ebs);
-				Field f = new Field(fieldName, ebs, fType);
-				if (boost > Float.MIN_VALUE)
-					f.setBoost(boost);
-				indexDocument.add(f);
+				Number number = null;
+				if (type != null) {
+					number = NumericFields.parse(type, ebs);
+					if (number == null) {
+						logger.warn("IndexField "+fieldName+" type="+type+" value is not indexed: "+ebs+" pid="+pid);
+						if (fType.stored())
+							indexDocument.add(new StoredField(fieldName, ebs));
+						return;
+					}
+				}
+				if (number != null) {
+					if (fType.indexed())
+						indexDocument.add(NumericFields.newField(fieldName, type, number));
+					if (fType.stored())
+						indexDocument.add(new StoredField(fieldName, ebs));
+					numericFieldTypes.put(fieldName, type);
+				} else {
+					Field f = new Field(fieldName, ebs, fType);
+					if (boost > Float.MIN_VALUE)
+						f.setBoost(boost);
+					indexDocument.add(f);
+				}
+				if (docValues != null && docValuesFields.add(fieldName)) {
+					addDocValuesField(ebs, number);
+				}
 			}
 		}
     }
     
+    private void addDocValuesField(String value, Number number) {
+    	if ("NUMERIC".equals(docValues)) {
+    		if (number != null && !NumericFields.DOUBLE.equals(type)) {
+    			indexDocument.add(new NumericDocValuesField(fieldName, number.longValue()));
+    			return;
+    		}
+    		try {
+    			indexDocument.add(new NumericDocValuesField(fieldName, Long.parseLong(value)));
+    		} catch (NumberFormatException e) {
+    			docValuesFields.remove(fieldName);
+    			logger.warn("IndexField "+fieldName+" docValues=NUMERIC value is not a long: "+value+" pid="+pid);
+    		}
+    	} else {
+    		indexDocument.add(new SortedDocValuesField(fieldName, new BytesRef(value)));
+    	}
+    }
+    
     protected Document getIndexDocument() {
         return indexDocument;
     }
     
+    /**
+     * the fields indexed as numbers, with their type
+     */
+    protected Map<String, String> getNumericFieldTypes() {
+        return numericFieldTypes;
+    }
+    
     protected String getPid() {
         return pid;
     }
@@ -0,0 +1,545 @@
+/*
+ * <p><b>License and Copyright: </b>The contents of this file is subject to the
+ * same open source license as the Fedora Repository System at www.fedora-commons.org
+ * Copyright &copy; 2006, 2007, 2008, 2009, 2010, 2011, 2012, 2013 by The Technical University of Denmark.
+ * All rights reserved.</p>
+ */
+package dk.defxws.fgslucene;
+
+import java.io.File;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+
+import dk.defxws.fedoragsearch.server.DirectoryFactory;
+import dk.defxws.fedoragsearch.server.UpdateJournal;
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+
+/**
+ * holds the process-wide, reference counted searcher of one Lucene index directory,
+ * searchers are acquired and released per request and refreshed after commits.
+ * Once the index is updated, it also holds the long-lived IndexWriter of the directory,
+ * searchers are then near real-time and commits follow the commit policy of the index.
+ * It also holds the result page cache of the index, when configured.
+ * The searchers and the writer share one directory, opened as given by fgsindex.directoryImpl,
+ * a changed directoryImpl is used once the directory is opened again, after a config reload or a restart.
+ * The insearch filters of the index are held here too, as their cached bitsets
+ * belong to the segments, they survive reopening the searcher for unchanged segments.
+ * Each commit keeps the checkpoints of the update journals in the commit user data.
+ * The writer is opened with the writer settings of the index, when they change,
+ * it is closed, once its current users are done, and opened again with the new settings.
+ * closeIndexManager closes the writer, the searchers and the directory,
+ * when the config is replaced or the webapp is stopped.
+ *
+ * @author  gsp@dtv.dk
+ * @version
+ */
+public class IndexManager {
+
+    private static final Logger logger = Logger.getLogger(IndexManager.class);
+
+    private static Hashtable<String, IndexManager> oneIndexManagerPerIndexDir = new Hashtable<String, IndexManager>();
+
+    private static Timer commitTimer = null;
+
+    private static Thread shutdownHook = null;
+
+    private static final long CLOSE_WAIT_TIME = 60000;
+
+    private String indexDir;
+
+    private String directoryImpl;
+
+    private Directory directory;
+
+    private SearcherManager searcherManager;
+
+    private IndexWriter indexWriter;
+
+    private String writerSettings = null;
+
+    private int writerUsers = 0;
+
+    private boolean closed = false;
+
+    private int uncommittedChanges = 0;
+
+    private TimerTask commitTask = null;
+
+    // the user data of the last finished commit of the writer
+    private Map<String, String> committedData = null;
+
+    private ResultPageCache resultPageCache = null;
+
+    private static final int MAX_INSEARCH_FILTERS = 100;
+
+    private Map<String, Filter> insearchFilters = new LinkedHashMap<String, Filter>(16, 0.75f, true) {
+    	protected boolean removeEldestEntry(Map.Entry<String, Filter> eldest) {
+    		return size() > MAX_INSEARCH_FILTERS;
+    	}
+    };
+
+    private IndexManager(String indexDir, String directoryImpl) {
+    	this.indexDir = indexDir;
+    	this.directoryImpl = directoryImpl;
+    }
+
+    public static IndexManager getIndexManager(String indexDir, String directoryImpl) {
+    	IndexManager indexManager = null;
+    	synchronized (IndexManager.class) {
+    		indexManager = oneIndexManagerPerIndexDir.get(indexDir);
+    		if (indexManager == null) {
+    			indexManager = new IndexManager(indexDir, directoryImpl);
+    			oneIndexManagerPerIndexDir.put(indexDir, indexManager);
+    			return indexManager;
+    		}
+    	}
+    	// outside the class lock, which is never taken while holding the lock of a manager
+    	indexManager.setDirectoryImpl(directoryImpl);
+    	return indexManager;
+    }
+
+    private synchronized void setDirectoryImpl(String directoryImpl) {
+    	if (directoryImpl.equals(this.directoryImpl)) return;
+    	if (directory != null)
+    		logger.info("fgsindex.directoryImpl="+directoryImpl+" is used after config reload or restart, indexDir=" + indexDir);
+    	this.directoryImpl = directoryImpl;
+    }
+
+    /**
+     * closes the index manager of indexDir, if any,
+     * it is opened again by the next getIndexManager
+     */
+    public static void closeIndexManager(String indexDir)
+    throws GenericSearchException {
+    	IndexManager indexManager = null;
+    	synchronized (IndexManager.class) {
+    		indexManager = oneIndexManagerPerIndexDir.remove(indexDir);
+    	}
+    	if (indexManager == null) return;
+    	try {
+    		indexManager.close();
+    	} finally {
+    		stopCommitTimerIfUnused();
+    	}
+    }
+
+    private synchronized Directory getDirectory()
+    throws GenericSearchException {
+    	if (closed)
+    		throw new GenericSearchException("IndexManager closed indexDir=" + indexDir);
+    	if (directory == null) {
+    		try {
+    			directory = DirectoryFactory.newDirectory(new File(indexDir), directoryImpl);
+    		} catch (Exception e) {
+    			throw new GenericSearchException("Directory open error indexDir=" + indexDir+ " directoryImpl=" + directoryImpl + " :\n", e);
+    		}
+    		logger.info("getDirectory indexDir=" + indexDir+ " directory=" + directory);
+    	}
+    	return directory;
+    }
+
+    private synchronized SearcherManager getSearcherManager()
+    throws GenericSearchException {
+    	if (searcherManager == null) {
+    		Directory dir = getDirectory();
+    		try {
+    			searcherManager = new SearcherManager(dir, null);
+    		} catch (Exception e) {
+    			throw new GenericSearchException("SearcherManager open error indexDir=" + indexDir+ " :\n", e);
+    		}
+    		if (logger.isDebugEnabled())
+    			logger.debug("getSearcherManager opened indexDir=" + indexDir);
+    	}
+    	return searcherManager;
+    }
+
+    /**
+     * the returned searcher must be given back by releaseSearcher
+     */
+    public IndexSearcher acquireSearcher()
+    throws GenericSearchException {
+    	try {
+    		return getSearcherManager().acquire();
+    	} catch (GenericSearchException e) {
+    		throw e;
+    	} catch (Exception e) {
+    		throw new GenericSearchException("IndexSearcher acquire error indexDir=" + indexDir+ " :\n", e);
+    	}
+    }
+
+    public void releaseSearcher(IndexSearcher searcher)
+    throws GenericSearchException {
+    	if (searcher == null) return;
+    	try {
+    		searcher.getIndexReader().decRef();
+    	} catch (Exception e) {
+    		throw new GenericSearchException("IndexSearcher release error indexDir=" + indexDir+ " :\n", e);
+    	}
+    }
+
+    /**
+     * makes changes committed to the index visible to searchers acquired afterwards
+     */
+    public void refreshSearcher()
+    throws GenericSearchException {
+    	SearcherManager sm = null;
+    	synchronized (this) {
+    		sm = searcherManager;
+    	}
+    	if (sm == null) return;
+    	try {
+    		sm.maybeRefresh();
+    	} catch (Exception e) {
+    		throw new GenericSearchException("IndexSearcher refresh error indexDir=" + indexDir+ " :\n", e);
+    	}
+    	if (logger.isDebugEnabled())
+    		logger.debug("refreshSearcher indexDir=" + indexDir);
+    }
+
+    /**
+     * returns null when no result pages are to be cached
+     */
+    public synchronized ResultPageCache getResultPageCache(int maxPages, long maxChars) {
+    	if (maxPages <= 0) {
+    		resultPageCache = null;
+    	} else if (resultPageCache == null) {
+    		resultPageCache = new ResultPageCache(maxPages, maxChars);
+    	} else {
+    		resultPageCache.setLimits(maxPages, maxChars);
+    	}
+    	return resultPageCache;
+    }
+
+    /**
+     * returns the filter cached for filterQuery, or null
+     */
+    public synchronized Filter getInsearchFilter(String filterQuery) {
+    	return insearchFilters.get(filterQuery);
+    }
+
+    public synchronized void putInsearchFilter(String filterQuery, Filter filter) {
+    	insearchFilters.put(filterQuery, filter);
+    }
+
+    public synchronized IndexWriter getIndexWriter() {
+    	return indexWriter;
+    }
+
+    /**
+     * returns the open writer, to be given back by releaseIndexWriter,
+     * or null, when the writer must be opened by openIndexWriter.
+     * A writer opened with other settings is closed first, once its users have released it,
+     * settings is the writer settings of the config in a form, which can be compared.
+     */
+    public synchronized IndexWriter acquireIndexWriter(String settings)
+    throws GenericSearchException {
+    	if (indexWriter != null && !settings.equals(writerSettings)) {
+    		waitForWriterUsers();
+    		// if still in use, the writer is kept, and closed by a later call
+    		if (indexWriter != null && !settings.equals(writerSettings) && writerUsers == 0) {
+    			logger.info("writer settings changed to " + settings + ", indexDir=" + indexDir);
+    			closeIndexWriter();
+    		}
+    	}
+    	if (indexWriter == null) return null;
+    	writerUsers++;
+    	return indexWriter;
+    }
+
+    public synchronized void releaseIndexWriter() {
+    	if (writerUsers > 0) writerUsers--;
+    	notifyAll();
+    }
+
+    /**
+     * opens the writer of the index directory, unless already open,
+     * and switches the searchers to near real-time readers from that writer.
+     * The writer must be given back by releaseIndexWriter.
+     */
+    public IndexWriter openIndexWriter(IndexWriterConfig iwconfig, String settings)
+    throws GenericSearchException {
+    	startCommitTimer();
+    	return openIndexWriterLocked(iwconfig, settings);
+    }
+
+    private synchronized IndexWriter openIndexWriterLocked(IndexWriterConfig iwconfig, String settings)
+    throws GenericSearchException {
+    	if (indexWriter != null) {
+    		writerUsers++;
+    		return indexWriter;
+    	}
+    	IndexWriter writer = null;
+    	SearcherManager nrtSearcherManager = null;
+    	Directory dir = getDirectory();
+    	try {
+    		writer = new IndexWriter(dir, iwconfig);
+    		nrtSearcherManager = new SearcherManager(writer, true, null);
+    	} catch (Exception e) {
+    		if (writer != null) {
+    			try {
+    				writer.close();
+    			} catch (Exception e1) {
+    			}
+    		}
+    		throw new GenericSearchException("IndexWriter new error indexDir=" + indexDir+ " :\n", e);
+    	}
+    	if (searcherManager != null) {
+    		try {
+    			searcherManager.close();
+    		} catch (Exception e) {
+    			logger.warn("SearcherManager close error indexDir=" + indexDir+ " :\n" + e.toString());
+    		}
+    	}
+    	searcherManager = nrtSearcherManager;
+    	indexWriter = writer;
+    	committedData = new HashMap<String, String>(writer.getCommitData());
+    	writerSettings = settings;
+    	writerUsers++;
+    	logger.info("openIndexWriter indexDir=" + indexDir);
+    	return indexWriter;
+    }
+
+    /**
+     * registers changes given to the writer and commits them
+     * when commitMaxDocs changes are pending or commitMaxTime milliseconds have passed,
+     * whichever comes first. Without a commit policy the changes are committed at once.
+     * Until then, the changes are visible to searchers, but not yet durable.
+     */
+    public void changesDone(int changes, int commitMaxDocs, long commitMaxTime)
+    throws GenericSearchException {
+    	boolean commitNow = false;
+    	TimerTask task = null;
+    	synchronized (this) {
+    		if (indexWriter == null) return;
+    		uncommittedChanges += changes;
+    		if (uncommittedChanges > 0) {
+    			if (commitMaxDocs <= 0 && commitMaxTime <= 0) {
+    				commitNow = true;
+    			} else if (commitMaxDocs > 0 && uncommittedChanges >= commitMaxDocs) {
+    				commitNow = true;
+    			} else if (commitMaxTime > 0 && commitTask == null) {
+    				commitTask = new TimerTask() {
+    					public void run() {
+    						try {
+    							commit();
+    						} catch (GenericSearchException e) {
+    							logger.error("scheduled commit error indexDir=" + indexDir+ " :\n" + e.toString());
+    						}
+    					}
+    				};
+    				task = commitTask;
+    			}
+    		}
+    	}
+    	// scheduled outside the lock of the manager, as the timer is guarded by the class lock
+    	if (task != null && !scheduleCommit(task, commitMaxTime)) {
+    		commitNow = true;
+    	}
+    	if (commitNow) {
+    		commit();
+    	} else {
+    		refreshSearcher();
+    	}
+    }
+
+    public void commit()
+    throws GenericSearchException {
+    	IndexWriter writer = null;
+    	int changes = 0;
+    	synchronized (this) {
+    		writer = indexWriter;
+    		changes = uncommittedChanges;
+    		uncommittedChanges = 0;
+    		if (commitTask != null) {
+    			commitTask.cancel();
+    			commitTask = null;
+    		}
+    	}
+    	if (writer == null) return;
+    	try {
+    		// taken before the commit, so the updates up to the checkpoints are in it
+    		Map<String, String> journalData = UpdateJournal.getCommitData();
+    		Map<String, String> commitData = new HashMap<String, String>(writer.getCommitData());
+    		if (!journalData.isEmpty()) {
+    			commitData.putAll(journalData);
+    			writer.setCommitData(commitData);
+    		}
+    		writer.commit();
+    		synchronized (this) {
+    			if (writer == indexWriter)
+    				committedData = commitData;
+    		}
+    	} catch (Exception e) {
+    		throw new GenericSearchException("IndexWriter commit error indexDir=" + indexDir+ " :\n", e);
+    	}
+    	if (logger.isDebugEnabled())
+    		logger.debug("commit indexDir=" + indexDir+ " changes=" + changes);
+    	refreshSearcher();
+    }
+
+    /**
+     * the user data of the last commit, empty if the index does not exist,
+     * the data of a commit being run is returned, when it is done
+     */
+    public Map<String, String> getCommitData()
+    throws GenericSearchException {
+    	IndexWriter writer = null;
+    	synchronized (this) {
+    		if (committedData != null)
+    			return committedData;
+    		writer = indexWriter;
+    	}
+    	if (writer != null) {
+    		return writer.getCommitData();
+    	}
+    	Directory dir = getDirectory();
+    	try {
+    		if (!DirectoryReader.indexExists(dir)) {
+    			return new HashMap<String, String>();
+    		}
+    		SegmentInfos segmentInfos = new SegmentInfos();
+    		segmentInfos.read(dir);
+    		return segmentInfos.getUserData();
+    	} catch (Exception e) {
+    		throw new GenericSearchException("IndexWriter commit data error indexDir=" + indexDir+ " :\n", e);
+    	}
+    }
+
+    /**
+     * commits and closes the writer, the searchers then read the committed index
+     */
+    private synchronized void closeIndexWriter()
+    throws GenericSearchException {
+    	if (indexWriter == null) return;
+    	commit();
+    	SearcherManager nrtSearcherManager = searcherManager;
+    	searcherManager = null;
+    	try {
+    		if (nrtSearcherManager != null)
+    			nrtSearcherManager.close();
+    		indexWriter.close();
+    	} catch (Exception e) {
+    		throw new GenericSearchException("IndexWriter close error indexDir=" + indexDir+ " :\n", e);
+    	} finally {
+    		indexWriter = null;
+    		committedData = null;
+    		writerSettings = null;
+    		writerUsers = 0;
+    	}
+    	logger.info("closeIndexWriter indexDir=" + indexDir);
+    }
+
+    /**
+     * waits until the writer is released by its users, at most CLOSE_WAIT_TIME milliseconds
+     */
+    private synchronized void waitForWriterUsers() {
+    	long until = System.currentTimeMillis() + CLOSE_WAIT_TIME;
+    	long wait = CLOSE_WAIT_TIME;
+    	while (writerUsers > 0 && wait > 0) {
+    		try {
+    			wait(wait);
+    		} catch (InterruptedException e) {
+    			break;
+    		}
+    		wait = until - System.currentTimeMillis();
+    	}
+    	if (writerUsers > 0)
+    		logger.warn("IndexWriter still in use by " + writerUsers + ", indexDir=" + indexDir);
+    }
+
+    /**
+     * commits and closes the writer, once released, and closes the searchers and the directory.
+     * Searchers acquired before stay usable until released.
+     */
+    private synchronized void close()
+    throws GenericSearchException {
+    	if (closed) return;
+    	waitForWriterUsers();
+    	closed = true;
+    	try {
+    		closeIndexWriter();
+    	} finally {
+    		try {
+    			if (searcherManager != null)
+    				searcherManager.close();
+    			if (directory != null)
+    				directory.close();
+    		} catch (Exception e) {
+    			logger.warn("IndexManager close error indexDir=" + indexDir+ " :\n" + e.toString());
+    		} finally {
+    			searcherManager = null;
+    			directory = null;
+    			insearchFilters.clear();
+    		}
+    	}
+    	logger.info("closeIndexManager indexDir=" + indexDir);
+    }
+
+    /**
+     * pending changes are committed by the timer, and at shutdown,
+     * unless the index managers are closed before
+     */
+    private static synchronized void startCommitTimer() {
+    	if (commitTimer != null) return;
+    	commitTimer = new Timer("IndexManager commit", true);
+    	shutdownHook = new Thread() {
+    		public void run() {
+    			Enumeration<IndexManager> indexManagers = oneIndexManagerPerIndexDir.elements();
+    			while (indexManagers.hasMoreElements()) {
+    				IndexManager indexManager = indexManagers.nextElement();
+    				try {
+    					indexManager.closeIndexWriter();
+    				} catch (GenericSearchException e) {
+    					logger.error(e.toString());
+    				}
+    			}
+    		}
+    	};
+    	Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * returns false, when the task is not scheduled,
+     * as the timer is stopped or the task is cancelled by a commit meanwhile
+     */
+    private static synchronized boolean scheduleCommit(TimerTask task, long delay) {
+    	if (commitTimer == null) return false;
+    	try {
+    		commitTimer.schedule(task, delay);
+    	} catch (IllegalStateException e) {
+    		return false;
+    	}
+    	return true;
+    }
+
+    /**
+     * the timer thread and the shutdown hook are let go with the last index manager,
+     * so they do not keep the webapp loaded after undeploy
+     */
+    private static synchronized void stopCommitTimerIfUnused() {
+    	if (!oneIndexManagerPerIndexDir.isEmpty() || commitTimer == null) return;
+    	commitTimer.cancel();
+    	commitTimer = null;
+    	try {
+    		Runtime.getRuntime().removeShutdownHook(shutdownHook);
+    	} catch (IllegalStateException e) {
+    		// the JVM is shutting down
+    	}
+    	shutdownHook = null;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * <p><b>License and Copyright: </b>The contents of this file is subject to the
+ * same open source license as the Fedora Repository System at www.fedora-commons.org
+ * Copyright &copy; 2006, 2007, 2008, 2009, 2010, 2011, 2012, 2013 by The Technical University of Denmark.
+ * All rights reserved.</p>
+ */
+package dk.defxws.fgslucene;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.TimeZone;
+
+import org.apache.lucene.document.DoubleField;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+
+/**
+ * the typed index fields of an index, given by IndexField type="int", "long", "double" or "date",
+ * and listed in fgsindex.numericFields as fieldName::type.
+ * Their values are indexed as trie encoded numbers, dates as milliseconds since 1970 UTC,
+ * and range queries on them become numeric range queries.
+ * Dates are given as yyyy, yyyy-MM, yyyy-MM-dd, yyyy-MM-ddTHH:mm:ss or yyyy-MM-ddTHH:mm:ss.S
+ * with 1 to 3 fraction digits, optionally followed by Z, a partial date stands for the whole period.
+ *
+ * @author  gsp@dtv.dk
+ * @version
+ */
+public class NumericFields {
+
+    public static final String INT = "int";
+
+    public static final String LONG = "long";
+
+    public static final String DOUBLE = "double";
+
+    public static final String DATE = "date";
+
+    private static final String[] DATE_PATTERNS = {
+    	"yyyy", "yyyy-MM", "yyyy-MM-dd", "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd'T'HH:mm:ss.SSS" };
+
+    private static final int[] DATE_PERIODS = {
+    	Calendar.YEAR, Calendar.MONTH, Calendar.DAY_OF_MONTH, Calendar.SECOND, Calendar.MILLISECOND };
+
+    private Map<String, String> fieldTypes = new HashMap<String, String>();
+
+    /**
+     * numericFields is a space separated list of fieldName::type
+     */
+    public NumericFields(String numericFields) {
+    	if (numericFields == null) return;
+    	StringTokenizer st = new StringTokenizer(numericFields);
+    	while (st.hasMoreTokens()) {
+    		String fieldType = st.nextToken();
+    		int i = fieldType.indexOf("::");
+    		if (i > 0 && isType(fieldType.substring(i+2))) {
+    			fieldTypes.put(fieldType.substring(0, i), fieldType.substring(i+2));
+    		}
+    	}
+    }
+
+    public static boolean isType(String type) {
+    	return INT.equals(type) || LONG.equals(type) || DOUBLE.equals(type) || DATE.equals(type);
+    }
+
+    /**
+     * null if fieldName is not a typed field
+     */
+    public String getType(String fieldName) {
+    	return fieldTypes.get(fieldName);
+    }
+
+    public boolean isEmpty() {
+    	return fieldTypes.isEmpty();
+    }
+
+    /**
+     * the value as Integer, Long or Double, or null if it is not of the type
+     */
+    public static Number parse(String type, String value) {
+    	try {
+    		if (INT.equals(type)) return Integer.valueOf(value.trim());
+    		if (LONG.equals(type)) return Long.valueOf(value.trim());
+    		if (DOUBLE.equals(type)) return Double.valueOf(value.trim());
+    	} catch (NumberFormatException e) {
+    		return null;
+    	}
+    	if (DATE.equals(type)) return parseDate(value, false);
+    	return null;
+    }
+
+    /**
+     * the unstored, trie encoded field of value, which must be parsed by parse
+     */
+    public static Field newField(String fieldName, String type, Number value) {
+    	if (INT.equals(type)) return new IntField(fieldName, value.intValue(), Field.Store.NO);
+    	if (DOUBLE.equals(type)) return new DoubleField(fieldName, value.doubleValue(), Field.Store.NO);
+    	return new LongField(fieldName, value.longValue(), Field.Store.NO);
+    }
+
+    /**
+     * the numeric range query, or null if fieldName is not a typed field,
+     * null bounds are open
+     */
+    public Query newRangeQuery(String fieldName, String lower, String upper, boolean lowerInclusive, boolean upperInclusive)
+    throws NumberFormatException {
+    	String type = fieldTypes.get(fieldName);
+    	if (type == null) return null;
+    	if ("*".equals(lower)) lower = null;
+    	if ("*".equals(upper)) upper = null;
+    	if (DATE.equals(type)) {
+    		// an inclusive upper partial date includes its whole period
+    		Long min = null;
+    		Long max = null;
+    		if (lower != null) {
+    			min = parseDate(lower, !lowerInclusive);
+    			if (min == null) throw new NumberFormatException(fieldName+" is a date field, invalid date: "+lower);
+    			lowerInclusive = true;
+    		}
+    		if (upper != null) {
+    			max = parseDate(upper, upperInclusive);
+    			if (max == null) throw new NumberFormatException(fieldName+" is a date field, invalid date: "+upper);
+    			upperInclusive = false;
+    		}
+    		return NumericRangeQuery.newLongRange(fieldName, min, max, lowerInclusive, upperInclusive);
+    	}
+    	Number min = (lower == null ? null : parse(type, lower));
+    	Number max = (upper == null ? null : parse(type, upper));
+    	if ((lower != null && min == null) || (upper != null && max == null))
+    		throw new NumberFormatException(fieldName+" is a "+type+" field, invalid range: "+lower+" TO "+upper);
+    	if (INT.equals(type))
+    		return NumericRangeQuery.newIntRange(fieldName, (Integer) min, (Integer) max, lowerInclusive, upperInclusive);
+    	if (DOUBLE.equals(type))
+    		return NumericRangeQuery.newDoubleRange(fieldName, (Double) min, (Double) max, lowerInclusive, upperInclusive);
+    	return NumericRangeQuery.newLongRange(fieldName, (Long) min, (Long) max, lowerInclusive, upperInclusive);
+    }
+
+    /**
+     * the start of the period given by value, or the start of the next period if next,
+     * null if value is not a date
+     */
+    private static Long parseDate(String value, boolean next) {
+    	String date = value.trim();
+    	if (date.endsWith("Z")) date = date.substring(0, date.length()-1);
+    	// Fedora writes the milliseconds with 1 to 3 digits, .5 is .500
+    	int fraction = date.indexOf('.');
+    	if (fraction > 0 && date.length()-fraction-1 >= 1 && date.length()-fraction-1 < 3) {
+    		date = (date+"00").substring(0, fraction+4);
+    	}
+    	for (int i=0; i<DATE_PATTERNS.length; i++) {
+    		if (date.length() != DATE_PATTERNS[i].replace("'", "").length()) continue;
+    		SimpleDateFormat sdf = new SimpleDateFormat(DATE_PATTERNS[i]);
+    		sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+    		sdf.setLenient(false);
+    		ParsePosition pos = new ParsePosition(0);
+    		Date d = sdf.parse(date, pos);
+    		if (d == null || pos.getIndex() != date.length()) return null;
+    		if (!next) return Long.valueOf(d.getTime());
+    		Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    		cal.setTime(d);
+    		cal.add(DATE_PERIODS[i], 1);
+    		return Long.valueOf(cal.getTimeInMillis());
+    	}
+    	return null;
+    }
+}
@@ -8,22 +8,21 @@ package dk.defxws.fgslucene;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringWriter;
 import java.rmi.RemoteException;
-import java.util.HashMap;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.StringTokenizer;
 
+import javax.xml.transform.Result;
+import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.core.KeywordAnalyzer;
-import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.DirectoryReader;
@@ -33,17 +32,15 @@ import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.LogDocMergePolicy;
 import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.index.Terms;
-import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.SimpleFSDirectory;
-import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 
+import dk.defxws.fedoragsearch.server.FoxmlFilesPipeline;
 import dk.defxws.fedoragsearch.server.GTransformer;
 import dk.defxws.fedoragsearch.server.GenericOperationsImpl;
-import dk.defxws.fedoragsearch.server.errors.ConfigException;
+import dk.defxws.fedoragsearch.server.InsearchFiltering;
+import dk.defxws.fedoragsearch.server.TermsBrowser;
 import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
 
 /**
@@ -56,6 +53,20 @@ public class OperationsImpl extends GenericOperationsImpl {
     
     private static final Logger logger = Logger.getLogger(OperationsImpl.class);
     
+    private Analyzer indexAnalyzer;
+    
+    private IndexManager iwManager;
+    
+    private ResultSet resultSet;
+    
+    private ResultPageCache resultPageCache;
+    
+    private String resultPageKey;
+    
+    private long indexVersion;
+    
+    private String insearchFilter;
+    
     public String gfindObjects(
             String query,
             int hitPageStart,
@@ -65,10 +76,218 @@ public class OperationsImpl extends GenericOperationsImpl {
             String indexName,
             String sortFields,
             String resultPageXslt)
+    throws java.rmi.RemoteException {
+        return gfindObjects(query, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, indexName, sortFields, "", resultPageXslt);
+    }
+    
+    /**
+     * with a cursor, the page begins after the last hit of the page which gave the cursor,
+     * and hitPageStart is not used
+     */
+    public String gfindObjects(
+            String query,
+            int hitPageStart,
+            int hitPageSize,
+            int snippetsMax,
+            int fieldMaxLength,
+            String indexName,
+            String sortFields,
+            String cursor,
+            String resultPageXslt)
+    throws java.rmi.RemoteException {
+        return gfindObjects(query, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, indexName, sortFields, cursor, "", resultPageXslt);
+    }
+    
+    /**
+     * only the stored fields named in fields are loaded and given in the hits,
+     * all stored fields if fields is empty
+     */
+    public String gfindObjects(
+            String query,
+            int hitPageStart,
+            int hitPageSize,
+            int snippetsMax,
+            int fieldMaxLength,
+            String indexName,
+            String sortFields,
+            String cursor,
+            String fields,
+            String resultPageXslt)
+    throws java.rmi.RemoteException {
+        String usingIndexName = prepareGfindObjects(query, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, indexName, sortFields, resultPageXslt);
+        if (usingIndexName == null) {
+        	return embeddedResult.toString();
+        }
+        String resultPage = searchOrGetCachedPage(usingIndexName, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, sortFields, cursor, fields);
+        if (resultPage == null) {
+        	StringWriter sw = new StringWriter();
+        	transformResultSet(usingIndexName, resultPageXslt, new StreamResult(sw));
+        	resultPage = sw.toString();
+        	if (resultPageCache != null) {
+        		resultPageCache.put(indexVersion, resultPageKey, resultPage);
+        	}
+        }
+        StringBuffer resultXml = new StringBuffer(resultPage);
+        if (srf != null && config.isSearchResultFilteringActive("postsearch")) {
+        	resultXml = srf.filterResultsetForPostsearch(fgsUserName, resultXml, fgsUserAttributes, config);
+            if (logger.isDebugEnabled())
+                logger.debug("gfindObjects postsearch" +
+                        " fgsUserName="+fgsUserName+
+                        " resultXml=\n"+resultXml);
+        }
+        return resultXml.toString();
+    }
+    
+    /**
+     * resultMode count gives the hit total only, found by a counting collector,
+     * resultMode pids gives the PIDs of the hit page, loading no other stored field,
+     * the compact page is not transformed by the result page stylesheet
+     */
+    public String gfindObjects(
+            String query,
+            int hitPageStart,
+            int hitPageSize,
+            int snippetsMax,
+            int fieldMaxLength,
+            String indexName,
+            String sortFields,
+            String cursor,
+            String fields,
+            String resultMode,
+            String resultPageXslt)
+    throws java.rmi.RemoteException {
+        if (resultMode == null || resultMode.length() == 0) {
+            return gfindObjects(query, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, indexName, sortFields, cursor, fields, resultPageXslt);
+        }
+        if (!RESULTMODE_COUNT.equals(resultMode) && !RESULTMODE_PIDS.equals(resultMode)) {
+            throw new GenericSearchException("gfindObjects unknown resultMode="+resultMode);
+        }
+        if (config.getSearchResultFiltering() != null && config.isSearchResultFilteringActive("postsearch")) {
+            throw new GenericSearchException("gfindObjects resultMode="+resultMode+" is not available with postsearch result filtering");
+        }
+        String usingIndexName = prepareGfindObjects(query, hitPageStart, hitPageSize, 0, 0, indexName, sortFields, resultPageXslt);
+        if (usingIndexName == null) {
+        	return embeddedResult.toString();
+        }
+        StringBuffer resultXml = new StringBuffer();
+		try {
+            getIndexReaderAndSearcher(usingIndexName);
+            Statement statement = (new Connection()).createStatement();
+            statement.setNumericFields(config.getNumericFields(usingIndexName));
+            statement.setFilter(getInsearchFilter(usingIndexName, statement));
+            resultXml.append("<resultPage indexName=\""+GenericOperationsImpl.encode(usingIndexName)+"\">");
+            resultXml.append("<gfindObjects query=\""+GenericOperationsImpl.encode(query)+"\" resultMode=\""+resultMode+"\"");
+            if (RESULTMODE_COUNT.equals(resultMode)) {
+            	int hitTotal = statement.executeCount(
+            			searcher,
+            			usingQuery,
+            			getQueryAnalyzer(usingIndexName),
+            			config.getDefaultQueryFields(usingIndexName),
+            			config.getAllowLeadingWildcard(usingIndexName),
+            			config.getLowercaseExpandedTerms(usingIndexName));
+            	resultXml.append(" hitTotal=\""+hitTotal+"\"/>");
+            } else {
+            	resultSet = statement.executeQuery(
+            			searcher,
+            			usingQuery,
+            			hitPageStart,
+            			hitPageSize,
+            			0,
+            			0,
+            			getQueryAnalyzer(usingIndexName),
+            			config.getDefaultQueryFields(usingIndexName),
+            			config.getAllowLeadingWildcard(usingIndexName),
+            			config.getLowercaseExpandedTerms(usingIndexName),
+            			config.getIndexDir(usingIndexName),
+            			usingIndexName,
+            			config.getSnippetBegin(usingIndexName),
+            			config.getSnippetEnd(usingIndexName),
+            			config.getSortFields(usingIndexName, sortFields),
+            			config.getSortRegistry().getSort(usingIndexName, config.getSortFields(usingIndexName, sortFields)),
+            			cursor,
+            			"PID");
+            	resultXml.append(" hitPageStart=\""+resultSet.getHitPageStart()+"\"");
+            	resultXml.append(" hitPageSize=\""+hitPageSize+"\"");
+            	resultXml.append(" hitTotal=\""+resultSet.getHitTotal()+"\"");
+            	if (resultSet.getNextCursor() != null) {
+            		resultXml.append(" nextCursor=\""+resultSet.getNextCursor()+"\"");
+            	}
+            	resultXml.append(">");
+            	for (String pid : resultSet.getFieldValues("PID")) {
+            		if (pid != null) {
+            			resultXml.append("<pid>"+GenericOperationsImpl.encode(pid)+"</pid>");
+            		}
+            	}
+            	resultXml.append("</gfindObjects>");
+            }
+            resultXml.append("</resultPage>");
+		} catch (GenericSearchException e) {
+			throw e;
+		} catch (Exception e) {
+            throw new GenericSearchException("gfindObjects resultMode="+resultMode+" error:\n" + e.toString());
+        } finally {
+            closeIndexReaderAndSearcher(usingIndexName);
+		}
+        return resultXml.toString();
+    }
+    
+    /**
+     * the hits are given as SAX events to the result page stylesheet, which writes to result,
+     * unless the result page is to be cached or filtered by postsearch
+     */
+    public void gfindObjects(
+            String query,
+            int hitPageStart,
+            int hitPageSize,
+            int snippetsMax,
+            int fieldMaxLength,
+            String indexName,
+            String sortFields,
+            String cursor,
+            String fields,
+            String resultPageXslt,
+            Result result)
+    throws java.rmi.RemoteException {
+        if (config.getSearchResultFiltering() != null && config.isSearchResultFilteringActive("postsearch")) {
+        	super.gfindObjects(query, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, indexName, sortFields, cursor, fields, resultPageXslt, result);
+        	return;
+        }
+        String usingIndexName = prepareGfindObjects(query, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, indexName, sortFields, resultPageXslt);
+        if (usingIndexName == null) {
+        	(new GTransformer()).copy(embeddedResult, result);
+        	return;
+        }
+        String resultPage = searchOrGetCachedPage(usingIndexName, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, sortFields, cursor, fields);
+        if (resultPage == null && resultPageCache == null) {
+        	transformResultSet(usingIndexName, resultPageXslt, result);
+        	return;
+        }
+        if (resultPage == null) {
+        	StringWriter sw = new StringWriter();
+        	transformResultSet(usingIndexName, resultPageXslt, new StreamResult(sw));
+        	resultPage = sw.toString();
+        	resultPageCache.put(indexVersion, resultPageKey, resultPage);
+        }
+        (new GTransformer()).copy(new StringBuffer(resultPage), result);
+    }
+    
+    /**
+     * returns the index name to search, after presearch and insearch filtering,
+     * or null if the result is an embedded query result
+     */
+    private String prepareGfindObjects(
+            String query,
+            int hitPageStart,
+            int hitPageSize,
+            int snippetsMax,
+            int fieldMaxLength,
+            String indexName,
+            String sortFields,
+            String resultPageXslt)
     throws java.rmi.RemoteException {
         super.gfindObjects(query, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, indexName, sortFields, resultPageXslt);
         if ("".equals(usingQuery)) {
-        	return embeddedResult.toString();
+        	return null;
         }
         String usingIndexName = config.getIndexName(indexName);
         if (srf != null && config.isSearchResultFilteringActive("presearch")) {
@@ -78,64 +297,161 @@ public class OperationsImpl extends GenericOperationsImpl {
                         " fgsUserName="+fgsUserName+
                         " usingIndexName="+usingIndexName);
         }
+        insearchFilter = null;
         if (srf != null && config.isSearchResultFilteringActive("insearch")) {
-        	usingQuery = srf.rewriteQueryForInsearch(fgsUserName, usingIndexName, usingQuery, fgsUserAttributes, config);
+        	if (srf instanceof InsearchFiltering) {
+        		insearchFilter = ((InsearchFiltering) srf).getInsearchFilter(fgsUserName, usingIndexName, fgsUserAttributes, config);
+        	} else {
+        		usingQuery = srf.rewriteQueryForInsearch(fgsUserName, usingIndexName, usingQuery, fgsUserAttributes, config);
+        	}
             if (logger.isDebugEnabled())
                 logger.debug("gfindObjects insearch" +
                         " fgsUserName="+fgsUserName+
-                        " usingQuery="+usingQuery);
+                        " usingQuery="+usingQuery+
+                        " insearchFilter="+insearchFilter);
         }
-        ResultSet resultSet = null;
+        return usingIndexName;
+    }
+    
+    /**
+     * the filter of the insearch filter query, parsed once per index,
+     * null if there is no insearch filter
+     */
+    private Filter getInsearchFilter(String usingIndexName, Statement statement)
+    throws GenericSearchException {
+    	if (insearchFilter == null) return null;
+    	IndexManager indexManager = IndexManager.getIndexManager(config.getIndexDir(usingIndexName), config.getDirectoryImpl(usingIndexName));
+    	Filter filter = indexManager.getInsearchFilter(insearchFilter);
+    	if (filter == null) {
+    		filter = statement.newCachingFilter(
+    				insearchFilter,
+    				getQueryAnalyzer(usingIndexName),
+    				config.getDefaultQueryFields(usingIndexName),
+    				config.getAllowLeadingWildcard(usingIndexName),
+    				config.getLowercaseExpandedTerms(usingIndexName));
+    		indexManager.putInsearchFilter(insearchFilter, filter);
+    	}
+    	return filter;
+    }
+    
+    /**
+     * returns the cached result page, if any, otherwise the hits are found in resultSet
+     */
+    private String searchOrGetCachedPage(
+    		String usingIndexName,
+            int hitPageStart,
+            int hitPageSize,
+            int snippetsMax,
+            int fieldMaxLength,
+            String sortFields,
+            String cursor,
+            String fields)
+    throws java.rmi.RemoteException {
+        resultPageCache = IndexManager.getIndexManager(config.getIndexDir(usingIndexName), config.getDirectoryImpl(usingIndexName))
+        		.getResultPageCache(config.getResultPageCacheSize(usingIndexName), config.getResultPageCacheMaxChars(usingIndexName));
+        resultSet = null;
+        String resultPage = null;
 		try {
             getIndexReaderAndSearcher(usingIndexName);
-			resultSet = (new Connection()).createStatement().executeQuery(
-					searcher,
-					usingQuery,
-			        hitPageStart,
-			        hitPageSize,
-			        snippetsMax,
-			        fieldMaxLength,
-			        getQueryAnalyzer(usingIndexName),
-			        config.getDefaultQueryFields(usingIndexName),
-			        config.getAllowLeadingWildcard(usingIndexName),
-			        config.getLowercaseExpandedTerms(usingIndexName),
-			        config.getIndexDir(usingIndexName),
-			        usingIndexName,
-			        config.getSnippetBegin(usingIndexName),
-			        config.getSnippetEnd(usingIndexName),
-			        config.getSortFields(usingIndexName, sortFields));
+            if (resultPageCache != null) {
+            	indexVersion = ir.getVersion();
+            	resultPageKey = getResultPageKey(usingIndexName, usingQuery, snippetsMax, fieldMaxLength, config.getSortFields(usingIndexName, sortFields), cursor, fields);
+            	resultPage = resultPageCache.get(indexVersion, resultPageKey);
+            	if (resultPage != null) {
+                    if (logger.isDebugEnabled())
+                        logger.debug("gfindObjects resultPageCache hit indexVersion="+indexVersion+" hits="+resultPageCache.getHits()+" misses="+resultPageCache.getMisses());
+            	}
+            }
+            if (resultPage == null) {
+            	Statement statement = (new Connection()).createStatement();
+            	statement.setNumericFields(config.getNumericFields(usingIndexName));
+            	statement.setFilter(getInsearchFilter(usingIndexName, statement));
+            	resultSet = statement.executeQuery(
+            			searcher,
+            			usingQuery,
+            			hitPageStart,
+            			hitPageSize,
+            			snippetsMax,
+            			fieldMaxLength,
+            			getQueryAnalyzer(usingIndexName),
+            			config.getDefaultQueryFields(usingIndexName),
+            			config.getAllowLeadingWildcard(usingIndexName),
+            			config.getLowercaseExpandedTerms(usingIndexName),
+            			config.getIndexDir(usingIndexName),
+            			usingIndexName,
+            			config.getSnippetBegin(usingIndexName),
+            			config.getSnippetEnd(usingIndexName),
+            			config.getSortFields(usingIndexName, sortFields),
+            			config.getSortRegistry().getSort(usingIndexName, config.getSortFields(usingIndexName, sortFields)),
+            			cursor,
+            			fields);
+            	params[5] = Integer.toString(resultSet.getHitPageStart());
+            }
 		} catch (Exception e) {
             throw new GenericSearchException("gfindObjects executeQuery error:\n" + e.toString());
         } finally {
             closeIndexReaderAndSearcher(usingIndexName);
 		}
-        params[12] = "RESULTPAGEXSLT";
-        params[13] = resultPageXslt;
-        String xsltPath = null;
-		try {
-			xsltPath = config.getConfigName()+"/index/"+usingIndexName+"/"+config.getGfindObjectsResultXslt(usingIndexName, resultPageXslt);
-		} catch (Exception e) {
-            throw new GenericSearchException("gfindObjects xsltPath error:\n" + e.toString());
-		}
-        if (logger.isDebugEnabled())
-            logger.debug("gfindObjects xsltPath=\n"+xsltPath+" resultSet="+resultSet);
-        StringBuffer resultXml = null;
-		try {
-			resultXml = (new GTransformer()).transform(
-					xsltPath,
-					resultSet.getResultXml(),
-			        params);
-		} catch (Exception e) {
-            throw new GenericSearchException("gfindObjects transform error:\n" + e.toString());
-		}
-        if (srf != null && config.isSearchResultFilteringActive("postsearch")) {
-        	resultXml = srf.filterResultsetForPostsearch(fgsUserName, resultXml, fgsUserAttributes, config);
-            if (logger.isDebugEnabled())
-                logger.debug("gfindObjects postsearch" +
-                        " fgsUserName="+fgsUserName+
-                        " resultXml=\n"+resultXml);
-        }
-        return resultXml.toString();
+		return resultPage;
+    }
+    
+    private void transformResultSet(
+    		String usingIndexName,
+    		String resultPageXslt,
+    		Result result)
+    throws java.rmi.RemoteException {
+    	params[12] = "RESULTPAGEXSLT";
+    	params[13] = resultPageXslt;
+    	String xsltPath = null;
+    	try {
+    		xsltPath = config.getConfigName()+"/index/"+usingIndexName+"/"+config.getGfindObjectsResultXslt(usingIndexName, resultPageXslt);
+    	} catch (Exception e) {
+    		throw new GenericSearchException("gfindObjects xsltPath error:\n" + e.toString());
+    	}
+    	if (logger.isDebugEnabled())
+    		logger.debug("gfindObjects xsltPath=\n"+xsltPath+" resultSet="+resultSet);
+    	try {
+    		resultSet.emit((new GTransformer()).getTransformerHandler(xsltPath, params, result));
+    	} catch (Exception e) {
+    		throw new GenericSearchException("gfindObjects transform error:\n" + e.toString());
+    	}
+    }
+    
+    /**
+     * the result page depends on the transform params, which include the query, page window,
+     * sort fields, result xslt and user, and on the query and settings actually used for the search
+     */
+    private String getResultPageKey(
+    		String usingIndexName,
+    		String usingQuery,
+    		int snippetsMax,
+    		int fieldMaxLength,
+    		String usingSortFields,
+    		String cursor,
+    		String fields) {
+    	StringBuffer key = new StringBuffer();
+    	for (int i=0; i<params.length; i++) {
+    		key.append(params[i]).append('\u0000');
+    	}
+    	key.append(usingIndexName).append('\u0000');
+    	key.append(usingQuery).append('\u0000');
+    	key.append(snippetsMax).append('\u0000');
+    	key.append(fieldMaxLength).append('\u0000');
+    	key.append(usingSortFields).append('\u0000');
+    	key.append(cursor).append('\u0000');
+    	key.append(fields).append('\u0000');
+    	key.append(insearchFilter);
+    	return key.toString();
+    }
+    
+    public String browseIndex(
+            String startTerm,
+            int termPageSize,
+            String fieldName,
+            String indexName,
+            String resultPageXslt)
+    throws java.rmi.RemoteException {
+        return browseIndex(startTerm, termPageSize, fieldName, indexName, "", resultPageXslt);
     }
     
     public String browseIndex(
@@ -143,17 +459,12 @@ public class OperationsImpl extends GenericOperationsImpl {
             int termPageSize,
             String fieldName,
             String indexName,
+            String cursor,
             String resultPageXslt)
     throws java.rmi.RemoteException {
         super.browseIndex(startTerm, termPageSize, fieldName, indexName, resultPageXslt);
         StringBuffer resultXml = new StringBuffer();
-        try {
-            getIndexWriter(indexName);
-			optimize(indexName, resultXml);
-        } finally {
-            closeIndexWriter(indexName);
-        }
-        int termNo = 0;
+        TermsBrowser termsBrowser = new TermsBrowser();
         try {
             getIndexReaderAndSearcher(indexName);
             Fields fields;
@@ -171,34 +482,7 @@ public class OperationsImpl extends GenericOperationsImpl {
             resultXml.append("</fields>");
             resultXml.append("<terms>");
             if (fields != null && fieldName != null && fieldName.length()>0) {
-                int pageSize = 0;
-        	    Terms terms;
-				try {
-					terms = fields.terms(fieldName);
-				} catch (Exception e) {
-		              throw new GenericSearchException("fields.terms error:\n" + e.toString());
-				}
-        	    TermsEnum termsEnum;
-				try {
-					termsEnum = terms.iterator(null);
-				} catch (Exception e) {
-		              throw new GenericSearchException("terms.iterator error:\n" + e.toString());
-				}
-        	    BytesRef text;
-        	    try {
-					while((text = termsEnum.next()) != null) {
-					    termNo++;
-					    String termString = text.utf8ToString();
-					    if (startTerm.compareTo(termString) <= 0 && pageSize < termPageSize) {
-					        pageSize++;
-					        resultXml.append("<term no=\""+termNo+"\""
-					                +" fieldtermhittotal=\""+termsEnum.docFreq()
-					                +"\">"+encode(termString)+"</term>");
-					    }
-					}
-				} catch (Exception e) {
-		              throw new GenericSearchException("termsEnum.next error:\n" + e.toString());
-				}
+            	termsBrowser.browse(ir, config.getIndexDir(indexName), fieldName, startTerm, cursor, termPageSize, resultXml);
             }
             resultXml.append("</terms>");
         } catch (IOException e) {
@@ -206,6 +490,7 @@ public class OperationsImpl extends GenericOperationsImpl {
         } finally {
             closeIndexReaderAndSearcher(indexName);
         }
+        String nextCursor = termsBrowser.getNextCursor();
         resultXml.insert(0, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
                 "<lucenebrowseindex "+
                 "   xmlns:dc=\"http://purl.org/dc/elements/1.1/"+
@@ -213,7 +498,8 @@ public class OperationsImpl extends GenericOperationsImpl {
                 "\" termPageSize=\""+termPageSize+
                 "\" fieldName=\""+fieldName+
                 "\" indexName=\""+indexName+
-                "\" termTotal=\""+termNo+"\">");
+                (nextCursor.length() > 0 ? "\" nextCursor=\""+nextCursor : "")+
+                "\" termTotal=\""+termsBrowser.getTermTotal()+"\">");
         resultXml.append("</lucenebrowseindex>");
         if (logger.isDebugEnabled())
             logger.debug("resultXml="+resultXml);
@@ -291,10 +577,92 @@ public class OperationsImpl extends GenericOperationsImpl {
         		}
         	}
         } finally {
-            closeIndexWriter(indexName);
         	closeIndexReaderAndSearcher(indexName);
+            closeIndexWriter(indexName, insertTotal + updateTotal + deleteTotal);
         	docCount = initDocCount + insertTotal - deleteTotal;
         }
+        return updateIndexResult(action, value, repositoryName, indexName, resultPageXslt, resultXml);
+    }
+    
+    /**
+     * indexes the batch with one use of the index writer,
+     * so the changes are committed once, according to the commit policy
+     */
+    public String updateIndexPids(
+            List<String> fromPids,
+            List<String> deletePids,
+            String repositoryName,
+            String indexName,
+            String indexDocXslt,
+            String resultPageXslt)
+    throws java.rmi.RemoteException {
+        insertTotal = 0;
+        updateTotal = 0;
+        deleteTotal = 0;
+        emptyTotal = 0;
+        int initDocCount = 0;
+        StringBuffer resultXml = new StringBuffer(); 
+        resultXml.append("<luceneUpdateIndex");
+        resultXml.append(" indexName=\""+indexName+"\"");
+        resultXml.append(">\n");
+        try {
+            getIndexWriter(indexName);
+    		getIndexReaderAndSearcher(indexName);
+    		initDocCount = docCount;
+    		for (String pid : deletePids) {
+    			try {
+    				deletePid(pid, indexName, resultXml);
+    			} catch (java.rmi.RemoteException e) {
+    				warnCount++;
+    				failedPids.add(pid);
+    				logger.error("updateIndexPids deletePid="+pid+" indexName="+indexName+" :\n"+e.getMessage());
+    				resultXml.append("<error pid=\""+encode(pid)+"\">"+encode(e.getMessage())+"</error>\n");
+    			}
+    		}
+    		for (String pid : fromPids) {
+    			try {
+    				fromPid(pid, repositoryName, indexName, resultXml, indexDocXslt);
+    			} catch (java.rmi.RemoteException e) {
+    				warnCount++;
+    				failedPids.add(pid);
+    				logger.error("updateIndexPids fromPid="+pid+" indexName="+indexName+" :\n"+e.getMessage());
+    				resultXml.append("<error pid=\""+encode(pid)+"\">"+encode(e.getMessage())+"</error>\n");
+    			}
+    		}
+        } finally {
+        	closeIndexReaderAndSearcher(indexName);
+            closeIndexWriter(indexName, insertTotal + updateTotal + deleteTotal);
+        	docCount = initDocCount + insertTotal - deleteTotal;
+        }
+        return updateIndexResult("batch", "fromPids="+fromPids.size()+" deletePids="+deletePids.size(), repositoryName, indexName, resultPageXslt, resultXml);
+    }
+    
+    /**
+     * commits and closes the shared writer of the index, and closes its searchers,
+     * they are opened again by the next request
+     */
+    public void closeIndex(String indexName)
+    throws java.rmi.RemoteException {
+    	IndexManager.closeIndexManager(config.getIndexDir(indexName));
+    }
+    
+    /**
+     * the changes are committed according to the commit policy,
+     * the commit user data keeps the checkpoints of the update journals
+     */
+    public Map<String, String> getCommitData(String indexName)
+    throws java.rmi.RemoteException {
+    	return IndexManager.getIndexManager(config.getIndexDir(indexName), config.getDirectoryImpl(indexName)).getCommitData();
+    }
+    
+    private String updateIndexResult(
+            String action,
+            String value,
+            String repositoryName,
+            String indexName,
+            String resultPageXslt,
+            StringBuffer resultXml)
+    throws java.rmi.RemoteException {
         logger.info("updateIndex "+action+" indexName="+indexName
         		+" indexDirSpace="+indexDirSpace(new File(config.getIndexDir(indexName)))
         		+" docCount="+docCount);
@@ -306,6 +674,16 @@ public class OperationsImpl extends GenericOperationsImpl {
         resultXml.append(" docCount=\""+docCount+"\"");
         resultXml.append(" warnCount=\""+warnCount+"\"");
         resultXml.append("/>\n");
+        ResultPageCache resultPageCache = IndexManager.getIndexManager(config.getIndexDir(indexName), config.getDirectoryImpl(indexName))
+        		.getResultPageCache(config.getResultPageCacheSize(indexName), config.getResultPageCacheMaxChars(indexName));
+        if (resultPageCache != null) {
+        	resultXml.append("<resultPageCache");
+        	resultXml.append(" size=\""+resultPageCache.getSize()+"\"");
+        	resultXml.append(" chars=\""+resultPageCache.getChars()+"\"");
+        	resultXml.append(" hits=\""+resultPageCache.getHits()+"\"");
+        	resultXml.append(" misses=\""+resultPageCache.getMisses()+"\"");
+        	resultXml.append("/>\n");
+        }
         resultXml.append("</luceneUpdateIndex>\n");
         if (logger.isDebugEnabled())
             logger.debug("resultXml =\n"+resultXml.toString());
@@ -339,6 +717,7 @@ public class OperationsImpl extends GenericOperationsImpl {
 		} catch (IOException e) {
             throw new GenericSearchException("createEmpty deleteAll error indexName=" + indexName+ " :\n", e);
 		}
+        commitIndexWriter(indexName);
     	if (logger.isDebugEnabled())
     		logger.debug("getIndexWriter indexName=" + indexName+ " docCount=" + docCount);
         resultXml.append("<createEmpty/>\n");
@@ -374,6 +753,7 @@ public class OperationsImpl extends GenericOperationsImpl {
         } catch (IOException e) {
             throw new GenericSearchException("updateIndex optimize error indexName="+indexName+"\n", e);
     	}
+        commitIndexWriter(indexName);
         if (logger.isDebugEnabled())
             logger.debug("optimize indexName="+indexName);
         resultXml.append("<optimize/>\n");
@@ -381,10 +761,10 @@ public class OperationsImpl extends GenericOperationsImpl {
     
     private void fromFoxmlFiles(
             String filePath,
-            String repositoryName,
-            String indexName,
-            StringBuffer resultXml,
-            String indexDocXslt)
+            final String repositoryName,
+            final String indexName,
+            final StringBuffer resultXml,
+            final String indexDocXslt)
     throws java.rmi.RemoteException {
         if (logger.isDebugEnabled())
             logger.debug("fromFoxmlFiles filePath="+filePath+" repositoryName="+repositoryName+" indexName="+indexName);
@@ -392,41 +772,32 @@ public class OperationsImpl extends GenericOperationsImpl {
         if (filePath==null || filePath.equals(""))
             objectDir = config.getFedoraObjectDir(repositoryName);
         else objectDir = new File(filePath);
-        indexDocs(objectDir, repositoryName, indexName, resultXml, indexDocXslt);
+        FoxmlFilesPipeline pipeline = new FoxmlFilesPipeline(new FoxmlFilesPipeline.Stages() {
+        	public StringBuffer transformFoxml(File file, InputStream foxmlStream)
+        	throws RemoteException {
+        		return getIndexDoc(repositoryName, indexName, foxmlStream, indexDocXslt);
+        	}
+        	public Object buildIndexDocument(File file, StringBuffer indexDoc)
+        	throws RemoteException {
+        		return new IndexDocumentHandler(newWorker(indexName), repositoryName, getPidFromObjectFilename(file.getName()), indexDoc);
+        	}
+        	public void writeIndexDocument(File file, Object indexDocument)
+        	throws RemoteException {
+        		writeIndexDoc((IndexDocumentHandler) indexDocument, repositoryName, indexName, resultXml);
+        	}
+        }, config.getFromFoxmlFilesWorkers(indexName), config.getFromFoxmlFilesQueueSize(indexName), resultXml, warnCount);
+        pipeline.run(objectDir);
+        warnCount = pipeline.getWarnCount();
     }
     
-    private void indexDocs(
-            File file, 
-            String repositoryName,
-            String indexName,
-            StringBuffer resultXml, 
-            String indexDocXslt)
-    throws java.rmi.RemoteException
-    {
-		if (file.isHidden()) return;
-        if (file.isDirectory())
-        {
-            String[] files = file.list();
-            for (int i = 0; i < files.length; i++) {
-                if (i % 100 == 0)
-                    logger.info("updateIndex fromFoxmlFiles "+file.getAbsolutePath()
-                    		+" indexDirSpace="+indexDirSpace(new File(config.getIndexDir(indexName)))
-                    		+" docCount="+docCount);
-                indexDocs(new File(file, files[i]), repositoryName, indexName, resultXml, indexDocXslt);
-            }
-        }
-        else
-        {
-            try {
-                indexDoc(getPidFromObjectFilename(file.getName()), repositoryName, indexName, new FileInputStream(file), resultXml, indexDocXslt);
-            } catch (RemoteException e) {
-                resultXml.append("<warning no=\""+(++warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>\n");
-                logger.warn("<warning no=\""+(warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>");
-            } catch (FileNotFoundException e) {
-              resultXml.append("<warning no=\""+(++warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>\n");
-              logger.warn("<warning no=\""+(warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>");
-            }
-        }
+    /**
+     * documents are built in parallel, each by its own instance,
+     * because the datastream methods called by IndexDocumentHandler keep state in the instance
+     */
+    private OperationsImpl newWorker(String indexName) {
+    	OperationsImpl worker = new OperationsImpl();
+    	worker.init(fgsUserName, indexName, config, fgsUserAttributes);
+    	return worker;
     }
     
     private void fromPid(
@@ -449,7 +820,21 @@ public class OperationsImpl extends GenericOperationsImpl {
     		StringBuffer resultXml,
     		String indexDocXslt)
     throws java.rmi.RemoteException {
-    	IndexDocumentHandler hdlr = null;
+    	StringBuffer sb = getIndexDoc(repositoryName, indexName, foxmlStream, indexDocXslt);
+    	IndexDocumentHandler hdlr = new IndexDocumentHandler(
+    			this,
+    			repositoryName,
+    			pid_in,
+    			sb);
+    	writeIndexDoc(hdlr, repositoryName, indexName, resultXml);
+    }
+    
+    private StringBuffer getIndexDoc(
+    		String repositoryName,
+    		String indexName,
+    		InputStream foxmlStream,
+    		String indexDocXslt)
+    throws java.rmi.RemoteException {
     	String xsltName = indexDocXslt;
     	String[] params = new String[12];
     	int beginParams = indexDocXslt.indexOf("(");
@@ -498,11 +883,15 @@ public class OperationsImpl extends GenericOperationsImpl {
     			params);
     	if (logger.isDebugEnabled())
     		logger.debug("indexDoc=\n"+sb.toString());
-    	hdlr = new IndexDocumentHandler(
-    			this,
-    			repositoryName,
-    			pid_in,
-    			sb);
+    	return sb;
+    }
+    
+    private void writeIndexDoc(
+    		IndexDocumentHandler hdlr,
+    		String repositoryName,
+    		String indexName,
+    		StringBuffer resultXml)
+    throws java.rmi.RemoteException {
 		ListIterator li = hdlr.getIndexDocument().getFields().listIterator();
 		String pid = hdlr.getPid();
 		if (li.hasNext()) {
@@ -515,7 +904,7 @@ public class OperationsImpl extends GenericOperationsImpl {
         		resultXml.append("<inserted>"+pid+"</inserted>\n");
             }
             try {
-				iw.updateDocument(new Term("PID", pid), hdlr.getIndexDocument());
+				iw.updateDocument(new Term("PID", pid), hdlr.getIndexDocument(), indexAnalyzer);
         	} catch (Exception e) {
         		throw new GenericSearchException("Update error pid="+pid, e);
 			}
@@ -527,6 +916,7 @@ public class OperationsImpl extends GenericOperationsImpl {
 					config.setUntokenizedFields(indexName, untokenizedFields.toString());
 				}
 			}
+			addNumericFields(indexName, hdlr.getNumericFieldTypes());
 			logger.info("IndexDocument="+pid+" insertTotal="+insertTotal+" updateTotal="+updateTotal+" deleteTotal="+deleteTotal+" emptyTotal="+emptyTotal+" warnCount="+warnCount+" docCount="+docCount);
 		}
 		else {
@@ -536,6 +926,25 @@ public class OperationsImpl extends GenericOperationsImpl {
 		}
     }
     
+    /**
+     * registers the typed fields of an index document,
+     * so that range queries on them become numeric range queries
+     */
+    private void addNumericFields(String indexName, Map<String, String> numericFieldTypes) {
+    	if (numericFieldTypes.isEmpty()) return;
+    	NumericFields numericFields = new NumericFields(config.getNumericFields(indexName));
+    	StringBuffer sb = new StringBuffer(config.getNumericFields(indexName));
+    	for (Map.Entry<String, String> e : numericFieldTypes.entrySet()) {
+    		if (numericFields.getType(e.getKey()) == null) {
+    			sb.append(" "+e.getKey()+"::"+e.getValue());
+    		}
+    	}
+    	if (sb.length() > config.getNumericFields(indexName).length()) {
+    		config.setNumericFields(indexName, sb.toString().trim());
+    		logger.info("indexName="+indexName+" fgsindex.numericFields="+sb.toString().trim());
+    	}
+    }
+    
     public Analyzer getAnalyzer(String indexName)
     throws GenericSearchException {
     	return getAnalyzer(indexName, "");
@@ -543,119 +952,24 @@ public class OperationsImpl extends GenericOperationsImpl {
     
     public Analyzer getAnalyzer(String indexName, String className)
     throws GenericSearchException {
-    	String analyzerClassName = className;
-    	if (analyzerClassName.length()==0) {
-        	analyzerClassName= config.getAnalyzer(indexName);
-    	}
-		String stopwordsLocation = config.getStopwordsLocation(indexName); 
-        if (logger.isDebugEnabled())
-            logger.debug("getAnalyzer analyzerClassName=" + analyzerClassName+ " stopwordsLocation="+stopwordsLocation);
-        Analyzer analyzer = null;
-        if ("org.apache.lucene.analysis.KeywordAnalyzer".equals(analyzerClassName)) {
-        	analyzer = new KeywordAnalyzer();
-        } else {
-    		try {
-    			Version version = Version.LUCENE_42;
-    			Class analyzerClass = Class.forName(analyzerClassName);
-                if (logger.isDebugEnabled())
-                    logger.debug("getAnalyzer analyzerClass=" + analyzerClass.toString());
-    			if (stopwordsLocation == null || stopwordsLocation.equals("")) {
-    				analyzer = (Analyzer) analyzerClass.getConstructor(new Class[] { Version.class})
-    				.newInstance(new Object[] { version });
-    			} else {
-    				analyzer = (Analyzer) analyzerClass.getConstructor(new Class[] { Version.class, File.class})
-    				.newInstance(new Object[] { version, new File(stopwordsLocation) });
-    			}
-            } catch (Exception e) {
-                throw new GenericSearchException(analyzerClassName
-                        + ": instantiation error.\n", e);
-            }
-        }
-        if (logger.isDebugEnabled())
-            logger.debug("getAnalyzer analyzer=" + analyzer.toString());
-        return analyzer;
+    	return config.getAnalyzerRegistry().newAnalyzer(indexName, className);
     }
     
+    /**
+     * the analyzers are built once per index and config, and shared by all requests
+     */
     public Analyzer getQueryAnalyzer(String indexName)
     throws GenericSearchException {
         if (logger.isDebugEnabled())
             logger.debug("getQueryAnalyzer indexName=" + indexName);
-        Analyzer analyzer = getAnalyzer(indexName);
-        Map<String,Analyzer> fieldAnalyzers = new HashMap<String, Analyzer>();
-        String configFieldAnalyzers = "";
-        try {
-			configFieldAnalyzers = config.getFieldAnalyzers(indexName);
-		} catch (Exception e) {
-            throw new ConfigException("getQueryAnalyzer config.getFieldAnalyzers "+" :\n", e);
-		}
-        if (logger.isDebugEnabled())
-            logger.debug("getQueryAnalyzer configFieldAnalyzers=" + configFieldAnalyzers);
-        if (configFieldAnalyzers != null && configFieldAnalyzers.length()>0) {
-            StringTokenizer stConfigFieldAnalyzers = new StringTokenizer(configFieldAnalyzers);
-        	while (stConfigFieldAnalyzers.hasMoreElements()) {
-        		String fieldAnalyzer = stConfigFieldAnalyzers.nextToken();
-                if (logger.isDebugEnabled())
-                    logger.debug("getQueryAnalyzer fieldAnalyzer=" + fieldAnalyzer);
-        		int i = fieldAnalyzer.indexOf("::");
-        		if (i<0) {
-                    throw new ConfigException("getQueryAnalyzer fgsindex.fieldAnalyzer="+fieldAnalyzer+ " missing '::'");
-        		}
-    			String fieldName = "-";
-    			String analyzerClassName = "-";
-        		try {
-    				fieldName = fieldAnalyzer.substring(0, i);
-    				analyzerClassName = fieldAnalyzer.substring(i+2);
-    				fieldAnalyzers.put(fieldName, getAnalyzer(indexName, analyzerClassName));
-    			} catch (Exception e) {
-    	            throw new ConfigException("getQueryAnalyzer getAnalyzer fieldName="+fieldName+" analyzerClassName="+analyzerClassName+" :\n", e);
-    			}
-        	}
-        }
-    	StringTokenizer untokenizedFields = new StringTokenizer(config.getUntokenizedFields(indexName));
-    	while (untokenizedFields.hasMoreElements()) {
-    		String fieldName = untokenizedFields.nextToken();
-    		if (!fieldAnalyzers.containsKey(fieldName)) {
-        		fieldAnalyzers.put(fieldName, new KeywordAnalyzer());
-    		}
-    	}
-        PerFieldAnalyzerWrapper pfanalyzer = new PerFieldAnalyzerWrapper(analyzer, fieldAnalyzers);
-        if (logger.isDebugEnabled())
-            logger.debug("getQueryAnalyzer indexName=" + indexName+ " untokenizedFields="+untokenizedFields);
-        return pfanalyzer;
+        return config.getAnalyzerRegistry().getQueryAnalyzer(indexName);
     }
     
     private void getIndexReaderAndSearcher(String indexName)
     throws GenericSearchException {
-    	DirectoryReader irreopened = null;
-		if (ir != null) {
-	    	try {
-				irreopened = DirectoryReader.openIfChanged(ir);
-			} catch (Exception e) {
-				throw new GenericSearchException("IndexReader reopen error indexName=" + indexName+ " :\n", e);
-			}
-			if (null != irreopened){
-				try {
-					ir.close();
-				} catch (Exception e) {
-					ir = null;
-					try {
-						irreopened.close();
-					} catch (Exception e1) {
-					}
-					throw new GenericSearchException("IndexReader close after reopen error indexName=" + indexName+ " :\n", e);
-				}
-				ir = irreopened;
-			}
-		} else {
-	        try {
-	        	closeIndexReaderAndSearcher(indexName);
-				Directory dir = new SimpleFSDirectory(new File(config.getIndexDir(indexName)));
-				ir = DirectoryReader.open(dir);
-			} catch (Exception e) {
-				throw new GenericSearchException("IndexReader open error indexName=" + indexName+ " :\n", e);
-			}
-			searcher = new IndexSearcher(ir);
-		}
+    	closeIndexReaderAndSearcher(indexName);
+    	searcher = IndexManager.getIndexManager(config.getIndexDir(indexName), config.getDirectoryImpl(indexName)).acquireSearcher();
+    	ir = (DirectoryReader) searcher.getIndexReader();
         docCount = ir.numDocs();
     	if (logger.isDebugEnabled())
     		logger.debug("getIndexReaderAndSearcher indexName=" + indexName+ " docCount=" + docCount);
@@ -663,14 +977,12 @@ public class OperationsImpl extends GenericOperationsImpl {
     
     private void closeIndexReaderAndSearcher(String indexName)
     throws GenericSearchException {
-        searcher = null;
-		if (ir != null) {
+		if (searcher != null) {
             docCount = ir.numDocs();
             try {
-                ir.close();
-            } catch (Exception e) {
-                throw new GenericSearchException("IndexReader close error indexName=" + indexName+ " :\n", e);
+            	IndexManager.getIndexManager(config.getIndexDir(indexName), config.getDirectoryImpl(indexName)).releaseSearcher(searcher);
             } finally {
+            	searcher = null;
             	ir = null;
             	if (logger.isDebugEnabled())
             		logger.debug("closeIndexReader indexName=" + indexName+ " docCount=" + docCount);
@@ -681,59 +993,71 @@ public class OperationsImpl extends GenericOperationsImpl {
     private void getIndexWriter(String indexName)
     throws GenericSearchException {
     	if (iw == null) {
-    		Directory dir;
-    		try {
-    			dir = new SimpleFSDirectory(new File(config.getIndexDir(indexName)));
-    		} catch (Exception e) {
-                throw new GenericSearchException("IndexWriter new error indexName=" + indexName+ " :\n", e);
-    		}
-    		IndexWriterConfig iwconfig = new IndexWriterConfig(Version.LUCENE_42, getQueryAnalyzer(indexName));
-    		int maxBufferedDocs = config.getMaxBufferedDocs(indexName);
-    		if (maxBufferedDocs > 0) {
-    			iwconfig.setMaxBufferedDocs(maxBufferedDocs);
-    		}
-    		int mergeFactor = config.getMergeFactor(indexName);
-    		if (mergeFactor > 0) {
-    			LogDocMergePolicy ldmp = new LogDocMergePolicy();
-    			ldmp.setMergeFactor(mergeFactor);
-    			iwconfig.setMergePolicy(ldmp);
-    		}
-    		long defaultWriteLockTimeout = config.getDefaultWriteLockTimeout(indexName);
-    		if (defaultWriteLockTimeout > 0) {
-    			IndexWriterConfig.setDefaultWriteLockTimeout(defaultWriteLockTimeout);
+    		IndexManager indexManager = IndexManager.getIndexManager(config.getIndexDir(indexName), config.getDirectoryImpl(indexName));
+    		indexAnalyzer = getQueryAnalyzer(indexName);
+			int maxBufferedDocs = config.getMaxBufferedDocs(indexName);
+			int mergeFactor = config.getMergeFactor(indexName);
+			long defaultWriteLockTimeout = config.getDefaultWriteLockTimeout(indexName);
+			String writerSettings = "maxBufferedDocs="+maxBufferedDocs
+					+" mergeFactor="+mergeFactor
+					+" defaultWriteLockTimeout="+defaultWriteLockTimeout;
+    		iw = indexManager.acquireIndexWriter(writerSettings);
+    		if (iw == null) {
+    			IndexWriterConfig iwconfig = new IndexWriterConfig(Version.LUCENE_42, indexAnalyzer);
+    			if (maxBufferedDocs > 0) {
+    				iwconfig.setMaxBufferedDocs(maxBufferedDocs);
+    			}
+    			if (mergeFactor > 0) {
+    				LogDocMergePolicy ldmp = new LogDocMergePolicy();
+    				ldmp.setMergeFactor(mergeFactor);
+    				iwconfig.setMergePolicy(ldmp);
+    			}
+    			if (defaultWriteLockTimeout > 0) {
+    				IndexWriterConfig.setDefaultWriteLockTimeout(defaultWriteLockTimeout);
+    			}
+    			iw = indexManager.openIndexWriter(iwconfig, writerSettings);
     		}
-    	    try {
-                iw = new IndexWriter(dir, iwconfig);
-            } catch (Exception e) {
-                    throw new GenericSearchException("IndexWriter new error indexName=" + indexName+ " :\n", e);
-            }
+    		iwManager = indexManager;
     	}
         try {
 			docCount = iw.numDocs();
 		} catch (Exception e) {
-			closeIndexWriter(indexName);
+			iw = null;
+			iwManager.releaseIndexWriter();
             throw new GenericSearchException("IndexWriter numDocs error indexName=" + indexName+ " :\n", e);
 		}
     	if (logger.isDebugEnabled())
     		logger.debug("getIndexWriter indexName=" + indexName+ " docCount=" + docCount);
     }
     
-    private void closeIndexWriter(String indexName)
+    /**
+     * the writer is shared and stays open,
+     * the changes are committed according to fgsindex.commitMaxDocs and fgsindex.commitMaxTime
+     */
+    private void closeIndexWriter(String indexName, int changes)
     throws GenericSearchException {
 		if (iw != null) {
             try {
     			docCount = iw.numDocs();
-                iw.close();
-            } catch (Exception e) {
-                throw new GenericSearchException("IndexWriter close error indexName=" + indexName+ " :\n", e);
+    			iwManager.changesDone(
+    					changes,
+    					config.getCommitMaxDocs(indexName),
+    					config.getCommitMaxTime(indexName));
             } finally {
             	iw = null;
+            	// the writer is given back to the manager it came from, even if that is closed meanwhile
+            	iwManager.releaseIndexWriter();
             	if (logger.isDebugEnabled())
-            		logger.debug("closeIndexWriter indexName=" + indexName);
+            		logger.debug("closeIndexWriter indexName=" + indexName+ " changes=" + changes);
             }
 		}
     }
     
+    private void commitIndexWriter(String indexName)
+    throws GenericSearchException {
+    	IndexManager.getIndexManager(config.getIndexDir(indexName), config.getDirectoryImpl(indexName)).commit();
+    }
+    
     private long indexDirSpace(File dir) {
     	long ids = 0;
         File[] files = dir.listFiles();
@@ -0,0 +1,121 @@
+/*
+ * <p><b>License and Copyright: </b>The contents of this file is subject to the
+ * same open source license as the Fedora Repository System at www.fedora-commons.org
+ * Copyright &copy; 2006, 2007, 2008, 2009, 2010, 2011, 2012, 2013 by The Technical University of Denmark.
+ * All rights reserved.</p>
+ */
+package dk.defxws.fgslucene;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * holds the most recently used gfindObjects result pages of one index,
+ * limited by number of pages and by their total number of characters.
+ * The pages belong to one index reader version,
+ * they are all dropped when a searcher on a newer version asks for a page.
+ *
+ * @author  gsp@dtv.dk
+ * @version
+ */
+public class ResultPageCache {
+
+    private static final Logger logger = Logger.getLogger(ResultPageCache.class);
+
+    private int maxPages;
+
+    private long maxChars;
+
+    private long chars = 0;
+
+    private long indexVersion = -1;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private LinkedHashMap<String, String> pages = new LinkedHashMap<String, String>(16, 0.75f, true);
+
+    public ResultPageCache(int maxPages, long maxChars) {
+    	setLimits(maxPages, maxChars);
+    }
+
+    /**
+     * the limits may change when the configuration is reloaded
+     */
+    public synchronized void setLimits(int maxPages, long maxChars) {
+    	this.maxPages = maxPages;
+    	this.maxChars = maxChars;
+    	evict();
+    }
+
+    /**
+     * returns the page cached for key, or null
+     */
+    public synchronized String get(long version, String key) {
+    	newVersion(version);
+    	String page = null;
+    	if (version == indexVersion) {
+    		page = pages.get(key);
+    	}
+    	if (page == null) {
+    		misses++;
+    	} else {
+    		hits++;
+    	}
+    	return page;
+    }
+
+    /**
+     * pages from searchers on an older index version are not cached
+     */
+    public synchronized void put(long version, String key, String page) {
+    	newVersion(version);
+    	if (version != indexVersion) return;
+    	if (maxChars > 0 && page.length() > maxChars) return;
+    	String old = pages.put(key, page);
+    	if (old != null) {
+    		chars -= old.length();
+    	}
+    	chars += page.length();
+    	evict();
+    }
+
+    public synchronized long getHits() {
+    	return hits;
+    }
+
+    public synchronized long getMisses() {
+    	return misses;
+    }
+
+    public synchronized int getSize() {
+    	return pages.size();
+    }
+
+    public synchronized long getChars() {
+    	return chars;
+    }
+
+    private void newVersion(long version) {
+    	if (version > indexVersion) {
+    		if (logger.isDebugEnabled())
+    			logger.debug("newVersion "+version+" dropped pages="+pages.size()+" of version "+indexVersion);
+    		pages.clear();
+    		chars = 0;
+    		indexVersion = version;
+    	}
+    }
+
+    private void evict() {
+    	Iterator<Map.Entry<String, String>> it = pages.entrySet().iterator();
+    	while (it.hasNext()
+    			&& (pages.size() > maxPages || (maxChars > 0 && chars > maxChars))) {
+    		chars -= it.next().getValue().length();
+    		it.remove();
+    	}
+    }
+}
@@ -6,39 +6,273 @@
  */
 package dk.defxws.fgslucene;
 
-import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
 
 import org.apache.log4j.Logger;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
 
 /**
- * operates on the result set from an operation on the Lucene index 
- * 
+ * operates on the result set from an operation on the Lucene index.
+ * The hits are kept as found by the Statement,
+ * and given as SAX events of a lucenesearch document to the result page transformation,
+ * so the document is never built as a string.
+ *
  * @author  gsp@dtv.dk
- * @version 
+ * @version
  */
 public class ResultSet {
-    
+
     private static final Logger logger =
         Logger.getLogger(ResultSet.class);
-    
-    private StringBuffer resultXml;
-    
+
+    private static final String DC_NS = "http://purl.org/dc/elements/1.1/";
+
+    private AttributesImpl searchAttributes = new AttributesImpl();
+
+    private List<Hit> hits = new ArrayList<Hit>();
+
+    private int hitPageStart = 1;
+
+    private int hitTotal = 0;
+
+    private String nextCursor = null;
+
     public ResultSet() {
     }
-    
-    protected ResultSet(StringBuffer in)
-    throws GenericSearchException {
-        resultXml = in;
+
+    protected void setSearchAttributes(
+    		String queryEncoded,
+    		String indexName,
+    		String sortFields,
+    		int hitPageStart,
+    		int hitPageSize,
+    		int hitTotal) {
+    	searchAttributes.clear();
+    	this.hitPageStart = hitPageStart;
+    	this.hitTotal = hitTotal;
+    	this.nextCursor = null;
+    	addAttribute(searchAttributes, "query", queryEncoded);
+    	addAttribute(searchAttributes, "indexName", indexName);
+    	addAttribute(searchAttributes, "sortFields", sortFields);
+    	addAttribute(searchAttributes, "hitPageStart", Integer.toString(hitPageStart));
+    	addAttribute(searchAttributes, "hitPageSize", Integer.toString(hitPageSize));
+    	addAttribute(searchAttributes, "hitTotal", Integer.toString(hitTotal));
+    }
+
+    /**
+     * the cursor from which the next hit page is found
+     */
+    protected void setNextCursor(String nextCursor) {
+    	this.nextCursor = nextCursor;
+    	addAttribute(searchAttributes, "nextCursor", nextCursor);
+    }
+
+    /**
+     * the hit page start actually used, which is given by the cursor, if any
+     */
+    public int getHitPageStart() {
+    	return hitPageStart;
+    }
+
+    public int getHitTotal() {
+    	return hitTotal;
+    }
+
+    /**
+     * null if there are no more hits
+     */
+    public String getNextCursor() {
+    	return nextCursor;
+    }
+
+    protected void addHit(int no, String score) {
+    	hits.add(new Hit(no, score));
+    }
+
+    /**
+     * adds a field to the last hit,
+     * the value of a snippet field is markup, otherwise it is text
+     */
+    protected void addField(String name, String value, boolean snippet) {
+    	hits.get(hits.size()-1).fields.add(new HitField(name, value, snippet));
+    }
+
+    public int getHitCount() {
+    	return hits.size();
+    }
+
+    /**
+     * the first value of the field in each hit, null if the hit has no such field
+     */
+    public List<String> getFieldValues(String name) {
+    	List<String> values = new ArrayList<String>(hits.size());
+    	for (Hit hit : hits) {
+    		String value = null;
+    		for (HitField field : hit.fields) {
+    			if (field.name.equals(name)) {
+    				value = field.value;
+    				break;
+    			}
+    		}
+    		values.add(value);
+    	}
+    	return values;
+    }
+
+    /**
+     * gives the lucenesearch document as SAX events to handler
+     */
+    protected void emit(ContentHandler handler)
+    throws SAXException {
+    	SnippetParser snippetParser = null;
+    	handler.startDocument();
+    	handler.startPrefixMapping("dc", DC_NS);
+    	handler.startElement("", "lucenesearch", "lucenesearch", searchAttributes);
+    	AttributesImpl atts = new AttributesImpl();
+    	for (Hit hit : hits) {
+    		atts.clear();
+    		addAttribute(atts, "no", Integer.toString(hit.no));
+    		addAttribute(atts, "score", hit.score);
+    		handler.startElement("", "hit", "hit", atts);
+    		for (HitField field : hit.fields) {
+        		atts.clear();
+        		addAttribute(atts, "name", field.name);
+        		if (field.snippet) {
+            		addAttribute(atts, "snippet", "yes");
+        		}
+        		handler.startElement("", "field", "field", atts);
+        		if (field.snippet) {
+        			if (snippetParser == null) {
+        				snippetParser = new SnippetParser();
+        			}
+        			snippetParser.parse(field.value, handler);
+        		} else {
+        			char[] chars = field.value.toCharArray();
+        			handler.characters(chars, 0, chars.length);
+        		}
+        		handler.endElement("", "field", "field");
+    		}
+    		handler.endElement("", "hit", "hit");
+    	}
+    	handler.endElement("", "lucenesearch", "lucenesearch");
+    	handler.endPrefixMapping("dc");
+    	handler.endDocument();
     }
-    
+
     /**
-     * 
+     *
      */
     protected void close() throws GenericSearchException {
     }
-    
-    protected StringBuffer getResultXml() {
-        return this.resultXml;
+
+    /**
+     * the lucenesearch document serialized, for those who need it as a string
+     */
+    protected StringBuffer getResultXml()
+    throws GenericSearchException {
+    	StringWriter sw = new StringWriter();
+    	try {
+    		TransformerHandler serializer = ((SAXTransformerFactory) TransformerFactory.newInstance()).newTransformerHandler();
+    		serializer.setResult(new StreamResult(sw));
+    		emit(serializer);
+    	} catch (Exception e) {
+    		throw new GenericSearchException("ResultSet getResultXml error:\n", e);
+    	}
+        return sw.getBuffer();
+    }
+
+    public String toString() {
+    	return "ResultSet hits="+hits.size();
+    }
+
+    private static void addAttribute(AttributesImpl atts, String name, String value) {
+    	atts.addAttribute("", name, name, "CDATA", value == null ? "" : value);
+    }
+
+    private static class Hit {
+    	int no;
+    	String score;
+    	List<HitField> fields = new ArrayList<HitField>();
+
+    	Hit(int no, String score) {
+    		this.no = no;
+    		this.score = score;
+    	}
+    }
+
+    private static class HitField {
+    	String name;
+    	String value;
+    	boolean snippet;
+
+    	HitField(String name, String value, boolean snippet) {
+    		this.name = name;
+    		this.value = value;
+    		this.snippet = snippet;
+    	}
+    }
+
+    /**
+     * parses the markup of a snippet, with the snippetBegin and snippetEnd elements,
+     * and forwards its contents, without document and wrapper events
+     */
+    private static class SnippetParser extends XMLFilterImpl {
+
+    	private int depth;
+
+    	SnippetParser() throws SAXException {
+    		SAXParserFactory factory = SAXParserFactory.newInstance();
+    		factory.setNamespaceAware(true);
+    		try {
+    			setParent(factory.newSAXParser().getXMLReader());
+    		} catch (javax.xml.parsers.ParserConfigurationException e) {
+    			throw new SAXException(e);
+    		}
+    	}
+
+    	void parse(String snippet, ContentHandler handler)
+    	throws SAXException {
+    		setContentHandler(handler);
+    		depth = 0;
+    		try {
+    			parse(new InputSource(new StringReader("<snippet>"+snippet+"</snippet>")));
+    		} catch (java.io.IOException e) {
+    			throw new SAXException(e);
+    		}
+    	}
+
+    	public void startDocument() {
+    	}
+
+    	public void endDocument() {
+    	}
+
+    	public void startElement(String uri, String localName, String qName, Attributes atts)
+    	throws SAXException {
+    		if (depth++ > 0)
+    			super.startElement(uri, localName, qName, atts);
+    	}
+
+    	public void endElement(String uri, String localName, String qName)
+    	throws SAXException {
+    		if (--depth > 0)
+    			super.endElement(uri, localName, qName);
+    	}
     }
-    
 }
@@ -9,35 +9,56 @@ package dk.defxws.fgslucene;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
 import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.ListIterator;
-import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
 import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
 import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
 import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
-import org.apache.lucene.search.FieldComparatorSource;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MultiPhraseQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.PhraseQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
-import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.search.SortField.Type;
+import org.apache.lucene.search.TotalHitCountCollector;
 import org.apache.lucene.search.highlight.Highlighter;
 import org.apache.lucene.search.highlight.QueryScorer;
 import org.apache.lucene.search.highlight.Fragmenter;
 import org.apache.lucene.search.highlight.SimpleFragmenter;
 import org.apache.lucene.search.highlight.SimpleHTMLFormatter;
+import org.apache.lucene.search.vectorhighlight.FastVectorHighlighter;
+import org.apache.lucene.search.vectorhighlight.FieldQuery;
+import org.apache.lucene.search.vectorhighlight.ScoreOrderFragmentsBuilder;
+import org.apache.lucene.search.vectorhighlight.SimpleFragListBuilder;
 import org.apache.lucene.util.Version;
 
 import dk.defxws.fedoragsearch.server.GenericOperationsImpl;
@@ -46,6 +67,15 @@ import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
 /**
  * queries the Lucene index 
  * 
+ * Snippets are made for the fields named in the query only.
+ * Single valued fields indexed with termVector="WITH_POSITIONS_OFFSETS" are highlighted
+ * from their term vectors, other fields by analyzing each stored value,
+ * as the vector fragments of a multi valued field cannot be told apart per value.
+ * 
+ * Ranges and values given for the typed fields in numericFields
+ * are parsed into numeric range queries.
+ * A filter, if set, restricts the hits without scoring.
+ * 
  * @author  gsp@dtv.dk
  * @version 
  */
@@ -53,8 +83,51 @@ public class Statement {
     
     private static final Logger logger = Logger.getLogger(Statement.class);
 
+    private static final String SNIPPETBEGIN = "!!!SNIPPETBEGIN";
+    
+    private static final String SNIPPETEND = "!!!SNIPPETEND";
+    
+    private static final String SNIPPETSEPARATOR = " ... ";
+    
+    // the smallest fragment size of SimpleFragListBuilder
+    private static final int MIN_VECTOR_FRAGMENT_SIZE = 18;
+    
     private IndexSearcher searcher;
     
+    private NumericFields numericFields = new NumericFields("");
+    
+    private Filter filter = null;
+    
+    /**
+     * the insearch filter, null for none
+     */
+    public void setFilter(Filter filter) {
+    	this.filter = filter;
+    }
+    
+    /**
+     * a filter of the hits of filterQuery, which caches its bitset per index segment
+     */
+    public Filter newCachingFilter(
+            String filterQuery, 
+            Analyzer analyzer, 
+            String defaultQueryFields, 
+            boolean allowLeadingWildcard, 
+            boolean lowercaseExpandedTerms)
+    throws GenericSearchException {
+    	Query query = parseQuery(filterQuery, analyzer, defaultQueryFields, allowLeadingWildcard, lowercaseExpandedTerms);
+        if (logger.isDebugEnabled())
+        	logger.debug("newCachingFilter query="+query);
+    	return new CachingWrapperFilter(new QueryWrapperFilter(query));
+    }
+    
+    /**
+     * the fgsindex.numericFields of the index
+     */
+    public void setNumericFields(String numericFields) {
+    	this.numericFields = new NumericFields(numericFields);
+    }
+    
     public ResultSet executeQuery(
     		IndexSearcher searcher,
             String queryString, 
@@ -70,7 +143,10 @@ public class Statement {
             String indexName, 
             String snippetBegin,
             String snippetEnd, 
-            String sortFields)
+            String sortFields,
+            Sort sort,
+            String cursor,
+            String fields)
     throws GenericSearchException {
         if (logger.isDebugEnabled())
             logger.debug("executeQuery" +
@@ -81,46 +157,14 @@ public class Statement {
                     " fieldMaxLength="+fieldMaxLength+
                     " indexName="+indexName+
                     " sortFields="+sortFields+
+                    " cursor="+cursor+
+                    " fields="+fields+
                     " defaultQueryFields="+defaultQueryFields+
                     " allowLeadingWildcard="+allowLeadingWildcard+
                     " lowercaseExpandedTerms="+lowercaseExpandedTerms);
         this.searcher = searcher;
     	ResultSet rs = null;
-    	StringTokenizer defaultFieldNames = new StringTokenizer(defaultQueryFields);
-    	int countFields = defaultFieldNames.countTokens();
-    	String[] defaultFields = new String[countFields];
-    	for (int i=0; i<countFields; i++) {
-    		defaultFields[i] = defaultFieldNames.nextToken();
-    	}
-    	Query query = null;
-    	if (defaultFields.length == 1) {
-    		QueryParser queryParser = new QueryParser(Version.LUCENE_42, defaultFields[0], analyzer);
-    		queryParser.setAllowLeadingWildcard(allowLeadingWildcard);
-    		queryParser.setLowercaseExpandedTerms(lowercaseExpandedTerms);
-            if (logger.isDebugEnabled())
-                logger.debug("executeQuery queryParser" +
-                        " allowLeadingWildcard="+queryParser.getAllowLeadingWildcard() +
-                        " lowercaseExpandedTerms="+queryParser.getLowercaseExpandedTerms());
-    		try {
-    			query = queryParser.parse(queryString);
-    		} catch (ParseException e) {
-    			throw new GenericSearchException(e.toString());
-    		}
-    	}
-    	else {
-    		MultiFieldQueryParser queryParser = new MultiFieldQueryParser(Version.LUCENE_42, defaultFields, analyzer);
-    		queryParser.setAllowLeadingWildcard(allowLeadingWildcard);
-    		queryParser.setLowercaseExpandedTerms(lowercaseExpandedTerms);
-            if (logger.isDebugEnabled())
-                logger.debug("executeQuery mfqueryParser" +
-                        " allowLeadingWildcard="+queryParser.getAllowLeadingWildcard() +
-                        " lowercaseExpandedTerms="+queryParser.getLowercaseExpandedTerms());
-    		try {
-    			query = queryParser.parse(queryString);
-    		} catch (ParseException e) {
-    			throw new GenericSearchException(e.toString());
-    		}
-    	}
+    	Query query = parseQuery(queryString, analyzer, defaultQueryFields, allowLeadingWildcard, lowercaseExpandedTerms);
         if (logger.isDebugEnabled())
         	logger.debug("executeQuery after parse query="+query);
     	try {
@@ -131,69 +175,125 @@ public class Statement {
         if (logger.isDebugEnabled())
         	logger.debug("executeQuery after rewrite query="+query);
     	int start = Integer.parseInt(Integer.toString(startRecord));
-    	TopDocs hits = getHits(query, start+maxResults-1, sortFields);
+    	// with a cursor, only the hits of the page are collected, after the last hit of the previous page
+    	HitCursor hitCursor = null;
+    	if (cursor != null && cursor.length() > 0) {
+    		hitCursor = HitCursor.decode(cursor);
+    		start = hitCursor.getHitNo() + 1;
+    	}
+    	TopDocs hits = null;
+    	int first = 1;
+    	if (hitCursor == null) {
+    		hits = getHits(query, start+maxResults-1, sortFields, sort, null);
+    	} else {
+    		hits = getHits(query, maxResults, sortFields, sort, hitCursor.getAfter());
+    		first = start;
+    	}
     	ScoreDoc[] docs = hits.scoreDocs;
     	int end = Math.min(hits.totalHits, start + maxResults - 1);
+    	end = Math.min(end, first + docs.length - 1);
         if (logger.isDebugEnabled())
         	logger.debug("executeQuery hits.totalHits="+hits.totalHits);
-    	StringBuffer resultXml = new StringBuffer();
-    	resultXml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+    	rs = new ResultSet();
     	String queryStringEncoded = null;
     	try {
     		queryStringEncoded = URLEncoder.encode(queryString, "UTF-8");
     	} catch (UnsupportedEncodingException e) {
     		errorExit(e.toString());
     	}
-    	resultXml.append("<lucenesearch "+
-    			"   xmlns:dc=\"http://purl.org/dc/elements/1.1/"+
-    			"\" query=\""+queryStringEncoded+
-    			"\" indexName=\""+indexName+
-    			"\" sortFields=\""+sortFields+
-    			"\" hitPageStart=\""+startRecord+
-    			"\" hitPageSize=\""+maxResults+
-    			"\" hitTotal=\""+hits.totalHits+"\">");
+    	rs.setSearchAttributes(queryStringEncoded, indexName, sortFields, start, maxResults, hits.totalHits);
+    	if (end >= start && end < hits.totalHits) {
+    		String nextCursor = (new HitCursor(end, docs[end-first])).encode();
+    		if (nextCursor != null) {
+    			rs.setNextCursor(nextCursor);
+    		}
+    	}
 		ScoreDoc hit = null;
 		Document doc = null;
+		// only the stored fields asked for are read from the index
+		Set<String> fieldsToLoad = null;
+		if (fields != null && fields.trim().length() > 0) {
+			fieldsToLoad = new HashSet<String>();
+			StringTokenizer st = new StringTokenizer(fields, " ,");
+			while (st.hasMoreTokens()) {
+				fieldsToLoad.add(st.nextToken());
+			}
+		}
 		String hitsScore = null;
+		Set<String> queryFields = null;
+		Set<String> vectorFields = new HashSet<String>();
+		Map<String, Highlighter> highlighters = new HashMap<String, Highlighter>();
+		FastVectorHighlighter vectorHighlighter = null;
+		FieldQuery vectorQuery = null;
+		if (snippetsMax > 0) {
+			queryFields = new HashSet<String>();
+			if (!addQueryFields(query, queryFields)) {
+				// unknown query type, try all fields as before
+				queryFields = null;
+			}
+			FieldInfos fieldInfos = MultiFields.getMergedFieldInfos(searcher.getIndexReader());
+			for (FieldInfo fieldInfo : fieldInfos) {
+				if (fieldInfo.hasVectors() && (queryFields == null || queryFields.contains(fieldInfo.name))) {
+					vectorFields.add(fieldInfo.name);
+				}
+			}
+			if (vectorFields.size() > 0) {
+				vectorHighlighter = new FastVectorHighlighter(true, true,
+						new SimpleFragListBuilder(),
+						new ScoreOrderFragmentsBuilder(new String[] {SNIPPETBEGIN}, new String[] {SNIPPETEND}));
+				try {
+					vectorQuery = vectorHighlighter.getFieldQuery(query, searcher.getIndexReader());
+				} catch (IOException e) {
+					errorExit(e.toString());
+				}
+			}
+	        if (logger.isDebugEnabled())
+	        	logger.debug("executeQuery queryFields="+queryFields+" vectorFields="+vectorFields);
+		}
     	for (int i = start; i <= end; i++)
     	{
     		try {
-    			hit = docs[i-1];
-    			doc = searcher.doc(hit.doc);
+    			hit = docs[i-first];
+    			if (fieldsToLoad == null) {
+    				doc = searcher.doc(hit.doc);
+    			} else {
+    				DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(fieldsToLoad);
+    				searcher.doc(hit.doc, visitor);
+    				doc = visitor.getDocument();
+    			}
     			hitsScore = ""+hit.score;
     		} catch (CorruptIndexException e) {
     			errorExit(e.toString());
     		} catch (IOException e) {
     			errorExit(e.toString());
     		}
-    		resultXml.append("<hit no=\""+i+ "\" score=\""+hitsScore+"\">");
+    		rs.addHit(i, hitsScore);
+    		Fields vectors = null;
     		for (ListIterator li = doc.getFields().listIterator(); li.hasNext(); ) {
     			IndexableField f = (IndexableField)li.next();
-    			resultXml.append("<field name=\""+f.name()+"\"");
     			String snippets = null;
-    			if (snippetsMax > 0) {
-    				SimpleHTMLFormatter formatter = new SimpleHTMLFormatter("!!!SNIPPETBEGIN", "!!!SNIPPETEND");
-    				QueryScorer scorer = new QueryScorer(query, f.name());
-    				Highlighter highlighter = new Highlighter(formatter, scorer);
-    				Fragmenter fragmenter = new SimpleFragmenter(fieldMaxLength);
-    				highlighter.setTextFragmenter(fragmenter);
-    				TokenStream tokenStream = null;
-					try {
-						tokenStream = analyzer.tokenStream( f.name(), new StringReader(f.stringValue()));
-					} catch (IOException e) {
-    					errorExit(e.toString());
-					}
-    				try {
-    					snippets = highlighter.getBestFragments(tokenStream, f.stringValue(), snippetsMax, " ... ");
-    				} catch (Exception e) { // all Exceptions to be caught, not just IOException 
-    					errorExit(e.toString());
+    			if (snippetsMax > 0 && (queryFields == null || queryFields.contains(f.name()))) {
+    				if (vectorFields.contains(f.name()) && doc.getFields(f.name()).length == 1) {
+    					if (vectors == null) {
+    						try {
+    							vectors = searcher.getIndexReader().getTermVectors(hit.doc);
+    						} catch (IOException e) {
+    							errorExit(e.toString());
+    						}
+    					}
+    					if (hasPositionsAndOffsets(vectors, f.name())) {
+    						snippets = getVectorSnippets(vectorHighlighter, vectorQuery, hit.doc, f.name(), snippetsMax, fieldMaxLength);
+    					}
     				}
-    				snippets = checkTruncatedWords(snippets, " ... ");
+    				if (snippets == null) {
+    					snippets = getAnalyzerSnippets(highlighters, query, analyzer, f, snippetsMax, fieldMaxLength);
+    				}
+    				snippets = checkTruncatedWords(snippets, SNIPPETSEPARATOR);
     				snippets = GenericOperationsImpl.encode(snippets);
-    				snippets = snippets.replaceAll("!!!SNIPPETBEGIN", snippetBegin);
-    				snippets = snippets.replaceAll("!!!SNIPPETEND", snippetEnd);
+    				snippets = snippets.replace(SNIPPETBEGIN, snippetBegin);
+    				snippets = snippets.replace(SNIPPETEND, snippetEnd);
     				if (snippets!=null && !snippets.equals("")) {
-    					resultXml.append(" snippet=\"yes\">"+snippets);
+    					rs.addField(f.name(), snippets, true);
     				}
     			}
     			if (snippets==null || snippets.equals(""))
@@ -202,221 +302,255 @@ public class Statement {
     					int iamp = snippet.lastIndexOf("&");
     					if (iamp>-1 && iamp>fieldMaxLength-8)
     						snippet = snippet.substring(0, iamp);
-    					resultXml.append(">"+GenericOperationsImpl.encode(snippet)+" ... ");
+    					rs.addField(f.name(), snippet+" ... ", false);
     				} else
-    					resultXml.append(">"+GenericOperationsImpl.encode(f.stringValue()));
-    			resultXml.append("</field>");
+    					rs.addField(f.name(), f.stringValue(), false);
     		}
-    		resultXml.append("</hit>");
     	}
-    	resultXml.append("</lucenesearch>");
-        if (logger.isDebugEnabled()) {
-        	int size = 500;
-        	if (resultXml.length()<size)
-        		size = resultXml.length();
-        	String debugString = resultXml.substring(0, size);
-        	if (resultXml.length()>size)
-        		debugString += "...";
-        	logger.debug("executeQuery resultXml="+debugString);
-        }
-    	rs = new ResultSet(resultXml);
+        if (logger.isDebugEnabled())
+        	logger.debug("executeQuery hits="+rs.getHitCount());
     	return rs;
     }
 
-    private void errorExit(String message) throws GenericSearchException {
-    	if (searcher.getIndexReader()!=null) {
+    /**
+     * counts the hits of the query, without collecting or loading them
+     */
+    public int executeCount(
+    		IndexSearcher searcher,
+            String queryString, 
+            Analyzer analyzer, 
+            String defaultQueryFields, 
+            boolean allowLeadingWildcard, 
+            boolean lowercaseExpandedTerms)
+    throws GenericSearchException {
+        if (logger.isDebugEnabled())
+            logger.debug("executeCount query="+queryString);
+        this.searcher = searcher;
+    	Query query = parseQuery(queryString, analyzer, defaultQueryFields, allowLeadingWildcard, lowercaseExpandedTerms);
+    	TotalHitCountCollector collector = new TotalHitCountCollector();
+    	try {
+    		searcher.search(query, filter, collector);
+    	} catch (IOException e) {
+    		errorExit("executeCount search : "+e.toString());
+    	}
+        if (logger.isDebugEnabled())
+        	logger.debug("executeCount totalHits="+collector.getTotalHits());
+    	return collector.getTotalHits();
+    }
+
+    private Query parseQuery(
+            String queryString, 
+            Analyzer analyzer, 
+            String defaultQueryFields, 
+            boolean allowLeadingWildcard, 
+            boolean lowercaseExpandedTerms)
+    throws GenericSearchException {
+    	StringTokenizer defaultFieldNames = new StringTokenizer(defaultQueryFields);
+    	int countFields = defaultFieldNames.countTokens();
+    	String[] defaultFields = new String[countFields];
+    	for (int i=0; i<countFields; i++) {
+    		defaultFields[i] = defaultFieldNames.nextToken();
+    	}
+    	Query query = null;
+    	NumericQueryParser queryParser = new NumericQueryParser(defaultFields, analyzer);
+    	queryParser.setAllowLeadingWildcard(allowLeadingWildcard);
+    	queryParser.setLowercaseExpandedTerms(lowercaseExpandedTerms);
+        if (logger.isDebugEnabled())
+            logger.debug("executeQuery queryParser defaultFields=" + defaultFields.length +
+                    " allowLeadingWildcard="+queryParser.getAllowLeadingWildcard() +
+                    " lowercaseExpandedTerms="+queryParser.getLowercaseExpandedTerms());
+    	try {
+    		query = queryParser.parse(queryString);
+    	} catch (ParseException e) {
+    		throw new GenericSearchException(e.toString());
+    	}
+    	return query;
+    }
+
+    /**
+     * parses ranges and values of the typed fields into numeric range queries.
+     * With one default field, it is the default field of the parser, as in QueryParser
+     */
+    private class NumericQueryParser extends MultiFieldQueryParser {
+
+    	NumericQueryParser(String[] defaultFields, Analyzer analyzer) {
+    		super(Version.LUCENE_42, defaultFields, analyzer);
+    		if (defaultFields.length == 1) {
+    			init(Version.LUCENE_42, defaultFields[0], analyzer);
+    		}
+    	}
+
+    	protected Query getRangeQuery(String field, String part1, String part2, boolean startInclusive, boolean endInclusive)
+    	throws ParseException {
+    		Query q = getNumericRangeQuery(field, part1, part2, startInclusive, endInclusive);
+    		return q != null ? q : super.getRangeQuery(field, part1, part2, startInclusive, endInclusive);
+    	}
+
+    	protected Query getFieldQuery(String field, String queryText, boolean quoted)
+    	throws ParseException {
+    		Query q = getNumericRangeQuery(field, queryText, queryText, true, true);
+    		return q != null ? q : super.getFieldQuery(field, queryText, quoted);
+    	}
+
+    	/**
+    	 * null if field is not a typed field
+    	 */
+    	private Query getNumericRangeQuery(String field, String part1, String part2, boolean startInclusive, boolean endInclusive)
+    	throws ParseException {
+    		if (field == null || numericFields.isEmpty()) return null;
     		try {
-    			searcher.getIndexReader().close();
-    		} catch (IOException e) {
+    			return numericFields.newRangeQuery(field, part1, part2, startInclusive, endInclusive);
+    		} catch (NumberFormatException e) {
+    			throw new ParseException(e.getMessage());
+    		}
+    	}
+    }
+
+    /**
+     * highlights the stored value of f by analyzing it,
+     * the highlighter of a field is made once per query
+     */
+    private String getAnalyzerSnippets(
+    		Map<String, Highlighter> highlighters,
+    		Query query,
+    		Analyzer analyzer,
+    		IndexableField f,
+    		int snippetsMax,
+    		int fieldMaxLength)
+    throws GenericSearchException {
+    	String snippets = null;
+    	Highlighter highlighter = highlighters.get(f.name());
+    	if (highlighter == null) {
+    		SimpleHTMLFormatter formatter = new SimpleHTMLFormatter(SNIPPETBEGIN, SNIPPETEND);
+    		QueryScorer scorer = new QueryScorer(query, f.name());
+    		highlighter = new Highlighter(formatter, scorer);
+    		Fragmenter fragmenter = new SimpleFragmenter(fieldMaxLength);
+    		highlighter.setTextFragmenter(fragmenter);
+    		highlighters.put(f.name(), highlighter);
+    	}
+    	TokenStream tokenStream = null;
+    	try {
+    		tokenStream = analyzer.tokenStream( f.name(), new StringReader(f.stringValue()));
+    	} catch (IOException e) {
+    		errorExit(e.toString());
+    	}
+    	try {
+    		snippets = highlighter.getBestFragments(tokenStream, f.stringValue(), snippetsMax, SNIPPETSEPARATOR);
+    	} catch (Exception e) { // all Exceptions to be caught, not just IOException 
+    		errorExit(e.toString());
+    	}
+    	return snippets;
+    }
+
+    /**
+     * highlights the field from the term vectors of the document, without analyzing it
+     */
+    private String getVectorSnippets(
+    		FastVectorHighlighter vectorHighlighter,
+    		FieldQuery vectorQuery,
+    		int docId,
+    		String fieldName,
+    		int snippetsMax,
+    		int fieldMaxLength)
+    throws GenericSearchException {
+    	String[] fragments = null;
+    	try {
+    		fragments = vectorHighlighter.getBestFragments(vectorQuery, searcher.getIndexReader(), docId, fieldName,
+    				Math.max(fieldMaxLength, MIN_VECTOR_FRAGMENT_SIZE), snippetsMax);
+    	} catch (Exception e) {
+    		errorExit(e.toString());
+    	}
+    	StringBuffer snippets = new StringBuffer();
+    	for (int i=0; fragments!=null && i<fragments.length; i++) {
+    		if (i>0) snippets.append(SNIPPETSEPARATOR);
+    		snippets.append(fragments[i]);
+    	}
+    	return snippets.toString();
+    }
+
+    private boolean hasPositionsAndOffsets(Fields vectors, String fieldName)
+    throws GenericSearchException {
+    	if (vectors == null) return false;
+    	try {
+    		Terms terms = vectors.terms(fieldName);
+    		return terms != null && terms.hasPositions() && terms.hasOffsets();
+    	} catch (IOException e) {
+    		errorExit(e.toString());
+    	}
+    	return false;
+    }
+
+    /**
+     * adds the names of the fields searched by query to fieldNames,
+     * returns false if the query has parts of unknown type
+     */
+    private boolean addQueryFields(Query query, Set<String> fieldNames) {
+    	if (query instanceof BooleanQuery) {
+    		BooleanClause[] clauses = ((BooleanQuery) query).getClauses();
+    		for (int i=0; i<clauses.length; i++) {
+    			if (clauses[i].isProhibited()) continue;
+    			if (!addQueryFields(clauses[i].getQuery(), fieldNames)) return false;
+    		}
+    	} else if (query instanceof TermQuery) {
+    		fieldNames.add(((TermQuery) query).getTerm().field());
+    	} else if (query instanceof PhraseQuery) {
+    		Term[] terms = ((PhraseQuery) query).getTerms();
+    		for (int i=0; i<terms.length; i++) {
+    			fieldNames.add(terms[i].field());
+    		}
+    	} else if (query instanceof MultiPhraseQuery) {
+    		for (Term[] terms : ((MultiPhraseQuery) query).getTermArrays()) {
+        		for (int i=0; i<terms.length; i++) {
+        			fieldNames.add(terms[i].field());
+        		}
     		}
+    	} else if (query instanceof MultiTermQuery) {
+    		fieldNames.add(((MultiTermQuery) query).getField());
+    	} else if (query instanceof DisjunctionMaxQuery) {
+    		for (Query disjunct : ((DisjunctionMaxQuery) query).getDisjuncts()) {
+    			if (!addQueryFields(disjunct, fieldNames)) return false;
+    		}
+    	} else if (query instanceof ConstantScoreQuery && ((ConstantScoreQuery) query).getQuery() != null) {
+    		return addQueryFields(((ConstantScoreQuery) query).getQuery(), fieldNames);
+    	} else {
+    		return false;
     	}
+    	return true;
+    }
+
+    private void errorExit(String message) throws GenericSearchException {
+    	// the searcher is shared, it is released by the caller
     	throw new GenericSearchException(message);
     }
 
-//  sortFields      ::= [sortField[';'sortField]*]
-//  sortField       ::= sortFieldName[','(sortType | locale | comparatorClass)[','reverse]]]]
-//  sortFieldName   ::= #the name of an index field, which is UN_TOKENIZED and contains a single term per document
-//  sortType		::= 'BYTE' | 'DOC' | 'DOUBLE' | 'FLOAT' | 'INT' | 'LONG' | 'SCORE' | 'SHORT' | 'STRING' | 'STRING_VAL'
-//  locale          ::= language['-'country['-'variant]]
-//  comparatorClass ::= package-path'.'className['('param['-'param]*')']
-//  reverse         ::= 'false' (default) | 'true' | 'reverse'
-    private TopDocs getHits(Query query, int numHits, String sortFields) throws GenericSearchException {
+    /**
+     * the hits are ordered by sort, as parsed from sortFields by the SortRegistry,
+     * or by relevance if sort is null
+     */
+    private TopDocs getHits(Query query, int numHits, String sortFields, Sort sort, ScoreDoc after) throws GenericSearchException {
         if (logger.isDebugEnabled())
             logger.debug("getHits" +
                     " query="+query+
                     " numHits="+numHits+
-                    " sortFields="+sortFields);
+                    " sortFields="+sortFields+
+                    " after="+after+
+                    " filter="+filter);
     	TopDocs hits = null;
-    	String sortFieldsString = sortFields;
-    	if (sortFields == null) sortFieldsString = "";
-    	StringTokenizer st = new StringTokenizer(sortFieldsString, ";");
-    	SortField[] sortFieldArray = new SortField[st.countTokens()];
-    	int i = 0;
-    	while (st.hasMoreTokens()) {
-    		SortField sortField = null;
-			Type sortType = null;
-    		String sortFieldString = st.nextToken().trim();
-    		if (sortFieldString.length()==0)
-    			errorExit("getHits sortFields='"+sortFields+"' : empty sortField string");
-    		StringTokenizer stf = new StringTokenizer(sortFieldString, ",");
-    		if (!stf.hasMoreTokens())
-    			errorExit("getHits sortFields='"+sortFields+"' : empty sortFieldName string in '" + sortFieldString + "'");
-    		String sortFieldName = stf.nextToken().trim();
-    		if (sortFieldName.length()==0)
-    			errorExit("getHits sortFields='"+sortFields+"' : empty sortFieldName string in '" + sortFieldString + "'");
-    		if (!stf.hasMoreTokens()) {
-    			sortType = SortField.Type.SCORE;
-				sortField = new SortField(sortFieldName, sortType);
-    		} else {
-    			String sortTypeOrLocaleOrCompString = stf.nextToken().trim();
-    			if (sortTypeOrLocaleOrCompString.length()==0)
-    				errorExit("getHits sortFields='"+sortFields+"' : empty sortType or locale or comparatorClass string in '" + sortFieldString + "'");
-    			if (sortTypeOrLocaleOrCompString.indexOf(".")>=0) {
-    				String compString = sortTypeOrLocaleOrCompString;
-    				String paramString = "";
-    				Object[] params = new Object[] {};
-    				if (sortTypeOrLocaleOrCompString.indexOf("(")>=0) {
-    					int p = compString.indexOf("(");
-    					int q = compString.indexOf(")");
-    					if (p<3 || q<p+1)
-    						errorExit("getHits sortFields='"+sortFields+"' : comparatorClass parameters malformed in '" + compString + "'.");
-    					paramString = compString.substring(p+1, q);
-    					compString = compString.substring(0, p);
-    					StringTokenizer stp = new StringTokenizer(paramString, "-");
-    					params = new Object[stp.countTokens()];
-    					int ip = 0;
-    					while (stp.hasMoreTokens()) {
-    						params[ip++] = stp.nextToken().trim();
-    					}
-    				}
-    				FieldComparatorSource scs = null;
-    				Class comparatorClass = null;
-    				try {
-    					comparatorClass = Class.forName(compString);
-    				} catch (ClassNotFoundException e) {
-    					errorExit("getHits sortFields='"+sortFields+"' : comparatorClass '" + compString + "'"
-    							+ ": class not found:\n"+e.toString());
-    				}
-    				Constructor[] constructors = comparatorClass.getConstructors();
-    				StringBuffer errorMessage = new StringBuffer();
-    				for (int j=0; j<constructors.length; j++) {
-    					Constructor cj = constructors[j];
-    					try {
-    						scs = (FieldComparatorSource) cj.newInstance(params);
-    						if (logger.isDebugEnabled())
-    							logger.debug("getHits sortFields='"+sortFields+"' : comparatorClass '" 
-    									+ compString + "'"
-    									+ ": constructor["+j+"]='"+cj.toGenericString()+"'");
-    						break;
-    					} catch (IllegalArgumentException e) {
-    						errorMessage.append("\nconstructor["+j+"]='"+cj.toGenericString()+"'"+"\n"+e.toString()+" ");
-    					} catch (InstantiationException e) {
-    						errorMessage.append("\nconstructor["+j+"]='"+cj.toGenericString()+"'"+"\n"+e.toString()+" ");
-    					} catch (IllegalAccessException e) {
-    						errorMessage.append("\nconstructor["+j+"]='"+cj.toGenericString()+"'"+"\n"+e.toString()+" ");
-    					} catch (InvocationTargetException e) {
-    						errorMessage.append("\nconstructor["+j+"]='"+cj.toGenericString()+"'"+"\n"+e.toString()+" ");
-    					}
-    				}
-    				if (scs==null) {
-    					errorExit("getHits sortFields='"+sortFields+"' : comparatorClass '" + compString + "'"
-    							+ ": no constructor applied:\n"+errorMessage.toString());
-    				}
-    				if (!stf.hasMoreTokens()) {
-    					sortField = new SortField(sortFieldName, scs);
-    				} else {
-    					String reverseString = stf.nextToken().trim();
-    					if (reverseString.length()==0)
-    						errorExit("getHits sortFields='"+sortFields+"' : empty reverse string in '" + sortFieldString + "'");
-    					boolean reverse = false;
-    					if ("true".equalsIgnoreCase(reverseString)) reverse = true;
-    					else if ("reverse".equalsIgnoreCase(reverseString)) reverse = true;
-    					else if ("false".equalsIgnoreCase(reverseString)) reverse = false;
-    					else
-    						errorExit("getHits sortFields='"+sortFields+"' : unknown reverse string '" + reverseString + "' in '" + sortFieldString + "'");
-    					sortField = new SortField(sortFieldName, scs, reverse);
-    				}
-    			} else {
-    				String sortTypeOrLocaleString = sortTypeOrLocaleOrCompString;
-    				Locale locale = null;
-    				if ("BYTE".equals(sortTypeOrLocaleString)) sortType = SortField.Type.BYTE;
-    				else if ("DOC".equals(sortTypeOrLocaleString)) sortType = SortField.Type.DOC;
-    				else if ("DOUBLE".equals(sortTypeOrLocaleString)) sortType = SortField.Type.DOUBLE;
-    				else if ("FLOAT".equals(sortTypeOrLocaleString)) sortType = SortField.Type.FLOAT;
-    				else if ("INT".equals(sortTypeOrLocaleString)) sortType = SortField.Type.INT;
-    				else if ("LONG".equals(sortTypeOrLocaleString)) sortType = SortField.Type.LONG;
-    				else if ("SCORE".equals(sortTypeOrLocaleString)) {
-    					sortType = SortField.Type.SCORE;
-//    					searcher.setDefaultFieldSortScoring(true, true); not in 4.0.0
-    				}
-    				else if ("SHORT".equals(sortTypeOrLocaleString)) sortType = SortField.Type.SHORT;
-    				else if ("STRING".equals(sortTypeOrLocaleString)) sortType = SortField.Type.STRING;
-    				else if ("STRING_VAL".equals(sortTypeOrLocaleString)) sortType = SortField.Type.STRING_VAL;
-    				else if (((sortTypeOrLocaleString.substring(0, 1)).compareTo("A") >= 0) && ((sortTypeOrLocaleString.substring(0, 1)).compareTo("Z") <= 0)) {
-    					errorExit("getHits sortFields='"+sortFields+"' : unknown sortType string '" + sortTypeOrLocaleString + "' in '" + sortFieldString + "'");
-    				}
-    				else {
-    					StringTokenizer stfl = new StringTokenizer(sortTypeOrLocaleString, "-");
-    					if (stfl.countTokens()>3)
-    						errorExit("getHits sortFields='"+sortFields+"' : unknown locale string '" + sortTypeOrLocaleString + "' in '" + sortFieldString + "'");
-    					String language = stfl.nextToken().trim();
-    					if (language.length()==0)
-    						errorExit("getHits sortFields='"+sortFields+"' : empty language string in '" + sortFieldString + "'");
-    					if (language.length()>2)
-    						errorExit("getHits sortFields='"+sortFields+"' : unknown language string '" + language + "' in '" + sortFieldString + "'");
-    					if (!stfl.hasMoreTokens()) {
-    						locale = new Locale(language);
-    					} else {
-    						String country = stfl.nextToken().trim();
-    						if (country.length()==0)
-    							errorExit("getHits sortFields='"+sortFields+"' : empty country string in '" + sortFieldString + "'");
-    						if (country.length()>3)
-    							errorExit("getHits sortFields='"+sortFields+"' : unknown country string '" + country + "' in '" + sortFieldString + "'");
-    						if (!stfl.hasMoreTokens()) {
-    							locale = new Locale(language, country);
-    						} else {
-    							String variant = stfl.nextToken().trim();
-    							if (variant.length()==0)
-    								errorExit("getHits sortFields='"+sortFields+"' : empty variant string in '" + sortFieldString + "'");
-    							locale = new Locale(language, country, variant);
-    						}
-    					}
-    				}
-    				if (!stf.hasMoreTokens()) {
-    					if (sortType != null)
-    						sortField = new SortField(sortFieldName, sortType);
-//    					else
-//    						sortField = new SortField(sortFieldName, locale);
-    				} else {
-    					String reverseString = stf.nextToken().trim();
-    					if (reverseString.length()==0)
-    						errorExit("getHits sortFields='"+sortFields+"' : empty reverse string in '" + sortFieldString + "'");
-    					boolean reverse = false;
-    					if ("true".equalsIgnoreCase(reverseString)) reverse = true;
-    					else if ("reverse".equalsIgnoreCase(reverseString)) reverse = true;
-    					else if ("false".equalsIgnoreCase(reverseString)) reverse = false;
-    					else
-    						throw new GenericSearchException("getHits sortFields='"+sortFields+"' : unknown reverse string '" + reverseString + "' in '" + sortFieldString + "'");
-    					if (sortType == SortField.Type.SCORE) reverse = !reverse;
-    					if (sortType != null)
-    						sortField = new SortField(sortFieldName, sortType, reverse);
-//    					else
-//    						sortField = new SortField(sortFieldName, locale, reverse);
-    				}
-    			}
-    		}
-    		sortFieldArray[i++] = sortField;
-    	}
-    	if (sortFieldArray.length == 0) {
+    	if (sort == null) {
         	try {
-        		hits = searcher.search(query, numHits);
+        		if (after == null)
+        			hits = searcher.search(query, filter, numHits);
+        		else
+        			hits = searcher.searchAfter(after, query, filter, numHits);
         	} catch (Exception e) {
         		errorExit("getHits search : "+e.toString());
         	}
     	} else {
     		try {
-    	    	Sort sort = new Sort(sortFieldArray);
-        		hits = searcher.search(query, numHits, sort);
+        		if (after == null)
+        			hits = searcher.search(query, filter, numHits, sort);
+        		else
+        			hits = searcher.searchAfter(after, query, filter, numHits, sort);
     		} catch (Exception e) {
     			errorExit("getHits search sortFields='"+sortFields+"' : "+e.toString());
     		} 
@@ -8,8 +8,6 @@ package dk.defxws.fgssolr;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -23,30 +21,23 @@ import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.URL;
 import java.rmi.RemoteException;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.StringTokenizer;
 
 import javax.xml.transform.stream.StreamSource;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.core.KeywordAnalyzer;
-import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.Fields;
 import org.apache.lucene.index.MultiFields;
-import org.apache.lucene.index.Terms;
-import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.SimpleFSDirectory;
-import org.apache.lucene.util.BytesRef;
-import org.apache.lucene.util.Version;
 
+import dk.defxws.fedoragsearch.server.DirectoryFactory;
+import dk.defxws.fedoragsearch.server.FoxmlFilesPipeline;
 import dk.defxws.fedoragsearch.server.GTransformer;
 import dk.defxws.fedoragsearch.server.GenericOperationsImpl;
-import dk.defxws.fedoragsearch.server.errors.ConfigException;
+import dk.defxws.fedoragsearch.server.TermsBrowser;
 import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
 
 /**
@@ -104,7 +95,8 @@ public class OperationsImpl extends GenericOperationsImpl {
 			        usingIndexName,
 			        config.getSnippetBegin(usingIndexName),
 			        config.getSnippetEnd(usingIndexName),
-			        config.getSortFields(usingIndexName, sortFields));
+			        config.getSortFields(usingIndexName, sortFields),
+			        config.getSortRegistry().getSort(usingIndexName, config.getSortFields(usingIndexName, sortFields)));
 		} catch (Exception e) {
             throw new GenericSearchException("gfindObjects executeQuery error:\n" + e.toString());
         } finally {
@@ -145,11 +137,21 @@ public class OperationsImpl extends GenericOperationsImpl {
             String fieldName,
             String indexName,
             String resultPageXslt)
+    throws java.rmi.RemoteException {
+        return browseIndex(startTerm, termPageSize, fieldName, indexName, "", resultPageXslt);
+    }
+    
+    public String browseIndex(
+            String startTerm,
+            int termPageSize,
+            String fieldName,
+            String indexName,
+            String cursor,
+            String resultPageXslt)
     throws java.rmi.RemoteException {
         super.browseIndex(startTerm, termPageSize, fieldName, indexName, resultPageXslt);
         StringBuffer resultXml = new StringBuffer();
-		optimize(indexName, resultXml);
-        int termNo = 0;
+        TermsBrowser termsBrowser = new TermsBrowser();
         try {
             getIndexReaderAndSearcher(indexName);
             Fields fields;
@@ -167,34 +169,7 @@ public class OperationsImpl extends GenericOperationsImpl {
             resultXml.append("</fields>");
             resultXml.append("<terms>");
             if (fields != null && fieldName != null && fieldName.length()>0) {
-                int pageSize = 0;
-        	    Terms terms;
-				try {
-					terms = fields.terms(fieldName);
-				} catch (Exception e) {
-		              throw new GenericSearchException("fields.terms error:\n" + e.toString());
-				}
-        	    TermsEnum termsEnum;
-				try {
-					termsEnum = terms.iterator(null);
-				} catch (Exception e) {
-		              throw new GenericSearchException("terms.iterator error:\n" + e.toString());
-				}
-        	    BytesRef text;
-        	    try {
-					while((text = termsEnum.next()) != null) {
-					    termNo++;
-					    String termString = text.utf8ToString();
-					    if (startTerm.compareTo(termString) <= 0 && pageSize < termPageSize) {
-					        pageSize++;
-					        resultXml.append("<term no=\""+termNo+"\""
-					                +" fieldtermhittotal=\""+termsEnum.docFreq()
-					                +"\">"+encode(termString)+"</term>");
-					    }
-					}
-				} catch (Exception e) {
-		              throw new GenericSearchException("termsEnum.next error:\n" + e.toString());
-				}
+            	termsBrowser.browse(ir, config.getIndexDir(indexName), fieldName, startTerm, cursor, termPageSize, resultXml);
             }
             resultXml.append("</terms>");
         } catch (IOException e) {
@@ -202,6 +177,7 @@ public class OperationsImpl extends GenericOperationsImpl {
         } finally {
             closeIndexReaderAndSearcher(indexName);
         }
+        String nextCursor = termsBrowser.getNextCursor();
         resultXml.insert(0, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
                 "<solrbrowseindex "+
                 "   xmlns:dc=\"http://purl.org/dc/elements/1.1/"+
@@ -209,7 +185,8 @@ public class OperationsImpl extends GenericOperationsImpl {
                 "\" termPageSize=\""+termPageSize+
                 "\" fieldName=\""+fieldName+
                 "\" indexName=\""+indexName+
-                "\" termTotal=\""+termNo+"\">");
+                (nextCursor.length() > 0 ? "\" nextCursor=\""+nextCursor : "")+
+                "\" termTotal=\""+termsBrowser.getTermTotal()+"\">");
         resultXml.append("</solrbrowseindex>");
         if (logger.isDebugEnabled())
             logger.debug("resultXml="+resultXml);
@@ -289,6 +266,11 @@ public class OperationsImpl extends GenericOperationsImpl {
         	closeIndexReaderAndSearcher(indexName);
         	docCount = initDocCount + insertTotal - deleteTotal;
         }
+        if (config.isFastUpdateAccounting(indexName)) {
+        	// the count found by the index after the update
+        	getIndexReaderAndSearcher(indexName);
+        	closeIndexReaderAndSearcher(indexName);
+        }
         logger.info("updateIndex "+action+" indexName="+indexName
         		+" indexDirSpace="+indexDirSpace(new File(config.getIndexDir(indexName)))
         		+" docCount="+docCount);
@@ -339,7 +321,7 @@ public class OperationsImpl extends GenericOperationsImpl {
         if (logger.isDebugEnabled())
             logger.debug("deletePid indexName="+indexName+" pid="+pid);
         if (pid.length()>0) {
-            boolean existed = indexDocExists(pid);
+            boolean existed = config.isFastUpdateAccounting(indexName) || indexDocExists(pid);
             StringBuffer sb = new StringBuffer("<delete><id>"+pid+"</id></delete>");
             postData(config.getIndexBase(indexName)+"/update", new StringReader(sb.toString()), resultXml);
             if (existed) {
@@ -363,10 +345,10 @@ public class OperationsImpl extends GenericOperationsImpl {
     
     private void fromFoxmlFiles(
             String filePath,
-            String repositoryName,
-            String indexName,
-            StringBuffer resultXml,
-            String indexDocXslt)
+            final String repositoryName,
+            final String indexName,
+            final StringBuffer resultXml,
+            final String indexDocXslt)
     throws java.rmi.RemoteException {
         if (logger.isDebugEnabled())
             logger.debug("fromFoxmlFiles filePath="+filePath+" repositoryName="+repositoryName+" indexName="+indexName);
@@ -374,41 +356,21 @@ public class OperationsImpl extends GenericOperationsImpl {
         if (filePath==null || filePath.equals(""))
             objectDir = config.getFedoraObjectDir(repositoryName);
         else objectDir = new File(filePath);
-        indexDocs(objectDir, repositoryName, indexName, resultXml, indexDocXslt);
-    }
-    
-    private void indexDocs(
-            File file, 
-            String repositoryName,
-            String indexName,
-            StringBuffer resultXml, 
-            String indexDocXslt)
-    throws java.rmi.RemoteException
-    {
-		if (file.isHidden()) return;
-        if (file.isDirectory())
-        {
-            String[] files = file.list();
-            for (int i = 0; i < files.length; i++) {
-                if (i % 100 == 0)
-                    logger.info("updateIndex fromFoxmlFiles "+file.getAbsolutePath()
-                    		+" indexDirSpace="+indexDirSpace(new File(config.getIndexDir(indexName)))
-                    		+" docCount="+docCount);
-                indexDocs(new File(file, files[i]), repositoryName, indexName, resultXml, indexDocXslt);
-            }
-        }
-        else
-        {
-            try {
-                indexDoc(getPidFromObjectFilename(file.getName()), repositoryName, indexName, new FileInputStream(file), resultXml, indexDocXslt);
-            } catch (RemoteException e) {
-                resultXml.append("<warning no=\""+(++warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>\n");
-                logger.warn("<warning no=\""+(warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>");
-            } catch (FileNotFoundException e) {
-              resultXml.append("<warning no=\""+(++warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>\n");
-              logger.warn("<warning no=\""+(warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>");
-            }
-        }
+        FoxmlFilesPipeline pipeline = new FoxmlFilesPipeline(new FoxmlFilesPipeline.Stages() {
+        	public StringBuffer transformFoxml(File file, InputStream foxmlStream)
+        	throws RemoteException {
+        		return getIndexDoc(repositoryName, indexName, foxmlStream, indexDocXslt);
+        	}
+        	public Object buildIndexDocument(File file, StringBuffer indexDoc) {
+        		return indexDoc;
+        	}
+        	public void writeIndexDocument(File file, Object indexDocument)
+        	throws RemoteException {
+        		writeIndexDoc(getPidFromObjectFilename(file.getName()), repositoryName, indexName, (StringBuffer) indexDocument, resultXml);
+        	}
+        }, config.getFromFoxmlFilesWorkers(indexName), config.getFromFoxmlFilesQueueSize(indexName), resultXml, warnCount);
+        pipeline.run(objectDir);
+        warnCount = pipeline.getWarnCount();
     }
     
     private void fromPid(
@@ -430,6 +392,16 @@ public class OperationsImpl extends GenericOperationsImpl {
     		InputStream foxmlStream,
     		StringBuffer resultXml,
     		String indexDocXslt)
+    throws java.rmi.RemoteException {
+    	StringBuffer sb = getIndexDoc(repositoryName, indexName, foxmlStream, indexDocXslt);
+    	writeIndexDoc(pid, repositoryName, indexName, sb, resultXml);
+    }
+    
+    private StringBuffer getIndexDoc(
+    		String repositoryName,
+    		String indexName,
+    		InputStream foxmlStream,
+    		String indexDocXslt)
     throws java.rmi.RemoteException {
     	String xsltName = indexDocXslt;
     	String[] params = new String[12];
@@ -479,9 +451,19 @@ public class OperationsImpl extends GenericOperationsImpl {
     			params);
     	if (logger.isDebugEnabled())
     		logger.debug("indexDoc=\n"+sb.toString());
+    	return sb;
+    }
+    
+    private void writeIndexDoc(
+    		String pid,
+    		String repositoryName,
+    		String indexName,
+    		StringBuffer sb,
+    		StringBuffer resultXml)
+    throws java.rmi.RemoteException {
     	if (sb.indexOf("</field>") > 0) {  // skip if no fields
         	postData(config.getIndexBase(indexName)+"/update", new StringReader(sb.toString()), resultXml);
-            if (indexDocExists(pid)) {
+            if (config.isFastUpdateAccounting(indexName) || indexDocExists(pid)) {
                 updateTotal++;
         		resultXml.append("<updated>"+pid+"</updated>\n");
             } else {
@@ -505,91 +487,19 @@ public class OperationsImpl extends GenericOperationsImpl {
     
     public Analyzer getAnalyzer(String indexName, String className)
     throws GenericSearchException {
-    	String analyzerClassName = className;
-    	if (analyzerClassName.length()==0) {
-        	analyzerClassName= config.getAnalyzer(indexName);
-    	}
-		String stopwordsLocation = config.getStopwordsLocation(indexName); 
-        if (logger.isDebugEnabled())
-            logger.debug("getAnalyzer analyzerClassName=" + analyzerClassName+ " stopwordsLocation="+stopwordsLocation);
-        Analyzer analyzer = null;
-        if ("org.apache.lucene.analysis.KeywordAnalyzer".equals(analyzerClassName)) {
-        	analyzer = new KeywordAnalyzer();
-        } else {
-    		try {
-    			Version version = Version.LUCENE_42;
-    			Class analyzerClass = Class.forName(analyzerClassName);
-                if (logger.isDebugEnabled())
-                    logger.debug("getAnalyzer analyzerClass=" + analyzerClass.toString());
-    			if (stopwordsLocation == null || stopwordsLocation.equals("")) {
-    				analyzer = (Analyzer) analyzerClass.getConstructor(new Class[] { Version.class})
-    				.newInstance(new Object[] { version });
-    			} else {
-    				analyzer = (Analyzer) analyzerClass.getConstructor(new Class[] { Version.class, File.class})
-    				.newInstance(new Object[] { version, new File(stopwordsLocation) });
-    			}
-            } catch (Exception e) {
-                throw new GenericSearchException(analyzerClassName
-                        + ": instantiation error.\n", e);
-            }
-        }
-        if (logger.isDebugEnabled())
-            logger.debug("getAnalyzer analyzer=" + analyzer.toString());
-        return analyzer;
+    	return config.getAnalyzerRegistry().newAnalyzer(indexName, className);
     }
     
+    /**
+     * the analyzers are built once per index and config, and shared by all requests
+     */
     public Analyzer getQueryAnalyzer(String indexName)
     throws GenericSearchException {
         if (logger.isDebugEnabled())
             logger.debug("getQueryAnalyzer indexName=" + indexName);
-        Analyzer analyzer = getAnalyzer(indexName);
-        Map<String,Analyzer> fieldAnalyzers = new HashMap<String, Analyzer>();
-        String configFieldAnalyzers = "";
-        try {
-			configFieldAnalyzers = config.getFieldAnalyzers(indexName);
-		} catch (Exception e) {
-            throw new ConfigException("getQueryAnalyzer config.getFieldAnalyzers "+" :\n", e);
-		}
-        if (logger.isDebugEnabled())
-            logger.debug("getQueryAnalyzer configFieldAnalyzers=" + configFieldAnalyzers);
-        if (configFieldAnalyzers != null && configFieldAnalyzers.length()>0) {
-            StringTokenizer stConfigFieldAnalyzers = new StringTokenizer(configFieldAnalyzers);
-        	while (stConfigFieldAnalyzers.hasMoreElements()) {
-        		String fieldAnalyzer = stConfigFieldAnalyzers.nextToken();
-                if (logger.isDebugEnabled())
-                    logger.debug("getQueryAnalyzer fieldAnalyzer=" + fieldAnalyzer);
-        		int i = fieldAnalyzer.indexOf("::");
-        		if (i<0) {
-                    throw new ConfigException("getQueryAnalyzer fgsindex.fieldAnalyzer="+fieldAnalyzer+ " missing '::'");
-        		}
-    			String fieldName = "-";
-    			String analyzerClassName = "-";
-        		try {
-    				fieldName = fieldAnalyzer.substring(0, i);
-    				analyzerClassName = fieldAnalyzer.substring(i+2);
-    				fieldAnalyzers.put(fieldName, getAnalyzer(indexName, analyzerClassName));
-    			} catch (Exception e) {
-    	            throw new ConfigException("getQueryAnalyzer getAnalyzer fieldName="+fieldName+" analyzerClassName="+analyzerClassName+" :\n", e);
-    			}
-        	}
-        }
-    	StringTokenizer untokenizedFields = new StringTokenizer(config.getUntokenizedFields(indexName));
-    	while (untokenizedFields.hasMoreElements()) {
-    		String fieldName = untokenizedFields.nextToken();
-    		if (!fieldAnalyzers.containsKey(fieldName)) {
-        		fieldAnalyzers.put(fieldName, new KeywordAnalyzer());
-    		}
-    	}
-        PerFieldAnalyzerWrapper pfanalyzer = new PerFieldAnalyzerWrapper(analyzer, fieldAnalyzers);
-        if (logger.isDebugEnabled())
-            logger.debug("getQueryAnalyzer indexName=" + indexName+ " untokenizedFields="+untokenizedFields);
-        return pfanalyzer;
+        return config.getAnalyzerRegistry().getQueryAnalyzer(indexName);
     }
-
-    /**
-     * Reads data from the data reader and posts it to solr,
-     * writes the response to output
-     */
+    
     private void postData(String solrUrlString, Reader data, StringBuffer output)
     throws GenericSearchException {
 
@@ -716,7 +626,7 @@ public class OperationsImpl extends GenericOperationsImpl {
 		} else {
 	        try {
 	        	closeIndexReaderAndSearcher(indexName);
-				Directory dir = new SimpleFSDirectory(new File(config.getIndexDir(indexName)));
+				Directory dir = DirectoryFactory.newDirectory(new File(config.getIndexDir(indexName)), config.getDirectoryImpl(indexName));
 				ir = DirectoryReader.open(dir);
 			} catch (Exception e) {
 				throw new GenericSearchException("IndexReader open error indexName=" + indexName+ " :\n", e);
@@ -9,11 +9,8 @@ package dk.defxws.fgssolr;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
 import java.net.URLEncoder;
 import java.util.ListIterator;
-import java.util.Locale;
 import java.util.StringTokenizer;
 
 import org.apache.log4j.Logger;
@@ -25,14 +22,11 @@ import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
-import org.apache.lucene.search.FieldComparatorSource;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
-import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.search.SortField.Type;
 import org.apache.lucene.search.highlight.Highlighter;
 import org.apache.lucene.search.highlight.QueryScorer;
 import org.apache.lucene.search.highlight.Fragmenter;
@@ -68,7 +62,8 @@ public class Statement {
             String indexName, 
             String snippetBegin,
             String snippetEnd, 
-            String sortFields)
+            String sortFields,
+            Sort sort)
     throws GenericSearchException {
     	boolean allowLeadingWildcard = true;
     	boolean lowercaseExpandedTerms = true;
@@ -131,7 +126,7 @@ public class Statement {
         if (logger.isDebugEnabled())
         	logger.debug("executeQuery after rewrite query="+query);
     	int start = Integer.parseInt(Integer.toString(startRecord));
-    	TopDocs hits = getHits(query, start+maxResults-1, sortFields);
+    	TopDocs hits = getHits(query, start+maxResults-1, sortFields, sort);
     	ScoreDoc[] docs = hits.scoreDocs;
     	int end = Math.min(hits.totalHits, start + maxResults - 1);
         if (logger.isDebugEnabled())
@@ -233,181 +228,18 @@ public class Statement {
     	throw new GenericSearchException(message);
     }
 
-//  sortFields      ::= [sortField[';'sortField]*]
-//  sortField       ::= sortFieldName[','(sortType | locale | comparatorClass)[','reverse]]]]
-//  sortFieldName   ::= #the name of an index field, which is UN_TOKENIZED and contains a single term per document
-//  sortType		::= 'BYTE' | 'DOC' | 'DOUBLE' | 'FLOAT' | 'INT' | 'LONG' | 'SCORE' | 'SHORT' | 'STRING' | 'STRING_VAL'
-//  locale          ::= language['-'country['-'variant]]
-//  comparatorClass ::= package-path'.'className['('param['-'param]*')']
-//  reverse         ::= 'false' (default) | 'true' | 'reverse'
-    private TopDocs getHits(Query query, int numHits, String sortFields) throws GenericSearchException {
+    /**
+     * the hits are ordered by sort, as parsed from sortFields by the SortRegistry,
+     * or by relevance if sort is null
+     */
+    private TopDocs getHits(Query query, int numHits, String sortFields, Sort sort) throws GenericSearchException {
         if (logger.isDebugEnabled())
             logger.debug("getHits" +
                     " query="+query+
                     " numHits="+numHits+
                     " sortFields="+sortFields);
     	TopDocs hits = null;
-    	String sortFieldsString = sortFields;
-    	if (sortFields == null) sortFieldsString = "";
-    	StringTokenizer st = new StringTokenizer(sortFieldsString, ";");
-    	SortField[] sortFieldArray = new SortField[st.countTokens()];
-    	int i = 0;
-    	while (st.hasMoreTokens()) {
-    		SortField sortField = null;
-			Type sortType = null;
-    		String sortFieldString = st.nextToken().trim();
-    		if (sortFieldString.length()==0)
-    			errorExit("getHits sortFields='"+sortFields+"' : empty sortField string");
-    		StringTokenizer stf = new StringTokenizer(sortFieldString, ",");
-    		if (!stf.hasMoreTokens())
-    			errorExit("getHits sortFields='"+sortFields+"' : empty sortFieldName string in '" + sortFieldString + "'");
-    		String sortFieldName = stf.nextToken().trim();
-    		if (sortFieldName.length()==0)
-    			errorExit("getHits sortFields='"+sortFields+"' : empty sortFieldName string in '" + sortFieldString + "'");
-    		if (!stf.hasMoreTokens()) {
-    			sortType = SortField.Type.SCORE;
-				sortField = new SortField(sortFieldName, sortType);
-    		} else {
-    			String sortTypeOrLocaleOrCompString = stf.nextToken().trim();
-    			if (sortTypeOrLocaleOrCompString.length()==0)
-    				errorExit("getHits sortFields='"+sortFields+"' : empty sortType or locale or comparatorClass string in '" + sortFieldString + "'");
-    			if (sortTypeOrLocaleOrCompString.indexOf(".")>=0) {
-    				String compString = sortTypeOrLocaleOrCompString;
-    				String paramString = "";
-    				Object[] params = new Object[] {};
-    				if (sortTypeOrLocaleOrCompString.indexOf("(")>=0) {
-    					int p = compString.indexOf("(");
-    					int q = compString.indexOf(")");
-    					if (p<3 || q<p+1)
-    						errorExit("getHits sortFields='"+sortFields+"' : comparatorClass parameters malformed in '" + compString + "'.");
-    					paramString = compString.substring(p+1, q);
-    					compString = compString.substring(0, p);
-    					StringTokenizer stp = new StringTokenizer(paramString, "-");
-    					params = new Object[stp.countTokens()];
-    					int ip = 0;
-    					while (stp.hasMoreTokens()) {
-    						params[ip++] = stp.nextToken().trim();
-    					}
-    				}
-    				FieldComparatorSource scs = null;
-    				Class comparatorClass = null;
-    				try {
-    					comparatorClass = Class.forName(compString);
-    				} catch (ClassNotFoundException e) {
-    					errorExit("getHits sortFields='"+sortFields+"' : comparatorClass '" + compString + "'"
-    							+ ": class not found:\n"+e.toString());
-    				}
-    				Constructor[] constructors = comparatorClass.getConstructors();
-    				StringBuffer errorMessage = new StringBuffer();
-    				for (int j=0; j<constructors.length; j++) {
-    					Constructor cj = constructors[j];
-    					try {
-    						scs = (FieldComparatorSource) cj.newInstance(params);
-    						if (logger.isDebugEnabled())
-    							logger.debug("getHits sortFields='"+sortFields+"' : comparatorClass '" 
-    									+ compString + "'"
-    									+ ": constructor["+j+"]='"+cj.toGenericString()+"'");
-    						break;
-    					} catch (IllegalArgumentException e) {
-    						errorMessage.append("\nconstructor["+j+"]='"+cj.toGenericString()+"'"+"\n"+e.toString()+" ");
-    					} catch (InstantiationException e) {
-    						errorMessage.append("\nconstructor["+j+"]='"+cj.toGenericString()+"'"+"\n"+e.toString()+" ");
-    					} catch (IllegalAccessException e) {
-    						errorMessage.append("\nconstructor["+j+"]='"+cj.toGenericString()+"'"+"\n"+e.toString()+" ");
-    					} catch (InvocationTargetException e) {
-    						errorMessage.append("\nconstructor["+j+"]='"+cj.toGenericString()+"'"+"\n"+e.toString()+" ");
-    					}
-    				}
-    				if (scs==null) {
-    					errorExit("getHits sortFields='"+sortFields+"' : comparatorClass '" + compString + "'"
-    							+ ": no constructor applied:\n"+errorMessage.toString());
-    				}
-    				if (!stf.hasMoreTokens()) {
-    					sortField = new SortField(sortFieldName, scs);
-    				} else {
-    					String reverseString = stf.nextToken().trim();
-    					if (reverseString.length()==0)
-    						errorExit("getHits sortFields='"+sortFields+"' : empty reverse string in '" + sortFieldString + "'");
-    					boolean reverse = false;
-    					if ("true".equalsIgnoreCase(reverseString)) reverse = true;
-    					else if ("reverse".equalsIgnoreCase(reverseString)) reverse = true;
-    					else if ("false".equalsIgnoreCase(reverseString)) reverse = false;
-    					else
-    						errorExit("getHits sortFields='"+sortFields+"' : unknown reverse string '" + reverseString + "' in '" + sortFieldString + "'");
-    					sortField = new SortField(sortFieldName, scs, reverse);
-    				}
-    			} else {
-    				String sortTypeOrLocaleString = sortTypeOrLocaleOrCompString;
-    				Locale locale = null;
-    				if ("BYTE".equals(sortTypeOrLocaleString)) sortType = SortField.Type.BYTE;
-    				else if ("DOC".equals(sortTypeOrLocaleString)) sortType = SortField.Type.DOC;
-    				else if ("DOUBLE".equals(sortTypeOrLocaleString)) sortType = SortField.Type.DOUBLE;
-    				else if ("FLOAT".equals(sortTypeOrLocaleString)) sortType = SortField.Type.FLOAT;
-    				else if ("INT".equals(sortTypeOrLocaleString)) sortType = SortField.Type.INT;
-    				else if ("LONG".equals(sortTypeOrLocaleString)) sortType = SortField.Type.LONG;
-    				else if ("SCORE".equals(sortTypeOrLocaleString)) {
-    					sortType = SortField.Type.SCORE;
-//    					searcher.setDefaultFieldSortScoring(true, true); not in 4.0.0
-    				}
-    				else if ("SHORT".equals(sortTypeOrLocaleString)) sortType = SortField.Type.SHORT;
-    				else if ("STRING".equals(sortTypeOrLocaleString)) sortType = SortField.Type.STRING;
-    				else if ("STRING_VAL".equals(sortTypeOrLocaleString)) sortType = SortField.Type.STRING_VAL;
-    				else if (((sortTypeOrLocaleString.substring(0, 1)).compareTo("A") >= 0) && ((sortTypeOrLocaleString.substring(0, 1)).compareTo("Z") <= 0)) {
-    					errorExit("getHits sortFields='"+sortFields+"' : unknown sortType string '" + sortTypeOrLocaleString + "' in '" + sortFieldString + "'");
-    				}
-    				else {
-    					StringTokenizer stfl = new StringTokenizer(sortTypeOrLocaleString, "-");
-    					if (stfl.countTokens()>3)
-    						errorExit("getHits sortFields='"+sortFields+"' : unknown locale string '" + sortTypeOrLocaleString + "' in '" + sortFieldString + "'");
-    					String language = stfl.nextToken().trim();
-    					if (language.length()==0)
-    						errorExit("getHits sortFields='"+sortFields+"' : empty language string in '" + sortFieldString + "'");
-    					if (language.length()>2)
-    						errorExit("getHits sortFields='"+sortFields+"' : unknown language string '" + language + "' in '" + sortFieldString + "'");
-    					if (!stfl.hasMoreTokens()) {
-    						locale = new Locale(language);
-    					} else {
-    						String country = stfl.nextToken().trim();
-    						if (country.length()==0)
-    							errorExit("getHits sortFields='"+sortFields+"' : empty country string in '" + sortFieldString + "'");
-    						if (country.length()>3)
-    							errorExit("getHits sortFields='"+sortFields+"' : unknown country string '" + country + "' in '" + sortFieldString + "'");
-    						if (!stfl.hasMoreTokens()) {
-    							locale = new Locale(language, country);
-    						} else {
-    							String variant = stfl.nextToken().trim();
-    							if (variant.length()==0)
-    								errorExit("getHits sortFields='"+sortFields+"' : empty variant string in '" + sortFieldString + "'");
-    							locale = new Locale(language, country, variant);
-    						}
-    					}
-    				}
-    				if (!stf.hasMoreTokens()) {
-    					if (sortType != null)
-    						sortField = new SortField(sortFieldName, sortType);
-//    					else
-//    						sortField = new SortField(sortFieldName, locale);
-    				} else {
-    					String reverseString = stf.nextToken().trim();
-    					if (reverseString.length()==0)
-    						errorExit("getHits sortFields='"+sortFields+"' : empty reverse string in '" + sortFieldString + "'");
-    					boolean reverse = false;
-    					if ("true".equalsIgnoreCase(reverseString)) reverse = true;
-    					else if ("reverse".equalsIgnoreCase(reverseString)) reverse = true;
-    					else if ("false".equalsIgnoreCase(reverseString)) reverse = false;
-    					else
-    						throw new GenericSearchException("getHits sortFields='"+sortFields+"' : unknown reverse string '" + reverseString + "' in '" + sortFieldString + "'");
-    					if (sortType == SortField.Type.SCORE) reverse = !reverse;
-    					if (sortType != null)
-    						sortField = new SortField(sortFieldName, sortType, reverse);
-//    					else
-//    						sortField = new SortField(sortFieldName, locale, reverse);
-    				}
-    			}
-    		}
-    		sortFieldArray[i++] = sortField;
-    	}
-    	if (sortFieldArray.length == 0) {
+    	if (sort == null) {
         	try {
         		hits = searcher.search(query, numHits);
         	} catch (Exception e) {
@@ -415,7 +247,6 @@ public class Statement {
         	}
     	} else {
     		try {
-    	    	Sort sort = new Sort(sortFieldArray);
         		hits = searcher.search(query, numHits, sort);
     		} catch (Exception e) {
     			errorExit("getHits search sortFields='"+sortFields+"' : "+e.toString());
@@ -9,8 +9,6 @@ package dk.defxws.fgssolrremote;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -18,22 +16,40 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLEncoder;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.StringTokenizer;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.stream.StreamSource;
 
 import org.apache.log4j.Logger;
 
+import dk.defxws.fedoragsearch.server.FoxmlFilesPipeline;
 import dk.defxws.fedoragsearch.server.GTransformer;
 import dk.defxws.fedoragsearch.server.GenericOperationsImpl;
+import dk.defxws.fedoragsearch.server.TermsBrowser;
 import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
 
 /**
- * performs the SolrRemote specific parts of the operations
+ * performs the SolrRemote specific parts of the operations.
+ * With fgsindex.updateBatchSize or fgsindex.commitWithin set, the documents are sent
+ * in batches, one add request per batch, and the deletes likewise.
+ * The PIDs of a batch are looked up in one query, to count the documents as inserted or updated,
+ * unless fgsindex.updateAccounting is fast.
+ * gfindObjects and browseIndex use the /select, /terms and /admin/luke handlers of the remote Solr,
+ * their responses are read by a ResponseParser, as they arrive.
  * 
  * @author  gertsp45@gmail.com
  * @version 
@@ -42,6 +58,19 @@ public class OperationsImpl extends GenericOperationsImpl {
     
     private static final Logger logger = Logger.getLogger(OperationsImpl.class);
     
+    // below the default maxBooleanClauses of Solr
+    private static final int EXISTS_QUERY_MAX_PIDS = 500;
+    
+    private static final String XML_CONTENT_TYPE = "text/xml; charset=UTF-8";
+    
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded; charset=UTF-8";
+    
+    // the documents and deletes waiting to be sent
+    private List<BatchDoc> batchDocs = new ArrayList<BatchDoc>();
+    private Set<String> batchDocPids = new HashSet<String>();
+    private StringBuffer batchXml = new StringBuffer();
+    private List<BatchDoc> batchDeletes = new ArrayList<BatchDoc>();
+    
     public String gfindObjects(
             String query,
             int hitPageStart,
@@ -52,7 +81,123 @@ public class OperationsImpl extends GenericOperationsImpl {
             String sortFields,
             String resultPageXslt)
     throws java.rmi.RemoteException {
-        throw new GenericSearchException("gfindObjects: The operation is not available in the SolrRemote plugin, use Solr operations.");
+        super.gfindObjects(query, hitPageStart, hitPageSize, snippetsMax, fieldMaxLength, indexName, sortFields, resultPageXslt);
+        if ("".equals(usingQuery)) {
+        	return embeddedResult.toString();
+        }
+        String usingIndexName = config.getIndexName(indexName);
+        if (srf != null && config.isSearchResultFilteringActive("presearch")) {
+        	usingIndexName = srf.selectIndexNameForPresearch(fgsUserName, usingIndexName, fgsUserAttributes, config);
+            if (logger.isDebugEnabled())
+                logger.debug("gfindObjects presearch" +
+                        " fgsUserName="+fgsUserName+
+                        " usingIndexName="+usingIndexName);
+        }
+        if (srf != null && config.isSearchResultFilteringActive("insearch")) {
+        	usingQuery = srf.rewriteQueryForInsearch(fgsUserName, usingIndexName, usingQuery, fgsUserAttributes, config);
+            if (logger.isDebugEnabled())
+                logger.debug("gfindObjects insearch" +
+                        " fgsUserName="+fgsUserName+
+                        " usingQuery="+usingQuery);
+        }
+        String usingSortFields = config.getSortFields(usingIndexName, sortFields);
+        StringBuffer solrParams = new StringBuffer();
+        ResponseParser parser = new ResponseParser();
+        StringBuffer resultXml = new StringBuffer();
+        HttpURLConnection con = null;
+        try {
+        	solrParams.append("q="+URLEncoder.encode(usingQuery, "UTF-8"));
+        	String defaultQueryFields = config.getDefaultQueryFields(usingIndexName);
+        	int countFields = new StringTokenizer(defaultQueryFields == null ? "" : defaultQueryFields).countTokens();
+        	if (countFields == 1) {
+        		solrParams.append("&df="+URLEncoder.encode(defaultQueryFields.trim(), "UTF-8"));
+        	} else if (countFields > 1) {
+        		solrParams.append("&defType=edismax&qf="+URLEncoder.encode(defaultQueryFields.trim(), "UTF-8"));
+        	}
+        	solrParams.append("&start="+(hitPageStart-1)+"&rows="+hitPageSize+"&fl="+URLEncoder.encode("*,score", "UTF-8")+"&wt=xml");
+        	String sort = getSolrSort(usingSortFields);
+        	if (sort.length() > 0) {
+        		solrParams.append("&sort="+URLEncoder.encode(sort, "UTF-8"));
+        	}
+        	if (snippetsMax > 0) {
+        		solrParams.append("&hl=true&hl.fl=*&hl.snippets="+snippetsMax
+        				+(fieldMaxLength > 0 ? "&hl.fragsize="+fieldMaxLength : "")
+        				+"&hl.simple.pre="+ResponseParser.SNIPPET_BEGIN+"&hl.simple.post="+ResponseParser.SNIPPET_END);
+        	}
+        	con = openSolr(usingIndexName, "/select", solrParams.toString(), FORM_CONTENT_TYPE);
+        	InputStream in = con.getInputStream();
+        	try {
+        		parser.parseSelect(in, hitPageStart, fieldMaxLength, "PID",
+        				config.getSnippetBegin(usingIndexName), config.getSnippetEnd(usingIndexName), resultXml);
+        	} finally {
+        		in.close();
+        	}
+        } catch (Exception e) {
+            throw new GenericSearchException("gfindObjects select error:\n" + e.toString());
+        } finally {
+        	if (con != null) con.disconnect();
+        }
+        String queryEncoded = usingQuery;
+        try {
+        	queryEncoded = URLEncoder.encode(usingQuery, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+        }
+        resultXml.insert(0, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+        		"<solrsearch "+
+        		"   xmlns:dc=\"http://purl.org/dc/elements/1.1/"+
+        		"\" query=\""+queryEncoded+
+        		"\" indexName=\""+usingIndexName+
+        		"\" sortFields=\""+encode(usingSortFields)+
+        		"\" hitPageStart=\""+hitPageStart+
+        		"\" hitPageSize=\""+hitPageSize+
+        		"\" hitTotal=\""+parser.getHitTotal()+"\">");
+        resultXml.append("</solrsearch>");
+        params[12] = "RESULTPAGEXSLT";
+        params[13] = resultPageXslt;
+        String xsltPath = config.getConfigName()+"/index/"+usingIndexName+"/"+config.getGfindObjectsResultXslt(usingIndexName, resultPageXslt);
+        if (logger.isDebugEnabled())
+            logger.debug("gfindObjects xsltPath=\n"+xsltPath+" hitTotal="+parser.getHitTotal());
+        resultXml = (new GTransformer()).transform(
+        		xsltPath,
+        		resultXml,
+        		params);
+        if (srf != null && config.isSearchResultFilteringActive("postsearch")) {
+        	resultXml = srf.filterResultsetForPostsearch(fgsUserName, resultXml, fgsUserAttributes, config);
+            if (logger.isDebugEnabled())
+                logger.debug("gfindObjects postsearch" +
+                        " fgsUserName="+fgsUserName+
+                        " resultXml=\n"+resultXml);
+        }
+        return resultXml.toString();
+    }
+    
+    /**
+     * the Solr sort parameter of sortFields,
+     * SCORE and a field without sortType sort by relevance, DOC by index order,
+     * the other sortTypes, locales and comparatorClasses sort by the field value, as defined in the Solr schema
+     */
+    private String getSolrSort(String sortFields)
+    throws GenericSearchException {
+    	StringBuffer sort = new StringBuffer();
+    	StringTokenizer st = new StringTokenizer(sortFields == null ? "" : sortFields, ";");
+    	while (st.hasMoreTokens()) {
+    		String sortFieldString = st.nextToken().trim();
+    		if (sortFieldString.length() == 0) continue;
+    		StringTokenizer stf = new StringTokenizer(sortFieldString, ",");
+    		String sortFieldName = stf.nextToken().trim();
+    		String sortType = (stf.hasMoreTokens() ? stf.nextToken().trim() : "SCORE");
+    		String reverseString = (stf.hasMoreTokens() ? stf.nextToken().trim() : "false");
+    		boolean reverse = "true".equalsIgnoreCase(reverseString) || "reverse".equalsIgnoreCase(reverseString);
+    		if (sort.length() > 0) sort.append(",");
+    		if ("SCORE".equals(sortType)) {
+    			sort.append("score "+(reverse ? "asc" : "desc"));
+    		} else if ("DOC".equals(sortType)) {
+    			sort.append("_docid_ "+(reverse ? "desc" : "asc"));
+    		} else {
+    			sort.append(sortFieldName+" "+(reverse ? "desc" : "asc"));
+    		}
+    	}
+    	return sort.toString();
     }
     
     public String browseIndex(
@@ -62,7 +207,97 @@ public class OperationsImpl extends GenericOperationsImpl {
             String indexName,
             String resultPageXslt)
     throws java.rmi.RemoteException {
-        throw new GenericSearchException("browseIndex: The operation is not available in the SolrRemote plugin, use Solr operations.");
+        return browseIndex(startTerm, termPageSize, fieldName, indexName, "", resultPageXslt);
+    }
+    
+    /**
+     * the terms are numbered from the startTerm, and on from the cursor,
+     * as the position of a term among all terms is not given by Solr, nor is the termTotal
+     */
+    public String browseIndex(
+            String startTerm,
+            int termPageSize,
+            String fieldName,
+            String indexName,
+            String cursor,
+            String resultPageXslt)
+    throws java.rmi.RemoteException {
+        super.browseIndex(startTerm, termPageSize, fieldName, indexName, resultPageXslt);
+        String usingIndexName = config.getIndexName(indexName);
+        StringBuffer resultXml = new StringBuffer();
+        ResponseParser parser = new ResponseParser();
+        int termNo = 1;
+        String lowerTerm = (startTerm == null ? "" : startTerm);
+        if (cursor != null && cursor.length() > 0) {
+        	String decoded = TermsBrowser.decodeCursor(cursor);
+        	int i = decoded.indexOf(":");
+        	try {
+        		termNo = Integer.parseInt(decoded.substring(0, i));
+        	} catch (NumberFormatException e) {
+        		throw new GenericSearchException("invalid cursor="+cursor, e);
+        	}
+        	lowerTerm = decoded.substring(i+1);
+        }
+        HttpURLConnection con = null;
+        try {
+        	resultXml.append("<fields>");
+        	con = openSolr(usingIndexName, "/admin/luke", "show=schema&numTerms=0&wt=xml", FORM_CONTENT_TYPE);
+        	InputStream in = con.getInputStream();
+        	try {
+        		parser.parseSchemaFields(in, resultXml);
+        	} finally {
+        		in.close();
+        		con.disconnect();
+        	}
+        	resultXml.append("</fields>");
+        	resultXml.append("<terms>");
+        	if (fieldName != null && fieldName.length() > 0) {
+        		con = openSolr(usingIndexName, "/terms",
+        				"terms.fl="+URLEncoder.encode(fieldName, "UTF-8")
+        				+"&terms.lower="+URLEncoder.encode(lowerTerm, "UTF-8")
+        				+"&terms.lower.incl=true&terms.sort=index&terms.mincount=1"
+        				+"&terms.limit="+(termPageSize+1)+"&wt=xml",
+        				FORM_CONTENT_TYPE);
+        		in = con.getInputStream();
+        		try {
+        			parser.parseTerms(in, termNo, termPageSize, resultXml);
+        		} finally {
+        			in.close();
+        			con.disconnect();
+        		}
+        	}
+        	resultXml.append("</terms>");
+        } catch (Exception e) {
+            throw new GenericSearchException("browseIndex error:\n" + e.toString());
+        }
+        String nextCursor = "";
+        if (parser.getLastTerm() != null) {
+        	try {
+        		nextCursor = TermsBrowser.encodeCursor((termNo+parser.getTermCount())+":"+parser.getLastTerm());
+        	} catch (UnsupportedEncodingException e) {
+        		throw new GenericSearchException("browseIndex cursor error:\n" + e.toString());
+        	}
+        }
+        resultXml.insert(0, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<solrbrowseindex "+
+                "   xmlns:dc=\"http://purl.org/dc/elements/1.1/"+
+                "\" startTerm=\""+encode(startTerm)+
+                "\" termPageSize=\""+termPageSize+
+                "\" fieldName=\""+fieldName+
+                "\" indexName=\""+usingIndexName+
+                (nextCursor.length() > 0 ? "\" nextCursor=\""+nextCursor : "")+
+                "\">");
+        resultXml.append("</solrbrowseindex>");
+        if (logger.isDebugEnabled())
+            logger.debug("resultXml="+resultXml);
+        params[10] = "RESULTPAGEXSLT";
+        params[11] = resultPageXslt;
+        String xsltPath = config.getConfigName()+"/index/"+usingIndexName+"/"+config.getBrowseIndexResultXslt(usingIndexName, resultPageXslt);
+        StringBuffer sb = (new GTransformer()).transform(
+        		xsltPath,
+                resultXml,
+                params);
+        return sb.toString();
     }
     
     public String getIndexInfo(
@@ -100,22 +335,10 @@ public class OperationsImpl extends GenericOperationsImpl {
         updateTotal = 0;
         deleteTotal = 0;
         emptyTotal = 0;
-        StringBuffer resultXml = new StringBuffer();
-        try {
-        	resultXml = sendToSolr("/select?q=*%3A*&rows=0", null);
-		} catch (Exception e) {
-	        throw new GenericSearchException("updateIndex sendToSolr:\n"+e);
-		}
-        int i = resultXml.indexOf("numFound=");
-        int j = resultXml.indexOf("\"", i+10);
-		String numFound = resultXml.substring(i+10, j);
-		try {
-			docCount = Integer.parseInt(numFound);
-		} catch (NumberFormatException e) {
-	        throw new GenericSearchException("updateIndex NumberFormatException numFound="+numFound+"\n"+resultXml, e);
-		}
+        boolean fast = config.isFastUpdateAccounting(indexName);
+        docCount = (fast ? 0 : getIndexDocCount());
         int initDocCount = 0;
-        resultXml = new StringBuffer(); 
+        StringBuffer resultXml = new StringBuffer(); 
         resultXml.append("<solrUpdateIndex");
         resultXml.append(" indexName=\""+indexName+"\"");
         resultXml.append(">\n");
@@ -140,9 +363,96 @@ public class OperationsImpl extends GenericOperationsImpl {
         			}
         		}
         	}
+        	flushBatch(indexName, resultXml);
+        	if (("fromPid".equals(action) || "deletePid".equals(action)) && !failedPids.isEmpty())
+        		throw new GenericSearchException("updateIndex "+action+" "+value+" failed:\n"+resultXml);
         } finally {
         	docCount = initDocCount + insertTotal - deleteTotal;
         }
+        if (fast)
+        	docCount = getIndexDocCount();
+        return updateIndexResult(action, value, repositoryName, indexName, resultPageXslt, resultXml);
+    }
+    
+    /**
+     * sends the batch with one add request, and the deletes with one delete request,
+     * if batches are configured, otherwise each PID by itself
+     */
+    public String updateIndexPids(
+            List<String> fromPids,
+            List<String> deletePids,
+            String repositoryName,
+            String indexName,
+            String indexDocXslt,
+            String resultPageXslt)
+    throws java.rmi.RemoteException {
+        insertTotal = 0;
+        updateTotal = 0;
+        deleteTotal = 0;
+        emptyTotal = 0;
+        boolean fast = config.isFastUpdateAccounting(indexName);
+        docCount = (fast ? 0 : getIndexDocCount());
+        int initDocCount = docCount;
+        StringBuffer resultXml = new StringBuffer(); 
+        resultXml.append("<solrUpdateIndex");
+        resultXml.append(" indexName=\""+indexName+"\"");
+        resultXml.append(">\n");
+        try {
+        	for (String pid : deletePids) {
+        		try {
+        			deletePid(pid, indexName, resultXml);
+        		} catch (java.rmi.RemoteException e) {
+        			warnCount++;
+        			failedPids.add(pid);
+        			logger.error("updateIndexPids deletePid="+pid+" indexName="+indexName+" :\n"+e.getMessage());
+        			resultXml.append("<error pid=\""+encode(pid)+"\">"+encode(e.getMessage())+"</error>\n");
+        		}
+        	}
+        	for (String pid : fromPids) {
+        		try {
+        			fromPid(pid, repositoryName, indexName, resultXml, indexDocXslt);
+        		} catch (java.rmi.RemoteException e) {
+        			warnCount++;
+        			failedPids.add(pid);
+        			logger.error("updateIndexPids fromPid="+pid+" indexName="+indexName+" :\n"+e.getMessage());
+        			resultXml.append("<error pid=\""+encode(pid)+"\">"+encode(e.getMessage())+"</error>\n");
+        		}
+        	}
+        	flushBatch(indexName, resultXml);
+        } finally {
+        	docCount = initDocCount + insertTotal - deleteTotal;
+        }
+        if (fast)
+        	docCount = getIndexDocCount();
+        return updateIndexResult("batch", "fromPids="+fromPids.size()+" deletePids="+deletePids.size(), repositoryName, indexName, resultPageXslt, resultXml);
+    }
+    
+    private int getIndexDocCount()
+    throws java.rmi.RemoteException {
+        StringBuffer resultXml = new StringBuffer();
+        try {
+        	resultXml = sendToSolr("/select?q=*%3A*&rows=0", null);
+		} catch (Exception e) {
+	        throw new GenericSearchException("updateIndex sendToSolr:\n"+e);
+		}
+        int i = resultXml.indexOf("numFound=");
+        int j = resultXml.indexOf("\"", i+10);
+		String numFound = resultXml.substring(i+10, j);
+		try {
+			return Integer.parseInt(numFound);
+		} catch (NumberFormatException e) {
+	        throw new GenericSearchException("updateIndex NumberFormatException numFound="+numFound+"\n"+resultXml, e);
+		}
+    }
+    
+    private String updateIndexResult(
+            String action,
+            String value,
+            String repositoryName,
+            String indexName,
+            String resultPageXslt,
+            StringBuffer resultXml)
+    throws java.rmi.RemoteException {
         logger.info("updateIndex "+action+" indexName="+indexName
         		+" docCount="+docCount);
         resultXml.append("<counts");
@@ -192,7 +502,16 @@ public class OperationsImpl extends GenericOperationsImpl {
         if (logger.isDebugEnabled())
             logger.debug("deletePid indexName="+indexName+" pid="+pid);
         if (pid.length()>0) {
-            boolean existed = indexDocExists(pid);
+            if (isBatching(indexName)) {
+            	// an add of the PID waiting in the batch goes first
+            	if (batchDocPids.contains(pid))
+            		flushDocs(indexName, resultXml);
+            	batchDeletes.add(new BatchDoc(pid));
+            	if (batchDeletes.size() >= Math.max(config.getUpdateBatchSize(indexName), 1))
+            		flushDeletes(indexName, resultXml);
+            	return;
+            }
+            boolean existed = config.isFastUpdateAccounting(indexName) || indexDocExists(pid);
             StringBuffer sb = new StringBuffer("<delete><id>"+pid+"</id></delete>");
             try {
             	sendToSolr("/update", sb.toString());
@@ -234,10 +553,10 @@ public class OperationsImpl extends GenericOperationsImpl {
     
     private void fromFoxmlFiles(
             String filePath,
-            String repositoryName,
-            String indexName,
-            StringBuffer resultXml,
-            String indexDocXslt)
+            final String repositoryName,
+            final String indexName,
+            final StringBuffer resultXml,
+            final String indexDocXslt)
     throws java.rmi.RemoteException {
         if (logger.isDebugEnabled())
             logger.debug("fromFoxmlFiles filePath="+filePath+" repositoryName="+repositoryName+" indexName="+indexName);
@@ -245,40 +564,21 @@ public class OperationsImpl extends GenericOperationsImpl {
         if (filePath==null || filePath.equals(""))
             objectDir = config.getFedoraObjectDir(repositoryName);
         else objectDir = new File(filePath);
-        indexDocs(objectDir, repositoryName, indexName, resultXml, indexDocXslt);
-    }
-    
-    private void indexDocs(
-            File file, 
-            String repositoryName,
-            String indexName,
-            StringBuffer resultXml, 
-            String indexDocXslt)
-    throws java.rmi.RemoteException
-    {
-		if (file.isHidden()) return;
-        if (file.isDirectory())
-        {
-            String[] files = file.list();
-            for (int i = 0; i < files.length; i++) {
-                if (i % 100 == 0)
-                    logger.info("updateIndex fromFoxmlFiles "+file.getAbsolutePath()
-                    		+" docCount="+docCount);
-                indexDocs(new File(file, files[i]), repositoryName, indexName, resultXml, indexDocXslt);
-            }
-        }
-        else
-        {
-            try {
-                indexDoc(getPidFromObjectFilename(file.getName()), repositoryName, indexName, new FileInputStream(file), resultXml, indexDocXslt);
-            } catch (RemoteException e) {
-                resultXml.append("<warning no=\""+(++warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>\n");
-                logger.warn("<warning no=\""+(warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>");
-            } catch (FileNotFoundException e) {
-              resultXml.append("<warning no=\""+(++warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>\n");
-              logger.warn("<warning no=\""+(warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>");
-            }
-        }
+        FoxmlFilesPipeline pipeline = new FoxmlFilesPipeline(new FoxmlFilesPipeline.Stages() {
+        	public StringBuffer transformFoxml(File file, InputStream foxmlStream)
+        	throws RemoteException {
+        		return getIndexDoc(repositoryName, indexName, foxmlStream, indexDocXslt);
+        	}
+        	public Object buildIndexDocument(File file, StringBuffer indexDoc) {
+        		return indexDoc;
+        	}
+        	public void writeIndexDocument(File file, Object indexDocument)
+        	throws RemoteException {
+        		writeIndexDoc(getPidFromObjectFilename(file.getName()), repositoryName, indexName, (StringBuffer) indexDocument, resultXml);
+        	}
+        }, config.getFromFoxmlFilesWorkers(indexName), config.getFromFoxmlFilesQueueSize(indexName), resultXml, warnCount);
+        pipeline.run(objectDir);
+        warnCount = pipeline.getWarnCount();
     }
     
     private void fromPid(
@@ -300,6 +600,16 @@ public class OperationsImpl extends GenericOperationsImpl {
     		InputStream foxmlStream,
     		StringBuffer resultXml,
     		String indexDocXslt)
+    throws java.rmi.RemoteException {
+    	StringBuffer sb = getIndexDoc(repositoryName, indexName, foxmlStream, indexDocXslt);
+    	writeIndexDoc(pid, repositoryName, indexName, sb, resultXml);
+    }
+    
+    private StringBuffer getIndexDoc(
+    		String repositoryName,
+    		String indexName,
+    		InputStream foxmlStream,
+    		String indexDocXslt)
     throws java.rmi.RemoteException {
     	String xsltName = indexDocXslt;
     	String[] params = new String[12];
@@ -349,13 +659,29 @@ public class OperationsImpl extends GenericOperationsImpl {
     			params);
     	if (logger.isDebugEnabled())
     		logger.debug("indexDoc=\n"+sb.toString());
+    	return sb;
+    }
+    
+    private void writeIndexDoc(
+    		String pid,
+    		String repositoryName,
+    		String indexName,
+    		StringBuffer sb,
+    		StringBuffer resultXml)
+    throws java.rmi.RemoteException {
     	if (sb.indexOf("</field>") > 0) {  // skip if no fields
+    		int docStart = sb.indexOf("<doc");
+    		int docEnd = sb.lastIndexOf("</doc>");
+    		if (isBatching(indexName) && docStart >= 0 && docEnd > docStart) {
+    			addToBatch(new BatchDoc(pid), sb.substring(docStart, docEnd+6), indexName, resultXml);
+    			return;
+    		}
             try {
             	sendToSolr("/update", sb.toString());
     		} catch (Exception e) {
     	        throw new GenericSearchException("updateIndex sendToSolr:\n"+e);
     		}
-            if (indexDocExists(pid)) {
+            if (config.isFastUpdateAccounting(indexName) || indexDocExists(pid)) {
                 updateTotal++;
         		resultXml.append("<updated>"+pid+"</updated>\n");
             } else {
@@ -372,14 +698,224 @@ public class OperationsImpl extends GenericOperationsImpl {
 		}
     }
 	
-	private StringBuffer sendToSolr(String solrCommand, String postParameters) throws Exception {
+    private boolean isBatching(String indexName) {
+    	return config.getUpdateBatchSize(indexName) > 1 || config.getCommitWithin(indexName) > 0;
+    }
+    
+    private void addToBatch(
+    		BatchDoc batchDoc,
+    		String docXml,
+    		String indexName,
+    		StringBuffer resultXml)
+    throws java.rmi.RemoteException {
+    	if (batchDocs.size() > 0 && batchXml.length() + docXml.length() > config.getUpdateBatchMaxChars(indexName))
+    		flushDocs(indexName, resultXml);
+    	// a delete of the PID waiting in the batch goes first
+    	for (BatchDoc delete : batchDeletes) {
+    		if (delete.pid.equals(batchDoc.pid)) {
+    			flushDeletes(indexName, resultXml);
+    			break;
+    		}
+    	}
+    	batchDoc.xml = docXml;
+    	batchDocs.add(batchDoc);
+    	batchDocPids.add(batchDoc.pid);
+    	batchXml.append(docXml);
+    	if (batchDocs.size() >= Math.max(config.getUpdateBatchSize(indexName), 1))
+    		flushDocs(indexName, resultXml);
+    }
+    
+    /**
+     * sends the deletes and the documents waiting in the batch
+     */
+    private void flushBatch(
+    		String indexName,
+    		StringBuffer resultXml)
+    throws java.rmi.RemoteException {
+    	flushDeletes(indexName, resultXml);
+    	flushDocs(indexName, resultXml);
+    }
+    
+    /**
+     * sends the documents in one add request,
+     * if it fails, they are sent one by one, so the failing documents are reported
+     */
+    private void flushDocs(
+    		String indexName,
+    		StringBuffer resultXml)
+    throws java.rmi.RemoteException {
+    	if (batchDocs.isEmpty()) return;
+    	List<BatchDoc> docs = batchDocs;
+    	String xml = batchXml.toString();
+    	batchDocs = new ArrayList<BatchDoc>();
+    	batchDocPids.clear();
+    	batchXml = new StringBuffer();
+    	setExisted(docs, indexName);
+    	try {
+    		sendToSolr("/update", "<add"+commitWithin(indexName)+">"+xml+"</add>");
+    		for (BatchDoc doc : docs) {
+    			docAdded(doc, resultXml);
+    		}
+    		if (logger.isDebugEnabled())
+    			logger.debug("flushDocs indexName="+indexName+" docs="+docs.size()+" chars="+xml.length());
+    		return;
+    	} catch (Exception e) {
+    		if (docs.size() > 1)
+    			logger.warn("updateIndex batch of "+docs.size()+" documents failed, they are sent one by one:\n"+e);
+    		else {
+    			docFailed(docs.get(0), e, resultXml);
+    			return;
+    		}
+    	}
+    	for (BatchDoc doc : docs) {
+    		try {
+    			sendToSolr("/update", "<add"+commitWithin(indexName)+">"+doc.xml+"</add>");
+    			docAdded(doc, resultXml);
+    		} catch (Exception e) {
+    			docFailed(doc, e, resultXml);
+    		}
+    	}
+    }
+    
+    private void docAdded(BatchDoc doc, StringBuffer resultXml) {
+    	if (doc.existed) {
+    		updateTotal++;
+    		resultXml.append("<updated>"+doc.pid+"</updated>\n");
+    	} else {
+    		insertTotal++;
+    		docCount++;
+    		resultXml.append("<inserted>"+doc.pid+"</inserted>\n");
+    	}
+    	logger.info("IndexDocument="+doc.pid+" insertTotal="+insertTotal+" updateTotal="+updateTotal+" deleteTotal="+deleteTotal+" emptyTotal="+emptyTotal+" warnCount="+warnCount+" docCount="+docCount);
+    }
+    
+    private void docFailed(BatchDoc doc, Exception e, StringBuffer resultXml) {
+    	warnCount++;
+    	failedPids.add(doc.pid);
+    	logger.error("updateIndex sendToSolr pid="+doc.pid+" :\n"+e);
+    	resultXml.append("<error pid=\""+encode(doc.pid)+"\">"+encode(e.toString())+"</error>\n");
+    }
+    
+    /**
+     * sends the deletes in one delete request
+     */
+    private void flushDeletes(
+    		String indexName,
+    		StringBuffer resultXml)
+    throws java.rmi.RemoteException {
+    	if (batchDeletes.isEmpty()) return;
+    	List<BatchDoc> deletes = batchDeletes;
+    	batchDeletes = new ArrayList<BatchDoc>();
+    	setExisted(deletes, indexName);
+    	StringBuffer sb = new StringBuffer("<delete"+commitWithin(indexName)+">");
+    	for (BatchDoc delete : deletes) {
+    		sb.append("<id>"+encode(delete.pid)+"</id>");
+    	}
+    	sb.append("</delete>");
+    	try {
+    		sendToSolr("/update", sb.toString());
+    	} catch (Exception e) {
+    		throw new GenericSearchException("updateIndex deletePid sendToSolr\n"+e);
+    	}
+    	for (BatchDoc delete : deletes) {
+    		if (delete.existed) {
+    			deleteTotal++;
+    			docCount--;
+    		}
+    		resultXml.append("<deletePid pid=\""+delete.pid+"\"/>\n");
+    	}
+    }
+    
+    /**
+     * looks the PIDs up in one query per EXISTS_QUERY_MAX_PIDS,
+     * with fast updateAccounting they are taken as existing
+     */
+    private void setExisted(
+    		List<BatchDoc> docs,
+    		String indexName)
+    throws java.rmi.RemoteException {
+    	boolean fast = config.isFastUpdateAccounting(indexName);
+    	for (int start = 0; start < docs.size(); start += EXISTS_QUERY_MAX_PIDS) {
+    		int end = Math.min(docs.size(), start + EXISTS_QUERY_MAX_PIDS);
+    		Set<String> existing = null;
+    		if (!fast) {
+    			StringBuffer query = new StringBuffer("PID:(");
+    			for (int i = start; i < end; i++) {
+    				if (i > start) query.append(" OR ");
+    				query.append("\""+docs.get(i).pid.replace("\\", "\\\\").replace("\"", "\\\"")+"\"");
+    			}
+    			query.append(")");
+    			try {
+    				StringBuffer response = sendToSolr("/select",
+    						"q="+URLEncoder.encode(query.toString(), "UTF-8")+"&fl=PID&wt=xml&rows="+(end-start),
+    						FORM_CONTENT_TYPE);
+    				existing = getPids(response);
+    			} catch (Exception e) {
+    				throw new GenericSearchException("updateIndex sendToSolr:\n"+e);
+    			}
+    		}
+    		for (int i = start; i < end; i++) {
+    			BatchDoc doc = docs.get(i);
+    			doc.existed = (existing == null || existing.contains(doc.pid));
+    		}
+    	}
     	if (logger.isDebugEnabled())
-    		logger.debug("sendToSolr solrCommand="+solrCommand+"\nPost parameters=\n" + postParameters);
+    		logger.debug("setExisted indexName="+indexName+" pids="+docs.size()+" fast="+fast);
+    }
+    
+    /**
+     * the values of the PID fields in the select response
+     */
+    private Set<String> getPids(StringBuffer response)
+    throws XMLStreamException {
+    	Set<String> pids = new HashSet<String>();
+    	XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(response.toString()));
+    	try {
+    		boolean inPidArr = false;
+    		while (reader.hasNext()) {
+    			int event = reader.next();
+    			if (event == XMLStreamConstants.START_ELEMENT) {
+    				boolean isPid = "PID".equals(reader.getAttributeValue(null, "name"));
+    				if ("arr".equals(reader.getLocalName())) {
+    					inPidArr = isPid;
+    				} else if ("str".equals(reader.getLocalName()) && (isPid || inPidArr)) {
+    					pids.add(reader.getElementText());
+    				}
+    			} else if (event == XMLStreamConstants.END_ELEMENT && "arr".equals(reader.getLocalName())) {
+    				inPidArr = false;
+    			}
+    		}
+    	} finally {
+    		reader.close();
+    	}
+    	return pids;
+    }
+    
+    private String commitWithin(String indexName) {
+    	long commitWithin = config.getCommitWithin(indexName);
+    	return (commitWithin > 0 ? " commitWithin=\""+commitWithin+"\"" : "");
+    }
+    
+    private static class BatchDoc {
+    	String pid;
+    	boolean existed;
+    	String xml;
+    	
+    	BatchDoc(String pid) {
+    		this.pid = pid;
+    	}
+    }
+	
+	/**
+	 * posts postParameters, if not null, to the solrCommand of the index,
+	 * the response is read from the returned connection
+	 */
+	private HttpURLConnection openSolr(String indexName, String solrCommand, String postParameters, String contentType) throws Exception {
     	String base = config.getIndexBase(indexName);
 		URL url = new URL(base+solrCommand);
 		HttpURLConnection con = (HttpURLConnection) url.openConnection();
         if (postParameters != null) {
-            con.setRequestProperty("Content-type", "text/xml; charset=UTF-8");
+            con.setRequestProperty("Content-type", contentType);
             con.setRequestMethod("POST");
             con.setDoOutput(true);
             OutputStream out = con.getOutputStream();
@@ -394,7 +930,17 @@ public class OperationsImpl extends GenericOperationsImpl {
             writer.close();
             out.close();
         }
-
+        return con;
+	}
+	
+	private StringBuffer sendToSolr(String solrCommand, String postParameters) throws Exception {
+		return sendToSolr(solrCommand, postParameters, XML_CONTENT_TYPE);
+	}
+	
+	private StringBuffer sendToSolr(String solrCommand, String postParameters, String contentType) throws Exception {
+    	if (logger.isDebugEnabled())
+    		logger.debug("sendToSolr solrCommand="+solrCommand+"\nPost parameters=\n" + postParameters);
+		HttpURLConnection con = openSolr(indexName, solrCommand, postParameters, contentType);
 		int responseCode = con.getResponseCode();
     	if (logger.isDebugEnabled())
     		logger.debug("sendToSolr solrCommand="+solrCommand+" response Code="+responseCode);
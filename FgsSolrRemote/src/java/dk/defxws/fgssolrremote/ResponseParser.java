@@ -0,0 +1,326 @@
+/*
+ * <p><b>License and Copyright: </b>The contents of this file is subject to the
+ * same open source license as the Fedora Repository System at www.fedora-commons.org
+ * Copyright &copy; 2006, 2007, 2008, 2009, 2010, 2011, 2012, 2013, 2014, 2015 by The Technical University of Denmark.
+ * All rights reserved.</p>
+ */
+package dk.defxws.fgssolrremote;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+
+import dk.defxws.fedoragsearch.server.GenericOperationsImpl;
+
+/**
+ * reads the xml responses of the remote Solr handlers incrementally, by StAX,
+ * and appends their contents in the form of the Solr plugin, so the response is never held as a whole.
+ * The hits of /select become hit elements of solrsearch, the terms of /terms become term elements,
+ * the fields of /admin/luke become field elements.
+ *
+ * @author  gertsp45@gmail.com
+ * @version
+ */
+public class ResponseParser {
+
+    private static final Logger logger = Logger.getLogger(ResponseParser.class);
+
+    public static final String SNIPPET_BEGIN = "!!!SNIPPETBEGIN";
+
+    public static final String SNIPPET_END = "!!!SNIPPETEND";
+
+    private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+
+    private int hitTotal = 0;
+
+    private int termCount = 0;
+
+    private String lastTerm = null;
+
+    /**
+     * appends the hit elements of a /select response to resultXml,
+     * the stored fields are cut at fieldMaxLength, if > 0,
+     * and replaced by their highlighting snippets, if any, which is in the response after the hits
+     */
+    public void parseSelect(
+    		InputStream response,
+    		int hitPageStart,
+    		int fieldMaxLength,
+    		String uniqueKey,
+    		String snippetBegin,
+    		String snippetEnd,
+    		StringBuffer resultXml)
+    throws XMLStreamException {
+    	XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(response, "UTF-8");
+    	List<Hit> hits = new ArrayList<Hit>();
+    	Map<String, Map<String, String>> snippets = new HashMap<String, Map<String, String>>();
+    	try {
+    		int depth = 0;
+    		while (reader.hasNext()) {
+    			int event = reader.next();
+    			if (event == XMLStreamConstants.START_ELEMENT) {
+    				depth++;
+    				String name = reader.getAttributeValue(null, "name");
+    				if (depth == 2 && "result".equals(reader.getLocalName())) {
+    					hitTotal = Integer.parseInt(reader.getAttributeValue(null, "numFound"));
+    				} else if (depth == 3 && "doc".equals(reader.getLocalName())) {
+    					hits.add(parseDoc(reader, hitPageStart + hits.size(), fieldMaxLength, uniqueKey, resultXml));
+    					depth--;
+    				} else if (depth == 2 && "highlighting".equals(name)) {
+    					parseHighlighting(reader, snippets);
+    					depth--;
+    				}
+    			} else if (event == XMLStreamConstants.END_ELEMENT) {
+    				depth--;
+    			}
+    		}
+    	} finally {
+    		reader.close();
+    	}
+    	// the snippets replace their fields, from the end, so the offsets before stay valid
+    	for (int i = hits.size() - 1; i >= 0; i--) {
+    		Hit hit = hits.get(i);
+    		Map<String, String> hitSnippets = snippets.get(hit.key);
+    		if (hitSnippets == null) continue;
+    		for (int j = hit.fields.size() - 1; j >= 0; j--) {
+    			HitField field = hit.fields.get(j);
+    			String snippet = hitSnippets.get(field.name);
+    			if (snippet == null || !field.first) continue;
+    			snippet = GenericOperationsImpl.encode(snippet);
+    			snippet = snippet.replaceAll(SNIPPET_BEGIN, snippetBegin);
+    			snippet = snippet.replaceAll(SNIPPET_END, snippetEnd);
+    			resultXml.replace(field.start, field.end, "<field name=\""+field.name+"\" snippet=\"yes\">"+snippet+"</field>");
+    		}
+    	}
+    	if (logger.isDebugEnabled())
+    		logger.debug("parseSelect hitTotal="+hitTotal+" hits="+hits.size()+" snippets="+snippets.size());
+    }
+
+    /**
+     * the numFound of the parsed /select response
+     */
+    public int getHitTotal() {
+    	return hitTotal;
+    }
+
+    /**
+     * appends the term elements of a /terms response to resultXml, numbered from termNo,
+     * at most termPageSize terms, the term after those is given by getLastTerm
+     */
+    public void parseTerms(
+    		InputStream response,
+    		int termNo,
+    		int termPageSize,
+    		StringBuffer resultXml)
+    throws XMLStreamException {
+    	XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(response, "UTF-8");
+    	try {
+    		boolean inTerms = false;
+    		int depth = 0;
+    		while (reader.hasNext()) {
+    			int event = reader.next();
+    			if (event == XMLStreamConstants.START_ELEMENT) {
+    				depth++;
+    				if (depth == 2 && "terms".equals(reader.getAttributeValue(null, "name"))) {
+    					inTerms = true;
+    				} else if (inTerms && depth == 4) {
+    					String term = reader.getAttributeValue(null, "name");
+    					String docFreq = reader.getElementText();
+    					depth--;
+    					if (termCount < termPageSize) {
+    						resultXml.append("<term no=\""+(termNo+termCount)+"\""
+    								+" fieldtermhittotal=\""+docFreq
+    								+"\">"+GenericOperationsImpl.encode(term)+"</term>");
+    						termCount++;
+    					} else {
+    						lastTerm = term;
+    					}
+    				}
+    			} else if (event == XMLStreamConstants.END_ELEMENT) {
+    				if (depth == 2) inTerms = false;
+    				depth--;
+    			}
+    		}
+    	} finally {
+    		reader.close();
+    	}
+    }
+
+    /**
+     * the number of term elements appended by parseTerms
+     */
+    public int getTermCount() {
+    	return termCount;
+    }
+
+    /**
+     * the term after the page, null if there are no more terms
+     */
+    public String getLastTerm() {
+    	return lastTerm;
+    }
+
+    /**
+     * appends the field elements of the schema fields in a /admin/luke?show=schema response
+     */
+    public void parseSchemaFields(
+    		InputStream response,
+    		StringBuffer resultXml)
+    throws XMLStreamException {
+    	XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(response, "UTF-8");
+    	try {
+    		int depth = 0;
+    		int schemaDepth = 0;
+    		int fieldsDepth = 0;
+    		while (reader.hasNext()) {
+    			int event = reader.next();
+    			if (event == XMLStreamConstants.START_ELEMENT) {
+    				depth++;
+    				String name = reader.getAttributeValue(null, "name");
+    				if (schemaDepth == 0 && "schema".equals(name)) {
+    					schemaDepth = depth;
+    				} else if (schemaDepth > 0 && depth == schemaDepth+1 && "fields".equals(name)) {
+    					fieldsDepth = depth;
+    				} else if (fieldsDepth > 0 && depth == fieldsDepth+1) {
+    					resultXml.append("<field>"+GenericOperationsImpl.encode(name)+"</field>");
+    				}
+    			} else if (event == XMLStreamConstants.END_ELEMENT) {
+    				if (depth == fieldsDepth) fieldsDepth = 0;
+    				if (depth == schemaDepth) schemaDepth = 0;
+    				depth--;
+    			}
+    		}
+    	} finally {
+    		reader.close();
+    	}
+    }
+
+    /**
+     * appends one hit, positioned at the start of its doc element, and leaves the reader at its end.
+     * The fields are buffered for the hit, as the score comes last
+     */
+    private Hit parseDoc(
+    		XMLStreamReader reader,
+    		int hitNo,
+    		int fieldMaxLength,
+    		String uniqueKey,
+    		StringBuffer resultXml)
+    throws XMLStreamException {
+    	Hit hit = new Hit();
+    	StringBuffer fieldsXml = new StringBuffer();
+    	List<HitField> fields = new ArrayList<HitField>();
+    	String score = "";
+    	String arrName = null;
+    	int depth = 1;
+    	while (depth > 0 && reader.hasNext()) {
+    		int event = reader.next();
+    		if (event == XMLStreamConstants.START_ELEMENT) {
+    			depth++;
+    			String name = reader.getAttributeValue(null, "name");
+    			if ("arr".equals(reader.getLocalName())) {
+    				arrName = name;
+    				continue;
+    			}
+    			if (name == null) name = arrName;
+    			String value = reader.getElementText();
+    			depth--;
+    			if (name == null) continue;
+    			if ("score".equals(name) && arrName == null) {
+    				score = value;
+    				continue;
+    			}
+    			if (name.equals(uniqueKey) && hit.key == null) hit.key = value;
+    			HitField field = new HitField(name, fieldsXml.length(), !hasField(fields, name));
+    			fieldsXml.append("<field name=\""+name+"\">");
+    			if (fieldMaxLength > 0 && value.length() > fieldMaxLength) {
+    				String snippet = value.substring(0, fieldMaxLength);
+    				fieldsXml.append(GenericOperationsImpl.encode(snippet)+" ... ");
+    			} else {
+    				fieldsXml.append(GenericOperationsImpl.encode(value));
+    			}
+    			fieldsXml.append("</field>");
+    			field.end = fieldsXml.length();
+    			fields.add(field);
+    		} else if (event == XMLStreamConstants.END_ELEMENT) {
+    			if ("arr".equals(reader.getLocalName())) arrName = null;
+    			depth--;
+    		}
+    	}
+    	resultXml.append("<hit no=\""+hitNo+"\" score=\""+score+"\">");
+    	int offset = resultXml.length();
+    	for (HitField field : fields) {
+    		field.start += offset;
+    		field.end += offset;
+    	}
+    	hit.fields = fields;
+    	resultXml.append(fieldsXml);
+    	resultXml.append("</hit>");
+    	return hit;
+    }
+
+    /**
+     * reads the highlighting list, positioned at its start, into the snippets of each unique key and field
+     */
+    private void parseHighlighting(
+    		XMLStreamReader reader,
+    		Map<String, Map<String, String>> snippets)
+    throws XMLStreamException {
+    	Map<String, String> hitSnippets = null;
+    	String field = null;
+    	int depth = 1;
+    	while (depth > 0 && reader.hasNext()) {
+    		int event = reader.next();
+    		if (event == XMLStreamConstants.START_ELEMENT) {
+    			depth++;
+    			String name = reader.getAttributeValue(null, "name");
+    			if (depth == 2) {
+    				hitSnippets = new HashMap<String, String>();
+    				snippets.put(name, hitSnippets);
+    			} else if (depth == 3) {
+    				field = name;
+    			} else if (depth == 4 && hitSnippets != null && field != null) {
+    				String snippet = reader.getElementText();
+    				depth--;
+    				String previous = hitSnippets.get(field);
+    				hitSnippets.put(field, previous == null ? snippet : previous+" ... "+snippet);
+    			}
+    		} else if (event == XMLStreamConstants.END_ELEMENT) {
+    			depth--;
+    		}
+    	}
+    }
+
+    private static boolean hasField(List<HitField> fields, String name) {
+    	for (HitField field : fields) {
+    		if (field.name.equals(name)) return true;
+    	}
+    	return false;
+    }
+
+    private static class Hit {
+    	String key;
+    	List<HitField> fields;
+    }
+
+    private static class HitField {
+    	String name;
+    	int start;
+    	int end;
+    	boolean first;
+
+    	HitField(String name, int start, boolean first) {
+    		this.name = name;
+    		this.start = start;
+    		this.first = first;
+    	}
+    }
+}
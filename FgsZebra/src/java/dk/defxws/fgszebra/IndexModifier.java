@@ -11,11 +11,13 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
 import java.util.Hashtable;
 import java.util.StringTokenizer;
 
@@ -26,6 +28,11 @@ import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
 /**
  * modifies the Zebra index 
  * 
+ * The records of an update batch are staged as files of their own in temp_records,
+ * and the deletes in delete_records, so runupdate.sh runs zebraidx once per batch.
+ * There is one modifier per indexDir at a time, because runupdate.sh empties these directories,
+ * a new one waits for the open one to be closed, at most BUSY_WAIT_TIME milliseconds.
+ * 
  * @author  gsp@dtv.dk
  * @version 
  */
@@ -34,15 +41,32 @@ public class IndexModifier {
 	private static final Logger logger =
 		Logger.getLogger(IndexModifier.class);
 	private String indexDir;
-	private static Hashtable oneIndexModifierPerIndexDir = new Hashtable();
+	private static Hashtable<String, IndexModifier> oneIndexModifierPerIndexDir = new Hashtable<String, IndexModifier>();
+	private static final long BUSY_WAIT_TIME = 300000;
+	private int stagedRecords = 0;
+	private int stagedDeletes = 0;
+	private String lastFatal = null;
 
 	/**
 	 */
 	public IndexModifier(String indexDir, boolean create) throws GenericSearchException {
-		if (null != oneIndexModifierPerIndexDir.get(indexDir)) {
-			throw new GenericSearchException("Index modification busy on indexDir="+indexDir);
+		synchronized (oneIndexModifierPerIndexDir) {
+			long until = System.currentTimeMillis() + BUSY_WAIT_TIME;
+			long wait = BUSY_WAIT_TIME;
+			while (null != oneIndexModifierPerIndexDir.get(indexDir) && wait > 0) {
+				try {
+					oneIndexModifierPerIndexDir.wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				wait = until - System.currentTimeMillis();
+			}
+			if (null != oneIndexModifierPerIndexDir.get(indexDir)) {
+				throw new GenericSearchException("Index modification busy on indexDir="+indexDir);
+			}
+			oneIndexModifierPerIndexDir.put(indexDir, this);
 		}
-		oneIndexModifierPerIndexDir.put(indexDir, this);
 		this.indexDir = indexDir;
 		if (create) {
 
@@ -65,10 +89,14 @@ public class IndexModifier {
 	}
 
 	/**
+	 * runs runupdate.sh with the action, waits for it,
+	 * and returns the i/u/d counts of the Records line it logged in indexer.log,
+	 * a fatal error it logged is given by getLastFatal
 	 */
 	public int[] runUpdate(StringBuffer doc, String action, String dir) 
 	throws GenericSearchException {
 		int[] opcounts = {0, 0, 0};
+		lastFatal = null;
 		try {
 			if (doc!=null) {
 				FileWriter fw = new FileWriter(dir+"/temp_records/rec");
@@ -76,36 +104,150 @@ public class IndexModifier {
 				bw.write(doc.toString());
 				bw.close();
 			}
-			Process pt = Runtime.getRuntime().exec("tail -f -n 1 indexer.log &", null, new File(dir));
+			// the log is read from its end before the run, instead of by a tail process,
+			// so a Records line of an earlier run is not taken
+			File log = new File(dir, "indexer.log");
+			long logOffset = log.length();
 			Process p = Runtime.getRuntime().exec("sh "+dir+"/runupdate.sh "+action+" 2>&1 &", null, new File(dir));
-			InputStream is = pt.getInputStream();
-			InputStreamReader isr = new InputStreamReader(is);
-			BufferedReader br = new BufferedReader(isr);
+			// runupdate.sh removes the staged records when done, so the next batch waits for it.
+			// Its output is not read to the end, a zebrasrv started by it keeps the output open
+			p.waitFor();
+			p.getInputStream().close();
 			String line = "";
-			while ((line = br.readLine()) != null) {
-				if (line.indexOf("Records:") > -1 || line.indexOf("temp_records/sb") > -1)
-					if (logger.isDebugEnabled())
-						logger.debug("runupdate line="+line);
-				int i = line.indexOf("Records:");
-				if (i  > -1) {
-					int j = line.indexOf("i/u/d");
-					if (j  > -1) {
-						StringTokenizer sto = new StringTokenizer(line.substring(j+6), "/");
-						opcounts[0] = Integer.parseInt(sto.nextToken().trim());
-						opcounts[1] = Integer.parseInt(sto.nextToken().trim());
-						opcounts[2] = Integer.parseInt(sto.nextToken().trim());
+			if (log.length() < logOffset)
+				logOffset = 0;
+			RandomAccessFile raf = new RandomAccessFile(log, "r");
+			try {
+				raf.seek(logOffset);
+				boolean recordsFound = false;
+				while ((line = raf.readLine()) != null) {
+					// the commit after the update may fail too, so the whole run is read
+					if (lastFatal == null && line.indexOf("[fatal]") > -1) {
+						lastFatal = line;
+						continue;
+					}
+					int i = line.indexOf("Records:");
+					if (i  > -1 && !recordsFound) {
+						recordsFound = true;
+						if (logger.isDebugEnabled())
+							logger.debug("runupdate line="+line);
+						int j = line.indexOf("i/u/d");
+						if (j  > -1) {
+							StringTokenizer sto = new StringTokenizer(line.substring(j+6), "/");
+							opcounts[0] = Integer.parseInt(sto.nextToken().trim());
+							opcounts[1] = Integer.parseInt(sto.nextToken().trim());
+							opcounts[2] = Integer.parseInt(sto.nextToken().trim());
+						}
 					}
-					break;
 				}
+			} finally {
+				raf.close();
 			}
-			br.close();
-			pt.destroy();
 		} catch (IOException e) {
 			throw new GenericSearchException("runupdate error action="+action+" dir="+dir, e);
+		} catch (InterruptedException e) {
+			throw new GenericSearchException("runupdate interrupted action="+action+" dir="+dir, e);
+		}
+		return opcounts;
+	}
+
+	/**
+	 * the fatal error line logged by the last runUpdate, or null
+	 */
+	public String getLastFatal() {
+		return lastFatal;
+	}
+
+	/**
+	 * the file, to which the next record of the update batch is to be written
+	 */
+	public synchronized String nextRecordPath() {
+		return indexDir+"/temp_records/rec"+(stagedRecords++);
+	}
+
+	/**
+	 * the number of records staged since the last runBatchUpdate
+	 */
+	public synchronized int getStagedRecords() {
+		return stagedRecords;
+	}
+
+	/**
+	 * writes the delete record of the pid to delete_records
+	 */
+	public synchronized void stageDelete(String pid) throws GenericSearchException {
+		File deleteDir = new File(indexDir, "delete_records");
+		deleteDir.mkdirs();
+		File record = new File(deleteDir, "del"+(stagedDeletes++));
+		try {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(record), "UTF-8");
+			writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			writer.write("<IndexDocument PID=\""+pid+"\">\n");
+			writer.write("<IndexField IFname=\"PID\">\n"+pid+"\n</IndexField>\n");
+			writer.write("</IndexDocument>\n");
+			writer.close();
+		} catch (IOException e) {
+			throw new GenericSearchException("stageDelete write error "+record, e);
+		}
+	}
+
+	/**
+	 * the number of deletes staged since the last runBatchDelete
+	 */
+	public synchronized int getStagedDeletes() {
+		return stagedDeletes;
+	}
+
+	/**
+	 * indexes the staged records by one zebraidx update and commit,
+	 * throws if zebraidx logged a fatal error, or inserted and updated fewer records than staged
+	 */
+	public synchronized int[] runBatchUpdate() throws GenericSearchException {
+		if (stagedRecords == 0)
+			return new int[] {0, 0, 0};
+		int staged = stagedRecords;
+		stagedRecords = 0;
+		int[] opcounts = null;
+		try {
+			opcounts = runUpdate(null, "update", indexDir);
+		} finally {
+			// left by a run, which failed before runupdate.sh removed them
+			removeStaged("temp_records");
 		}
+		if (lastFatal != null)
+			throw new GenericSearchException("zebraidx update error indexDir="+indexDir+" : "+lastFatal);
+		if (opcounts[0] + opcounts[1] < staged)
+			throw new GenericSearchException("zebraidx update of "+staged+" records indexDir="+indexDir
+					+" : i/u/d "+opcounts[0]+"/"+opcounts[1]+"/"+opcounts[2]);
 		return opcounts;
 	}
 
+	/**
+	 * deletes the staged PIDs by one zebraidx delete and commit,
+	 * throws if zebraidx logged a fatal error
+	 */
+	public synchronized int[] runBatchDelete() throws GenericSearchException {
+		if (stagedDeletes == 0)
+			return new int[] {0, 0, 0};
+		stagedDeletes = 0;
+		int[] opcounts = null;
+		try {
+			opcounts = runUpdate(null, "delete", indexDir);
+		} finally {
+			removeStaged("delete_records");
+		}
+		if (lastFatal != null)
+			throw new GenericSearchException("zebraidx delete error indexDir="+indexDir+" : "+lastFatal);
+		return opcounts;
+	}
+
+	private void removeStaged(String dirName) {
+		File[] files = (new File(indexDir, dirName)).listFiles();
+		for (int i = 0; files != null && i < files.length; i++) {
+			files[i].delete();
+		}
+	}
+
 	/**
 	 */
 	void setCounts(int[] counts) throws GenericSearchException {
@@ -150,7 +292,13 @@ public class IndexModifier {
 	/**
 	 */
 	void close() throws GenericSearchException {
-		oneIndexModifierPerIndexDir.remove(indexDir);
+		synchronized (oneIndexModifierPerIndexDir) {
+			// closed twice, the indexDir may have a new modifier
+			if (oneIndexModifierPerIndexDir.get(indexDir) == this) {
+				oneIndexModifierPerIndexDir.remove(indexDir);
+				oneIndexModifierPerIndexDir.notifyAll();
+			}
+		}
 	}
 
 }
@@ -9,16 +9,20 @@ package dk.defxws.fgszebra;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.xml.transform.stream.StreamSource;
 
 import org.apache.log4j.Logger;
 
+import dk.defxws.fedoragsearch.server.FoxmlFilesPipeline;
 import dk.defxws.fedoragsearch.server.GTransformer;
 import dk.defxws.fedoragsearch.server.GenericOperationsImpl;
 import dk.defxws.fedoragsearch.server.errors.GenericSearchException;
@@ -36,6 +40,11 @@ public class OperationsImpl extends GenericOperationsImpl {
 	private IndexModifier modifier = null;
 	private int[] counts = { 0, 0, 0};
 
+	// with fgsindex.updateBatchSize > 1 the records are staged and indexed by one zebraidx run per batch
+	private int batchSize = 0;
+	private List<String> stagedRecords = new ArrayList<String>();
+	private List<String> stagedDeletes = new ArrayList<String>();
+
 	public String gfindObjects(
 			String query,
 			int hitPageStart,
@@ -124,6 +133,7 @@ public class OperationsImpl extends GenericOperationsImpl {
 	throws java.rmi.RemoteException {
 		insertTotal = 0;
 		deleteTotal = 0;
+		batchSize = config.getUpdateBatchSize(indexName);
 		StringBuffer resultXml = new StringBuffer(); 
 		resultXml.append("<zebraUpdateIndex");
 		resultXml.append(" indexName=\""+indexName+"\"");
@@ -132,9 +142,7 @@ public class OperationsImpl extends GenericOperationsImpl {
 			if ("createEmpty".equals(action)) 
 				createEmpty(config.getIndexDir(indexName), resultXml);
 			else {
-				modifier = new IndexModifier(config.getIndexDir(indexName), false);
-				counts = modifier.getCounts();
-				docCount = counts[0] - counts[2];
+				openModifier(indexName);
 				if ("fromFoxmlFiles".equals(action)) 
 					fromFoxmlFiles(value, repositoryName, indexName, resultXml, indexDocXslt);
 				else
@@ -143,25 +151,96 @@ public class OperationsImpl extends GenericOperationsImpl {
 					else
 						if ("deletePid".equals(action)) 
 							deletePid(value, indexName, resultXml);
+				flushBatch(indexName, resultXml);
 			}
 		} catch (RemoteException e) {
-			if (modifier != null) {
+			closeModifier();
+			throw new GenericSearchException("Exception on updateIndex action= "+action, e);
+		}
+		return updateIndexResult(action, value, repositoryName, indexName, resultPageXslt, resultXml);
+	}
+
+	/**
+	 * updates the index for the batch of PIDs by one zebraidx run for the deletes,
+	 * and one per fgsindex.updateBatchSize records, the counts file is written once.
+	 * Without fgsindex.updateBatchSize > 1 each PID is updated by its own updateIndex call.
+	 */
+	public String updateIndexPids(
+			List<String> fromPids,
+			List<String> deletePids,
+			String repositoryName,
+			String indexName,
+			String indexDocXslt,
+			String resultPageXslt)
+	throws java.rmi.RemoteException {
+		batchSize = config.getUpdateBatchSize(indexName);
+		if (batchSize <= 1)
+			return super.updateIndexPids(fromPids, deletePids, repositoryName, indexName, indexDocXslt, resultPageXslt);
+		insertTotal = 0;
+		deleteTotal = 0;
+		StringBuffer resultXml = new StringBuffer(); 
+		resultXml.append("<zebraUpdateIndex");
+		resultXml.append(" indexName=\""+indexName+"\"");
+		resultXml.append(">\n");
+		try {
+			openModifier(indexName);
+			for (String pid : deletePids) {
+				deletePid(pid, indexName, resultXml);
+			}
+			for (String pid : fromPids) {
 				try {
-					modifier.close();
-				} catch (IOException ioe) {
+					fromPid(pid, repositoryName, indexName, resultXml, indexDocXslt);
+				} catch (RemoteException e) {
+					warnCount++;
+					failedPids.add(pid);
+					logger.error("updateIndexPids fromPid="+pid+" indexName="+indexName+" :\n"+e.getMessage());
+					resultXml.append("<error pid=\""+encode(pid)+"\">"+encode(e.getMessage())+"</error>\n");
 				}
 			}
-			throw new GenericSearchException("Exception on updateIndex action= "+action, e);
+			flushBatch(indexName, resultXml);
+		} catch (RemoteException e) {
+			closeModifier();
+			throw new GenericSearchException("Exception on updateIndexPids indexName= "+indexName, e);
+		}
+		return updateIndexResult("batch", "fromPids="+fromPids.size()+" deletePids="+deletePids.size(), repositoryName, indexName, resultPageXslt, resultXml);
+	}
+
+	private void openModifier(String indexName)
+	throws java.rmi.RemoteException {
+		stagedRecords.clear();
+		stagedDeletes.clear();
+		modifier = new IndexModifier(config.getIndexDir(indexName), false);
+		counts = modifier.getCounts();
+		docCount = counts[0] - counts[2];
+	}
+
+	private void closeModifier() {
+		if (modifier != null) {
+			try {
+				modifier.close();
+			} catch (IOException ioe) {
+			}
 		}
+	}
+
+	private String updateIndexResult(
+			String action,
+			String value,
+			String repositoryName,
+			String indexName,
+			String resultPageXslt,
+			StringBuffer resultXml)
+	throws java.rmi.RemoteException {
 		counts[0] += insertTotal;
 		counts[1] += updateTotal;
 		counts[2] += deleteTotal;
 		if (modifier != null) {
 			try {
 				modifier.setCounts(counts);
-				modifier.close();
 			} catch (IOException e) {
 				throw new GenericSearchException("IndexModifier close error", e);
+			} finally {
+				closeModifier();
 			}
 		}
 		resultXml.append("<counts");
@@ -202,49 +281,56 @@ public class OperationsImpl extends GenericOperationsImpl {
 
 	private void fromFoxmlFiles(
 			String filePath,
-			String repositoryName,
-			String indexName,
-			StringBuffer resultXml,
-			String indexDocXslt)
+			final String repositoryName,
+			final String indexName,
+			final StringBuffer resultXml,
+			final String indexDocXslt)
 	throws java.rmi.RemoteException {
 		File objectDir = null;
 		if (filePath==null || filePath.equals(""))
 			objectDir = config.getFedoraObjectDir(repositoryName);
 		else objectDir = new File(filePath);
-		indexDocs(objectDir, repositoryName, indexName, resultXml, indexDocXslt);
+		FoxmlFilesPipeline pipeline = new FoxmlFilesPipeline(new FoxmlFilesPipeline.Stages() {
+			public StringBuffer transformFoxml(File file, InputStream foxmlStream)
+			throws RemoteException {
+		        String xsltPath = config.getConfigName()+"/index/"+indexName+"/"+config.getUpdateIndexDocXslt(indexName, indexDocXslt);
+				return (new GTransformer()).transform(
+		        		xsltPath,
+						new StreamSource(foxmlStream),
+						new Object[] {"REPOSITORYNAME", repositoryName,
+							"OPERATIONSIMPL", newWorker(indexName)});
+			}
+			public Object buildIndexDocument(File file, StringBuffer indexDoc) {
+				return indexDoc;
+			}
+			public void writeIndexDocument(File file, Object indexDocument)
+			throws RemoteException {
+				String recordPath = (batchSize > 1 ? modifier.nextRecordPath() : config.getIndexDir(indexName)+"/temp_records/sb");
+				try {
+					Writer writer = new OutputStreamWriter(new FileOutputStream(recordPath), "UTF-8");
+					writer.write(indexDocument.toString());
+					writer.close();
+				} catch (IOException e) {
+					throw new GenericSearchException("indexDoc write error "+recordPath, e);
+				}
+				if (batchSize > 1)
+					stageRecord(file.getName(), indexName, resultXml);
+				else
+					runUpdate(file.getName(), indexName, resultXml);
+			}
+		}, config.getFromFoxmlFilesWorkers(indexName), config.getFromFoxmlFilesQueueSize(indexName), resultXml, warnCount);
+		pipeline.run(objectDir);
+		warnCount = pipeline.getWarnCount();
 	}
 
-	private void indexDocs(
-			File file, 
-			String repositoryName,
-			String indexName,
-			StringBuffer resultXml, 
-			String indexDocXslt)
-	throws java.rmi.RemoteException
-	{
-		if (file.isHidden()) return;
-		if (file.isDirectory())
-        {
-            String[] files = file.list();
-            for (int i = 0; i < files.length; i++) {
-                if (i % 100 == 0)
-                    logger.info("updateIndex fromFoxmlFiles "+file.getAbsolutePath()
-                    		+" docCount="+docCount);
-                indexDocs(new File(file, files[i]), repositoryName, indexName, resultXml, indexDocXslt);
-            }
-        }
-		else
-        {
-            try {
-                indexDoc(file.getName(), repositoryName, indexName, new FileInputStream(file), resultXml, indexDocXslt);
-            } catch (RemoteException e) {
-                resultXml.append("<warning no=\""+(++warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>\n");
-                logger.warn("<warning no=\""+(warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>");
-            } catch (FileNotFoundException e) {
-              resultXml.append("<warning no=\""+(++warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>\n");
-              logger.warn("<warning no=\""+(warnCount)+"\">file="+file.getAbsolutePath()+" exception="+e.toString()+"</warning>");
-            }
-        }
+	/**
+	 * each document transformed in parallel is given its own OPERATIONSIMPL instance,
+	 * because the datastream methods called from the stylesheet keep state in the instance
+	 */
+	private OperationsImpl newWorker(String indexName) {
+		OperationsImpl worker = new OperationsImpl();
+		worker.init(fgsUserName, indexName, config, fgsUserAttributes);
+		return worker;
 	}
 
 	private void fromPid(
@@ -263,6 +349,13 @@ public class OperationsImpl extends GenericOperationsImpl {
 			String indexName,
 			StringBuffer resultXml)
 	throws java.rmi.RemoteException {
+		if (batchSize > 1) {
+			modifier.stageDelete(pid);
+			stagedDeletes.add(pid);
+			if (stagedDeletes.size() >= batchSize)
+				flushDeletes(resultXml);
+			return;
+		}
 		int[] dcounts= modifier.runUpdate(null, "deletePid "+pid, config.getIndexDir(indexName));
 		insertTotal += dcounts[0];
 		updateTotal += dcounts[1];
@@ -280,15 +373,118 @@ public class OperationsImpl extends GenericOperationsImpl {
 			StringBuffer resultXml,
 			String indexDocXslt)
 	throws java.rmi.RemoteException {
-		StringBuffer sb = null;
         String xsltPath = config.getConfigName()+"/index/"+indexName+"/"+config.getUpdateIndexDocXslt(indexName, indexDocXslt);
+        if (batchSize > 1) {
+        	String recordPath = modifier.nextRecordPath();
+        	try {
+        		(new GTransformer()).transformToFile(
+        				xsltPath,
+        				new StreamSource(foxmlStream),
+        				new Object[] {"REPOSITORYNAME", repositoryName,
+        					"OPERATIONSIMPL", this},
+        				recordPath);
+        	} catch (RemoteException e) {
+        		// a partly written record would fail the zebraidx run of the whole batch
+        		(new File(recordPath)).delete();
+        		throw e;
+        	}
+        	stageRecord(pidOrFilename, indexName, resultXml);
+        	return;
+        }
 		(new GTransformer()).transformToFile(
         		xsltPath,
 				new StreamSource(foxmlStream),
 				new Object[] {"REPOSITORYNAME", repositoryName,
 					"OPERATIONSIMPL", this},
 				config.getIndexDir(indexName)+"/temp_records/sb");
-		int[] icounts= modifier.runUpdate(sb, "update", config.getIndexDir(indexName));
+		runUpdate(pidOrFilename, indexName, resultXml);
+	}
+
+	private void stageRecord(
+			String pidOrFilename,
+			String indexName,
+			StringBuffer resultXml)
+	throws java.rmi.RemoteException {
+		stagedRecords.add(pidOrFilename);
+		if (stagedRecords.size() >= batchSize)
+			flushBatch(indexName, resultXml);
+	}
+
+	/**
+	 * runs zebraidx for the staged deletes, and then for the staged records,
+	 * the staged records or deletes of a failed run are reported as failed
+	 */
+	private void flushBatch(
+			String indexName,
+			StringBuffer resultXml)
+	throws java.rmi.RemoteException {
+		flushDeletes(resultXml);
+		if (stagedRecords.isEmpty())
+			return;
+		long startTime = System.currentTimeMillis();
+		int[] icounts = null;
+		try {
+			icounts= modifier.runBatchUpdate();
+		} catch (GenericSearchException e) {
+			batchFailed("indexDoc", stagedRecords, e, resultXml);
+			stagedRecords.clear();
+			return;
+		}
+		insertTotal += icounts[0];
+		updateTotal += icounts[1];
+		deleteTotal += icounts[2];
+		docCount = counts[0] + insertTotal - counts[2] - deleteTotal;
+		for (String pidOrFilename : stagedRecords) {
+			resultXml.append("<insert>"+pidOrFilename+"</insert>\n");
+		}
+        logger.info("indexDoc batch records="+stagedRecords.size()+" i/u/d="+icounts[0]+"/"+icounts[1]+"/"+icounts[2]
+        		+" docCount="+docCount+" in "+(System.currentTimeMillis()-startTime)+" ms");
+		stagedRecords.clear();
+	}
+
+	private void flushDeletes(
+			StringBuffer resultXml)
+	throws java.rmi.RemoteException {
+		if (stagedDeletes.isEmpty())
+			return;
+		int[] dcounts = null;
+		try {
+			dcounts= modifier.runBatchDelete();
+		} catch (GenericSearchException e) {
+			batchFailed("deletePid", stagedDeletes, e, resultXml);
+			stagedDeletes.clear();
+			return;
+		}
+		insertTotal += dcounts[0];
+		updateTotal += dcounts[1];
+		deleteTotal += dcounts[2];
+		docCount = counts[0] + insertTotal - counts[2] - deleteTotal;
+		for (String pid : stagedDeletes) {
+			resultXml.append("<delete>"+pid+"</delete>\n");
+		}
+        logger.info("deletePid batch pids="+stagedDeletes.size()+" docCount="+docCount);
+		stagedDeletes.clear();
+	}
+
+	private void batchFailed(
+			String operation,
+			List<String> pidsOrFilenames,
+			GenericSearchException e,
+			StringBuffer resultXml) {
+		logger.error(operation+" batch of "+pidsOrFilenames.size()+" failed :\n"+e.getMessage());
+		for (String pidOrFilename : pidsOrFilenames) {
+			warnCount++;
+			failedPids.add(pidOrFilename);
+			resultXml.append("<error pid=\""+encode(pidOrFilename)+"\">"+encode(e.getMessage())+"</error>\n");
+		}
+	}
+
+	private void runUpdate(
+			String pidOrFilename,
+			String indexName,
+			StringBuffer resultXml)
+	throws java.rmi.RemoteException {
+		int[] icounts= modifier.runUpdate(null, "update", config.getIndexDir(indexName));
 		insertTotal += icounts[0];
 		updateTotal += icounts[1];
 		deleteTotal += icounts[2];